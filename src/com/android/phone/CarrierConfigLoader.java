@@ -43,6 +43,7 @@ import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.preference.PreferenceManager;
 import android.service.carrier.CarrierIdentifier;
@@ -58,6 +59,7 @@ import android.util.ArraySet;
 import android.util.LocalLog;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.ICarrierConfigLoader;
 import com.android.internal.telephony.IccCardConstants;
@@ -113,6 +115,25 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     @NonNull private PersistableBundle[] mOverrideConfigs;
     // Carrier configs to override code default when there is no SIM inserted
     @NonNull private PersistableBundle mNoSimConfig;
+    // The code defaults from CarrierConfigManager, the lowest config layer. Never modified or
+    // handed out.
+    @NonNull private final PersistableBundle mPlatformDefaultConfig =
+            CarrierConfigManager.getDefaultConfig();
+    // Guards the merged config snapshots and their versions below, which are read from binder
+    // threads and invalidated from the handler thread.
+    @NonNull private final Object mMergedConfigLock = new Object();
+    // Fully merged configs returned by getConfigForSubIdWithFeature, indexed by phone ID. A
+    // snapshot is dropped whenever one of the bundles it was merged from changes.
+    @GuardedBy("mMergedConfigLock")
+    @NonNull private MergedConfig[] mMergedConfigs;
+    // Incremented every time one of the source bundles of a phone changes, indexed by phone ID.
+    @GuardedBy("mMergedConfigLock")
+    @NonNull private long[] mConfigVersions;
+    // Fully merged config returned when there is no valid phone.
+    @GuardedBy("mMergedConfigLock")
+    @Nullable private MergedConfig mMergedNoSimConfig;
+    @GuardedBy("mMergedConfigLock")
+    private long mNoSimConfigVersion;
     // Service connection for binding to config app.
     @NonNull private CarrierServiceConnection[] mServiceConnection;
     // Service connection for binding to carrier config app for no SIM config.
@@ -130,6 +151,23 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
     // Whether the essential records have been loaded for each phone id.
     private boolean[] mIsEssentialSimRecordsLoaded;
+    // Progress and per stage timing of the config loading of each phone id. Only accessed on the
+    // handler thread, except for dump.
+    @NonNull private SlotLoadingState[] mSlotLoadingStates;
+    // Minimum interval between two config changed broadcasts of the same phone, in milliseconds.
+    // Changes within the window are coalesced into a single trailing broadcast.
+    private long mConfigChangedDebounceMillis;
+    // Elapsed realtime of the last debounced config changed broadcast, indexed by phone ID.
+    @NonNull private long[] mLastConfigChangedTime;
+    // Whether a coalesced config changed broadcast is scheduled, indexed by phone ID.
+    @NonNull private boolean[] mConfigChangedPending;
+    // Number of config changes folded into a later broadcast, indexed by phone ID.
+    @NonNull private int[] mCoalescedConfigChangedCount;
+    // The merged config sent with the last config changed broadcast, used to compute the changed
+    // keys of the next one, indexed by phone ID.
+    @NonNull private PersistableBundle[] mLastBroadcastConfigs;
+    // The subId sent with the last config changed broadcast, indexed by phone ID.
+    @NonNull private int[] mLastBroadcastSubIds;
     // Broadcast receiver for system events
     @NonNull
     private final BroadcastReceiver mSystemBroadcastReceiver = new ConfigLoaderBroadcastReceiver();
@@ -181,6 +219,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private static final int EVENT_BIND_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT = 21;
     // Fetching config timed out from the default app for no SIM config.
     private static final int EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT = 22;
+    // Send the config changed broadcast that was held back by the debounce window.
+    private static final int EVENT_BROADCAST_CONFIG_CHANGED = 23;
     // NOTE: any new EVENT_* values must be added to method eventToString().
 
     private static final int BIND_TIMEOUT_MILLIS = 30000;
@@ -199,6 +239,20 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     // requested the dump.
     private static final String DUMP_ARG_REQUESTING_PACKAGE = "--requesting-package";
 
+    /**
+     * String array extra of {@link CarrierConfigManager#ACTION_CARRIER_CONFIG_CHANGED} listing the
+     * keys whose value changed since the previous broadcast for the same slot. Receivers can skip
+     * their reload when none of the keys they care about is listed. The extra is omitted when the
+     * change is unknown, i.e. on the first broadcast, on the rebroadcast after the user unlock,
+     * when the subId differs from the previous broadcast or when too many keys changed.
+     */
+    @VisibleForTesting
+    static final String EXTRA_CHANGED_CONFIG_KEYS =
+            "com.android.phone.extra.CHANGED_CARRIER_CONFIG_KEYS";
+    // Above this many changed keys the list is not worth sending, receivers should reload.
+    @VisibleForTesting
+    static final int MAX_CHANGED_CONFIG_KEYS = 100;
+
     // Configs that should always be included when clients calls getConfig[ForSubId] with specified
     // keys (even configs are not explicitly specified). Those configs have special purpose for the
     // carrier config APIs to work correctly.
@@ -239,6 +293,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             }
             switch (msg.what) {
                 case EVENT_CLEAR_CONFIG: {
+                    mSlotLoadingStates[phoneId].enterStage(SlotLoadingState.STAGE_IDLE);
                     clearConfigForPhone(phoneId, true);
                     break;
                 }
@@ -270,11 +325,13 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 }
 
                 case EVENT_DO_FETCH_DEFAULT: {
+                    mSlotLoadingStates[phoneId].enterStage(SlotLoadingState.STAGE_RESTORE_DEFAULT);
                     // Clear in-memory cache for carrier app config, so when carrier app gets
                     // uninstalled, no stale config is left.
                     if (mConfigFromCarrierApp[phoneId] != null
                             && getCarrierPackageForPhoneId(phoneId) == null) {
                         mConfigFromCarrierApp[phoneId] = null;
+                        invalidateMergedConfig(phoneId);
                     }
                     // Restore persistent override values.
                     PersistableBundle config = restoreConfigFromXml(
@@ -284,6 +341,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                 + mPlatformCarrierConfigPackage
                                 + " phoneId=" + phoneId);
                         mPersistentOverrideConfigs[phoneId] = config;
+                        invalidateMergedConfig(phoneId);
                     }
 
                     config = restoreConfigFromXml(mPlatformCarrierConfigPackage, "", phoneId);
@@ -294,6 +352,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                         + " phoneId="
                                         + phoneId);
                         mConfigFromDefaultApp[phoneId] = config;
+                        invalidateMergedConfig(phoneId);
                         Message newMsg = obtainMessage(EVENT_FETCH_DEFAULT_DONE, phoneId, -1);
                         newMsg.getData().putBoolean("loaded_from_xml", true);
                         mHandler.sendMessage(newMsg);
@@ -303,6 +362,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                 mPlatformCarrierConfigPackage,
                                 phoneId,
                                 EVENT_CONNECTED_TO_DEFAULT)) {
+                            mSlotLoadingStates[phoneId].enterStage(
+                                    SlotLoadingState.STAGE_BIND_DEFAULT);
                             sendMessageDelayed(
                                     obtainMessage(EVENT_BIND_DEFAULT_TIMEOUT, phoneId, -1 /*arg2*/,
                                             getMessageToken(phoneId)),
@@ -311,6 +372,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                             // Put a stub bundle in place so that the rest of the logic continues
                             // smoothly.
                             mConfigFromDefaultApp[phoneId] = new PersistableBundle();
+                            invalidateMergedConfig(phoneId);
                             // Send broadcast if bind fails.
                             updateSubscriptionDatabase(phoneId);
                             // TODO: We *must* call unbindService even if bindService returns false.
@@ -355,6 +417,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                     saveConfigToXml(mPlatformCarrierConfigPackage, "", phoneId,
                                             carrierId, config);
                                     mConfigFromDefaultApp[phoneId] = config;
+                                    invalidateMergedConfig(phoneId);
                                     sendMessage(
                                             obtainMessage(
                                                     EVENT_FETCH_DEFAULT_DONE, phoneId, -1));
@@ -364,6 +427,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     try {
                         ICarrierService carrierService =
                                 ICarrierService.Stub.asInterface(conn.service);
+                        mSlotLoadingStates[phoneId].enterStage(
+                                SlotLoadingState.STAGE_FETCH_DEFAULT);
                         carrierService.getCarrierConfig(phoneId, carrierId, resultReceiver);
                         logdWithLocalLog("Fetch config for default app: "
                                 + mPlatformCarrierConfigPackage
@@ -384,6 +449,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 case EVENT_BIND_DEFAULT_TIMEOUT:
                 case EVENT_FETCH_DEFAULT_TIMEOUT: {
                     loge("Bind/fetch time out from " + mPlatformCarrierConfigPackage);
+                    mSlotLoadingStates[phoneId].onTimeout();
                     removeMessages(EVENT_FETCH_DEFAULT_TIMEOUT, getMessageToken(phoneId));
                     // If we attempted to bind to the app, but the service connection is null due to
                     // the race condition that clear config event happens before bind/fetch complete
@@ -396,6 +462,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     }
                     // Put a stub bundle in place so that the rest of the logic continues smoothly.
                     mConfigFromDefaultApp[phoneId] = new PersistableBundle();
+                    invalidateMergedConfig(phoneId);
                     updateSubscriptionDatabase(phoneId);
                     break;
                 }
@@ -418,6 +485,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 }
 
                 case EVENT_DO_FETCH_CARRIER: {
+                    mSlotLoadingStates[phoneId].enterStage(SlotLoadingState.STAGE_RESTORE_CARRIER);
                     final String carrierPackageName = getCarrierPackageForPhoneId(phoneId);
                     final PersistableBundle config =
                             restoreConfigFromXml(carrierPackageName, "", phoneId);
@@ -428,6 +496,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                         + " phoneId="
                                         + phoneId);
                         mConfigFromCarrierApp[phoneId] = config;
+                        invalidateMergedConfig(phoneId);
                         Message newMsg = obtainMessage(EVENT_FETCH_CARRIER_DONE, phoneId, -1);
                         newMsg.getData().putBoolean("loaded_from_xml", true);
                         sendMessage(newMsg);
@@ -435,6 +504,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                         // No cached config, so fetch it from a carrier app.
                         if (carrierPackageName != null && bindToConfigPackage(carrierPackageName,
                                 phoneId, EVENT_CONNECTED_TO_CARRIER)) {
+                            mSlotLoadingStates[phoneId].enterStage(
+                                    SlotLoadingState.STAGE_BIND_CARRIER);
                             sendMessageDelayed(
                                     obtainMessage(EVENT_BIND_CARRIER_TIMEOUT, phoneId, -1 /*arg2*/,
                                             getMessageToken(phoneId)),
@@ -443,6 +514,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                             // Put a stub bundle in place so that the rest of the logic continues
                             // smoothly.
                             mConfigFromCarrierApp[phoneId] = new PersistableBundle();
+                            invalidateMergedConfig(phoneId);
                             // Send broadcast if bind fails.
                             broadcastConfigChangedIntent(phoneId);
                             loge("Bind to carrier app: " + carrierPackageName + " fails");
@@ -488,12 +560,14 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                             phoneId, carrierId, config);
                                     if (config != null) {
                                         mConfigFromCarrierApp[phoneId] = config;
+                                        invalidateMergedConfig(phoneId);
                                     } else {
                                         logdWithLocalLog("Config from carrier app is null "
                                                 + "for phoneId " + phoneId);
                                         // Put a stub bundle in place so that the rest of the logic
                                         // continues smoothly.
                                         mConfigFromCarrierApp[phoneId] = new PersistableBundle();
+                                        invalidateMergedConfig(phoneId);
                                     }
                                     sendMessage(
                                             obtainMessage(
@@ -504,6 +578,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     try {
                         ICarrierService carrierService =
                                 ICarrierService.Stub.asInterface(conn.service);
+                        mSlotLoadingStates[phoneId].enterStage(
+                                SlotLoadingState.STAGE_FETCH_CARRIER);
                         carrierService.getCarrierConfig(phoneId, carrierId, resultReceiver);
                         logdWithLocalLog("Fetch config for carrier app: "
                                 + getCarrierPackageForPhoneId(phoneId)
@@ -524,6 +600,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 case EVENT_FETCH_CARRIER_TIMEOUT: {
                     loge("Bind/fetch from carrier app timeout, package="
                             + getCarrierPackageForPhoneId(phoneId));
+                    mSlotLoadingStates[phoneId].onTimeout();
                     removeMessages(EVENT_FETCH_CARRIER_TIMEOUT, getMessageToken(phoneId));
                     // If we attempted to bind to the app, but the service connection is null due to
                     // the race condition that clear config event happens before bind/fetch complete
@@ -536,6 +613,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     }
                     // Put a stub bundle in place so that the rest of the logic continues smoothly.
                     mConfigFromCarrierApp[phoneId] = new PersistableBundle();
+                    invalidateMergedConfig(phoneId);
                     updateSubscriptionDatabase(phoneId);
                     break;
                 }
@@ -571,6 +649,14 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
                 case EVENT_SUBSCRIPTION_INFO_UPDATED:
                     broadcastConfigChangedIntent(phoneId);
+                    mSlotLoadingStates[phoneId].enterStage(SlotLoadingState.STAGE_DONE);
+                    break;
+                case EVENT_BROADCAST_CONFIG_CHANGED:
+                    // The pending flag is cleared if the config of the phone was cleared since.
+                    if (phoneId < mNumPhones && mConfigChangedPending[phoneId]) {
+                        mConfigChangedPending[phoneId] = false;
+                        sendConfigChangedNotification(phoneId);
+                    }
                     break;
                 case EVENT_MULTI_SIM_CONFIG_CHANGED:
                     onMultiSimConfigChanged();
@@ -584,6 +670,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                         logd("Loaded no SIM config from XML. package="
                                 + mPlatformCarrierConfigPackage);
                         mNoSimConfig = config;
+                        invalidateMergedNoSimConfig();
                         sendMessage(
                                 obtainMessage(
                                         EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_DONE,
@@ -662,6 +749,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                             resultData.getParcelable(KEY_CONFIG_BUNDLE);
                                     saveNoSimConfigToXml(mPlatformCarrierConfigPackage, config);
                                     mNoSimConfig = config;
+                                    invalidateMergedNoSimConfig();
                                     sendMessage(
                                             obtainMessage(
                                                     EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_DONE,
@@ -714,6 +802,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mPersistentOverrideConfigs = new PersistableBundle[mNumPhones];
         mOverrideConfigs = new PersistableBundle[mNumPhones];
         mNoSimConfig = new PersistableBundle();
+        mMergedConfigs = new MergedConfig[mNumPhones];
+        mConfigVersions = new long[mNumPhones];
         mServiceConnection = new CarrierServiceConnection[mNumPhones];
         mServiceBound = new boolean[mNumPhones];
         mHasSentConfigChange = new boolean[mNumPhones];
@@ -722,7 +812,17 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mServiceBoundForNoSimConfig = new boolean[mNumPhones];
         mIsEssentialSimRecordsLoaded = new boolean[mNumPhones];
         mCarrierServiceChangeCallbacks = new CarrierServiceChangeCallback[mNumPhones];
+        mSlotLoadingStates = new SlotLoadingState[mNumPhones];
+        mLastConfigChangedTime = new long[mNumPhones];
+        mConfigChangedPending = new boolean[mNumPhones];
+        mCoalescedConfigChangedCount = new int[mNumPhones];
+        mLastBroadcastConfigs = new PersistableBundle[mNumPhones];
+        mLastBroadcastSubIds = new int[mNumPhones];
+        Arrays.fill(mLastBroadcastSubIds, SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+        mConfigChangedDebounceMillis = mContext.getResources().getInteger(
+                R.integer.config_carrier_config_changed_debounce_millis);
         for (int phoneId = 0; phoneId < mNumPhones; phoneId++) {
+            mSlotLoadingStates[phoneId] = new SlotLoadingState();
             mCarrierServiceChangeCallbacks[phoneId] = new CarrierServiceChangeCallback(phoneId);
             TelephonyManager.from(context).registerCarrierPrivilegesCallback(phoneId,
                     new HandlerExecutor(mHandler), mCarrierServiceChangeCallbacks[phoneId]);
@@ -772,8 +872,12 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
         mConfigFromDefaultApp[phoneId] = null;
         mConfigFromCarrierApp[phoneId] = null;
+        invalidateMergedConfig(phoneId);
         mServiceConnection[phoneId] = null;
         mHasSentConfigChange[phoneId] = false;
+        // A new SIM gets its first broadcast right away, and a pending one would be stale.
+        mConfigChangedPending[phoneId] = false;
+        mLastConfigChangedTime[phoneId] = 0;
 
         if (fetchNoSimConfig) {
             // To fetch no SIM config
@@ -785,6 +889,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
     private void updateSubscriptionDatabase(int phoneId) {
         logd("updateSubscriptionDatabase: phoneId=" + phoneId);
+        mSlotLoadingStates[phoneId].enterStage(SlotLoadingState.STAGE_UPDATE_SUBSCRIPTION);
         String configPackageName;
         PersistableBundle configToSend;
         int carrierId = getSpecificCarrierIdForPhoneId(phoneId);
@@ -815,7 +920,31 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                         .sendToTarget());
     }
 
+    /**
+     * Notifies that the config of a phone changed. The first change after a quiet period is sent
+     * right away, further changes within {@link #mConfigChangedDebounceMillis} are coalesced into
+     * one broadcast at the end of the window. The trailing broadcast reflects the latest config and
+     * its changed keys are the union of the coalesced changes.
+     */
     private void broadcastConfigChangedIntent(int phoneId) {
+        final long now = SystemClock.elapsedRealtime();
+        final long sinceLast = now - mLastConfigChangedTime[phoneId];
+        if (mConfigChangedDebounceMillis > 0 && mLastConfigChangedTime[phoneId] > 0
+                && sinceLast < mConfigChangedDebounceMillis) {
+            mCoalescedConfigChangedCount[phoneId]++;
+            if (!mConfigChangedPending[phoneId]) {
+                mConfigChangedPending[phoneId] = true;
+                mHandler.sendMessageDelayed(
+                        mHandler.obtainMessage(EVENT_BROADCAST_CONFIG_CHANGED, phoneId, -1),
+                        mConfigChangedDebounceMillis - sinceLast);
+            }
+            return;
+        }
+        sendConfigChangedNotification(phoneId);
+    }
+
+    private void sendConfigChangedNotification(int phoneId) {
+        mLastConfigChangedTime[phoneId] = SystemClock.elapsedRealtime();
         if (TelephonyManager.getSimStateForSlotIndex(phoneId)
                     != TelephonyManager.SIM_STATE_LOADED
                     && mIsEssentialSimRecordsLoaded[phoneId]) {
@@ -881,6 +1010,14 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         intent.putExtra(CarrierConfigManager.EXTRA_SLOT_INDEX, phoneId);
         intent.putExtra(CarrierConfigManager.EXTRA_REBROADCAST_ON_UNLOCK,
                 mFromSystemUnlocked[phoneId]);
+        // Receivers query the no SIM config when there is no subId extra.
+        PersistableBundle config = addSubIdExtra ? getMergedConfig(phoneId)
+                : getMergedNoSimConfig();
+        String[] changedKeys = updateLastBroadcastConfig(phoneId, subId,
+                mFromSystemUnlocked[phoneId], config);
+        if (changedKeys != null) {
+            intent.putExtra(EXTRA_CHANGED_CONFIG_KEYS, changedKeys);
+        }
 
         TelephonyRegistryManager trm = mContext.getSystemService(TelephonyRegistryManager.class);
         // Unlike broadcast, we wouldn't notify registrants on carrier config change when device is
@@ -891,15 +1028,81 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
         mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
 
+        String changed = changedKeys == null ? "unknown" : String.valueOf(changedKeys.length);
         if (SubscriptionManager.isValidSubscriptionId(subId)) {
-            logd("Broadcast CARRIER_CONFIG_CHANGED for phone " + phoneId + ", subId=" + subId);
+            logd("Broadcast CARRIER_CONFIG_CHANGED for phone " + phoneId + ", subId=" + subId
+                    + ", changedKeys=" + changed);
         } else {
-            logd("Broadcast CARRIER_CONFIG_CHANGED for phone " + phoneId);
+            logd("Broadcast CARRIER_CONFIG_CHANGED for phone " + phoneId + ", changedKeys="
+                    + changed);
         }
         mHasSentConfigChange[phoneId] = true;
         mFromSystemUnlocked[phoneId] = false;
     }
 
+    /**
+     * Records the config and subId of a config changed broadcast and returns the keys changed
+     * since the previous broadcast for the same phone.
+     *
+     * @return the changed keys, or {@code null} if they are unknown to the receivers. This is the
+     * case for the rebroadcast after the user unlock, which receivers may get without the previous
+     * broadcast, and when the subId changed, which requires a full reload even if the new carrier
+     * has the same config.
+     */
+    @VisibleForTesting
+    @Nullable
+    String[] updateLastBroadcastConfig(int phoneId, int subId, boolean fromSystemUnlocked,
+            @NonNull PersistableBundle config) {
+        String[] changedKeys = null;
+        if (!fromSystemUnlocked && subId == mLastBroadcastSubIds[phoneId]) {
+            changedKeys = getChangedKeys(mLastBroadcastConfigs[phoneId], config,
+                    MAX_CHANGED_CONFIG_KEYS);
+        }
+        // Merged configs are never modified once built, keeping a reference is enough.
+        mLastBroadcastConfigs[phoneId] = config;
+        mLastBroadcastSubIds[phoneId] = subId;
+        return changedKeys;
+    }
+
+    /**
+     * Returns the keys whose value differs between two configs, including keys present in only
+     * one of them. Nested bundles and arrays are compared by content.
+     *
+     * @return the changed keys, or {@code null} if {@code oldConfig} is null or more than
+     * {@code maxKeys} keys changed.
+     */
+    @VisibleForTesting
+    @Nullable
+    static String[] getChangedKeys(@Nullable PersistableBundle oldConfig,
+            @NonNull PersistableBundle newConfig, int maxKeys) {
+        if (oldConfig == null) return null;
+        if (oldConfig == newConfig) return new String[0];
+        Set<String> keys = new ArraySet<>(oldConfig.keySet());
+        keys.addAll(newConfig.keySet());
+        List<String> changedKeys = new ArrayList<>();
+        for (String key : keys) {
+            if (oldConfig.containsKey(key) != newConfig.containsKey(key)
+                    || !configValueEquals(oldConfig.get(key), newConfig.get(key))) {
+                if (changedKeys.size() == maxKeys) return null;
+                changedKeys.add(key);
+            }
+        }
+        return changedKeys.toArray(new String[0]);
+    }
+
+    private static boolean configValueEquals(@Nullable Object a, @Nullable Object b) {
+        if (a instanceof PersistableBundle && b instanceof PersistableBundle) {
+            PersistableBundle bundleA = (PersistableBundle) a;
+            PersistableBundle bundleB = (PersistableBundle) b;
+            if (!bundleA.keySet().equals(bundleB.keySet())) return false;
+            for (String key : bundleA.keySet()) {
+                if (!configValueEquals(bundleA.get(key), bundleB.get(key))) return false;
+            }
+            return true;
+        }
+        return Objects.deepEquals(a, b);
+    }
+
     private void notifyConfigChangedToPhone(int phoneId) {
         logd("notifyConfigChangedToPhone for phone " + phoneId);
         Phone phone = PhoneFactory.getPhone(phoneId);
@@ -1043,6 +1246,9 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
      * The file can be restored later with {@link @restoreConfigFromXml}. The XML output will
      * include the bundle and the current version of the specified package.
      *
+     * The bundle is written as a binary {@link CarrierConfigSnapshot} when possible, XML is only
+     * used if the bundle can't be encoded in a snapshot.
+     *
      * In case of errors or invalid input, no file will be written.
      *
      * @param packageName   the name of the package from which we fetched this bundle.
@@ -1061,6 +1267,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
 
         String fileName;
+        String iccid = null;
+        int cid = TelephonyManager.UNKNOWN_CARRIER_ID;
         if (isNoSimConfig) {
             fileName = getFilenameForNoSimConfig(packageName);
         } else {
@@ -1071,9 +1279,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 return;
             }
 
-            final String iccid = getIccIdForPhoneId(phoneId);
-            final int cid = carrierId != null ? carrierId.getSpecificCarrierId()
-                    : TelephonyManager.UNKNOWN_CARRIER_ID;
+            iccid = getIccIdForPhoneId(phoneId);
+            if (carrierId != null) {
+                cid = carrierId.getSpecificCarrierId();
+            }
             if (iccid == null) {
                 loge("Cannot save config with null iccid.");
                 return;
@@ -1096,12 +1305,29 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             return;
         }
 
+        // Prefer the binary snapshot, which is much cheaper to restore. Only fall back to XML if
+        // the config can't be encoded in it.
+        File xmlFile = new File(mContext.getFilesDir(), fileName);
+        File snapshotFile = new File(mContext.getFilesDir(),
+                CarrierConfigSnapshot.getFilename(fileName));
+        try {
+            CarrierConfigSnapshot.write(snapshotFile, config, version, cid, iccid);
+            logdWithLocalLog(
+                    "Save config snapshot, packagename: " + packageName + " phoneId: " + phoneId);
+            // Remove the XML copy, if any, so that a stale config can't be restored from it.
+            xmlFile.delete();
+            return;
+        } catch (IOException | IllegalArgumentException e) {
+            loge("Failed to save config snapshot, fall back to xml: " + e);
+            snapshotFile.delete();
+        }
+
         logdWithLocalLog(
                 "Save config to xml, packagename: " + packageName + " phoneId: " + phoneId);
 
         FileOutputStream outFile = null;
         try {
-            outFile = new FileOutputStream(new File(mContext.getFilesDir(), fileName));
+            outFile = new FileOutputStream(xmlFile);
             config.putString(KEY_VERSION, version);
             config.writeToStream(outFile);
             outFile.flush();
@@ -1127,7 +1353,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
      * Reads a bundle from an XML file.
      *
      * This restores a bundle that was written with {@link #saveConfigToXml}. This returns the saved
-     * config bundle for the given package and phone ID.
+     * config bundle for the given package and phone ID. A binary {@link CarrierConfigSnapshot} is
+     * preferred, the XML file is only read if there is no usable snapshot.
      *
      * In case of errors, or if the saved config is from a different package version than the
      * current version, then null will be returned.
@@ -1153,6 +1380,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
         String fileName;
         String iccid = null;
+        int cid = TelephonyManager.UNKNOWN_CARRIER_ID;
         if (isNoSimConfig) {
             fileName = getFilenameForNoSimConfig(packageName);
         } else {
@@ -1164,7 +1392,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             }
 
             iccid = getIccIdForPhoneId(phoneId);
-            final int cid = getSpecificCarrierIdForPhoneId(phoneId);
+            cid = getSpecificCarrierIdForPhoneId(phoneId);
             if (iccid == null) {
                 loge("Cannot restore config with null iccid.");
                 return null;
@@ -1172,6 +1400,25 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             fileName = getFilenameForConfig(packageName, extraString, iccid, cid);
         }
 
+        File snapshotFile = new File(mContext.getFilesDir(),
+                CarrierConfigSnapshot.getFilename(fileName));
+        if (snapshotFile.exists()) {
+            try {
+                PersistableBundle snapshot =
+                        CarrierConfigSnapshot.read(snapshotFile, version, cid, iccid);
+                if (snapshot != null) {
+                    return snapshot;
+                }
+                // The snapshot is stale, drop it and try the XML file, if any.
+                loge("Saved snapshot mismatch for version " + version + ", fall back to xml");
+                snapshotFile.delete();
+            } catch (IOException e) {
+                // Drop the unusable snapshot and try the XML file, if any.
+                loge("Failed to restore config snapshot, fall back to xml: " + e);
+                snapshotFile.delete();
+            }
+        }
+
         PersistableBundle restoredBundle = null;
         File file = null;
         FileInputStream inFile = null;
@@ -1352,6 +1599,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mConfigFromCarrierApp = Arrays.copyOf(mConfigFromCarrierApp, mNumPhones);
         mPersistentOverrideConfigs = Arrays.copyOf(mPersistentOverrideConfigs, mNumPhones);
         mOverrideConfigs = Arrays.copyOf(mOverrideConfigs, mNumPhones);
+        synchronized (mMergedConfigLock) {
+            // Snapshots of the remaining phones are still valid, keep them and their versions.
+            mMergedConfigs = Arrays.copyOf(mMergedConfigs, mNumPhones);
+            mConfigVersions = Arrays.copyOf(mConfigVersions, mNumPhones);
+        }
         mServiceConnection = Arrays.copyOf(mServiceConnection, mNumPhones);
         mServiceConnectionForNoSimConfig =
                 Arrays.copyOf(mServiceConnectionForNoSimConfig, mNumPhones);
@@ -1361,6 +1613,18 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mFromSystemUnlocked = Arrays.copyOf(mFromSystemUnlocked, mNumPhones);
         mCarrierServiceChangeCallbacks = Arrays.copyOf(mCarrierServiceChangeCallbacks, mNumPhones);
         mIsEssentialSimRecordsLoaded = Arrays.copyOf(mIsEssentialSimRecordsLoaded, mNumPhones);
+        mSlotLoadingStates = Arrays.copyOf(mSlotLoadingStates, mNumPhones);
+        for (int phoneId = oldNumPhones; phoneId < mNumPhones; phoneId++) {
+            mSlotLoadingStates[phoneId] = new SlotLoadingState();
+        }
+        mLastConfigChangedTime = Arrays.copyOf(mLastConfigChangedTime, mNumPhones);
+        mConfigChangedPending = Arrays.copyOf(mConfigChangedPending, mNumPhones);
+        mCoalescedConfigChangedCount = Arrays.copyOf(mCoalescedConfigChangedCount, mNumPhones);
+        mLastBroadcastConfigs = Arrays.copyOf(mLastBroadcastConfigs, mNumPhones);
+        mLastBroadcastSubIds = Arrays.copyOf(mLastBroadcastSubIds, mNumPhones);
+        for (int phoneId = oldNumPhones; phoneId < mNumPhones; phoneId++) {
+            mLastBroadcastSubIds[phoneId] = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        }
 
         // Load the config for all the phones and re-register callback AFTER padding the arrays.
         for (int phoneId = 0; phoneId < mNumPhones; phoneId++) {
@@ -1387,40 +1651,120 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
 
         int phoneId = SubscriptionManager.getPhoneId(subscriptionId);
-        PersistableBundle retConfig = CarrierConfigManager.getDefaultConfig();
-        if (SubscriptionManager.isValidPhoneId(phoneId)) {
-            PersistableBundle config = mConfigFromDefaultApp[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
+        // Hand out a copy so that callers in this process can't modify the shared snapshot. This
+        // is a single shallow copy rather than a merge of all the source bundles.
+        return new PersistableBundle(getMergedConfig(phoneId));
+    }
+
+    /**
+     * Returns the fully merged config for the given phone, or the no SIM config if the phone ID
+     * is not valid. The returned bundle is shared and must not be modified.
+     *
+     * <p>The merged config is cached per phone and only rebuilt when one of the source bundles
+     * has changed since, see {@link #invalidateMergedConfig(int)}.
+     */
+    @NonNull
+    private PersistableBundle getMergedConfig(int phoneId) {
+        if (!SubscriptionManager.isValidPhoneId(phoneId)) {
+            return getMergedNoSimConfig();
+        }
+        final boolean allConfigsApplied = isAllConfigsApplied(phoneId);
+        final long version;
+        synchronized (mMergedConfigLock) {
+            if (phoneId >= mMergedConfigs.length) {
+                return CarrierConfigManager.getDefaultConfig();
             }
-            config = mConfigFromCarrierApp[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
+            MergedConfig cached = mMergedConfigs[phoneId];
+            if (cached != null && cached.mAllConfigsApplied == allConfigsApplied) {
+                return cached.mConfig;
             }
-            config = mPersistentOverrideConfigs[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
+            version = mConfigVersions[phoneId];
+        }
+
+        PersistableBundle retConfig = CarrierConfigManager.getDefaultConfig();
+        PersistableBundle config = mConfigFromDefaultApp[phoneId];
+        if (config != null) {
+            retConfig.putAll(config);
+        }
+        config = mConfigFromCarrierApp[phoneId];
+        if (config != null) {
+            retConfig.putAll(config);
+        }
+        config = mPersistentOverrideConfigs[phoneId];
+        if (config != null) {
+            retConfig.putAll(config);
+        }
+        config = mOverrideConfigs[phoneId];
+        if (config != null) {
+            retConfig.putAll(config);
+        }
+        retConfig.putBoolean(
+                CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL, allConfigsApplied);
+
+        synchronized (mMergedConfigLock) {
+            // Only publish the snapshot if no source bundle changed while it was being merged.
+            if (phoneId < mConfigVersions.length && mConfigVersions[phoneId] == version) {
+                mMergedConfigs[phoneId] = new MergedConfig(retConfig, allConfigsApplied, version);
             }
-            config = mOverrideConfigs[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
+        }
+        return retConfig;
+    }
+
+    @NonNull
+    private PersistableBundle getMergedNoSimConfig() {
+        final long version;
+        synchronized (mMergedConfigLock) {
+            if (mMergedNoSimConfig != null) {
+                return mMergedNoSimConfig.mConfig;
             }
-            // Ignore the theoretical case of the default app not being present since that won't
-            // work in CarrierConfigLoader today.
-            final boolean allConfigsApplied =
-                    (mConfigFromCarrierApp[phoneId] != null
-                        || getCarrierPackageForPhoneId(phoneId) == null)
-                    && mConfigFromDefaultApp[phoneId] != null;
-            retConfig.putBoolean(
-                    CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL, allConfigsApplied);
-        } else {
-            if (mNoSimConfig != null) {
-                retConfig.putAll(mNoSimConfig);
+            version = mNoSimConfigVersion;
+        }
+        PersistableBundle retConfig = CarrierConfigManager.getDefaultConfig();
+        if (mNoSimConfig != null) {
+            retConfig.putAll(mNoSimConfig);
+        }
+        synchronized (mMergedConfigLock) {
+            if (mNoSimConfigVersion == version) {
+                mMergedNoSimConfig = new MergedConfig(retConfig, false, version);
             }
         }
         return retConfig;
     }
 
+    /**
+     * Drops the merged config snapshot of the given phone. Must be called whenever the default
+     * app, carrier app, persistent override or override config of the phone changes.
+     */
+    private void invalidateMergedConfig(int phoneId) {
+        synchronized (mMergedConfigLock) {
+            if (phoneId < 0 || phoneId >= mConfigVersions.length) return;
+            mConfigVersions[phoneId]++;
+            mMergedConfigs[phoneId] = null;
+        }
+    }
+
+    /** Drops the merged no SIM config snapshot, must be called whenever mNoSimConfig changes. */
+    private void invalidateMergedNoSimConfig() {
+        synchronized (mMergedConfigLock) {
+            mNoSimConfigVersion++;
+            mMergedNoSimConfig = null;
+        }
+    }
+
+    /**
+     * Returns the version of the merged config of the given phone. The version is incremented
+     * every time one of the bundles the config is merged from changes, so a caller holding a
+     * config can compare versions to tell whether its copy is stale.
+     */
+    /* package */ long getConfigVersion(int phoneId) {
+        synchronized (mMergedConfigLock) {
+            if (!SubscriptionManager.isValidPhoneId(phoneId)) {
+                return mNoSimConfigVersion;
+            }
+            return phoneId < mConfigVersions.length ? mConfigVersions[phoneId] : 0;
+        }
+    }
+
     @Override
     @NonNull
     public PersistableBundle getConfigSubsetForSubIdWithFeature(int subscriptionId,
@@ -1430,22 +1774,24 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         Objects.requireNonNull(keys, "Config keys must be non-null");
         enforceCallerIsSystemOrRequestingPackage(callingPackage);
 
-        // Permission check is performed inside and an empty bundle will return on failure.
-        // No SecurityException thrown here since most clients expect to retrieve the overridden
-        // value if present or use default one if not
-        PersistableBundle allConfigs = getConfigForSubIdWithFeature(subscriptionId, callingPackage,
-                callingFeatureId);
-        if (allConfigs.isEmpty()) {
-            return allConfigs;
+        // An empty bundle will return on failure. No SecurityException thrown here since most
+        // clients expect to retrieve the overridden value if present or use default one if not
+        if (!TelephonyPermissions.checkCallingOrSelfReadPhoneState(mContext, subscriptionId,
+                callingPackage, callingFeatureId, "getCarrierConfig")) {
+            return new PersistableBundle();
         }
         for (String key : keys) {
             Objects.requireNonNull(key, "Config key must be non-null");
         }
 
+        // Resolve the requested keys directly against the config layers instead of merging the
+        // whole config, so the cost depends on the number of keys rather than the config size.
+        int phoneId = SubscriptionManager.getPhoneId(subscriptionId);
+        PersistableBundle[] layers = getConfigLayers(phoneId);
         PersistableBundle configSubset = new PersistableBundle(
                 keys.length + CONFIG_SUBSET_METADATA_KEYS.length);
         for (String carrierConfigKey : keys) {
-            Object value = allConfigs.get(carrierConfigKey);
+            Object value = getConfigValue(layers, carrierConfigKey);
             if (value == null) {
                 // Filter out keys without values.
                 // In history, many AOSP or OEMs/carriers private configs didn't provide default
@@ -1462,12 +1808,58 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
         // Configs in CONFIG_SUBSET_ALWAYS_INCLUDED_KEYS should always be included
         for (String generalKey : CONFIG_SUBSET_METADATA_KEYS) {
-            configSubset.putObject(generalKey, allConfigs.get(generalKey));
+            configSubset.putObject(generalKey, getConfigValue(layers, generalKey));
+        }
+        if (SubscriptionManager.isValidPhoneId(phoneId)) {
+            configSubset.putBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL,
+                    isAllConfigsApplied(phoneId));
         }
 
         return configSubset;
     }
 
+    /**
+     * Returns the bundles the config of the given phone is merged from, ordered from the highest
+     * to the lowest precedence: override, persistent override, carrier app, default app and
+     * platform default. Layers that are not loaded are null. For an invalid phone ID the layers
+     * are the no SIM config and the platform default.
+     */
+    @NonNull
+    private PersistableBundle[] getConfigLayers(int phoneId) {
+        if (!SubscriptionManager.isValidPhoneId(phoneId) || phoneId >= mNumPhones) {
+            return new PersistableBundle[] {mNoSimConfig, mPlatformDefaultConfig};
+        }
+        return new PersistableBundle[] {
+                mOverrideConfigs[phoneId],
+                mPersistentOverrideConfigs[phoneId],
+                mConfigFromCarrierApp[phoneId],
+                mConfigFromDefaultApp[phoneId],
+                mPlatformDefaultConfig};
+    }
+
+    /**
+     * Returns the value of {@code key} from the first layer that contains it, which is the value
+     * the fully merged config would have, or null if no layer contains the key.
+     */
+    @Nullable
+    private static Object getConfigValue(@NonNull PersistableBundle[] layers,
+            @NonNull String key) {
+        for (PersistableBundle layer : layers) {
+            if (layer != null && layer.containsKey(key)) {
+                return layer.get(key);
+            }
+        }
+        return null;
+    }
+
+    private boolean isAllConfigsApplied(int phoneId) {
+        // Ignore the theoretical case of the default app not being present since that won't
+        // work in CarrierConfigLoader today.
+        return (mConfigFromCarrierApp[phoneId] != null
+                    || getCarrierPackageForPhoneId(phoneId) == null)
+                && mConfigFromDefaultApp[phoneId] != null;
+    }
+
     @Override
     public void overrideConfig(int subscriptionId, @Nullable PersistableBundle overrides,
             boolean persistent) {
@@ -1498,8 +1890,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                             OVERRIDE_PACKAGE_ADDITION, iccid, cid);
                     File fileToDelete = new File(mContext.getFilesDir(), fileName);
                     fileToDelete.delete();
+                    new File(mContext.getFilesDir(),
+                            CarrierConfigSnapshot.getFilename(fileName)).delete();
                 }
             }
+            invalidateMergedConfig(phoneId);
             updateSubscriptionDatabase(phoneId);
         });
     }
@@ -1676,6 +2071,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             printConfig(mConfigFromCarrierApp[i], indentPW, "mConfigFromCarrierApp");
             printConfig(mPersistentOverrideConfigs[i], indentPW, "mPersistentOverrideConfigs");
             printConfig(mOverrideConfigs[i], indentPW, "mOverrideConfigs");
+            indentPW.println("configVersion=" + getConfigVersion(i));
+            indentPW.println("loading: " + mSlotLoadingStates[i]);
+            indentPW.println("coalescedConfigChanged=" + mCoalescedConfigChangedCount[i]
+                    + " pending=" + mConfigChangedPending[i]);
         }
 
         printConfig(mNoSimConfig, indentPW, "mNoSimConfig");
@@ -1841,6 +2240,112 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 == TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
     }
 
+    /** An immutable, fully merged carrier config for one phone. */
+    private static final class MergedConfig {
+        @NonNull final PersistableBundle mConfig;
+        final boolean mAllConfigsApplied;
+        final long mVersion;
+
+        MergedConfig(@NonNull PersistableBundle config, boolean allConfigsApplied,
+                long version) {
+            mConfig = config;
+            mAllConfigsApplied = allConfigsApplied;
+            mVersion = version;
+        }
+    }
+
+    /**
+     * Tracks the stage the config loading of one phone is in and how long each stage took.
+     *
+     * <p>The stages of different phones are independent: binding and fetching are asynchronous
+     * and every phone has its own service connection and timeouts, so the loading of one phone
+     * overlaps with, and is never held up by, a slow carrier app on another phone.
+     */
+    private static final class SlotLoadingState {
+        static final int STAGE_IDLE = 0;
+        // Restoring the default app and persistent override config from the cache.
+        static final int STAGE_RESTORE_DEFAULT = 1;
+        static final int STAGE_BIND_DEFAULT = 2;
+        static final int STAGE_FETCH_DEFAULT = 3;
+        // Restoring the carrier app config from the cache.
+        static final int STAGE_RESTORE_CARRIER = 4;
+        static final int STAGE_BIND_CARRIER = 5;
+        static final int STAGE_FETCH_CARRIER = 6;
+        // Waiting for SubscriptionManagerService to take the new config.
+        static final int STAGE_UPDATE_SUBSCRIPTION = 7;
+        // The config change has been broadcast.
+        static final int STAGE_DONE = 8;
+        private static final int STAGE_COUNT = 9;
+
+        private int mStage = STAGE_IDLE;
+        private long mStageStartMillis;
+        private long mLoadStartMillis;
+        private final long[] mStageDurationsMillis = new long[STAGE_COUNT];
+        private boolean mTimedOut;
+        // Summary of the last loading that ran to completion.
+        @Nullable private String mLastLoading;
+
+        void enterStage(int stage) {
+            final long now = SystemClock.elapsedRealtime();
+            if (mStage != STAGE_IDLE && mStage != STAGE_DONE) {
+                mStageDurationsMillis[mStage] += now - mStageStartMillis;
+            }
+            if (stage == STAGE_RESTORE_DEFAULT || mStage == STAGE_IDLE || mStage == STAGE_DONE) {
+                // A new loading starts, possibly restarting one in progress.
+                Arrays.fill(mStageDurationsMillis, 0);
+                mTimedOut = false;
+                mLoadStartMillis = now;
+            }
+            if (stage == STAGE_DONE && mStage != STAGE_IDLE && mStage != STAGE_DONE) {
+                mLastLoading = summarize(now);
+            }
+            mStage = stage;
+            mStageStartMillis = now;
+        }
+
+        void onTimeout() {
+            mTimedOut = true;
+        }
+
+        @NonNull
+        private String summarize(long now) {
+            StringBuilder sb = new StringBuilder();
+            for (int stage = STAGE_RESTORE_DEFAULT; stage < STAGE_DONE; stage++) {
+                if (mStageDurationsMillis[stage] == 0 && stage != mStage) continue;
+                sb.append(stageToString(stage)).append('=')
+                        .append(mStageDurationsMillis[stage]).append("ms ");
+            }
+            sb.append("total=").append(now - mLoadStartMillis).append("ms");
+            if (mTimedOut) sb.append(" (timed out)");
+            return sb.toString();
+        }
+
+        @NonNull
+        private static String stageToString(int stage) {
+            switch (stage) {
+                case STAGE_IDLE: return "idle";
+                case STAGE_RESTORE_DEFAULT: return "restore_default";
+                case STAGE_BIND_DEFAULT: return "bind_default";
+                case STAGE_FETCH_DEFAULT: return "fetch_default";
+                case STAGE_RESTORE_CARRIER: return "restore_carrier";
+                case STAGE_BIND_CARRIER: return "bind_carrier";
+                case STAGE_FETCH_CARRIER: return "fetch_carrier";
+                case STAGE_UPDATE_SUBSCRIPTION: return "update_subscription";
+                case STAGE_DONE: return "done";
+                default: return "unknown(" + stage + ")";
+            }
+        }
+
+        @Override
+        public String toString() {
+            String current = stageToString(mStage);
+            if (mStage != STAGE_IDLE && mStage != STAGE_DONE) {
+                current += " for " + (SystemClock.elapsedRealtime() - mStageStartMillis) + "ms";
+            }
+            return "stage=" + current + " last=" + (mLastLoading != null ? mLastLoading : "none");
+        }
+    }
+
     private class CarrierServiceConnection implements ServiceConnection {
         final int phoneId;
         @NonNull final String pkgName;
@@ -1970,6 +2475,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 return "EVENT_BIND_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT";
             case EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT:
                 return "EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT";
+            case EVENT_BROADCAST_CONFIG_CHANGED:
+                return "EVENT_BROADCAST_CONFIG_CHANGED";
             default:
                 return "UNKNOWN(" + code + ")";
         }
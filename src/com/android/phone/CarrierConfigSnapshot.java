@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.PersistableBundle;
+import android.util.AtomicFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes cached carrier configs in a compact binary format, which is much cheaper to
+ * restore than the XML written by {@link PersistableBundle#writeToStream}.
+ *
+ * <p>A snapshot starts with a header holding the version of the package the config came from,
+ * the specific carrier id, a hash of the ICCID and a checksum of the payload. The file is memory
+ * mapped on restore and the header is validated before any of the payload is decoded, so a stale
+ * snapshot is rejected without decoding the config.
+ *
+ * <p>The payload is a flat list of (key, type, value) entries; nested bundles are encoded
+ * recursively. All the value types supported by {@link PersistableBundle} can be encoded.
+ */
+public class CarrierConfigSnapshot {
+    /** The file name extension of snapshot files. */
+    public static final String FILE_EXTENSION = ".ccs";
+
+    // "CCFS", Carrier Config File Snapshot.
+    private static final int MAGIC = 0x43434653;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_BOOLEAN_ARRAY = 6;
+    private static final byte TYPE_INT_ARRAY = 7;
+    private static final byte TYPE_LONG_ARRAY = 8;
+    private static final byte TYPE_DOUBLE_ARRAY = 9;
+    private static final byte TYPE_STRING_ARRAY = 10;
+    private static final byte TYPE_BUNDLE = 11;
+
+    private CarrierConfigSnapshot() {
+    }
+
+    /**
+     * Writes {@code config} to {@code file}.
+     *
+     * @param file the file to write, replaced atomically if it exists.
+     * @param config the config to write.
+     * @param packageVersion the version of the package the config was fetched from.
+     * @param carrierId the specific carrier id of the SIM the config applies to.
+     * @param iccid the ICCID of the SIM the config applies to, null for the no SIM config.
+     * @throws IOException if writing fails.
+     * @throws IllegalArgumentException if the config contains a value that can't be encoded.
+     */
+    public static void write(@NonNull File file, @NonNull PersistableBundle config,
+            @NonNull String packageVersion, int carrierId, @Nullable String iccid)
+            throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        writeBundle(payload, config);
+        payload.flush();
+        byte[] payloadArray = payloadBytes.toByteArray();
+
+        CRC32 checksum = new CRC32();
+        checksum.update(payloadArray);
+
+        // A crash in the middle of the write must not leave a truncated snapshot behind.
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream fileOut = atomicFile.startWrite();
+        try {
+            DataOutputStream out = new DataOutputStream(fileOut);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, packageVersion);
+            out.writeInt(carrierId);
+            out.writeLong(hashIccid(iccid));
+            out.writeInt(payloadArray.length);
+            out.writeLong(checksum.getValue());
+            out.write(payloadArray);
+            out.flush();
+            atomicFile.finishWrite(fileOut);
+        } catch (IOException | RuntimeException e) {
+            atomicFile.failWrite(fileOut);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the config from {@code file}.
+     *
+     * @param file the file to read.
+     * @param packageVersion the current version of the package the config was fetched from.
+     * @param carrierId the specific carrier id of the current SIM.
+     * @param iccid the ICCID of the current SIM, null for the no SIM config.
+     * @return the config, or null if the snapshot was written for a different package version,
+     * carrier or SIM.
+     * @throws FileNotFoundException if the file does not exist.
+     * @throws IOException if the file can't be read or is corrupted.
+     */
+    @Nullable
+    public static PersistableBundle read(@NonNull File file, @NonNull String packageVersion,
+            int carrierId, @Nullable String iccid) throws IOException {
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported carrier config snapshot " + file.getName());
+            }
+            if (!packageVersion.equals(readString(buffer))
+                    || buffer.getInt() != carrierId
+                    || buffer.getLong() != hashIccid(iccid)) {
+                return null;
+            }
+            int payloadLength = buffer.getInt();
+            long expectedChecksum = buffer.getLong();
+            if (payloadLength != buffer.remaining()) {
+                throw new IOException("Truncated carrier config snapshot " + file.getName());
+            }
+            ByteBuffer payload = buffer.slice();
+            CRC32 checksum = new CRC32();
+            checksum.update(payload.duplicate());
+            if (checksum.getValue() != expectedChecksum) {
+                throw new IOException("Corrupted carrier config snapshot " + file.getName());
+            }
+            return readBundle(payload);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed carrier config snapshot " + file.getName(), e);
+        }
+    }
+
+    /**
+     * Returns the name of the snapshot file replacing the given XML config file.
+     */
+    @NonNull
+    public static String getFilename(@NonNull String xmlFileName) {
+        if (xmlFileName.endsWith(".xml")) {
+            xmlFileName = xmlFileName.substring(0, xmlFileName.length() - ".xml".length());
+        }
+        return xmlFileName + FILE_EXTENSION;
+    }
+
+    private static long hashIccid(@Nullable String iccid) {
+        if (iccid == null) return 0;
+        CRC32 crc = new CRC32();
+        crc.update(iccid.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    private static void writeBundle(@NonNull DataOutputStream out,
+            @NonNull PersistableBundle bundle) throws IOException {
+        out.writeInt(bundle.size());
+        for (String key : bundle.keySet()) {
+            writeString(out, key);
+            writeValue(out, key, bundle.get(key));
+        }
+    }
+
+    private static void writeValue(@NonNull DataOutputStream out, @NonNull String key,
+            @Nullable Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof boolean[]) {
+            boolean[] array = (boolean[]) value;
+            out.writeByte(TYPE_BOOLEAN_ARRAY);
+            out.writeInt(array.length);
+            for (boolean b : array) out.writeBoolean(b);
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            out.writeByte(TYPE_INT_ARRAY);
+            out.writeInt(array.length);
+            for (int i : array) out.writeInt(i);
+        } else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            out.writeByte(TYPE_LONG_ARRAY);
+            out.writeInt(array.length);
+            for (long l : array) out.writeLong(l);
+        } else if (value instanceof double[]) {
+            double[] array = (double[]) value;
+            out.writeByte(TYPE_DOUBLE_ARRAY);
+            out.writeInt(array.length);
+            for (double d : array) out.writeDouble(d);
+        } else if (value instanceof String[]) {
+            String[] array = (String[]) value;
+            out.writeByte(TYPE_STRING_ARRAY);
+            out.writeInt(array.length);
+            for (String s : array) {
+                out.writeBoolean(s != null);
+                if (s != null) writeString(out, s);
+            }
+        } else if (value instanceof PersistableBundle) {
+            out.writeByte(TYPE_BUNDLE);
+            writeBundle(out, (PersistableBundle) value);
+        } else {
+            throw new IllegalArgumentException("Unsupported type " + value.getClass().getName()
+                    + " for key " + key);
+        }
+    }
+
+    @NonNull
+    private static PersistableBundle readBundle(@NonNull ByteBuffer in) {
+        int size = in.getInt();
+        PersistableBundle bundle = new PersistableBundle(size);
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            byte type = in.get();
+            switch (type) {
+                case TYPE_NULL:
+                    bundle.putString(key, null);
+                    break;
+                case TYPE_BOOLEAN:
+                    bundle.putBoolean(key, in.get() != 0);
+                    break;
+                case TYPE_INT:
+                    bundle.putInt(key, in.getInt());
+                    break;
+                case TYPE_LONG:
+                    bundle.putLong(key, in.getLong());
+                    break;
+                case TYPE_DOUBLE:
+                    bundle.putDouble(key, in.getDouble());
+                    break;
+                case TYPE_STRING:
+                    bundle.putString(key, readString(in));
+                    break;
+                case TYPE_BOOLEAN_ARRAY: {
+                    boolean[] array = new boolean[readLength(in)];
+                    for (int j = 0; j < array.length; j++) array[j] = in.get() != 0;
+                    bundle.putBooleanArray(key, array);
+                    break;
+                }
+                case TYPE_INT_ARRAY: {
+                    int[] array = new int[readLength(in)];
+                    in.asIntBuffer().get(array);
+                    in.position(in.position() + array.length * Integer.BYTES);
+                    bundle.putIntArray(key, array);
+                    break;
+                }
+                case TYPE_LONG_ARRAY: {
+                    long[] array = new long[readLength(in)];
+                    in.asLongBuffer().get(array);
+                    in.position(in.position() + array.length * Long.BYTES);
+                    bundle.putLongArray(key, array);
+                    break;
+                }
+                case TYPE_DOUBLE_ARRAY: {
+                    double[] array = new double[readLength(in)];
+                    in.asDoubleBuffer().get(array);
+                    in.position(in.position() + array.length * Double.BYTES);
+                    bundle.putDoubleArray(key, array);
+                    break;
+                }
+                case TYPE_STRING_ARRAY: {
+                    String[] array = new String[readLength(in)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.get() != 0 ? readString(in) : null;
+                    }
+                    bundle.putStringArray(key, array);
+                    break;
+                }
+                case TYPE_BUNDLE:
+                    bundle.putPersistableBundle(key, readBundle(in));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown type " + type + " for " + key);
+            }
+        }
+        return bundle;
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @NonNull String value)
+            throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull ByteBuffer in) {
+        int length = readLength(in);
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length,
+                    StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private static int readLength(@NonNull ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+        return length;
+    }
+}
@@ -73,6 +73,7 @@ import android.widget.TextView;
 import com.android.phone.common.dialpad.DialpadKeyButton;
 import com.android.phone.common.util.ViewUtil;
 import com.android.phone.common.widget.ResizingTextEditText;
+import com.android.services.telephony.domainselection.EmergencyCallWarmUp;
 import com.android.telephony.Rlog;
 
 import java.util.ArrayList;
@@ -178,6 +179,9 @@ public class EmergencyDialer extends Activity implements View.OnClickListener,
     private StatusBarManager mStatusBarManager;
     private EmergencyInfoGroup mEmergencyInfoInShortcut;
 
+    // Whether the emergency call warm-up has been started in this session.
+    private boolean mIsWarmUpStarted;
+
     // close activity when screen turns off
     private BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
@@ -250,6 +254,10 @@ public class EmergencyDialer extends Activity implements View.OnClickListener,
             mDigits.getText().clear();
         }
 
+        if (input.length() > 0) {
+            maybeStartWarmUp();
+        }
+
         updateDialAndDeleteButtonStateEnabledAttr();
         updateTtsSpans();
     }
@@ -662,6 +670,10 @@ public class EmergencyDialer extends Activity implements View.OnClickListener,
         }
 
         updateDialAndDeleteButtonStateEnabledAttr();
+
+        if (mShortcutViewConfig.isEnabled() || mDigits.length() > 0) {
+            maybeStartWarmUp();
+        }
     }
 
     @Override
@@ -670,6 +682,7 @@ public class EmergencyDialer extends Activity implements View.OnClickListener,
         if (null != mStatusBarManager) {
             mStatusBarManager.disable(StatusBarManager.DISABLE_NONE);
         }
+        cancelWarmUp();
     }
 
     @Override
@@ -680,6 +693,30 @@ public class EmergencyDialer extends Activity implements View.OnClickListener,
         if (wallpaperManager.isWallpaperSupported()) {
             wallpaperManager.removeOnColorsChangedListener(this);
         }
+
+        cancelWarmUp();
+    }
+
+    /**
+     * Starts preparing the registration state for the emergency call once per session.
+     * The warm-up only runs while the radio is already on. It neither powers on the radio
+     * nor scans for the emergency network.
+     */
+    private void maybeStartWarmUp() {
+        if (mIsWarmUpStarted) return;
+        mIsWarmUpStarted = true;
+        Log.d(LOG_TAG, "Start emergency call warm-up");
+        EmergencyCallWarmUp.getInstance().start();
+    }
+
+    /**
+     * Cancels the warm-up if the user leaves the dialer without dialing.
+     */
+    private void cancelWarmUp() {
+        if (!mIsWarmUpStarted) return;
+        Log.d(LOG_TAG, "Cancel emergency call warm-up");
+        EmergencyCallWarmUp.getInstance().cancel();
+        mIsWarmUpStarted = false;
     }
 
     /**
@@ -784,6 +821,12 @@ public class EmergencyDialer extends Activity implements View.OnClickListener,
                     phone.getPhoneAccountHandle());
         }
 
+        if (mIsWarmUpStarted) {
+            // The emergency call takes over the warm-up.
+            EmergencyCallWarmUp.getInstance().handOver();
+            mIsWarmUpStarted = false;
+        }
+
         TelecomManager tm = this.getSystemService(TelecomManager.class);
         tm.placeCall(Uri.fromParts(PhoneAccount.SCHEME_TEL, number, null), extras);
     }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.phone.utils.LatencyHistogram;
+
+import java.io.PrintWriter;
+
+/**
+ * Keeps per-message latency statistics for {@link PhoneInterfaceManager}'s main thread handler so
+ * that a command starving the main thread queue can be identified from a bug report.
+ *
+ * <p>For every message code the following is tracked, in milliseconds:
+ * <ul>
+ *     <li>queue: time between a request being posted and the handler picking it up.</li>
+ *     <li>exec: time spent inside the handler for the message.</li>
+ *     <li>roundtrip: time between dispatch of a request and the requester being notified,
+ *     which includes the modem round trip for commands paired with an EVENT_*_DONE.</li>
+ *     <li>timeouts: number of blocking requests that gave up waiting for a result.</li>
+ * </ul>
+ */
+public class MainThreadCommandStats {
+
+    private static final class CommandStats {
+        final LatencyHistogram queueWait = new LatencyHistogram();
+        final LatencyHistogram execution = new LatencyHistogram();
+        final LatencyHistogram roundTrip = new LatencyHistogram();
+        int timeouts;
+    }
+
+    private final Object mLock = new Object();
+    private final SparseArray<String> mNames;
+    @GuardedBy("mLock")
+    private final SparseArray<CommandStats> mStats = new SparseArray<>();
+
+    /**
+     * @param names The printable names of the message codes, may be empty.
+     */
+    public MainThreadCommandStats(SparseArray<String> names) {
+        mNames = names;
+    }
+
+    /** A request for {@code command} was picked up by the handler after {@code waitMs}. */
+    public void onDispatched(int command, long waitMs) {
+        synchronized (mLock) {
+            getOrCreate(command).queueWait.record(waitMs);
+        }
+    }
+
+    /** The handler spent {@code execMs} processing message {@code what}. */
+    public void onExecuted(int what, long execMs) {
+        synchronized (mLock) {
+            getOrCreate(what).execution.record(execMs);
+        }
+    }
+
+    /** The requester of {@code command} was notified {@code roundTripMs} after dispatch. */
+    public void onCompleted(int command, long roundTripMs) {
+        synchronized (mLock) {
+            getOrCreate(command).roundTrip.record(roundTripMs);
+        }
+    }
+
+    /** A blocking request for {@code command} timed out. */
+    public void onTimeout(int command) {
+        synchronized (mLock) {
+            getOrCreate(command).timeouts++;
+        }
+    }
+
+    /** Clears all the statistics collected so far. */
+    public void reset() {
+        synchronized (mLock) {
+            mStats.clear();
+        }
+    }
+
+    /** @return the number of timeouts recorded for {@code command}. */
+    @VisibleForTesting
+    public int getTimeoutCount(int command) {
+        synchronized (mLock) {
+            CommandStats stats = mStats.get(command);
+            return stats == null ? 0 : stats.timeouts;
+        }
+    }
+
+    /** @return the number of executions recorded for message {@code what}. */
+    @VisibleForTesting
+    public long getExecutionCount(int what) {
+        synchronized (mLock) {
+            CommandStats stats = mStats.get(what);
+            return stats == null ? 0 : stats.execution.getCount();
+        }
+    }
+
+    /**
+     * Dumps the statistics, one block per message code, ordered by message code.
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("MainThreadHandler stats (ms):");
+            if (mStats.size() == 0) {
+                pw.println("  none");
+                return;
+            }
+            for (int i = 0; i < mStats.size(); i++) {
+                int what = mStats.keyAt(i);
+                CommandStats stats = mStats.valueAt(i);
+                pw.println("  " + getName(what) + "(" + what + ") timeouts=" + stats.timeouts);
+                printHistogram(pw, "queue", stats.queueWait);
+                printHistogram(pw, "exec", stats.execution);
+                printHistogram(pw, "roundtrip", stats.roundTrip);
+            }
+        }
+    }
+
+    private static void printHistogram(PrintWriter pw, String label, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) return;
+        pw.println("    " + label + ": " + histogram.toSummaryString());
+    }
+
+    private String getName(int what) {
+        String name = mNames.get(what);
+        return name != null ? name : "UNKNOWN";
+    }
+
+    @GuardedBy("mLock")
+    private CommandStats getOrCreate(int what) {
+        CommandStats stats = mStats.get(what);
+        if (stats == null) {
+            stats = new CommandStats();
+            mStats.put(what, stats);
+        }
+        return stats;
+    }
+}
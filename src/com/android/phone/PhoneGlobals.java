@@ -81,6 +81,7 @@ import com.android.internal.telephony.uicc.UiccProfile;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.phone.settings.SettingsConstants;
 import com.android.phone.vvm.CarrierVvmPackageInstalledReceiver;
+import com.android.services.telephony.EmergencyCallTracer;
 import com.android.services.telephony.domainselection.TelephonyDomainSelectionService;
 import com.android.services.telephony.rcs.TelephonyRcsService;
 
@@ -1180,6 +1181,7 @@ public class PhoneGlobals extends ContextWrapper {
         if (mDomainSelectionService != null) {
             mDomainSelectionService.dump(fd, pw, args);
         }
+        EmergencyCallTracer.getInstance().dump(pw);
         pw.decreaseIndent();
         pw.println("mPrevRoamingOperatorNumerics:" + mPrevRoamingOperatorNumerics);
         pw.println("------- End PhoneGlobals -------");
@@ -231,6 +231,7 @@ import com.android.internal.telephony.util.TelephonyUtils;
 import com.android.internal.telephony.util.VoicemailNotificationSettingsUtil;
 import com.android.internal.util.FunctionalUtils;
 import com.android.internal.util.HexDump;
+import com.android.internal.util.MessageUtils;
 import com.android.phone.callcomposer.CallComposerPictureManager;
 import com.android.phone.callcomposer.CallComposerPictureTransfer;
 import com.android.phone.callcomposer.ImageData;
@@ -263,7 +264,11 @@ import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
@@ -410,6 +415,9 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private final UserManager mUserManager;
     private final AppOpsManager mAppOps;
     private final MainThreadHandler mMainThreadHandler;
+    private final MainThreadCommandStats mCommandStats = new MainThreadCommandStats(
+            MessageUtils.findMessageNames(new Class[] {PhoneInterfaceManager.class},
+                    new String[] {"CMD_", "EVENT_"}));
     private final SharedPreferences mTelephonySharedPreferences;
     private final PhoneConfigurationManager mPhoneConfigurationManager;
     private final RadioInterfaceCapabilityController mRadioInterfaceCapabilities;
@@ -449,6 +457,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             "reset_network_erase_modem_config_enabled";
 
     private static final int SET_NETWORK_SELECTION_MODE_AUTOMATIC_TIMEOUT_MS = 2000; // 2 seconds
+    // Time to wait for the cell info of all phones in getAllCellInfo.
+    private static final long GET_ALL_CELL_INFO_TIMEOUT_MS = 5000; // 5 seconds
 
     private static final int MODEM_ACTIVITY_TIME_OFFSET_CORRECTION_MS = 50;
 
@@ -532,6 +542,19 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         public WorkSource workSource;
 
+        // The command this request was posted with and when it was posted and dispatched, in
+        // SystemClock.elapsedRealtime(), used for MainThreadCommandStats.
+        public int command;
+        public long enqueueTimeMillis;
+        public long dispatchTimeMillis;
+
+        /**
+         * Completed with {@link #result} once the main thread has finished processing the
+         * request. Dependent stages run on the main thread unless an executor is supplied, so they
+         * must not block.
+         */
+        public final CompletableFuture<Object> resultFuture = new CompletableFuture<>();
+
         public MainThreadRequest(Object argument) {
             this.argument = argument;
         }
@@ -581,6 +604,18 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private final class MainThreadHandler extends Handler {
         @Override
         public void handleMessage(Message msg) {
+            final long startTimeMillis = SystemClock.elapsedRealtime();
+            if (msg.obj instanceof MainThreadRequest) {
+                MainThreadRequest request = (MainThreadRequest) msg.obj;
+                request.dispatchTimeMillis = startTimeMillis;
+                mCommandStats.onDispatched(msg.what,
+                        startTimeMillis - request.enqueueTimeMillis);
+            }
+            handleMainThreadMessage(msg);
+            mCommandStats.onExecuted(msg.what, SystemClock.elapsedRealtime() - startTimeMillis);
+        }
+
+        private void handleMainThreadMessage(Message msg) {
             MainThreadRequest request;
             Message onCompleted;
             AsyncResult ar;
@@ -1754,9 +1789,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     // If a timeout occurs, the response will be null
                     request.result = (ar.exception == null && ar.result != null)
                             ? ar.result : new ArrayList<CellInfo>();
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
                 case CMD_REQUEST_CELL_INFO_UPDATE:
                     request = (MainThreadRequest) msg.obj;
@@ -1803,9 +1836,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                                 ? new CellIdentityCdma() : new CellIdentityGsm();
                     }
 
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
                 }
                 case CMD_MODEM_REBOOT:
@@ -2272,6 +2303,11 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             synchronized (request) {
                 request.notifyAll();
             }
+            request.resultFuture.complete(request.result);
+            if (request.dispatchTimeMillis > 0) {
+                mCommandStats.onCompleted(request.command,
+                        SystemClock.elapsedRealtime() - request.dispatchTimeMillis);
+            }
         }
 
         private void handleNullReturnEvent(Message msg, String command) {
@@ -2370,6 +2406,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         } else {
             request = new MainThreadRequest(argument, subId, workSource);
         }
+        request.command = command;
+        request.enqueueTimeMillis = SystemClock.elapsedRealtime();
 
         Message msg = mMainThreadHandler.obtainMessage(command, request);
         msg.sendToTarget();
@@ -2401,6 +2439,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             }
         }
         if (request.result == null) {
+            mCommandStats.onTimeout(command);
             Log.wtf(LOG_TAG,
                     "sendRequest: Blocking command timed out. Something has gone terribly wrong.");
         }
@@ -2411,6 +2450,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      * Asynchronous ("fire and forget") version of sendRequest():
      * Posts the specified command to be executed on the main thread, and
      * returns immediately.
+     * Use an overload taking an argument to get a future for the result of the request.
      * @see #sendRequest
      */
     private void sendRequestAsync(int command) {
@@ -2421,19 +2461,22 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      * Same as {@link #sendRequestAsync(int)} except it takes an argument.
      * @see {@link #sendRequest(int)}
      */
-    private void sendRequestAsync(int command, Object argument) {
-        sendRequestAsync(command, argument, null, null);
+    private CompletableFuture<Object> sendRequestAsync(int command, Object argument) {
+        return sendRequestAsync(command, argument, null, null);
     }
 
     /**
      * Same as {@link #sendRequestAsync(int,Object)} except it takes a Phone and WorkSource.
      * @see {@link #sendRequest(int,Object)}
      */
-    private void sendRequestAsync(
+    private CompletableFuture<Object> sendRequestAsync(
             int command, Object argument, Phone phone, WorkSource workSource) {
         MainThreadRequest request = new MainThreadRequest(argument, phone, workSource);
+        request.command = command;
+        request.enqueueTimeMillis = SystemClock.elapsedRealtime();
         Message msg = mMainThreadHandler.obtainMessage(command, request);
         msg.sendToTarget();
+        return request.resultFuture;
     }
 
     /**
@@ -3445,13 +3488,41 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
 
         if (DBG_LOC) log("getAllCellInfo: is active user");
+        if (Looper.myLooper() == mMainThreadHandler.getLooper()) {
+            throw new RuntimeException("This method will deadlock if called from the main thread.");
+        }
         WorkSource workSource = getWorkSource(Binder.getCallingUid());
         final long identity = Binder.clearCallingIdentity();
         try {
-            List<CellInfo> cellInfos = new ArrayList<CellInfo>();
+            // Issue the request to every phone up front so the modem round trips overlap, rather
+            // than waiting for each phone in turn.
+            List<CompletableFuture<Object>> requests = new ArrayList<>();
             for (Phone phone : PhoneFactory.getPhones()) {
-                final List<CellInfo> info = (List<CellInfo>) sendRequest(
-                        CMD_GET_ALL_CELL_INFO, null, phone, workSource);
+                requests.add(sendRequestAsync(CMD_GET_ALL_CELL_INFO, null, phone, workSource));
+            }
+            // All of the requests share one deadline, as they are running at the same time.
+            long deadline = SystemClock.elapsedRealtime() + GET_ALL_CELL_INFO_TIMEOUT_MS;
+            List<CellInfo> cellInfos = new ArrayList<CellInfo>();
+            for (CompletableFuture<Object> request : requests) {
+                final List<CellInfo> info;
+                try {
+                    info = (List<CellInfo>) request.get(
+                            Math.max(0, deadline - SystemClock.elapsedRealtime()),
+                            TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    mCommandStats.onTimeout(CMD_GET_ALL_CELL_INFO);
+                    Log.wtf(LOG_TAG, "getAllCellInfo: Blocking command timed out. Something has"
+                            + " gone terribly wrong.");
+                    continue;
+                } catch (InterruptedException e) {
+                    // Keep the interrupt for the binder thread and return what has been received.
+                    Thread.currentThread().interrupt();
+                    loge("getAllCellInfo: interrupted waiting for cell info");
+                    break;
+                } catch (ExecutionException e) {
+                    loge("getAllCellInfo: exception waiting for cell info: " + e);
+                    continue;
+                }
                 if (info != null) cellInfos.addAll(info);
             }
             return cellInfos;
@@ -8850,6 +8921,18 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             return;
         }
         DumpsysHandler.dump(mApp, fd, writer, args);
+        mCommandStats.dump(writer);
+    }
+
+    /**
+     * Prints the latency statistics of the main thread handler, optionally clearing them after.
+     * Used by {@link TelephonyShellCommand}.
+     */
+    void dumpMainThreadStats(PrintWriter pw, boolean reset) {
+        mCommandStats.dump(pw);
+        if (reset) {
+            mCommandStats.reset();
+        }
     }
 
     @Override
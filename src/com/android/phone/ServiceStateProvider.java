@@ -32,8 +32,10 @@ import android.app.compat.CompatChanges;
 import android.compat.annotation.ChangeId;
 import android.compat.annotation.EnabledAfter;
 import android.content.ContentProvider;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.MatrixCursor.RowBuilder;
@@ -50,10 +52,17 @@ import android.util.Log;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.TelephonyPermissions;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The class to provide base facility to access ServiceState related content,
@@ -244,6 +253,14 @@ public class ServiceStateProvider extends ContentProvider {
 
     private final HashMap<Integer, ServiceState> mServiceStates = new HashMap<>();
 
+    // Query results of the last service state of each subId, so that polling apps don't pay for
+    // reading and redacting the whole service state on every query.
+    private final Map<Integer, CachedRows> mCachedRows = new ConcurrentHashMap<>();
+
+    // Notification statistics, for dumpsys.
+    private final AtomicLong mNotificationBatchCount = new AtomicLong();
+    private final AtomicLong mNotifiedUriCount = new AtomicLong();
+
     @VisibleForTesting
     /* package */ static final String[] ALL_COLUMNS = {
         VOICE_REG_STATE,
@@ -297,6 +314,16 @@ public class ServiceStateProvider extends ContentProvider {
      * Default (scrub-out) value will return if applications try to put all columns into cursor by
      * specifying null of {@code projection} parameter and get values through the returned cursor.
      */
+    private static final Set<String> PUBLIC_COLUMNS_SET = Set.of(PUBLIC_COLUMNS);
+
+    // Index of each column in ALL_COLUMNS, which is also the order of the cached rows.
+    private static final Map<String, Integer> ALL_COLUMNS_INDEX = new HashMap<>();
+    static {
+        for (int i = 0; i < ALL_COLUMNS.length; i++) {
+            ALL_COLUMNS_INDEX.put(ALL_COLUMNS[i], i);
+        }
+    }
+
     private static final Set<String> LOCATION_PROTECTED_COLUMNS_SET = Set.of(
             NETWORK_ID,
             SYSTEM_ID
@@ -354,14 +381,21 @@ public class ServiceStateProvider extends ContentProvider {
             // create the new service state
             final ServiceState newSS = ServiceState.CREATOR.createFromParcel(p);
 
-            // notify listeners
+            // notify listeners of all the changed uris at once
             // if ss is null (e.g. first service state update) we will notify for all fields
             ServiceState ss = getServiceState(subId);
-            notifyChangeForSubIdAndField(getContext(), ss, newSS, subId);
-            notifyChangeForSubId(getContext(), ss, newSS, subId);
+            NotificationBatch batch = new NotificationBatch();
+            addChangedFieldUris(batch, ss, newSS, subId);
+            addChangedSubIdUri(batch, ss, newSS, subId);
+            batch.dispatch(getContext());
+            if (batch.size() > 0) {
+                mNotificationBatchCount.incrementAndGet();
+                mNotifiedUriCount.addAndGet(batch.size());
+            }
 
-            // store the new service state
+            // store the new service state, the rows built from the old one are stale
             mServiceStates.put(subId, newSS);
+            mCachedRows.remove(subId);
             return uri;
         }
         return null;
@@ -418,18 +452,18 @@ public class ServiceStateProvider extends ContentProvider {
                     Manifest.permission.READ_PRIVILEGED_PHONE_STATE) == PERMISSION_GRANTED;
 
             final String[] availableColumns;
-            final ServiceState ss;
+            final boolean redacted;
             if (enforceLocationPermission && targetingAtLeastS && !canReadPrivilegedPhoneState) {
                 // targetSdkVersion S+ without read privileged phone state permission can only
                 // access public columns which have no location sensitive info.
                 availableColumns = PUBLIC_COLUMNS;
-                ss = unredactedServiceState;
+                redacted = false;
             } else {
                 availableColumns = ALL_COLUMNS;
                 if (!enforceLocationPermission) {
                     // No matter the targetSdkVersion, return unredacted ServiceState if location
                     // permission enforcement is not introduced
-                    ss = unredactedServiceState;
+                    redacted = false;
                 } else {
                     boolean implicitlyQueryLocation = projection == null;
                     boolean explicitlyQueryLocation = false;
@@ -447,7 +481,7 @@ public class ServiceStateProvider extends ContentProvider {
                     // permission when query non sensitive info.
                     if (implicitlyQueryLocation || explicitlyQueryLocation) {
                         if (hasLocationPermission()) {
-                            ss = unredactedServiceState;
+                            redacted = false;
                         } else {
                             if (targetingAtLeastS) {
                                 // Throw SecurityException to fail loudly if caller is targetSDK S+
@@ -456,109 +490,115 @@ public class ServiceStateProvider extends ContentProvider {
                                                 + "permissions");
                             } else {
                                 // For backward compatibility, return redacted value for old SDK
-                                ss = getLocationRedactedServiceState(unredactedServiceState);
+                                redacted = true;
                             }
                         }
                     } else {
                         // The caller is not interested in location sensitive info, return result
                         // that scrub out all sensitive info. And no permission check is needed.
-                        ss = getLocationRedactedServiceState(unredactedServiceState);
+                        redacted = true;
                     }
                 }
             }
 
-            // Build the result
-            final int voice_reg_state = ss.getState();
-            final int data_reg_state = ss.getDataRegistrationState();
-            final int voice_roaming_type = ss.getVoiceRoamingType();
-            final int data_roaming_type = ss.getDataRoamingType();
-            final String voice_operator_alpha_long = ss.getOperatorAlphaLong();
-            final String voice_operator_alpha_short = ss.getOperatorAlphaShort();
-            final String voice_operator_numeric = ss.getOperatorNumeric();
-            final String data_operator_alpha_long = ss.getOperatorAlphaLong();
-            final String data_operator_alpha_short = ss.getOperatorAlphaShort();
-            final String data_operator_numeric = ss.getOperatorNumeric();
-            final int is_manual_network_selection = (ss.getIsManualSelection()) ? 1 : 0;
-            final int ril_voice_radio_technology = ss.getRilVoiceRadioTechnology();
-            final int ril_data_radio_technology = ss.getRilDataRadioTechnology();
-            final int css_indicator = ss.getCssIndicator();
-            final int network_id = ss.getCdmaNetworkId();
-            final int system_id = ss.getCdmaSystemId();
-            final int cdma_roaming_indicator = ss.getCdmaRoamingIndicator();
-            final int cdma_default_roaming_indicator = ss.getCdmaDefaultRoamingIndicator();
-            final int cdma_eri_icon_index = ss.getCdmaEriIconIndex();
-            final int cdma_eri_icon_mode = ss.getCdmaEriIconMode();
-            final int is_emergency_only = (ss.isEmergencyOnly()) ? 1 : 0;
-            final int is_using_carrier_aggregation = (ss.isUsingCarrierAggregation()) ? 1 : 0;
-            final String operator_alpha_long_raw = ss.getOperatorAlphaLongRaw();
-            final String operator_alpha_short_raw = ss.getOperatorAlphaShortRaw();
-            final int data_network_type = ss.getDataNetworkType();
-            final int duplex_mode = ss.getDuplexMode();
-
-            Object[] data = availableColumns == ALL_COLUMNS ? new Object[]{
-                    // data for all columns
-                    voice_reg_state,
-                    data_reg_state,
-                    voice_roaming_type,
-                    data_roaming_type,
-                    voice_operator_alpha_long,
-                    voice_operator_alpha_short,
-                    voice_operator_numeric,
-                    data_operator_alpha_long,
-                    data_operator_alpha_short,
-                    data_operator_numeric,
-                    is_manual_network_selection,
-                    ril_voice_radio_technology,
-                    ril_data_radio_technology,
-                    css_indicator,
-                    network_id,
-                    system_id,
-                    cdma_roaming_indicator,
-                    cdma_default_roaming_indicator,
-                    cdma_eri_icon_index,
-                    cdma_eri_icon_mode,
-                    is_emergency_only,
-                    is_using_carrier_aggregation,
-                    operator_alpha_long_raw,
-                    operator_alpha_short_raw,
-                    data_network_type,
-                    duplex_mode,
-            } : new Object[]{
-                    // data for public columns only
-                    voice_reg_state,
-                    data_reg_state,
-                    voice_operator_numeric,
-                    is_manual_network_selection,
-                    data_network_type,
-                    duplex_mode,
-            };
-
-            return buildSingleRowResult(projection, availableColumns, data);
+            return buildSingleRowResult(projection, availableColumns,
+                    getRow(subId, unredactedServiceState, redacted));
         }
     }
 
+    /**
+     * Builds a cursor holding only the projected columns.
+     *
+     * @param row the values of {@link #ALL_COLUMNS}, in the same order.
+     */
     private static Cursor buildSingleRowResult(String[] projection, String[] availableColumns,
-            Object[] data) {
+            Object[] row) {
         if (projection == null) {
             projection = availableColumns;
         }
         final MatrixCursor c = new MatrixCursor(projection, 1);
-        final RowBuilder row = c.newRow();
-        for (int i = 0; i < c.getColumnCount(); i++) {
-            final String columnName = c.getColumnName(i);
-            boolean found = false;
-            for (int j = 0; j < availableColumns.length; j++) {
-                if (availableColumns[j].equals(columnName)) {
-                    row.add(data[j]);
-                    found = true;
-                    break;
+        final RowBuilder rowBuilder = c.newRow();
+        for (String columnName : projection) {
+            final Integer index = ALL_COLUMNS_INDEX.get(columnName);
+            if (index == null || (availableColumns == PUBLIC_COLUMNS
+                    && !PUBLIC_COLUMNS_SET.contains(columnName))) {
+                throw new IllegalArgumentException("Invalid column " + columnName);
+            }
+            rowBuilder.add(row[index]);
+        }
+        return c;
+    }
+
+    /**
+     * Returns the values of {@link #ALL_COLUMNS} for the given service state, building them only
+     * once per service state and redaction variant.
+     */
+    private Object[] getRow(int subId, ServiceState serviceState, boolean redacted) {
+        CachedRows rows = mCachedRows.get(subId);
+        // The stored service states are replaced on every update, never modified in place.
+        if (rows == null || rows.serviceState != serviceState) {
+            rows = new CachedRows(serviceState);
+            mCachedRows.put(subId, rows);
+        }
+        return rows.getRow(redacted);
+    }
+
+    private static Object[] buildRow(ServiceState ss) {
+        return new Object[] {
+                ss.getState(),
+                ss.getDataRegistrationState(),
+                ss.getVoiceRoamingType(),
+                ss.getDataRoamingType(),
+                ss.getOperatorAlphaLong(),
+                ss.getOperatorAlphaShort(),
+                ss.getOperatorNumeric(),
+                ss.getOperatorAlphaLong(),
+                ss.getOperatorAlphaShort(),
+                ss.getOperatorNumeric(),
+                ss.getIsManualSelection() ? 1 : 0,
+                ss.getRilVoiceRadioTechnology(),
+                ss.getRilDataRadioTechnology(),
+                ss.getCssIndicator(),
+                ss.getCdmaNetworkId(),
+                ss.getCdmaSystemId(),
+                ss.getCdmaRoamingIndicator(),
+                ss.getCdmaDefaultRoamingIndicator(),
+                ss.getCdmaEriIconIndex(),
+                ss.getCdmaEriIconMode(),
+                ss.isEmergencyOnly() ? 1 : 0,
+                ss.isUsingCarrierAggregation() ? 1 : 0,
+                ss.getOperatorAlphaLongRaw(),
+                ss.getOperatorAlphaShortRaw(),
+                ss.getDataNetworkType(),
+                ss.getDuplexMode(),
+        };
+    }
+
+    /**
+     * The rows built from one service state. The unredacted and the location redacted variants
+     * are built lazily, the first time a query needs them.
+     */
+    private static final class CachedRows {
+        final ServiceState serviceState;
+        private Object[] mUnredactedRow;
+        private Object[] mRedactedRow;
+
+        CachedRows(ServiceState serviceState) {
+            this.serviceState = serviceState;
+        }
+
+        synchronized Object[] getRow(boolean redacted) {
+            if (redacted) {
+                if (mRedactedRow == null) {
+                    mRedactedRow = buildRow(getLocationRedactedServiceState(serviceState));
                 }
+                return mRedactedRow;
             }
-            if (!found) {
-                throw new IllegalArgumentException("Invalid column " + projection[i]);
+            if (mUnredactedRow == null) {
+                mUnredactedRow = buildRow(serviceState);
             }
+            return mUnredactedRow;
         }
-        return c;
     }
 
     /**
@@ -575,29 +615,30 @@ public class ServiceStateProvider extends ContentProvider {
     @VisibleForTesting
     public static void notifyChangeForSubIdAndField(Context context, ServiceState oldSS,
             ServiceState newSS, int subId) {
+        NotificationBatch batch = new NotificationBatch();
+        addChangedFieldUris(batch, oldSS, newSS, subId);
+        batch.dispatch(context);
+    }
+
+    private static void addChangedFieldUris(NotificationBatch batch, ServiceState oldSS,
+            ServiceState newSS, int subId) {
         final boolean firstUpdate = (oldSS == null) ? true : false;
 
         // for every field, if the field has changed values, notify via the provider
         if (firstUpdate || voiceRegStateChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, VOICE_REG_STATE),
-                    /* observer= */ null, /* syncToNetwork= */ false);
+            batch.add(getUriForSubscriptionIdAndField(subId, VOICE_REG_STATE));
         }
         if (firstUpdate || dataRegStateChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, DATA_REG_STATE), null, false);
+            batch.add(getUriForSubscriptionIdAndField(subId, DATA_REG_STATE));
         }
         if (firstUpdate || voiceRoamingTypeChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, VOICE_ROAMING_TYPE), null, false);
+            batch.add(getUriForSubscriptionIdAndField(subId, VOICE_ROAMING_TYPE));
         }
         if (firstUpdate || dataRoamingTypeChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, DATA_ROAMING_TYPE), null, false);
+            batch.add(getUriForSubscriptionIdAndField(subId, DATA_ROAMING_TYPE));
         }
         if (firstUpdate || dataNetworkTypeChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, DATA_NETWORK_TYPE), null, false);
+            batch.add(getUriForSubscriptionIdAndField(subId, DATA_NETWORK_TYPE));
         }
     }
 
@@ -635,6 +676,13 @@ public class ServiceStateProvider extends ContentProvider {
     @VisibleForTesting
     public static void notifyChangeForSubId(Context context, ServiceState oldSS, ServiceState newSS,
             int subId) {
+        NotificationBatch batch = new NotificationBatch();
+        addChangedSubIdUri(batch, oldSS, newSS, subId);
+        batch.dispatch(context);
+    }
+
+    private static void addChangedSubIdUri(NotificationBatch batch, ServiceState oldSS,
+            ServiceState newSS, int subId) {
         // if the voice or data registration or roaming state field has changed values, notify via
         // the provider.
         // If oldSS is null and newSS is not (e.g. first update of service state) this will also
@@ -642,10 +690,45 @@ public class ServiceStateProvider extends ContentProvider {
         if (oldSS == null || voiceRegStateChanged(oldSS, newSS) || dataRegStateChanged(oldSS, newSS)
                 || voiceRoamingTypeChanged(oldSS, newSS) || dataRoamingTypeChanged(oldSS, newSS)
                 || dataNetworkTypeChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(getUriForSubscriptionId(subId), null, false);
+            batch.add(getUriForSubscriptionId(subId));
         }
     }
 
+    /**
+     * Collects the uris changed by one ServiceState transition so that observers are notified
+     * with a single {@link ContentResolver#notifyChange(Collection, ContentObserver, int)} call
+     * instead of one call per uri.
+     */
+    private static final class NotificationBatch {
+        private final Set<Uri> mUris = new LinkedHashSet<>();
+
+        void add(Uri uri) {
+            mUris.add(uri);
+        }
+
+        int size() {
+            return mUris.size();
+        }
+
+        void dispatch(Context context) {
+            if (mUris.isEmpty()) return;
+            context.getContentResolver().notifyChange(mUris, /* observer= */ null,
+                    /* flags= */ 0);
+        }
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("ServiceStateProvider:");
+        long notificationBatches = mNotificationBatchCount.get();
+        long notifiedUris = mNotifiedUriCount.get();
+        // Each batch takes the place of one notifyChange() call per uri.
+        writer.println("  notificationBatches=" + notificationBatches
+                + " notifiedUris=" + notifiedUris
+                + " suppressedNotifications=" + (notifiedUris - notificationBatches));
+        writer.println("  cachedRows=" + mCachedRows.keySet());
+    }
+
     /**
      * Test if this is a path prefix match against the given Uri. Verifies that
      * scheme, authority, and atomic path segments match.
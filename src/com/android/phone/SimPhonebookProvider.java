@@ -22,8 +22,11 @@ import static com.android.internal.telephony.IccProvider.STR_NEW_TAG;
 import android.Manifest;
 import android.annotation.TestApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager;
 import android.database.ContentObserver;
@@ -48,6 +51,7 @@ import android.util.SparseArray;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.IIccPhoneBook;
 import com.android.internal.telephony.uicc.AdnRecord;
@@ -59,13 +63,13 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.MoreExecutors;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
 
@@ -128,7 +132,13 @@ public class SimPhonebookProvider extends ContentProvider {
 
     // Only allow 1 write at a time to prevent races; the mutations are based on reads of the
     // existing list of records which means concurrent writes would be problematic.
-    private final Lock mWriteLock = new ReentrantLock(true);
+    private final ReentrantLock mWriteLock = new ReentrantLock(true);
+    // Number of applyBatch calls in progress on the thread holding mWriteLock. Change
+    // notifications of the operations are deferred until the outermost batch completes.
+    @GuardedBy("mWriteLock")
+    private int mBatchDepth;
+    @GuardedBy("mWriteLock")
+    private boolean mChangedInBatch;
     private SubscriptionManager mSubscriptionManager;
     private Supplier<IIccPhoneBook> mIccPhoneBookSupplier;
     private ContentNotifier mContentNotifier;
@@ -528,6 +538,127 @@ public class SimPhonebookProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Inserts the records into the empty slots of the EF in order. Unlike inserting them one at
+     * a time, the SIM and EF are validated and the existing records are loaded only once, the
+     * write lock is taken once and observers are notified once.
+     *
+     * @return the number of records that were written.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        switch (URI_MATCHER.match(uri)) {
+            case SIM_RECORDS:
+                return bulkInsertSimRecords(PhonebookArgs.forSimRecords(uri, null), values);
+            case ELEMENTARY_FILES:
+            case ELEMENTARY_FILES_ITEM:
+            case SIM_RECORDS_ITEM:
+                throw new UnsupportedOperationException(uri + " does not support insert");
+            default:
+                throw new IllegalArgumentException("Unsupported Uri " + uri);
+        }
+    }
+
+    private int bulkInsertSimRecords(PhonebookArgs args, ContentValues[] valuesArray) {
+        validateWritableEf(args, "insert");
+        validateSubscriptionAndEf(args);
+
+        // Validate everything up front so that an invalid record doesn't leave the EF half
+        // written.
+        int[] recordsSize = getRecordsSizeForEf(args);
+        List<ContentValues> toInsert = new ArrayList<>(valuesArray.length);
+        for (ContentValues values : valuesArray) {
+            if (values == null || values.isEmpty()) {
+                continue;
+            }
+            validateValues(values, recordsSize);
+            toInsert.add(values);
+        }
+        if (toInsert.isEmpty()) {
+            return 0;
+        }
+        // Fail fast without waiting for the write lock when the batch can't fit.
+        checkFreeRecords(args, loadRecordsForEf(args), toInsert.size());
+
+        acquireWriteLockOrThrow();
+        int inserted = 0;
+        try {
+            List<AdnRecord> records = loadRecordsForEf(args);
+            if (records == null) {
+                Rlog.e(TAG, "Failed to load existing records for " + args.uri);
+                return 0;
+            }
+            // Records may have been added while waiting for the lock, so check again before
+            // writing anything.
+            checkFreeRecords(args, records, toInsert.size());
+            int recordIndex = 0;
+            for (ContentValues values : toInsert) {
+                while (!records.get(recordIndex).isEmpty()) {
+                    recordIndex++;
+                }
+                AdnRecord emptyRecord = records.get(recordIndex++);
+                if (updateRecord(args, emptyRecord, args.pin2,
+                        Strings.nullToEmpty(values.getAsString(SimRecords.NAME)),
+                        Strings.nullToEmpty(values.getAsString(SimRecords.PHONE_NUMBER)))) {
+                    inserted++;
+                } else {
+                    Rlog.e(TAG, "Bulk insert failed for record " + emptyRecord.getRecId()
+                            + " of " + args.uri);
+                }
+            }
+        } finally {
+            if (inserted > 0) {
+                notifyChange();
+            }
+            releaseWriteLock();
+        }
+        return inserted;
+    }
+
+    /**
+     * Throws if the EF doesn't have enough empty records for the given number of inserts.
+     */
+    private void checkFreeRecords(PhonebookArgs args, @Nullable List<AdnRecord> records,
+            int count) {
+        if (records == null) {
+            return;
+        }
+        int emptyCount = 0;
+        for (AdnRecord record : records) {
+            if (record.isEmpty()) {
+                emptyCount++;
+            }
+        }
+        if (count > emptyCount) {
+            throw new IllegalStateException(args.uri + " has " + emptyCount
+                    + " empty records, can't insert " + count
+                    + ". Please delete records to add new ones.");
+        }
+    }
+
+    /**
+     * Applies the operations while holding the write lock, so that they are not interleaved with
+     * the writes of other clients, and notifies observers once at the end.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull String authority,
+            @NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        acquireWriteLockOrThrow();
+        mBatchDepth++;
+        try {
+            return super.applyBatch(authority, operations);
+        } finally {
+            mBatchDepth--;
+            if (mBatchDepth == 0 && mChangedInBatch) {
+                mChangedInBatch = false;
+                notifyChange();
+            }
+            releaseWriteLock();
+        }
+    }
+
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection,
             @Nullable String[] selectionArgs) {
@@ -718,6 +849,10 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
     private void validateValues(PhonebookArgs args, ContentValues values) {
+        validateValues(values, getRecordsSizeForEf(args));
+    }
+
+    private void validateValues(ContentValues values, @Nullable int[] recordsSize) {
         if (!SIM_RECORDS_WRITABLE_COLUMNS.containsAll(values.keySet())) {
             Set<String> unsupportedColumns = new ArraySet<>(values.keySet());
             unsupportedColumns.removeAll(SIM_RECORDS_WRITABLE_COLUMNS);
@@ -730,7 +865,6 @@ public class SimPhonebookProvider extends ContentProvider {
 
         String name = values.getAsString(SimRecords.NAME);
         int length = getEncodedNameLength(name);
-        int[] recordsSize = getRecordsSizeForEf(args);
         if (recordsSize == null) {
             throw new IllegalStateException(
                     "Failed to get " + ElementaryFiles.NAME_MAX_LENGTH + " from SIM");
@@ -791,6 +925,11 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
     void notifyChange() {
+        // Only the thread running a batch holds the lock, other threads notify right away.
+        if (mWriteLock.isHeldByCurrentThread() && mBatchDepth > 0) {
+            mChangedInBatch = true;
+            return;
+        }
         mContentNotifier.notifyChange(SimPhonebookContract.AUTHORITY_URI);
     }
 
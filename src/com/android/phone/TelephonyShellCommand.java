@@ -205,6 +205,8 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
             "set-allowed-network-types-for-users";
     private static final String GET_IMEI = "get-imei";
     private static final String GET_SIM_SLOTS_MAPPING = "get-sim-slots-mapping";
+    private static final String MAIN_THREAD_STATS = "main-thread-stats";
+    private static final String MAIN_THREAD_STATS_RESET = "--reset";
     // Take advantage of existing methods that already contain permissions checks when possible.
     private final ITelephony mInterface;
 
@@ -366,6 +368,8 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
                 return handleGetImei();
             case GET_SIM_SLOTS_MAPPING:
                 return handleGetSimSlotsMapping();
+            case MAIN_THREAD_STATS:
+                return handleMainThreadStatsCommand();
             case RADIO_SUBCOMMAND:
                 return handleRadioCommand();
             case CARRIER_RESTRICTION_STATUS_TEST:
@@ -424,6 +428,10 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
         pw.println("    Set the Allowed Network Types.");
         pw.println("  radio");
         pw.println("    Radio Commands.");
+        pw.println("  main-thread-stats [--reset]");
+        pw.println("    Print per command latency statistics of the phone main thread handler.");
+        pw.println("    Options are:");
+        pw.println("      --reset: clear the statistics after printing them.");
         onHelpIms();
         onHelpUce();
         onHelpEmergencyNumber();
@@ -2295,6 +2303,25 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
         return 0;
     }
 
+    private int handleMainThreadStatsCommand() {
+        if (!checkShellUid()) {
+            return -1;
+        }
+
+        if (!(mInterface instanceof PhoneInterfaceManager)) {
+            getErrPrintWriter().println("main-thread-stats: not available.");
+            return -1;
+        }
+        String arg = getNextArg();
+        boolean reset = MAIN_THREAD_STATS_RESET.equals(arg);
+        if (arg != null && !reset) {
+            getErrPrintWriter().println("main-thread-stats: unknown option " + arg);
+            return -1;
+        }
+        ((PhoneInterfaceManager) mInterface).dumpMainThreadStats(getOutPrintWriter(), reset);
+        return 0;
+    }
+
     private int handleGbaCommand() {
         String arg = getNextArg();
         if (arg == null) {
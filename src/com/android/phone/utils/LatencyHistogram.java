@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.utils;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A fixed-size latency histogram with log-linear buckets, in the spirit of HdrHistogram.
+ *
+ * <p>Values are grouped by their power of two and each power of two is split into
+ * {@link #SUB_BUCKET_COUNT} linear sub-buckets, so that the relative error of a reported
+ * percentile stays bounded no matter the magnitude. Recording is O(1) and allocation free.
+ * This class is not thread safe; callers are expected to synchronize externally.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Values up to 2^MAX_MAGNITUDE - 1 are tracked, larger values land in the last bucket.
+    private static final int MAX_MAGNITUDE = 24;
+    private static final int BUCKET_COUNT =
+            (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + 1;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mTotalCount;
+    private long mSum;
+    private long mMax;
+
+    /**
+     * Records a single value. Negative values are clamped to zero.
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        mCounts[bucketIndex(value)]++;
+        mTotalCount++;
+        mSum += value;
+        if (value > mMax) mMax = value;
+    }
+
+    /** Clears all recorded values. */
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    /** @return the number of recorded values. */
+    public long getCount() {
+        return mTotalCount;
+    }
+
+    /** @return the largest recorded value, or 0 if nothing was recorded. */
+    public long getMax() {
+        return mMax;
+    }
+
+    /** @return the mean of the recorded values, or 0 if nothing was recorded. */
+    public double getMean() {
+        return mTotalCount == 0 ? 0 : (double) mSum / mTotalCount;
+    }
+
+    /**
+     * @param percentile the percentile to compute, in the range [0, 100].
+     * @return an upper bound of the value at the given percentile, never larger than
+     * {@link #getMax()}.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) return 0;
+        long target = (long) Math.ceil((percentile / 100.0) * mTotalCount);
+        if (target < 1) target = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= target) {
+                return Math.min(bucketUpperBound(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * @return a one line summary of this histogram, e.g.
+     * "count=10 mean=3.2 p50=3 p90=7 p99=7 max=7".
+     */
+    public String toSummaryString() {
+        return "count=" + mTotalCount
+                + " mean=" + String.format(Locale.US, "%.1f", getMean())
+                + " p50=" + getValueAtPercentile(50)
+                + " p90=" + getValueAtPercentile(90)
+                + " p99=" + getValueAtPercentile(99)
+                + " max=" + mMax;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{" + toSummaryString() + "}";
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude >= MAX_MAGNITUDE) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        if (magnitude >= MAX_MAGNITUDE) {
+            return Long.MAX_VALUE;
+        }
+        long width = 1L << (magnitude - SUB_BUCKET_BITS);
+        return (1L << magnitude) + (subBucket + 1) * width - 1;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import android.annotation.IntDef;
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Records the timeline of the emergency call setup.
+ *
+ * Each emergency dial gets a trace keyed by the telecom call id, so the phases spread across
+ * {@link TelephonyConnectionService}, {@link RadioOnStateListener} and the emergency call domain
+ * selector can be correlated. Each phase is recorded with the monotonic
+ * {@link SystemClock#elapsedRealtimeNanos()} timestamp and a reason code. The most recent traces
+ * are kept in a bounded ring buffer and exported by {@link #dump(PrintWriter)} as one
+ * comma-separated line per phase.
+ */
+public class EmergencyCallTracer {
+    /** The maximum number of traces kept in the ring buffer. */
+    @VisibleForTesting
+    public static final int MAX_TRACES = 16;
+    /** The maximum number of phases recorded per trace. */
+    @VisibleForTesting
+    public static final int MAX_PHASES_PER_TRACE = 64;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef(prefix = "PHASE_", value = {
+            PHASE_CREATE_OUTGOING_CONNECTION,
+            PHASE_RADIO_ON_REQUESTED,
+            PHASE_RADIO_ON_COMPLETE,
+            PHASE_DDS_SWITCH_REQUESTED,
+            PHASE_DDS_SWITCH_COMPLETE,
+            PHASE_DOMAIN_SELECTION_REQUESTED,
+            PHASE_SELECT_DOMAIN,
+            PHASE_NETWORK_SCAN_REQUESTED,
+            PHASE_NETWORK_SCAN_RESULT,
+            PHASE_DOMAIN_SELECTED,
+            PHASE_DOMAIN_SELECTION_COMPLETE,
+            PHASE_DIAL,
+            PHASE_ALERTING,
+            PHASE_ACTIVE,
+            PHASE_DISCONNECTED,
+    })
+    public @interface Phase {}
+
+    /** {@code TelephonyConnectionService#onCreateOutgoingConnection} for an emergency number. */
+    public static final int PHASE_CREATE_OUTGOING_CONNECTION = 0;
+    /** The radio is requested to be powered on. */
+    public static final int PHASE_RADIO_ON_REQUESTED = 1;
+    /** The radio power on sequence completed. Reason is a {@code REASON_*} outcome. */
+    public static final int PHASE_RADIO_ON_COMPLETE = 2;
+    /** The default data subscription switch is requested. */
+    public static final int PHASE_DDS_SWITCH_REQUESTED = 3;
+    /** The default data subscription switch completed. Reason is a {@code REASON_*} outcome. */
+    public static final int PHASE_DDS_SWITCH_COMPLETE = 4;
+    /** {@code createEmergencyConnection} requested the domain selection. */
+    public static final int PHASE_DOMAIN_SELECTION_REQUESTED = 5;
+    /** The domain selector started the domain selection. */
+    public static final int PHASE_SELECT_DOMAIN = 6;
+    /** The emergency network scan is requested. Reason is the scan type. */
+    public static final int PHASE_NETWORK_SCAN_REQUESTED = 7;
+    /** The emergency network scan result is received. Reason is the access network type. */
+    public static final int PHASE_NETWORK_SCAN_RESULT = 8;
+    /** The domain selector selected a network. Reason is the access network type. */
+    public static final int PHASE_DOMAIN_SELECTED = 9;
+    /** The domain selection completed. Reason is the selected domain. */
+    public static final int PHASE_DOMAIN_SELECTION_COMPLETE = 10;
+    /** The call is being dialed. */
+    public static final int PHASE_DIAL = 11;
+    /** The first ALERTING state. */
+    public static final int PHASE_ALERTING = 12;
+    /** The call became active. */
+    public static final int PHASE_ACTIVE = 13;
+    /** The call is disconnected. Reason is the disconnect cause. */
+    public static final int PHASE_DISCONNECTED = 14;
+
+    /** No specific reason. */
+    public static final int REASON_NONE = 0;
+    /** The phase completed successfully. */
+    public static final int REASON_SUCCESS = 1;
+    /** The phase failed. */
+    public static final int REASON_FAILURE = 2;
+    /** The radio needs to be powered on before dialing. */
+    public static final int REASON_RADIO_OFF = 3;
+
+    private static final String TIMELINE_HEADER =
+            "traceId,callId,phase,reason,elapsedRealtimeNanos,sinceStartMicros";
+
+    private static EmergencyCallTracer sInstance;
+
+    private static final class Event {
+        final @Phase int mPhase;
+        final int mReason;
+        final long mElapsedRealtimeNanos;
+
+        Event(@Phase int phase, int reason, long elapsedRealtimeNanos) {
+            mPhase = phase;
+            mReason = reason;
+            mElapsedRealtimeNanos = elapsedRealtimeNanos;
+        }
+    }
+
+    private static final class Trace {
+        final int mTraceId;
+        final String mCallId;
+        final List<Event> mEvents = new ArrayList<>();
+        boolean mAlerted;
+
+        Trace(int traceId, String callId) {
+            mTraceId = traceId;
+            mCallId = callId;
+        }
+    }
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayDeque<Trace> mTraces = new ArrayDeque<>(MAX_TRACES);
+    @GuardedBy("mLock")
+    private int mNextTraceId = 1;
+
+    /** Returns the process wide instance. */
+    public static synchronized @NonNull EmergencyCallTracer getInstance() {
+        if (sInstance == null) {
+            sInstance = new EmergencyCallTracer();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public EmergencyCallTracer() {
+    }
+
+    /**
+     * Starts a new trace for the emergency call, evicting the oldest trace if the buffer is full.
+     * If a trace already exists for the call, the phases are appended to the existing trace.
+     *
+     * @param callId The telecom call id of the emergency call.
+     */
+    public void startTrace(@Nullable String callId) {
+        if (TextUtils.isEmpty(callId)) return;
+
+        synchronized (mLock) {
+            if (findTraceLocked(callId) != null) return;
+
+            if (mTraces.size() >= MAX_TRACES) {
+                mTraces.removeFirst();
+            }
+            mTraces.addLast(new Trace(mNextTraceId++, callId));
+        }
+    }
+
+    /**
+     * Records a phase of the emergency call setup.
+     * It is ignored if there is no trace for the call.
+     *
+     * @param callId The telecom call id of the emergency call.
+     * @param phase The phase of the call setup.
+     * @param reason The reason code of the phase.
+     */
+    public void record(@Nullable String callId, @Phase int phase, int reason) {
+        if (TextUtils.isEmpty(callId)) return;
+
+        long now = SystemClock.elapsedRealtimeNanos();
+        synchronized (mLock) {
+            Trace trace = findTraceLocked(callId);
+            if (trace == null || trace.mEvents.size() >= MAX_PHASES_PER_TRACE) return;
+            if (phase == PHASE_ALERTING) {
+                // Only the first ALERTING state is of interest.
+                if (trace.mAlerted) return;
+                trace.mAlerted = true;
+            }
+            trace.mEvents.add(new Event(phase, reason, now));
+        }
+    }
+
+    /**
+     * Records a phase of the emergency call setup without a specific reason.
+     *
+     * @param callId The telecom call id of the emergency call.
+     * @param phase The phase of the call setup.
+     */
+    public void record(@Nullable String callId, @Phase int phase) {
+        record(callId, phase, REASON_NONE);
+    }
+
+    @GuardedBy("mLock")
+    private Trace findTraceLocked(String callId) {
+        Iterator<Trace> it = mTraces.descendingIterator();
+        while (it.hasNext()) {
+            Trace trace = it.next();
+            if (TextUtils.equals(trace.mCallId, callId)) return trace;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the timeline of all traces, one comma-separated line per phase after the header.
+     */
+    @VisibleForTesting
+    public @NonNull List<String> getTimeline() {
+        List<String> lines = new ArrayList<>();
+        lines.add(TIMELINE_HEADER);
+        synchronized (mLock) {
+            for (Trace trace : mTraces) {
+                long startNanos = trace.mEvents.isEmpty()
+                        ? 0 : trace.mEvents.get(0).mElapsedRealtimeNanos;
+                for (Event event : trace.mEvents) {
+                    lines.add(trace.mTraceId + "," + trace.mCallId + ","
+                            + phaseToString(event.mPhase) + "," + event.mReason + ","
+                            + event.mElapsedRealtimeNanos + ","
+                            + (event.mElapsedRealtimeNanos - startNanos) / 1000);
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Dumps the timeline of the recent emergency calls for dumpsys usage.
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        pw.println("EmergencyCallTracer:");
+        for (String line : getTimeline()) {
+            pw.println(line);
+        }
+    }
+
+    private static String phaseToString(@Phase int phase) {
+        switch (phase) {
+            case PHASE_CREATE_OUTGOING_CONNECTION: return "CREATE_OUTGOING_CONNECTION";
+            case PHASE_RADIO_ON_REQUESTED: return "RADIO_ON_REQUESTED";
+            case PHASE_RADIO_ON_COMPLETE: return "RADIO_ON_COMPLETE";
+            case PHASE_DDS_SWITCH_REQUESTED: return "DDS_SWITCH_REQUESTED";
+            case PHASE_DDS_SWITCH_COMPLETE: return "DDS_SWITCH_COMPLETE";
+            case PHASE_DOMAIN_SELECTION_REQUESTED: return "DOMAIN_SELECTION_REQUESTED";
+            case PHASE_SELECT_DOMAIN: return "SELECT_DOMAIN";
+            case PHASE_NETWORK_SCAN_REQUESTED: return "NETWORK_SCAN_REQUESTED";
+            case PHASE_NETWORK_SCAN_RESULT: return "NETWORK_SCAN_RESULT";
+            case PHASE_DOMAIN_SELECTED: return "DOMAIN_SELECTED";
+            case PHASE_DOMAIN_SELECTION_COMPLETE: return "DOMAIN_SELECTION_COMPLETE";
+            case PHASE_DIAL: return "DIAL";
+            case PHASE_ALERTING: return "ALERTING";
+            case PHASE_ACTIVE: return "ACTIVE";
+            case PHASE_DISCONNECTED: return "DISCONNECTED";
+            default: return Integer.toString(phase);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telephony.TelephonyCallback;
+import android.telephony.TelephonyManager;
+import android.telephony.emergency.EmergencyNumber;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.emergency.EmergencyNumberTracker;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-process index of the emergency numbers of all phones.
+ *
+ * The index maps each number in the emergency number lists to the phones that report it as an
+ * emergency number, together with its service categories and call routing. It is built lazily
+ * on the first lookup and dropped when the emergency number list or the SIM state changes, so
+ * looking up the phones for a dialed number does not query every {@link EmergencyNumberTracker}
+ * on each dial.
+ *
+ * A number which is not in any emergency number list returns {@code null}; the caller shall then
+ * ask the trackers directly, since {@link EmergencyNumberTracker#isEmergencyNumber} also matches
+ * numbers which are not listed as they are.
+ */
+public class EmergencyNumberIndex {
+    /** Supplies the phones to be indexed. */
+    public interface PhoneSupplier {
+        Phone[] getPhones();
+    }
+
+    /** The indexed information of an emergency number. */
+    public static final class Entry {
+        private final int mPhoneMask;
+        private final int mCategories;
+        private final int[] mRouting;
+
+        private Entry(int phoneMask, int categories, int[] routing) {
+            mPhoneMask = phoneMask;
+            mCategories = categories;
+            mRouting = routing;
+        }
+
+        /**
+         * Returns {@code true} if the phone reports the number as an emergency number.
+         *
+         * @param phoneId The phone index.
+         */
+        public boolean isEmergencyNumber(int phoneId) {
+            return phoneId >= 0 && phoneId < mRouting.length && (mPhoneMask & (1 << phoneId)) != 0;
+        }
+
+        /** Returns {@code true} if no phone reports the number as an emergency number. */
+        public boolean isEmpty() {
+            return mPhoneMask == 0;
+        }
+
+        /**
+         * Returns the union of the emergency service categories of the number in all phones.
+         * @see EmergencyNumber#getEmergencyServiceCategoryBitmask()
+         */
+        public int getEmergencyServiceCategoryBitmask() {
+            return mCategories;
+        }
+
+        /**
+         * Returns the emergency call routing of the number in the specified phone.
+         *
+         * @param phoneId The phone index.
+         * @return The routing, or {@link EmergencyNumber#EMERGENCY_CALL_ROUTING_UNKNOWN} if
+         *         the number is not listed in the phone.
+         */
+        public int getEmergencyCallRouting(int phoneId) {
+            if (phoneId < 0 || phoneId >= mRouting.length) {
+                return EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN;
+            }
+            return mRouting[phoneId];
+        }
+
+        @Override
+        public String toString() {
+            return "{phoneMask=0x" + Integer.toHexString(mPhoneMask)
+                    + ", categories=0x" + Integer.toHexString(mCategories)
+                    + ", routing=" + Arrays.toString(mRouting) + "}";
+        }
+    }
+
+    private final PhoneSupplier mPhoneSupplier;
+
+    // An immutable snapshot, replaced as a whole on rebuild.
+    private volatile Map<String, Entry> mIndex;
+    // The phones the current snapshot is built from.
+    private volatile Phone[] mIndexedPhones;
+    // Incremented on every invalidation, so a snapshot built concurrently is not published.
+    private volatile int mGeneration;
+    // Set once the listeners are removed, the index can't be invalidated any more.
+    private volatile boolean mDisposed;
+    private int mRebuildCount;
+
+    private Context mContext;
+    private TelephonyManager mTelephonyManager;
+
+    private final BroadcastReceiver mSimStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(EmergencyNumberIndex.this, "onReceive, action: %s", intent.getAction());
+            invalidate();
+        }
+    };
+
+    private final class EmergencyNumberListCallback extends TelephonyCallback
+            implements TelephonyCallback.EmergencyNumberListListener {
+        @Override
+        public void onEmergencyNumberListChanged(
+                @NonNull Map<Integer, List<EmergencyNumber>> emergencyNumberList) {
+            Log.d(EmergencyNumberIndex.this, "onEmergencyNumberListChanged");
+            invalidate();
+        }
+    }
+
+    private final EmergencyNumberListCallback mEmergencyNumberListCallback =
+            new EmergencyNumberListCallback();
+
+    public EmergencyNumberIndex(@NonNull PhoneSupplier phoneSupplier) {
+        mPhoneSupplier = phoneSupplier;
+    }
+
+    /**
+     * Starts listening to the events which invalidate the index.
+     *
+     * @param context The context used to register the listeners.
+     */
+    public void init(@NonNull Context context) {
+        mDisposed = false;
+        mContext = context;
+        IntentFilter filter = new IntentFilter(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+        context.registerReceiver(mSimStateReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+
+        mTelephonyManager = context.getSystemService(TelephonyManager.class);
+        if (mTelephonyManager != null) {
+            mTelephonyManager.registerTelephonyCallback(context.getMainExecutor(),
+                    mEmergencyNumberListCallback);
+        }
+    }
+
+    /**
+     * Stops listening to the events and drops the index. Lookups return {@code null} until
+     * {@link #init(Context)} is called again, since a rebuilt index would never be invalidated.
+     */
+    public void dispose() {
+        mDisposed = true;
+        if (mContext != null) {
+            mContext.unregisterReceiver(mSimStateReceiver);
+            mContext = null;
+        }
+        if (mTelephonyManager != null) {
+            mTelephonyManager.unregisterTelephonyCallback(mEmergencyNumberListCallback);
+            mTelephonyManager = null;
+        }
+        invalidate();
+    }
+
+    /**
+     * Drops the index. It is rebuilt on the next lookup.
+     */
+    public void invalidate() {
+        mGeneration++;
+        mIndex = null;
+    }
+
+    /**
+     * Looks up the emergency number.
+     *
+     * @param number The emergency number address.
+     * @return The indexed information, or {@code null} if the number is not listed in any
+     *         emergency number list or the index is disposed, and the trackers need to be asked
+     *         directly.
+     */
+    public @Nullable Entry lookup(@Nullable String number) {
+        if (number == null || mDisposed) return null;
+        Phone[] phones = mPhoneSupplier.getPhones();
+        Map<String, Entry> index = mIndex;
+        if (index == null || phones != mIndexedPhones) {
+            int generation = mGeneration;
+            index = build(phones);
+            if (generation == mGeneration && !mDisposed) {
+                mIndexedPhones = phones;
+                mIndex = index;
+            }
+        }
+        return index.get(number);
+    }
+
+    @VisibleForTesting
+    public synchronized int getRebuildCount() {
+        return mRebuildCount;
+    }
+
+    private Map<String, Entry> build(Phone[] phones) {
+        synchronized (this) {
+            mRebuildCount++;
+        }
+        if (phones == null || phones.length == 0 || phones.length >= Integer.SIZE) {
+            return Collections.emptyMap();
+        }
+
+        // Collect the listed numbers with their categories and routing.
+        ArrayMap<String, int[]> routing = new ArrayMap<>();
+        ArrayMap<String, Integer> categories = new ArrayMap<>();
+        for (Phone phone : phones) {
+            EmergencyNumberTracker tracker = getTracker(phone);
+            if (tracker == null) continue;
+            int phoneId = phone.getPhoneId();
+            if (phoneId < 0 || phoneId >= phones.length) continue;
+            List<EmergencyNumber> list = tracker.getEmergencyNumberList();
+            if (list == null) continue;
+            for (EmergencyNumber num : list) {
+                String address = num.getNumber();
+                int[] phoneRouting = routing.get(address);
+                if (phoneRouting == null) {
+                    phoneRouting = new int[phones.length];
+                    Arrays.fill(phoneRouting, EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN);
+                    routing.put(address, phoneRouting);
+                    categories.put(address, 0);
+                }
+                if (phoneRouting[phoneId] == EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN) {
+                    phoneRouting[phoneId] = num.getEmergencyCallRouting();
+                }
+                categories.put(address, categories.get(address)
+                        | num.getEmergencyServiceCategoryBitmask());
+            }
+        }
+
+        // Ask every tracker once per listed number, so the index gives the same answer as
+        // EmergencyNumberTracker#isEmergencyNumber for the numbers it contains.
+        ArrayMap<String, Entry> index = new ArrayMap<>(routing.size());
+        for (int n = 0; n < routing.size(); n++) {
+            String address = routing.keyAt(n);
+            int phoneMask = 0;
+            for (Phone phone : phones) {
+                EmergencyNumberTracker tracker = getTracker(phone);
+                int phoneId = phone == null ? -1 : phone.getPhoneId();
+                if (phoneId < 0 || phoneId >= phones.length) continue;
+                if (tracker != null && tracker.isEmergencyNumber(address)) {
+                    phoneMask |= 1 << phoneId;
+                }
+            }
+            index.put(address, new Entry(phoneMask, categories.get(address),
+                    routing.valueAt(n)));
+        }
+        Log.i(this, "build, phones=" + phones.length + ", numbers=" + index.size());
+        return Collections.unmodifiableMap(index);
+    }
+
+    private static EmergencyNumberTracker getTracker(Phone phone) {
+        return phone == null ? null : phone.getEmergencyNumberTracker();
+    }
+}
@@ -2648,6 +2648,28 @@ abstract class TelephonyConnection extends Connection implements Holdable,
         updateStateInternal();
     }
 
+    /**
+     * Records the call state change of the emergency call to {@link EmergencyCallTracer}.
+     */
+    private void traceEmergencyCallState(Call.State state, int cause) {
+        switch (state) {
+            case ALERTING:
+                EmergencyCallTracer.getInstance().record(getTelecomCallId(),
+                        EmergencyCallTracer.PHASE_ALERTING);
+                break;
+            case ACTIVE:
+                EmergencyCallTracer.getInstance().record(getTelecomCallId(),
+                        EmergencyCallTracer.PHASE_ACTIVE);
+                break;
+            case DISCONNECTED:
+                EmergencyCallTracer.getInstance().record(getTelecomCallId(),
+                        EmergencyCallTracer.PHASE_DISCONNECTED, cause);
+                break;
+            default:
+                break;
+        }
+    }
+
     void updateStateInternal() {
         if (mOriginalConnection == null) {
             return;
@@ -2673,6 +2695,9 @@ abstract class TelephonyConnection extends Connection implements Holdable,
 
         if (mConnectionState != newState) {
             mConnectionState = newState;
+            if (mIsEmergencyNumber) {
+                traceEmergencyCallState(newState, cause);
+            }
             switch (newState) {
                 case IDLE:
                     break;
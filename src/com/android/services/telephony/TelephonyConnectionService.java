@@ -19,6 +19,19 @@ package com.android.services.telephony;
 import static android.telephony.DomainSelectionService.SELECTOR_TYPE_CALLING;
 import static android.telephony.TelephonyManager.HAL_SERVICE_VOICE;
 
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_CREATE_OUTGOING_CONNECTION;
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_DDS_SWITCH_COMPLETE;
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_DDS_SWITCH_REQUESTED;
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_DIAL;
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_DOMAIN_SELECTION_COMPLETE;
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_DOMAIN_SELECTION_REQUESTED;
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_RADIO_ON_COMPLETE;
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_RADIO_ON_REQUESTED;
+import static com.android.services.telephony.EmergencyCallTracer.REASON_FAILURE;
+import static com.android.services.telephony.EmergencyCallTracer.REASON_NONE;
+import static com.android.services.telephony.EmergencyCallTracer.REASON_RADIO_OFF;
+import static com.android.services.telephony.EmergencyCallTracer.REASON_SUCCESS;
+
 import android.annotation.NonNull;
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -99,6 +112,7 @@ import com.android.phone.PhoneGlobals;
 import com.android.phone.R;
 import com.android.phone.callcomposer.CallComposerPictureManager;
 import com.android.phone.settings.SuppServicesUiUtil;
+import com.android.services.telephony.domainselection.EmergencyCallWarmUp;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
@@ -224,6 +238,10 @@ public class TelephonyConnectionService extends ConnectionService {
 
     private ComponentName mExpectedComponentName = null;
     private RadioOnHelper mRadioOnHelper;
+    private final EmergencyCallTracer mEmergencyCallTracer = EmergencyCallTracer.getInstance();
+    private final EmergencyCallWarmUp mEmergencyCallWarmUp = EmergencyCallWarmUp.getInstance();
+    private final EmergencyNumberIndex mEmergencyNumberIndex =
+            new EmergencyNumberIndex(() -> mPhoneFactoryProxy.getPhones());
     private EmergencyTonePlayer mEmergencyTonePlayer;
     private HoldTracker mHoldTracker;
     private boolean mIsTtyEnabled;
@@ -405,6 +423,12 @@ public class TelephonyConnectionService extends ConnectionService {
 
         @Override
         public boolean isCurrentEmergencyNumber(String number) {
+            // The index answers the numbers in the emergency number lists in process, the
+            // others are still matched by the trackers behind TelephonyManager.
+            EmergencyNumberIndex.Entry entry = mEmergencyNumberIndex.lookup(number);
+            if (entry != null) {
+                return !entry.isEmpty();
+            }
             try {
                 return mTelephonyManager.isEmergencyNumber(number);
             } catch (IllegalStateException ise) {
@@ -1032,11 +1056,13 @@ public class TelephonyConnectionService extends ConnectionService {
         intentFilter.addAction(ACTION_MSIM_VOICE_CAPABILITY_CHANGED);
         registerReceiver(mBroadcastReceiver, intentFilter,
                 android.Manifest.permission.MODIFY_PHONE_STATE, null, Context.RECEIVER_EXPORTED);
+        mEmergencyNumberIndex.init(this);
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
         unregisterReceiver(mBroadcastReceiver);
+        mEmergencyNumberIndex.dispose();
         return super.onUnbind(intent);
     }
 
@@ -1414,6 +1440,13 @@ public class TelephonyConnectionService extends ConnectionService {
                 || isRadioPowerDownOnBluetooth();
         boolean needToTurnOffSatellite = isSatelliteBlockingCall(isEmergencyNumber);
 
+        if (isEmergencyNumber) {
+            mEmergencyCallTracer.startTrace(request.getTelecomCallId());
+            mEmergencyCallTracer.record(request.getTelecomCallId(),
+                    PHASE_CREATE_OUTGOING_CONNECTION,
+                    needToTurnOnRadio ? REASON_RADIO_OFF : REASON_NONE);
+        }
+
         // Get the right phone object from the account data passed in.
         final Phone phone = getPhoneForAccount(request.getAccountHandle(), isEmergencyNumber,
                 /* Note: when not an emergency, handle can be null for unknown callers */
@@ -1441,6 +1474,7 @@ public class TelephonyConnectionService extends ConnectionService {
 
             if (isEmergencyNumber) {
                 mIsEmergencyCallPending = true;
+                mEmergencyCallTracer.record(request.getTelecomCallId(), PHASE_RADIO_ON_REQUESTED);
             }
             int timeoutToOnTimeoutCallback = mDomainSelectionResolver.isDomainSelectionSupported()
                     ? TIMEOUT_TO_DYNAMIC_ROUTING_MS : 0;
@@ -1692,6 +1726,10 @@ public class TelephonyConnectionService extends ConnectionService {
     private void handleOnComplete(boolean isRadioReady, boolean isEmergencyNumber,
             Connection originalConnection, ConnectionRequest request, String numberToDial,
             Uri handle, int originalPhoneType, Phone phone) {
+        if (isEmergencyNumber) {
+            mEmergencyCallTracer.record(request.getTelecomCallId(), PHASE_RADIO_ON_COMPLETE,
+                    isRadioReady ? REASON_SUCCESS : REASON_FAILURE);
+        }
         // Make sure the Call has not already been canceled by the user.
         if (originalConnection.getState() == Connection.STATE_DISCONNECTED) {
             Log.i(this, "Call disconnected before the outgoing call was placed. Skipping call "
@@ -1711,9 +1749,13 @@ public class TelephonyConnectionService extends ConnectionService {
                 adjustAndPlaceOutgoingConnection(phone, originalConnection, request, numberToDial,
                         handle, originalPhoneType, false);
             } else {
+                mEmergencyCallTracer.record(request.getTelecomCallId(),
+                        PHASE_DDS_SWITCH_REQUESTED);
                 delayDialForDdsSwitch(phone, result -> {
                     Log.i(this, "handleOnComplete - delayDialForDdsSwitch "
                             + "result = " + result);
+                    mEmergencyCallTracer.record(request.getTelecomCallId(),
+                            PHASE_DDS_SWITCH_COMPLETE, result ? REASON_SUCCESS : REASON_FAILURE);
                     adjustAndPlaceOutgoingConnection(phone, originalConnection, request,
                             numberToDial, handle, originalPhoneType, true);
                     mIsEmergencyCallPending = false;
@@ -2786,6 +2828,7 @@ public class TelephonyConnectionService extends ConnectionService {
 
     private void placeOutgoingConnection(
             TelephonyConnection connection, Phone phone, int videoState, Bundle extras) {
+        mEmergencyCallTracer.record(connection.getTelecomCallId(), PHASE_DIAL);
 
         String number = (connection.getAddress() != null)
                 ? connection.getAddress().getSchemeSpecificPart()
@@ -3099,10 +3142,18 @@ public class TelephonyConnectionService extends ConnectionService {
             }
 
             mEmergencyCallId = resultConnection.getTelecomCallId();
+            // EmergencyStateTracker powers on the radio and switches the default data
+            // subscription if required.
+            mEmergencyCallTracer.record(mEmergencyCallId, PHASE_RADIO_ON_REQUESTED,
+                    needToTurnOnRadio ? REASON_RADIO_OFF : REASON_NONE);
             CompletableFuture<Integer> future = mEmergencyStateTracker.startEmergencyCall(
                     phone, mEmergencyCallId, isTestEmergencyNumber);
             future.thenAccept((result) -> {
                 Log.d(this, "startEmergencyCall-complete result=" + result);
+                mEmergencyCallTracer.record(resultConnection.getTelecomCallId(),
+                        PHASE_RADIO_ON_COMPLETE,
+                        (result == android.telephony.DisconnectCause.NOT_DISCONNECTED)
+                                ? REASON_SUCCESS : REASON_FAILURE);
                 if (mEmergencyCallId == null) {
                     Log.i(this, "startEmergencyCall-complete dialing canceled");
                     return;
@@ -3134,9 +3185,14 @@ public class TelephonyConnectionService extends ConnectionService {
     private void createEmergencyConnection(final Phone phone,
             final TelephonyConnection resultConnection, final String number,
             final ConnectionRequest request, boolean needToTurnOnRadio,
-            final EmergencyRegResult regResult) {
+            EmergencyRegResult regResult) {
         Log.i(this, "createEmergencyConnection");
 
+        if (regResult == null && !needToTurnOnRadio) {
+            // Use the registration prepared while the user was entering the number, if any.
+            regResult = mEmergencyCallWarmUp.takeRegResult(phone.getPhoneId());
+        }
+
         if (phone.getImsPhone() == null) {
             // Dialing emergency calls over IMS is not available without ImsPhone instance.
             Log.w(this, "createEmergencyConnection no ImsPhone");
@@ -3176,11 +3232,15 @@ public class TelephonyConnectionService extends ConnectionService {
                         phone.getPhoneId(), phone.getSubId(), needToTurnOnRadio,
                         request.getTelecomCallId(), number, 0, null, regResult);
 
+        mEmergencyCallTracer.record(request.getTelecomCallId(),
+                PHASE_DOMAIN_SELECTION_REQUESTED);
         CompletableFuture<Integer> future =
                 mEmergencyCallDomainSelectionConnection.createEmergencyConnection(
                         attr, mEmergencyDomainSelectionConnectionCallback);
         future.thenAcceptAsync((result) -> {
             Log.d(this, "createEmergencyConnection-complete result=" + result);
+            mEmergencyCallTracer.record(request.getTelecomCallId(),
+                    PHASE_DOMAIN_SELECTION_COMPLETE, result);
             if (mEmergencyCallId == null) {
                 Log.i(this, "createEmergencyConnection-complete dialing canceled");
                 return;
@@ -3505,12 +3565,16 @@ public class TelephonyConnectionService extends ConnectionService {
                                 c.getAddress().getSchemeSpecificPart(),
                                 0, null, mEmergencyStateTracker.getEmergencyRegResult());
 
+                mEmergencyCallTracer.record(c.getTelecomCallId(),
+                        PHASE_DOMAIN_SELECTION_REQUESTED);
                 CompletableFuture<Integer> domainFuture =
                         mEmergencyCallDomainSelectionConnection.createEmergencyConnection(
                                 attr, mEmergencyDomainSelectionConnectionCallback);
                 domainFuture.thenAcceptAsync((domain) -> {
                     Log.d(this, "onEmergencyRedial-createEmergencyConnection-complete domain="
                             + domain);
+                    mEmergencyCallTracer.record(c.getTelecomCallId(),
+                            PHASE_DOMAIN_SELECTION_COMPLETE, domain);
                     recreateEmergencyConnection(c, phone, domain);
                     mIsEmergencyCallPending = false;
                 }, mDomainSelectionMainExecutor);
@@ -4021,19 +4085,17 @@ public class TelephonyConnectionService extends ConnectionService {
         // Find the list of available Phones for the given emergency number address
         List<Phone> potentialEmergencyPhones = new ArrayList<>();
         int defaultVoicePhoneId = mSubscriptionManagerProxy.getDefaultVoicePhoneId();
+        EmergencyNumberIndex.Entry entry = mEmergencyNumberIndex.lookup(emergencyNumberAddress);
         for (Phone phone : mPhoneFactoryProxy.getPhones()) {
-            if (phone.getEmergencyNumberTracker() != null) {
-                if (phone.getEmergencyNumberTracker().isEmergencyNumber(
-                        emergencyNumberAddress)) {
-                    if (isAvailableForEmergencyCalls(phone)) {
-                        // a)
-                        if (phone.getPhoneId() == defaultVoicePhoneId) {
-                            Log.i(this, "getPhoneForEmergencyCall, Phone Id that supports"
-                                    + " emergency number: " + phone.getPhoneId());
-                            return phone;
-                        }
-                        potentialEmergencyPhones.add(phone);
+            if (isEmergencyNumberOfPhone(entry, phone, emergencyNumberAddress)) {
+                if (isAvailableForEmergencyCalls(phone)) {
+                    // a)
+                    if (phone.getPhoneId() == defaultVoicePhoneId) {
+                        Log.i(this, "getPhoneForEmergencyCall, Phone Id that supports"
+                                + " emergency number: " + phone.getPhoneId());
+                        return phone;
                     }
+                    potentialEmergencyPhones.add(phone);
                 }
             }
         }
@@ -4047,6 +4109,20 @@ public class TelephonyConnectionService extends ConnectionService {
         return getFirstPhoneForEmergencyCall();
     }
 
+    /**
+     * Returns {@code true} if the emergency number address is an emergency number of the phone.
+     * The indexed entry is used if the address is in the emergency number lists, otherwise the
+     * emergency number tracker of the phone is asked.
+     */
+    private static boolean isEmergencyNumberOfPhone(@Nullable EmergencyNumberIndex.Entry entry,
+            Phone phone, String emergencyNumberAddress) {
+        if (entry != null) {
+            return entry.isEmergencyNumber(phone.getPhoneId());
+        }
+        return phone.getEmergencyNumberTracker() != null
+                && phone.getEmergencyNumberTracker().isEmergencyNumber(emergencyNumberAddress);
+    }
+
     @VisibleForTesting
     public Phone getFirstPhoneForEmergencyCall() {
         return getFirstPhoneForEmergencyCall(null);
@@ -16,6 +16,7 @@
 
 package com.android.services.telephony.domainselection;
 
+import static android.telephony.BarringInfo.BARRING_SERVICE_TYPE_EMERGENCY;
 import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_CROSS_STACK_REDIAL_TIMER_SEC_INT;
 import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_QUICK_CROSS_STACK_REDIAL_TIMER_SEC_INT;
 import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_START_QUICK_CROSS_STACK_REDIAL_TIMER_WHEN_REGISTERED_BOOL;
@@ -30,16 +31,22 @@ import android.os.Message;
 import android.os.PersistableBundle;
 import android.os.SystemProperties;
 import android.telephony.Annotation.PreciseDisconnectCauses;
+import android.telephony.BarringInfo;
 import android.telephony.CarrierConfigManager;
+import android.telephony.EmergencyRegResult;
+import android.telephony.ServiceState;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.IndentingPrintWriter;
 import android.util.LocalLog;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneFactory;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 /** Controls the cross stack redialing. */
@@ -65,10 +72,110 @@ public class CrossSimRedialingController extends Handler {
     @VisibleForTesting
     public static final int MSG_QUICK_CROSS_STACK_TIMEOUT = 2;
 
+    /** The readiness score of a slot which rejected the emergency call permanently. */
+    @VisibleForTesting
+    public static final int SCORE_REJECTED = -1;
+    /** The readiness score of a slot which has no known emergency service. */
+    @VisibleForTesting
+    public static final int SCORE_NONE = 0;
+    /** Added to the readiness score when the last emergency network scan found a network. */
+    @VisibleForTesting
+    public static final int SCORE_SCAN_RESULT = 1;
+    /** Added to the readiness score when the CS emergency call is available. */
+    @VisibleForTesting
+    public static final int SCORE_CS = 2;
+    /** Added to the readiness score when IMS is registered and capable of voice. */
+    @VisibleForTesting
+    public static final int SCORE_IMS = 4;
+
+    /**
+     * Keeps the readiness of a slot for the emergency call up to date
+     * by listening to its {@link ImsStateTracker}.
+     */
+    private final class SlotReadiness implements ImsStateTracker.ServiceStateListener,
+            ImsStateTracker.BarringInfoListener, ImsStateTracker.ImsStateListener {
+        private final int mSlotIndex;
+        private final ImsStateTracker mImsStateTracker;
+        private boolean mImsAvailable;
+        private boolean mCsAvailable;
+        private boolean mBarred;
+        private EmergencyRegResult mLastScanResult;
+        private int mScore = SCORE_NONE;
+
+        SlotReadiness(int slotId, ImsStateTracker imsStateTracker) {
+            mSlotIndex = slotId;
+            mImsStateTracker = imsStateTracker;
+        }
+
+        @Override
+        public void onServiceStateUpdated(ServiceState serviceState) {
+            onSlotStateChanged(mSlotIndex);
+        }
+
+        @Override
+        public void onBarringInfoUpdated(BarringInfo barringInfo) {
+            onSlotStateChanged(mSlotIndex);
+        }
+
+        @Override
+        public void onImsMmTelFeatureAvailableChanged() {
+            onSlotStateChanged(mSlotIndex);
+        }
+
+        @Override
+        public void onImsRegistrationStateChanged() {
+            onSlotStateChanged(mSlotIndex);
+        }
+
+        @Override
+        public void onImsMmTelCapabilitiesChanged() {
+            onSlotStateChanged(mSlotIndex);
+        }
+
+        void update() {
+            ImsStateSnapshot imsState = mImsStateTracker.getSnapshot();
+            mImsAvailable = imsState.isImsRegistered() && imsState.isImsVoiceCapable();
+
+            ServiceState serviceState = imsState.getServiceState();
+            mCsAvailable = serviceState != null
+                    && (serviceState.getState() == ServiceState.STATE_IN_SERVICE
+                            || serviceState.getState() == ServiceState.STATE_EMERGENCY_ONLY
+                            || serviceState.isEmergencyOnly());
+
+            BarringInfo barringInfo = imsState.getBarringInfo();
+            mBarred = barringInfo != null && barringInfo.getBarringServiceInfo(
+                    BARRING_SERVICE_TYPE_EMERGENCY).isBarred();
+            updateScore();
+        }
+
+        void updateScore() {
+            int score = SCORE_NONE;
+            if (!mBarred) {
+                if (mImsAvailable) score += SCORE_IMS;
+                if (mCsAvailable) score += SCORE_CS;
+                if (mLastScanResult != null && mLastScanResult.getDomain() > 0) {
+                    score += SCORE_SCAN_RESULT;
+                }
+            }
+            mScore = score;
+        }
+
+        @Override
+        public String toString() {
+            return "slot=" + mSlotIndex + ", score=" + mScore + ", ims=" + mImsAvailable
+                    + ", cs=" + mCsAvailable + ", barred=" + mBarred
+                    + ", lastScanResult=" + mLastScanResult;
+        }
+    }
+
     private static final LocalLog sLocalLog = new LocalLog(LOG_SIZE);
 
     private final ArrayList<Integer> mStackSelectionHistory = new ArrayList<>();
     private final ArrayList<Integer> mPermanentRejectedSlots = new ArrayList<>();
+    // Slots are added from the binder threads of the domain selection service while the
+    // ImsStateTracker listeners run on the looper, so the map and the state of each slot are
+    // guarded by the map itself.
+    private final SparseArray<SlotReadiness> mSlotReadiness = new SparseArray<>(2);
     private final TelephonyManager mTelephonyManager;
 
     private EmergencyNumberHelper mEmergencyNumberHelper = new EmergencyNumberHelper() {
@@ -90,6 +197,8 @@ public class CrossSimRedialingController extends Handler {
     };
 
     private int mModemCount;
+    /** Whether to redial on the other slot at once when only the other slot is ready. */
+    private boolean mImmediateRedialEnabled = false;
 
     /** A cache of the carrier config {@link #KEY_CROSS_STACK_REDIAL_TIMER_SEC_INT}. */
     private int mCrossStackTimer;
@@ -128,6 +237,75 @@ public class CrossSimRedialingController extends Handler {
         mEmergencyNumberHelper = emergencyNumberHelper;
     }
 
+    /**
+     * Starts tracking the readiness of the slot for the emergency call.
+     *
+     * @param slotId The slot index.
+     * @param imsStateTracker The {@link ImsStateTracker} of the slot.
+     */
+    public void addSlot(int slotId, @NonNull ImsStateTracker imsStateTracker) {
+        SlotReadiness readiness;
+        synchronized (mSlotReadiness) {
+            if (mSlotReadiness.get(slotId) != null) return;
+
+            readiness = new SlotReadiness(slotId, imsStateTracker);
+            mSlotReadiness.put(slotId, readiness);
+            readiness.update();
+        }
+        imsStateTracker.addServiceStateListener(readiness);
+        imsStateTracker.addBarringInfoListener(readiness);
+        imsStateTracker.addImsStateListener(readiness);
+    }
+
+    /**
+     * Sets whether to redial on the other slot as soon as the emergency call starts
+     * when the current slot has no emergency service and the other slot has.
+     *
+     * @param enabled {@code true} to redial immediately, {@code false} to wait for the timer.
+     */
+    public void setImmediateRedialEnabled(boolean enabled) {
+        mImmediateRedialEnabled = enabled;
+    }
+
+    /**
+     * Informs the result of the emergency network scan of the slot.
+     *
+     * @param slotId The slot index.
+     * @param result The emergency network scan result.
+     */
+    public void notifyScanResult(int slotId, @NonNull EmergencyRegResult result) {
+        synchronized (mSlotReadiness) {
+            SlotReadiness readiness = mSlotReadiness.get(slotId);
+            if (readiness == null) return;
+            readiness.mLastScanResult = result;
+            readiness.updateScore();
+        }
+    }
+
+    /**
+     * Returns the readiness score of the slot for the emergency call.
+     * The higher is the better and {@link #SCORE_REJECTED} means that the slot shall not be used.
+     *
+     * @param slotId The slot index.
+     * @return The readiness score.
+     */
+    public int getReadinessScore(int slotId) {
+        if (mPermanentRejectedSlots.contains(slotId)) return SCORE_REJECTED;
+        synchronized (mSlotReadiness) {
+            SlotReadiness readiness = mSlotReadiness.get(slotId);
+            return (readiness == null) ? SCORE_NONE : readiness.mScore;
+        }
+    }
+
+    @VisibleForTesting
+    public void onSlotStateChanged(int slotId) {
+        synchronized (mSlotReadiness) {
+            SlotReadiness readiness = mSlotReadiness.get(slotId);
+            if (readiness == null) return;
+            readiness.update();
+        }
+    }
+
     /**
      * Starts the timer.
      *
@@ -164,6 +342,12 @@ public class CrossSimRedialingController extends Handler {
         logi("startTimer slot=" + mSlotId + ", firstAttempt=" + firstAttempt);
         mStackSelectionHistory.add(mSlotId);
 
+        if (firstAttempt && shouldRedialImmediately(inService, roaming)) {
+            logi("startTimer other slot ready, redial immediately");
+            sendEmptyMessage(MSG_CROSS_STACK_TIMEOUT);
+            return;
+        }
+
         if (firstAttempt && mQuickCrossStackTimer > REDIAL_TIMER_DISABLED && !roaming) {
             if (inService || !mStartQuickCrossStackTimerWhenInService) {
                 logi("startTimer quick timer started");
@@ -218,6 +402,40 @@ public class CrossSimRedialingController extends Handler {
         }
     }
 
+    /**
+     * Returns whether the current slot has no emergency service while another slot being
+     * tracked has, so waiting for the cross stack timer only delays the emergency call.
+     * The same carrier configuration as the quick cross stack timer applies.
+     */
+    private boolean shouldRedialImmediately(boolean inService, boolean roaming) {
+        if (!mImmediateRedialEnabled || mModemCount < 2) return false;
+        if (mCrossStackTimer <= REDIAL_TIMER_DISABLED
+                && mQuickCrossStackTimer <= REDIAL_TIMER_DISABLED) {
+            return false;
+        }
+        if (roaming || (!inService && mStartQuickCrossStackTimerWhenInService)) return false;
+        if (!hasSlot(mSlotId) || getReadinessScore(mSlotId) > SCORE_NONE) {
+            return false;
+        }
+
+        for (int i = 0; i < mModemCount; i++) {
+            if (i == mSlotId) continue;
+
+            if (hasSlot(i) && getReadinessScore(i) >= SCORE_CS
+                    && isEmergencyCapableSlot(i)) {
+                logi("shouldRedialImmediately index=" + i + ", ready");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasSlot(int slotId) {
+        synchronized (mSlotReadiness) {
+            return mSlotReadiness.get(slotId) != null;
+        }
+    }
+
     /**
      * Returns whether there is another slot emergency capable.
      *
@@ -231,28 +449,34 @@ public class CrossSimRedialingController extends Handler {
         for (int i = 0; i < mModemCount; i++) {
             if (i == mSlotId) continue;
 
-            if (mPermanentRejectedSlots.contains(i)) {
-                logi("isThereOtherSlot index=" + i + ", permanent rejected");
-                continue;
-            }
-
-            int simState = mTelephonyManager.getSimState(i);
-            if (simState != TelephonyManager.SIM_STATE_READY) {
-                logi("isThereOtherSlot index=" + i + ", simState=" + simState);
-                continue;
-            }
-
-            if (mEmergencyNumberHelper.isEmergencyNumber(i, mNumber)) {
+            if (isEmergencyCapableSlot(i)) {
                 logi("isThereOtherSlot index=" + i + ", found");
                 return true;
-            } else {
-                logi("isThereOtherSlot index=" + i + ", not emergency number");
             }
         }
 
         return false;
     }
 
+    private boolean isEmergencyCapableSlot(int slotId) {
+        if (mPermanentRejectedSlots.contains(slotId)) {
+            logi("isEmergencyCapableSlot index=" + slotId + ", permanent rejected");
+            return false;
+        }
+
+        int simState = mTelephonyManager.getSimState(slotId);
+        if (simState != TelephonyManager.SIM_STATE_READY) {
+            logi("isEmergencyCapableSlot index=" + slotId + ", simState=" + simState);
+            return false;
+        }
+
+        if (!mEmergencyNumberHelper.isEmergencyNumber(slotId, mNumber)) {
+            logi("isEmergencyCapableSlot index=" + slotId + ", not emergency number");
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Caches the configuration.
      */
@@ -284,6 +508,37 @@ public class CrossSimRedialingController extends Handler {
 
         removeMessages(MSG_CROSS_STACK_TIMEOUT);
         removeMessages(MSG_QUICK_CROSS_STACK_TIMEOUT);
+
+        synchronized (mSlotReadiness) {
+            for (int i = 0; i < mSlotReadiness.size(); ++i) {
+                SlotReadiness readiness = mSlotReadiness.valueAt(i);
+                readiness.mImsStateTracker.removeServiceStateListener(readiness);
+                readiness.mImsStateTracker.removeBarringInfoListener(readiness);
+                readiness.mImsStateTracker.removeImsStateListener(readiness);
+            }
+            mSlotReadiness.clear();
+        }
+    }
+
+    /**
+     * Dumps this instance into a readable format for dumpsys usage.
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        IndentingPrintWriter ipw = new IndentingPrintWriter(pw, "  ");
+        ipw.println("CrossSimRedialingController:");
+        ipw.increaseIndent();
+        ipw.println("immediateRedialEnabled=" + mImmediateRedialEnabled
+                + ", permanentRejectedSlots=" + mPermanentRejectedSlots);
+        synchronized (mSlotReadiness) {
+            for (int i = 0; i < mSlotReadiness.size(); ++i) {
+                ipw.println(mSlotReadiness.valueAt(i));
+            }
+        }
+        ipw.println("Event Log:");
+        ipw.increaseIndent();
+        sLocalLog.dump(ipw);
+        ipw.decreaseIndent();
+        ipw.decreaseIndent();
     }
 
     private void logd(String s) {
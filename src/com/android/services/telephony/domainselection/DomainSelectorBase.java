@@ -17,6 +17,7 @@
 package com.android.services.telephony.domainselection;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
@@ -50,6 +51,18 @@ public abstract class DomainSelectorBase extends Handler implements DomainSelect
         void onDomainSelectorDestroyed(DomainSelectorBase selector);
     }
 
+    /**
+     * A listener used to inform the DomainSelectorService that this DomainSelector has finished
+     * the selection and can be reused for the next request instead of being destroyed.
+     */
+    public interface ReleaseListener {
+        /**
+         * Called when the specified domain selector is released after
+         * {@link DomainSelector#finishSelection} called.
+         */
+        void onDomainSelectorReleased(DomainSelectorBase selector);
+    }
+
     // Persistent Logging
     protected final LocalLog mEventLog = new LocalLog(30);
     protected final Context mContext;
@@ -60,6 +73,7 @@ public abstract class DomainSelectorBase extends Handler implements DomainSelect
     private final int mSlotId;
     private final int mSubId;
     private final DestroyListener mDestroyListener;
+    private ReleaseListener mReleaseListener;
     private final String mLogTag;
 
     public DomainSelectorBase(Context context, int slotId, int subId, @NonNull Looper looper,
@@ -90,6 +104,36 @@ public abstract class DomainSelectorBase extends Handler implements DomainSelect
         notifyDomainSelectorDestroyed();
     }
 
+    /**
+     * Sets the listener to be notified when this domain selector can be reused.
+     * Only the domain selectors that support the reuse call the listener, the others are
+     * destroyed after {@link DomainSelector#finishSelection} as before.
+     *
+     * @param listener The listener, or {@code null} to destroy this domain selector after use.
+     */
+    public void setReleaseListener(@Nullable ReleaseListener listener) {
+        mReleaseListener = listener;
+    }
+
+    /**
+     * Returns {@code true} if this domain selector is kept for the next request
+     * after {@link DomainSelector#finishSelection}, {@code false} otherwise.
+     */
+    protected boolean isReusable() {
+        return mReleaseListener != null;
+    }
+
+    /**
+     * Releases this domain selector to be reused for the next request.
+     * The listeners registered to the {@link ImsStateTracker} are kept.
+     */
+    protected void release() {
+        removeCallbacksAndMessages(null);
+        if (mReleaseListener != null) {
+            mReleaseListener.onDomainSelectorReleased(this);
+        }
+    }
+
     /**
      * Notifies the application that this domain selector is being destroyed.
      */
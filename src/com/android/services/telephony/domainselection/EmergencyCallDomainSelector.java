@@ -18,6 +18,7 @@ package com.android.services.telephony.domainselection;
 
 import static android.telephony.AccessNetworkConstants.AccessNetworkType.CDMA2000;
 import static android.telephony.AccessNetworkConstants.AccessNetworkType.EUTRAN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.IWLAN;
 import static android.telephony.AccessNetworkConstants.AccessNetworkType.NGRAN;
 import static android.telephony.AccessNetworkConstants.AccessNetworkType.UNKNOWN;
 import static android.telephony.AccessNetworkConstants.AccessNetworkType.UTRAN;
@@ -28,33 +29,22 @@ import static android.telephony.BarringInfo.BARRING_SERVICE_TYPE_EMERGENCY;
 import static android.telephony.CarrierConfigManager.ImsEmergency.DOMAIN_CS;
 import static android.telephony.CarrierConfigManager.ImsEmergency.DOMAIN_PS_3GPP;
 import static android.telephony.CarrierConfigManager.ImsEmergency.DOMAIN_PS_NON_3GPP;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_CALL_SETUP_TIMER_ON_CURRENT_NETWORK_SEC_INT;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_CDMA_PREFERRED_NUMBERS_STRING_ARRAY;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_DOMAIN_PREFERENCE_INT_ARRAY;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_DOMAIN_PREFERENCE_ROAMING_INT_ARRAY;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_LTE_PREFERRED_AFTER_NR_FAILED_BOOL;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_NETWORK_SCAN_TYPE_INT;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_CS_ROAMING_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_CS_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_IMS_ROAMING_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_IMS_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_REQUIRES_IMS_REGISTRATION_BOOL;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_REQUIRES_VOLTE_ENABLED_BOOL;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_SCAN_TIMER_SEC_INT;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_VOWIFI_REQUIRES_CONDITION_INT;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_MAXIMUM_CELLULAR_SEARCH_TIMER_SEC_INT;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_MAXIMUM_NUMBER_OF_EMERGENCY_TRIES_OVER_VOWIFI_INT;
-import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_PREFER_IMS_EMERGENCY_WHEN_VOICE_CALLS_ON_CS_BOOL;
 import static android.telephony.CarrierConfigManager.ImsEmergency.SCAN_TYPE_FULL_SERVICE_FOLLOWED_BY_LIMITED_SERVICE;
 import static android.telephony.CarrierConfigManager.ImsEmergency.VOWIFI_REQUIRES_SETTING_ENABLED;
 import static android.telephony.CarrierConfigManager.ImsEmergency.VOWIFI_REQUIRES_VALID_EID;
-import static android.telephony.CarrierConfigManager.ImsWfc.KEY_EMERGENCY_CALL_OVER_EMERGENCY_PDN_BOOL;
 import static android.telephony.NetworkRegistrationInfo.REGISTRATION_STATE_HOME;
 import static android.telephony.NetworkRegistrationInfo.REGISTRATION_STATE_ROAMING;
 import static android.telephony.PreciseDisconnectCause.EMERGENCY_PERM_FAILURE;
 import static android.telephony.PreciseDisconnectCause.EMERGENCY_TEMP_FAILURE;
 
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_DOMAIN_SELECTED;
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_NETWORK_SCAN_REQUESTED;
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_NETWORK_SCAN_RESULT;
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_SELECT_DOMAIN;
+import static com.android.services.telephony.EmergencyCallTracer.REASON_NONE;
+
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.Network;
@@ -63,8 +53,8 @@ import android.net.NetworkRequest;
 import android.os.CancellationSignal;
 import android.os.Looper;
 import android.os.Message;
-import android.os.PersistableBundle;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.telephony.AccessNetworkConstants.AccessNetworkType;
 import android.telephony.AccessNetworkConstants.RadioAccessNetworkType;
@@ -86,16 +76,17 @@ import android.telephony.ims.ImsMmTelManager;
 import android.telephony.ims.ImsReasonInfo;
 import android.telephony.ims.ProvisioningManager;
 import android.text.TextUtils;
+import android.util.IndentingPrintWriter;
 import android.util.LocalLog;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.services.telephony.EmergencyCallTracer;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.IntFunction;
 
 /**
  * Selects the domain for emergency calling.
@@ -156,6 +147,8 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
     private boolean mIsEmergencyBarred;
     private boolean mImsRegistered;
     private boolean mIsVoiceCapable;
+    /** The IMS states of the last IMS state callback, to read them all at once. */
+    private ImsStateSnapshot mImsState = ImsStateSnapshot.EMPTY;
     private boolean mBarringInfoReceived;
     private boolean mImsRegStateReceived;
     private boolean mMmTelCapabilitiesReceived;
@@ -171,13 +164,9 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
 
     private CancellationSignal mCancelSignal;
 
-    private @RadioAccessNetworkType int[] mImsRatsConfig;
-    private @RadioAccessNetworkType int[] mCsRatsConfig;
-    private @RadioAccessNetworkType int[] mImsRoamRatsConfig;
-    private @RadioAccessNetworkType int[] mCsRoamRatsConfig;
-    private @CarrierConfigManager.ImsEmergency.EmergencyDomain int[] mDomainPreference;
-    private @CarrierConfigManager.ImsEmergency.EmergencyDomain int[] mDomainPreferenceRoam;
-    private List<String> mCdmaPreferredNumbers;
+    private EmergencyScanPlan mScanPlan;
+    private long mScanPlanLookupNanos;
+    private long mScanPlanSavedNanos;
     private boolean mPreferImsWhenCallsOnCs;
     private int mVoWifiRequiresCondition;
     private boolean mIsMonitoringConnectivity;
@@ -214,12 +203,26 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
 
     private final PowerManager.WakeLock mPartialWakeLock;
     private final CrossSimRedialingController mCrossSimRedialingController;
+    private final EmergencyScanPlanCache mScanPlanCache;
+    private final EmergencyRegResultCache mRegResultCache;
+    private final EmergencyCallTracer mEmergencyCallTracer = EmergencyCallTracer.getInstance();
 
     /** Constructor. */
     public EmergencyCallDomainSelector(Context context, int slotId, int subId,
             @NonNull Looper looper, @NonNull ImsStateTracker imsStateTracker,
             @NonNull DestroyListener destroyListener,
             @NonNull CrossSimRedialingController csrController) {
+        this(context, slotId, subId, looper, imsStateTracker, destroyListener, csrController,
+                null, null);
+    }
+
+    /** Constructor. */
+    public EmergencyCallDomainSelector(Context context, int slotId, int subId,
+            @NonNull Looper looper, @NonNull ImsStateTracker imsStateTracker,
+            @NonNull DestroyListener destroyListener,
+            @NonNull CrossSimRedialingController csrController,
+            @Nullable EmergencyScanPlanCache scanPlanCache,
+            @Nullable EmergencyRegResultCache regResultCache) {
         super(context, slotId, subId, looper, imsStateTracker, destroyListener, TAG);
 
         mImsStateTracker.addBarringInfoListener(this);
@@ -229,6 +232,8 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
         mPartialWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
 
         mCrossSimRedialingController = csrController;
+        mScanPlanCache = scanPlanCache;
+        mRegResultCache = regResultCache;
         acquireWakeLock();
     }
 
@@ -266,6 +271,7 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
      */
     private void handleScanResult(EmergencyRegResult result) {
         logi("handleScanResult result=" + result);
+        traceEmergencyCall(PHASE_NETWORK_SCAN_RESULT, result.getAccessNetwork());
 
         if (mLastTransportType == TRANSPORT_TYPE_WLAN) {
             logi("handleScanResult timer expired, WLAN has been selected, ignore stale result");
@@ -282,6 +288,7 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
             if ((mPreferredNetworkScanType == SCAN_TYPE_FULL_SERVICE_FOLLOWED_BY_LIMITED_SERVICE)
                       && (mScanType == DomainSelectionService.SCAN_TYPE_FULL_SERVICE)) {
                 mScanType = DomainSelectionService.SCAN_TYPE_LIMITED_SERVICE;
+                traceEmergencyCall(PHASE_NETWORK_SCAN_REQUESTED, mScanType);
                 mWwanSelectorCallback.onRequestEmergencyNetworkScan(
                         mLastPreferredNetworks, mScanType, mCancelSignal,
                         (regResult) -> {
@@ -295,11 +302,43 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
             return;
         }
 
+        if (mRegResultCache != null) {
+            mRegResultCache.put(getSlotId(), result);
+        }
+        mCrossSimRedialingController.notifyScanResult(getSlotId(), result);
+
         removeMessages(MSG_NETWORK_SCAN_TIMEOUT);
         onWwanNetworkTypeSelected(getAccessNetworkType(result));
         mCancelSignal = null;
     }
 
+    /**
+     * Returns the recent scan result of this slot if it can be used instead of a new scan.
+     *
+     * @return The cached scan result, or {@code null} if a new scan is required.
+     */
+    private @Nullable EmergencyRegResult getCachedRegResult() {
+        if (mRegResultCache == null) return null;
+
+        EmergencyRegResult result = mRegResultCache.get(getSlotId());
+        if (result == null) return null;
+
+        int accessNetworkType = getAccessNetworkType(result);
+        if (accessNetworkType == mLastNetworkType || mLastPreferredNetworks == null
+                || !mLastPreferredNetworks.contains(accessNetworkType)) {
+            // Redialing on the network which has just failed, or not a preferred network.
+            return null;
+        }
+
+        int regState = result.getRegState();
+        if (mScanType == DomainSelectionService.SCAN_TYPE_FULL_SERVICE
+                && regState != REGISTRATION_STATE_HOME
+                && regState != REGISTRATION_STATE_ROAMING) {
+            return null;
+        }
+        return result;
+    }
+
     /**
      * Determines the scanned network type.
      *
@@ -425,6 +464,7 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
         logi("selectDomain attr=" + attr);
         mTransportSelectorCallback = cb;
         mSelectionAttributes = attr;
+        traceEmergencyCall(PHASE_SELECT_DOMAIN, REASON_NONE);
         mIsTestEmergencyNumber = isTestEmergencyNumber(attr.getNumber());
 
         TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
@@ -456,7 +496,8 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
     @Override
     public void onImsRegistrationStateChanged() {
         mImsRegStateReceived = true;
-        mImsRegistered = mImsStateTracker.isImsRegistered();
+        mImsState = mImsStateTracker.getSnapshot();
+        mImsRegistered = mImsState.isImsRegistered();
         logi("onImsRegistrationStateChanged " + mImsRegistered);
         selectDomain();
     }
@@ -464,97 +505,44 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
     @Override
     public void onImsMmTelCapabilitiesChanged() {
         mMmTelCapabilitiesReceived = true;
-        mIsVoiceCapable = mImsStateTracker.isImsVoiceCapable();
+        mImsState = mImsStateTracker.getSnapshot();
+        mIsVoiceCapable = mImsState.isImsVoiceCapable();
         logi("onImsMmTelCapabilitiesChanged " + mIsVoiceCapable);
         selectDomain();
     }
 
     /**
      * Caches the configuration.
+     * The scan plan is looked up from the {@link EmergencyScanPlanCache} if available,
+     * otherwise it is compiled from the carrier configuration.
      */
     private void updateCarrierConfiguration() {
-        CarrierConfigManager configMgr = mContext.getSystemService(CarrierConfigManager.class);
-        PersistableBundle b = configMgr.getConfigForSubId(getSubId());
-        if (b == null) {
-            b = CarrierConfigManager.getDefaultConfig();
-        }
-
-        mImsRatsConfig =
-                b.getIntArray(KEY_EMERGENCY_OVER_IMS_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY);
-        mImsRoamRatsConfig = b.getIntArray(
-                KEY_EMERGENCY_OVER_IMS_ROAMING_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY);
-        if (!SubscriptionManager.isValidSubscriptionId(getSubId())) {
-            // Default configuration includes only EUTRAN . In case of no SIM, add NGRAN.
-            mImsRatsConfig = new int[] { EUTRAN, NGRAN };
-            mImsRoamRatsConfig = new int[] { EUTRAN, NGRAN };
-        }
-
-        mCsRatsConfig =
-                b.getIntArray(KEY_EMERGENCY_OVER_CS_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY);
-        mCsRoamRatsConfig = b.getIntArray(
-                KEY_EMERGENCY_OVER_CS_ROAMING_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY);
-        mDomainPreference = b.getIntArray(KEY_EMERGENCY_DOMAIN_PREFERENCE_INT_ARRAY);
-        mDomainPreferenceRoam = b.getIntArray(KEY_EMERGENCY_DOMAIN_PREFERENCE_ROAMING_INT_ARRAY);
-        mPreferImsWhenCallsOnCs = b.getBoolean(
-                KEY_PREFER_IMS_EMERGENCY_WHEN_VOICE_CALLS_ON_CS_BOOL);
-        mVoWifiRequiresCondition = b.getInt(KEY_EMERGENCY_VOWIFI_REQUIRES_CONDITION_INT);
-        mScanTimeout = b.getInt(KEY_EMERGENCY_SCAN_TIMER_SEC_INT) * 1000;
-        mMaxCellularTimeout = b.getInt(KEY_MAXIMUM_CELLULAR_SEARCH_TIMER_SEC_INT) * 1000;
-        mMaxNumOfVoWifiTries = b.getInt(KEY_MAXIMUM_NUMBER_OF_EMERGENCY_TRIES_OVER_VOWIFI_INT);
-        mVoWifiOverEmergencyPdn = b.getBoolean(KEY_EMERGENCY_CALL_OVER_EMERGENCY_PDN_BOOL);
-        mPreferredNetworkScanType = b.getInt(KEY_EMERGENCY_NETWORK_SCAN_TYPE_INT);
-        mCallSetupTimerOnCurrentRat = b.getInt(
-                KEY_EMERGENCY_CALL_SETUP_TIMER_ON_CURRENT_NETWORK_SEC_INT) * 1000;
-        mRequiresImsRegistration = b.getBoolean(KEY_EMERGENCY_REQUIRES_IMS_REGISTRATION_BOOL);
-        mRequiresVoLteEnabled = b.getBoolean(KEY_EMERGENCY_REQUIRES_VOLTE_ENABLED_BOOL);
-        mLtePreferredAfterNrFailure = b.getBoolean(
-                KEY_EMERGENCY_LTE_PREFERRED_AFTER_NR_FAILED_BOOL);
-        String[] numbers = b.getStringArray(KEY_EMERGENCY_CDMA_PREFERRED_NUMBERS_STRING_ARRAY);
-
-        if (mImsRatsConfig == null) mImsRatsConfig = new int[0];
-        if (mCsRatsConfig == null) mCsRatsConfig = new int[0];
-        if (mImsRoamRatsConfig == null) mImsRoamRatsConfig = new int[0];
-        if (mCsRoamRatsConfig == null) mCsRoamRatsConfig = new int[0];
-        if (mDomainPreference == null) mDomainPreference = new int[0];
-        if (mDomainPreferenceRoam == null) mDomainPreferenceRoam = new int[0];
-        if (numbers == null) numbers = new String[0];
-
-        logi("updateCarrierConfiguration "
-                + "imsRats=" + arrayToString(mImsRatsConfig,
-                        EmergencyCallDomainSelector::accessNetworkTypeToString)
-                + ", csRats=" + arrayToString(mCsRatsConfig,
-                        EmergencyCallDomainSelector::accessNetworkTypeToString)
-                + ", imsRoamRats=" + arrayToString(mImsRoamRatsConfig,
-                        EmergencyCallDomainSelector::accessNetworkTypeToString)
-                + ", csRoamRats=" + arrayToString(mCsRoamRatsConfig,
-                        EmergencyCallDomainSelector::accessNetworkTypeToString)
-                + ", domainPref=" + arrayToString(mDomainPreference,
-                        EmergencyCallDomainSelector::domainPreferenceToString)
-                + ", domainPrefRoam=" + arrayToString(mDomainPreferenceRoam,
-                        EmergencyCallDomainSelector::domainPreferenceToString)
-                + ", preferImsOnCs=" + mPreferImsWhenCallsOnCs
-                + ", voWifiRequiresCondition=" + mVoWifiRequiresCondition
-                + ", scanTimeout=" + mScanTimeout
-                + ", maxCellularTimeout=" + mMaxCellularTimeout
-                + ", maxNumOfVoWifiTries=" + mMaxNumOfVoWifiTries
-                + ", voWifiOverEmergencyPdn=" + mVoWifiOverEmergencyPdn
-                + ", preferredScanType=" + carrierConfigNetworkScanTypeToString(
-                        mPreferredNetworkScanType)
-                + ", callSetupTimer=" + mCallSetupTimerOnCurrentRat
-                + ", requiresImsReg=" + mRequiresImsRegistration
-                + ", requiresVoLteEnabled=" + mRequiresVoLteEnabled
-                + ", ltePreferredAfterNr=" + mLtePreferredAfterNrFailure
-                + ", cdmaPreferredNumbers=" + arrayToString(numbers));
-
-        mCdmaPreferredNumbers = Arrays.asList(numbers);
-
-        if ((mPreferredNetworkScanType == CarrierConfigManager.ImsEmergency.SCAN_TYPE_FULL_SERVICE)
-                || (mPreferredNetworkScanType
-                        == SCAN_TYPE_FULL_SERVICE_FOLLOWED_BY_LIMITED_SERVICE)) {
-            mScanType = DomainSelectionService.SCAN_TYPE_FULL_SERVICE;
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        if (mScanPlanCache != null) {
+            mScanPlan = mScanPlanCache.getPlan(getSubId());
         } else {
-            mScanType = DomainSelectionService.SCAN_TYPE_NO_PREFERENCE;
-        }
+            CarrierConfigManager configMgr = mContext.getSystemService(CarrierConfigManager.class);
+            mScanPlan = EmergencyScanPlan.compile(configMgr.getConfigForSubId(getSubId()),
+                    SubscriptionManager.isValidSubscriptionId(getSubId()));
+        }
+        mScanPlanLookupNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        mScanPlanSavedNanos = Math.max(0, mScanPlan.getCompileNanos() - mScanPlanLookupNanos);
+
+        mPreferImsWhenCallsOnCs = mScanPlan.isImsPreferredWhenCallsOnCs();
+        mVoWifiRequiresCondition = mScanPlan.getVoWifiRequiresCondition();
+        mScanTimeout = mScanPlan.getScanTimeoutMillis();
+        mMaxCellularTimeout = mScanPlan.getMaxCellularTimeoutMillis();
+        mMaxNumOfVoWifiTries = mScanPlan.getMaxNumOfVoWifiTries();
+        mVoWifiOverEmergencyPdn = mScanPlan.isVoWifiOverEmergencyPdn();
+        mPreferredNetworkScanType = mScanPlan.getPreferredScanType();
+        mCallSetupTimerOnCurrentRat = mScanPlan.getCallSetupTimerOnCurrentRatMillis();
+        mRequiresImsRegistration = mScanPlan.isImsRegistrationRequired();
+        mRequiresVoLteEnabled = mScanPlan.isVoLteEnabledRequired();
+        mLtePreferredAfterNrFailure = mScanPlan.isLtePreferredAfterNrFailure();
+        mScanType = mScanPlan.getScanType();
+
+        logi("updateCarrierConfiguration " + mScanPlan
+                + ", lookupNanos=" + mScanPlanLookupNanos);
     }
 
     private void selectDomain() {
@@ -706,12 +694,19 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
         }
 
         mIsScanRequested = true;
-        mWwanSelectorCallback.onRequestEmergencyNetworkScan(
-                mLastPreferredNetworks, mScanType, mCancelSignal,
-                (result) -> {
-                    logi("requestScan-onComplete");
-                    sendMessage(obtainMessage(MSG_NETWORK_SCAN_RESULT, result));
-                });
+        EmergencyRegResult cachedResult = getCachedRegResult();
+        if (cachedResult != null) {
+            logi("requestScan skipped, cached result=" + cachedResult);
+            sendMessage(obtainMessage(MSG_NETWORK_SCAN_RESULT, cachedResult));
+        } else {
+            traceEmergencyCall(PHASE_NETWORK_SCAN_REQUESTED, mScanType);
+            mWwanSelectorCallback.onRequestEmergencyNetworkScan(
+                    mLastPreferredNetworks, mScanType, mCancelSignal,
+                    (result) -> {
+                        logi("requestScan-onComplete");
+                        sendMessage(obtainMessage(MSG_NETWORK_SCAN_RESULT, result));
+                    });
+        }
 
         if (startVoWifiTimer && SubscriptionManager.isValidSubscriptionId(getSubId())) {
             if (isEmcOverWifiSupported()
@@ -748,7 +743,8 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
 
         List<Integer> preferredNetworks = new ArrayList<>();
 
-        List<Integer> domains = getDomainPreference();
+        boolean inRoaming = isInRoaming();
+        List<Integer> domains = mScanPlan.getDomainPreference(inRoaming);
         int psPriority = domains.indexOf(DOMAIN_PS_3GPP);
         int csPriority = domains.indexOf(DOMAIN_CS);
         logi("getNextPreferredNetworks psPriority=" + psPriority + ", csPriority=" + csPriority
@@ -757,25 +753,12 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
 
         if (!csPreferred && (mLastNetworkType == UNKNOWN || tryEpsFallback)) {
             // Generate the list per the domain preference.
-
-            if (psPriority == NOT_SUPPORTED && csPriority == NOT_SUPPORTED) {
-                // should not reach here. However, to avoid unexpected problems.
-                preferredNetworks = generatePreferredNetworks(getCsNetworkTypeConfiguration(),
-                        getImsNetworkTypeConfiguration());
-            } else if (psPriority == NOT_SUPPORTED && csPriority > NOT_SUPPORTED) {
-                // CS networks only.
-                preferredNetworks = generatePreferredNetworks(getCsNetworkTypeConfiguration());
-            } else if (psPriority > NOT_SUPPORTED && csPriority == NOT_SUPPORTED) {
-                // PS networks only.
-                preferredNetworks = generatePreferredNetworks(getImsNetworkTypeConfiguration());
-            } else if (psPriority < csPriority) {
-                // PS preferred.
-                preferredNetworks = generatePreferredNetworks(getImsNetworkTypeConfiguration(),
-                        getCsNetworkTypeConfiguration());
+            List<Integer> plannedNetworks = mScanPlan.getInitialPreferredNetworks(inRoaming);
+            if (plannedNetworks != null) {
+                preferredNetworks = new ArrayList<>(plannedNetworks);
             } else {
-                // CS preferred.
-                preferredNetworks = generatePreferredNetworks(getCsNetworkTypeConfiguration(),
-                        getImsNetworkTypeConfiguration());
+                preferredNetworks = EmergencyScanPlan.orderByDomainPreference(domains,
+                        getImsNetworkTypeConfiguration(), getCsNetworkTypeConfiguration());
             }
 
             // Make NGRAN have the lowest priority
@@ -786,7 +769,7 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
         } else if (csPreferred || mLastNetworkType == EUTRAN || mLastNetworkType == NGRAN) {
             if (!csPreferred && mLastNetworkType == NGRAN && mLtePreferredAfterNrFailure) {
                 // LTE is preferred after dialing over NR failed.
-                List<Integer> imsRats = getImsNetworkTypeConfiguration();
+                List<Integer> imsRats = new ArrayList<>(getImsNetworkTypeConfiguration());
                 imsRats.remove(Integer.valueOf(NGRAN));
                 preferredNetworks = generatePreferredNetworks(imsRats,
                         getCsNetworkTypeConfiguration());
@@ -1119,48 +1102,29 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
     }
 
     private @NonNull List<Integer> getImsNetworkTypeConfiguration() {
-        int[] rats = mImsRatsConfig;
-        if (isInRoaming()) rats = mImsRoamRatsConfig;
-
-        List<Integer> ratList = new ArrayList<Integer>();
-        for (int i = 0; i < rats.length; i++) {
-            ratList.add(rats[i]);
-        }
-        return ratList;
+        return mScanPlan.getImsRats(isInRoaming());
     }
 
     private @NonNull List<Integer> getCsNetworkTypeConfiguration() {
-        int[] rats = mCsRatsConfig;
-        if (isInRoaming()) rats = mCsRoamRatsConfig;
-
-        List<Integer> ratList = new ArrayList<Integer>();
-        for (int i = 0; i < rats.length; i++) {
-            ratList.add(rats[i]);
-        }
-
-        if (!mCdmaPreferredNumbers.isEmpty()) {
-            if (mCdmaPreferredNumbers.contains(mSelectionAttributes.getNumber())) {
-                // The number will be dialed over CDMA.
-                ratList.clear();
-                ratList.add(new Integer(CDMA2000));
-            } else {
-                // The number will be dialed over UTRAN or GERAN.
-                ratList.remove(new Integer(CDMA2000));
-            }
+        List<Integer> rats = mScanPlan.getCsRats(isInRoaming());
+        List<String> cdmaPreferredNumbers = mScanPlan.getCdmaPreferredNumbers();
+        if (cdmaPreferredNumbers.isEmpty()) return rats;
+
+        List<Integer> ratList = new ArrayList<Integer>(rats);
+        if (cdmaPreferredNumbers.contains(mSelectionAttributes.getNumber())) {
+            // The number will be dialed over CDMA.
+            ratList.clear();
+            ratList.add(new Integer(CDMA2000));
+        } else {
+            // The number will be dialed over UTRAN or GERAN.
+            ratList.remove(new Integer(CDMA2000));
         }
 
         return ratList;
     }
 
     private @NonNull List<Integer> getDomainPreference() {
-        int[] domains = mDomainPreference;
-        if (isInRoaming()) domains = mDomainPreferenceRoam;
-
-        List<Integer> domainList = new ArrayList<Integer>();
-        for (int i = 0; i < domains.length; i++) {
-            domainList.add(domains[i]);
-        }
-        return domainList;
+        return mScanPlan.getDomainPreference(isInRoaming());
     }
 
     private boolean isInRoaming() {
@@ -1196,7 +1160,7 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
     private boolean isImsRegisteredOverWifi() {
         boolean ret = false;
         if (SubscriptionManager.isValidSubscriptionId(getSubId())) {
-            ret = mImsStateTracker.isImsRegisteredOverWlan();
+            ret = mImsState.isImsRegisteredOverWlan();
         }
 
         logi("isImsRegisteredOverWifi " + ret);
@@ -1211,7 +1175,7 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
     private boolean isImsRegisteredOverCrossSim() {
         boolean ret = false;
         if (SubscriptionManager.isValidSubscriptionId(getSubId())) {
-            ret = mImsStateTracker.isImsRegisteredOverCrossSim();
+            ret = mImsState.isImsRegisteredOverCrossSim();
         }
 
         logi("isImsRegisteredOverCrossSim " + ret);
@@ -1239,6 +1203,7 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
 
         mDomainSelected = true;
         mLastTransportType = TRANSPORT_TYPE_WLAN;
+        traceEmergencyCall(PHASE_DOMAIN_SELECTED, IWLAN);
         mVoWifiTrialCount++;
         mTransportSelectorCallback.onWlanSelected(mVoWifiOverEmergencyPdn);
         mWwanSelectorCallback = null;
@@ -1269,6 +1234,7 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
 
         mDomainSelected = true;
         mLastNetworkType = accessNetworkType;
+        traceEmergencyCall(PHASE_DOMAIN_SELECTED, accessNetworkType);
         int domain = NetworkRegistrationInfo.DOMAIN_CS;
         if (accessNetworkType == EUTRAN || accessNetworkType == NGRAN) {
             domain = NetworkRegistrationInfo.DOMAIN_PS;
@@ -1403,36 +1369,7 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
         terminateSelectionForCrossSimRedialing(false);
     }
 
-    private static String arrayToString(int[] intArray, IntFunction<String> func) {
-        int length = intArray.length;
-        StringBuilder sb = new StringBuilder("{");
-        if (length > 0) {
-            int i = 0;
-            sb.append(func.apply(intArray[i++]));
-            while (i < length) {
-                sb.append(", ").append(func.apply(intArray[i++]));
-            }
-        }
-        sb.append("}");
-        return sb.toString();
-    }
-
-    private static String arrayToString(String[] stringArray) {
-        StringBuilder sb;
-        int length = stringArray.length;
-        sb = new StringBuilder("{");
-        if (length > 0) {
-            int i = 0;
-            sb.append(stringArray[i++]);
-            while (i < length) {
-                sb.append(", ").append(stringArray[i++]);
-            }
-        }
-        sb.append("}");
-        return sb.toString();
-    }
-
-    private static String domainPreferenceToString(
+    static String domainPreferenceToString(
             @CarrierConfigManager.ImsEmergency.EmergencyDomain int domain) {
         switch (domain) {
             case DOMAIN_CS: return "CS";
@@ -1442,7 +1379,7 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
         }
     }
 
-    private static String carrierConfigNetworkScanTypeToString(
+    static String carrierConfigNetworkScanTypeToString(
             @CarrierConfigManager.ImsEmergency.EmergencyScanType int scanType) {
         switch (scanType) {
             case CarrierConfigManager.ImsEmergency.SCAN_TYPE_NO_PREFERENCE: return "NO_PREF";
@@ -1452,7 +1389,7 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
         }
     }
 
-    private static String accessNetworkTypeToString(
+    static String accessNetworkTypeToString(
             @RadioAccessNetworkType int accessNetworkType) {
         switch (accessNetworkType) {
             case AccessNetworkType.UNKNOWN: return "UNKNOWN";
@@ -1535,6 +1472,26 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
         return false;
     }
 
+    /**
+     * Records the phase of the domain selection to {@link EmergencyCallTracer}.
+     */
+    private void traceEmergencyCall(@EmergencyCallTracer.Phase int phase, int reason) {
+        if (mSelectionAttributes == null) return;
+        mEmergencyCallTracer.record(mSelectionAttributes.getCallId(), phase, reason);
+    }
+
+    @Override
+    protected void dump(@NonNull PrintWriter pw) {
+        super.dump(pw);
+        IndentingPrintWriter ipw = new IndentingPrintWriter(pw, "  ");
+        ipw.increaseIndent();
+        ipw.println("ScanPlan: lookupNanos=" + mScanPlanLookupNanos
+                + ", savedNanos=" + mScanPlanSavedNanos
+                + ", cached=" + (mScanPlanCache != null));
+        ipw.println("RegResultCache: " + (mRegResultCache != null));
+        ipw.decreaseIndent();
+    }
+
     @Override
     protected void logi(String msg) {
         super.logi(msg);
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.EUTRAN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.GERAN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.NGRAN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.UNKNOWN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.UTRAN;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.telephony.AccessNetworkConstants;
+import android.telephony.AccessNetworkConstants.RadioAccessNetworkType;
+import android.telephony.CellIdentity;
+import android.telephony.DataSpecificRegistrationInfo;
+import android.telephony.EmergencyRegResult;
+import android.telephony.NetworkRegistrationInfo;
+import android.telephony.NrVopsSupportInfo;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyManager;
+import android.telephony.VopsSupportInfo;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+
+/**
+ * Prepares the emergency call while the user is entering the number in the emergency dialer.
+ *
+ * The warm-up never changes the radio power and never requests an emergency network scan.
+ * It only listens to the {@link ImsStateTracker} of each slot and, while the radio of the slot
+ * is on and the slot is in service or in limited service, converts the current WWAN
+ * registration into an {@link EmergencyRegResult}. The emergency call dialed next uses that
+ * result when the {@code EmergencyStateTracker} has none of its own, so the domain selection
+ * can choose the domain without waiting for the first emergency network scan.
+ *
+ * {@link TelephonyDomainSelectionService} binds the instance to its {@link ImsStateTracker}s.
+ * Until then, the warm-up does nothing.
+ */
+public class EmergencyCallWarmUp {
+    private static final String TAG = "EmergencyCallWarmUp";
+
+    /** The time the result is kept after the warm-up is handed over to an emergency call. */
+    @VisibleForTesting
+    public static final long REG_RESULT_VALIDITY_MILLIS = 20000;
+
+    private static EmergencyCallWarmUp sInstance;
+
+    private final Object mLock = new Object();
+    private final LongSupplier mClock;
+
+    @GuardedBy("mLock")
+    private int mSlotCount;
+    @GuardedBy("mLock")
+    private IntFunction<ImsStateTracker> mImsStateTrackerProvider;
+    // Map of slotId -> listener registered to the ImsStateTracker of the slot.
+    @GuardedBy("mLock")
+    private final SparseArray<ImsStateTracker.ServiceStateListener> mListeners =
+            new SparseArray<>(2);
+    // Map of slotId -> EmergencyRegResult derived from the current registration.
+    @GuardedBy("mLock")
+    private final SparseArray<EmergencyRegResult> mRegResults = new SparseArray<>(2);
+    @GuardedBy("mLock")
+    private boolean mStarted;
+    @GuardedBy("mLock")
+    private long mHandOverTimeMillis;
+
+    /** Returns the process wide instance. */
+    public static synchronized @NonNull EmergencyCallWarmUp getInstance() {
+        if (sInstance == null) {
+            sInstance = new EmergencyCallWarmUp(SystemClock::elapsedRealtime);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public EmergencyCallWarmUp(@NonNull LongSupplier clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Binds this instance to the {@link ImsStateTracker}s of the domain selection service.
+     *
+     * @param slotCount The number of the active slots.
+     * @param imsStateTrackerProvider Returns the {@link ImsStateTracker} of the specified slot.
+     */
+    public void bind(int slotCount,
+            @NonNull IntFunction<ImsStateTracker> imsStateTrackerProvider) {
+        synchronized (mLock) {
+            stopListeningLocked();
+            mRegResults.clear();
+            mStarted = false;
+            mSlotCount = slotCount;
+            mImsStateTrackerProvider = imsStateTrackerProvider;
+        }
+    }
+
+    /**
+     * Unbinds this instance from the domain selection service and drops the results.
+     */
+    public void unbind() {
+        synchronized (mLock) {
+            stopListeningLocked();
+            mRegResults.clear();
+            mStarted = false;
+            mSlotCount = 0;
+            mImsStateTrackerProvider = null;
+        }
+    }
+
+    /**
+     * Starts the warm-up. It is ignored if the warm-up has already been started.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mStarted || mImsStateTrackerProvider == null) return;
+
+            logi("start slotCount=" + mSlotCount);
+            mStarted = true;
+            mHandOverTimeMillis = 0;
+            mRegResults.clear();
+            for (int i = 0; i < mSlotCount; i++) {
+                final int slotId = i;
+                ImsStateTracker ist = mImsStateTrackerProvider.apply(slotId);
+                if (ist == null) continue;
+
+                ImsStateTracker.ServiceStateListener listener =
+                        serviceState -> onServiceStateUpdated(slotId, serviceState);
+                mListeners.put(slotId, listener);
+                // The listeners of ImsStateTracker are only accessed on its handler.
+                ist.getHandler().post(() -> ist.addServiceStateListener(listener));
+            }
+        }
+    }
+
+    /**
+     * Cancels the warm-up because the user left the emergency dialer without dialing.
+     * The results are dropped.
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            if (!mStarted) return;
+
+            logi("cancel");
+            stopListeningLocked();
+            mRegResults.clear();
+            mStarted = false;
+        }
+    }
+
+    /**
+     * Hands the warm-up over to the emergency call being placed.
+     * The results are kept for {@link #REG_RESULT_VALIDITY_MILLIS} without further updates.
+     */
+    public void handOver() {
+        synchronized (mLock) {
+            if (!mStarted) return;
+
+            logi("handOver results=" + mRegResults.size());
+            stopListeningLocked();
+            mStarted = false;
+            mHandOverTimeMillis = mClock.getAsLong();
+        }
+    }
+
+    /**
+     * Returns the result prepared for the specified slot and drops all results,
+     * so that only the emergency call dialed next uses them.
+     *
+     * @param slotId The slot index.
+     * @return The prepared {@link EmergencyRegResult}, or {@code null} if there is no valid one.
+     */
+    public @Nullable EmergencyRegResult takeRegResult(int slotId) {
+        synchronized (mLock) {
+            EmergencyRegResult regResult = mRegResults.get(slotId);
+            if (regResult != null && !mStarted
+                    && (mClock.getAsLong() - mHandOverTimeMillis) > REG_RESULT_VALIDITY_MILLIS) {
+                logi("takeRegResult expired slotId=" + slotId);
+                regResult = null;
+            }
+            mRegResults.clear();
+            logi("takeRegResult slotId=" + slotId + ", result=" + regResult);
+            return regResult;
+        }
+    }
+
+    private void onServiceStateUpdated(int slotId, @Nullable ServiceState serviceState) {
+        EmergencyRegResult regResult = toEmergencyRegResult(serviceState);
+        synchronized (mLock) {
+            if (!mStarted || mListeners.get(slotId) == null) return;
+
+            if (regResult == null) {
+                mRegResults.remove(slotId);
+            } else {
+                mRegResults.put(slotId, regResult);
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void stopListeningLocked() {
+        for (int i = 0; i < mListeners.size(); i++) {
+            int slotId = mListeners.keyAt(i);
+            ImsStateTracker.ServiceStateListener listener = mListeners.valueAt(i);
+            ImsStateTracker ist = (mImsStateTrackerProvider != null)
+                    ? mImsStateTrackerProvider.apply(slotId) : null;
+            if (ist != null) {
+                ist.getHandler().post(() -> ist.removeServiceStateListener(listener));
+            }
+        }
+        mListeners.clear();
+    }
+
+    /**
+     * Converts the WWAN registration of the given {@link ServiceState}
+     * into an {@link EmergencyRegResult}.
+     *
+     * @param serviceState The current {@link ServiceState} of the slot.
+     * @return The {@link EmergencyRegResult}, or {@code null} if the radio is off or the slot is
+     *         neither in service nor in limited service.
+     */
+    @VisibleForTesting
+    public static @Nullable EmergencyRegResult toEmergencyRegResult(
+            @Nullable ServiceState serviceState) {
+        if (serviceState == null || serviceState.getState() == ServiceState.STATE_POWER_OFF) {
+            return null;
+        }
+
+        NetworkRegistrationInfo csRegInfo = serviceState.getNetworkRegistrationInfo(
+                NetworkRegistrationInfo.DOMAIN_CS, AccessNetworkConstants.TRANSPORT_TYPE_WWAN);
+        NetworkRegistrationInfo psRegInfo = serviceState.getNetworkRegistrationInfo(
+                NetworkRegistrationInfo.DOMAIN_PS, AccessNetworkConstants.TRANSPORT_TYPE_WWAN);
+        boolean csRegistered = (csRegInfo != null) && csRegInfo.isRegistered();
+        boolean psRegistered = (psRegInfo != null) && psRegInfo.isRegistered();
+
+        NetworkRegistrationInfo regInfo;
+        if (psRegistered) {
+            regInfo = psRegInfo;
+        } else if (csRegistered) {
+            regInfo = csRegInfo;
+        } else if (csRegInfo != null && csRegInfo.isEmergencyEnabled()) {
+            regInfo = csRegInfo;
+        } else if (psRegInfo != null && psRegInfo.isEmergencyEnabled()) {
+            regInfo = psRegInfo;
+        } else {
+            // Neither in service nor in limited service.
+            return null;
+        }
+
+        int accessNetwork = toAccessNetworkType(regInfo.getAccessNetworkTechnology());
+        if (accessNetwork == UNKNOWN) return null;
+
+        int domain = 0;
+        if (csRegistered) domain |= NetworkRegistrationInfo.DOMAIN_CS;
+        if (psRegistered) domain |= NetworkRegistrationInfo.DOMAIN_PS;
+
+        VopsSupportInfo vopsSupportInfo = getVopsSupportInfo(regInfo);
+        if (vopsSupportInfo == null && regInfo != psRegInfo && psRegInfo != null) {
+            vopsSupportInfo = getVopsSupportInfo(psRegInfo);
+        }
+        boolean isVopsSupported = (vopsSupportInfo != null) && vopsSupportInfo.isVopsSupported();
+        boolean isEmcBearerSupported = (vopsSupportInfo != null)
+                && vopsSupportInfo.isEmergencyServiceSupported();
+        int emc = 0;
+        int emf = 0;
+        if (vopsSupportInfo instanceof NrVopsSupportInfo) {
+            emc = ((NrVopsSupportInfo) vopsSupportInfo).getEmcService();
+            emf = ((NrVopsSupportInfo) vopsSupportInfo).getEmfService();
+        }
+
+        String mcc = null;
+        String mnc = null;
+        CellIdentity cellIdentity = regInfo.getCellIdentity();
+        if (cellIdentity != null) {
+            mcc = cellIdentity.getMccString();
+            mnc = cellIdentity.getMncString();
+        }
+
+        return new EmergencyRegResult(accessNetwork, regInfo.getRegistrationState(), domain,
+                isVopsSupported, isEmcBearerSupported, emc, emf,
+                (mcc == null) ? "" : mcc, (mnc == null) ? "" : mnc, "");
+    }
+
+    private static @Nullable VopsSupportInfo getVopsSupportInfo(
+            @NonNull NetworkRegistrationInfo regInfo) {
+        DataSpecificRegistrationInfo dsRegInfo = regInfo.getDataSpecificInfo();
+        return (dsRegInfo != null) ? dsRegInfo.getVopsSupportInfo() : null;
+    }
+
+    private static @RadioAccessNetworkType int toAccessNetworkType(int networkType) {
+        switch (networkType) {
+            case TelephonyManager.NETWORK_TYPE_NR:
+                return NGRAN;
+            case TelephonyManager.NETWORK_TYPE_LTE:
+            case TelephonyManager.NETWORK_TYPE_LTE_CA:
+                return EUTRAN;
+            case TelephonyManager.NETWORK_TYPE_UMTS:
+            case TelephonyManager.NETWORK_TYPE_HSDPA:
+            case TelephonyManager.NETWORK_TYPE_HSUPA:
+            case TelephonyManager.NETWORK_TYPE_HSPA:
+            case TelephonyManager.NETWORK_TYPE_HSPAP:
+            case TelephonyManager.NETWORK_TYPE_TD_SCDMA:
+                return UTRAN;
+            case TelephonyManager.NETWORK_TYPE_GSM:
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+                return GERAN;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    private static void logi(String s) {
+        Log.i(TAG, s);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import static android.telephony.BarringInfo.BARRING_SERVICE_TYPE_EMERGENCY;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.telephony.BarringInfo;
+import android.telephony.EmergencyRegResult;
+import android.telephony.ServiceState;
+import android.text.TextUtils;
+import android.util.IndentingPrintWriter;
+import android.util.LocalLog;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Keeps the recent emergency network scan result of each slot.
+ *
+ * Redialing on the same slot or on the other slot after the cross SIM redialing can reuse the
+ * result while it is fresh instead of scanning the networks again. The result is dropped when it
+ * gets older than the validity period, or when the {@link ServiceState} or {@link BarringInfo}
+ * reported by the {@link ImsStateTracker} of the slot indicates that it is no longer valid.
+ */
+public class EmergencyRegResultCache {
+    private static final String TAG = "EmergencyRegResultCache";
+    private static final int LOG_SIZE = 20;
+
+    /** The default time the scan result is considered valid. */
+    public static final long DEFAULT_VALIDITY_MILLIS = 20000;
+
+    private static final class Entry {
+        final EmergencyRegResult mResult;
+        final long mElapsedMillis;
+
+        Entry(EmergencyRegResult result, long elapsedMillis) {
+            mResult = result;
+            mElapsedMillis = elapsedMillis;
+        }
+    }
+
+    /** Listens to the network state of a slot to invalidate its scan result. */
+    private final class SlotListener implements ImsStateTracker.ServiceStateListener,
+            ImsStateTracker.BarringInfoListener {
+        private final int mSlotId;
+        private final ImsStateTracker mImsStateTracker;
+
+        SlotListener(int slotId, ImsStateTracker imsStateTracker) {
+            mSlotId = slotId;
+            mImsStateTracker = imsStateTracker;
+        }
+
+        @Override
+        public void onServiceStateUpdated(ServiceState serviceState) {
+            onServiceStateChanged(mSlotId, serviceState);
+        }
+
+        @Override
+        public void onBarringInfoUpdated(BarringInfo barringInfo) {
+            onBarringInfoChanged(mSlotId, barringInfo);
+        }
+    }
+
+    private final LocalLog mEventLog = new LocalLog(LOG_SIZE);
+    private final long mValidityMillis;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final SparseArray<Entry> mEntries = new SparseArray<>(2);
+    @GuardedBy("mLock")
+    private final SparseArray<SlotListener> mListeners = new SparseArray<>(2);
+    @GuardedBy("mLock")
+    private int mHitCount;
+    @GuardedBy("mLock")
+    private int mMissCount;
+
+    /**
+     * Creates an instance.
+     *
+     * @param validityMillis The time the scan result is considered valid.
+     */
+    public EmergencyRegResultCache(long validityMillis) {
+        mValidityMillis = validityMillis;
+    }
+
+    /**
+     * Starts listening to the network state of the slot to invalidate its scan result.
+     *
+     * @param slotId The slot index.
+     * @param imsStateTracker The {@link ImsStateTracker} of the slot.
+     */
+    public void addSlot(int slotId, @NonNull ImsStateTracker imsStateTracker) {
+        SlotListener listener;
+        synchronized (mLock) {
+            if (mListeners.get(slotId) != null) return;
+            listener = new SlotListener(slotId, imsStateTracker);
+            mListeners.put(slotId, listener);
+        }
+        imsStateTracker.addServiceStateListener(listener);
+        imsStateTracker.addBarringInfoListener(listener);
+    }
+
+    /**
+     * Destroys this instance.
+     */
+    public void destroy() {
+        synchronized (mLock) {
+            for (int i = 0; i < mListeners.size(); ++i) {
+                SlotListener listener = mListeners.valueAt(i);
+                listener.mImsStateTracker.removeServiceStateListener(listener);
+                listener.mImsStateTracker.removeBarringInfoListener(listener);
+            }
+            mListeners.clear();
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Keeps the scan result of the slot.
+     * Putting the result taken from this cache again does not extend its validity.
+     *
+     * @param slotId The slot index.
+     * @param result The emergency network scan result.
+     */
+    public void put(int slotId, @NonNull EmergencyRegResult result) {
+        synchronized (mLock) {
+            Entry entry = mEntries.get(slotId);
+            if (entry != null && entry.mResult == result) return;
+            mEntries.put(slotId, new Entry(result, SystemClock.elapsedRealtime()));
+        }
+    }
+
+    /**
+     * Returns the scan result of the slot if it is still valid.
+     *
+     * @param slotId The slot index.
+     * @return The scan result, or {@code null} if there is no valid result.
+     */
+    public @Nullable EmergencyRegResult get(int slotId) {
+        synchronized (mLock) {
+            Entry entry = mEntries.get(slotId);
+            if (entry != null
+                    && SystemClock.elapsedRealtime() - entry.mElapsedMillis > mValidityMillis) {
+                mEntries.remove(slotId);
+                entry = null;
+            }
+            if (entry == null) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+            return entry.mResult;
+        }
+    }
+
+    /**
+     * Drops the scan result of the slot.
+     *
+     * @param slotId The slot index.
+     * @param reason The reason for logging.
+     */
+    public void invalidate(int slotId, @NonNull String reason) {
+        synchronized (mLock) {
+            if (mEntries.get(slotId) == null) return;
+            mEntries.remove(slotId);
+        }
+        logi("invalidate slotId=" + slotId + ", reason=" + reason);
+    }
+
+    @VisibleForTesting
+    public void onServiceStateChanged(int slotId, @NonNull ServiceState serviceState) {
+        EmergencyRegResult result;
+        synchronized (mLock) {
+            Entry entry = mEntries.get(slotId);
+            if (entry == null) return;
+            result = entry.mResult;
+        }
+
+        if (serviceState.getState() == ServiceState.STATE_POWER_OFF) {
+            invalidate(slotId, "radio off");
+            return;
+        }
+
+        // The device moved to the network of a different operator.
+        String operator = serviceState.getOperatorNumeric();
+        String mcc = result.getMcc();
+        String mnc = result.getMnc();
+        if (!TextUtils.isEmpty(operator) && !TextUtils.isEmpty(mcc) && !TextUtils.isEmpty(mnc)
+                && !TextUtils.equals(operator, mcc + mnc)) {
+            invalidate(slotId, "operator changed " + mcc + mnc + " -> " + operator);
+        }
+    }
+
+    @VisibleForTesting
+    public void onBarringInfoChanged(int slotId, @NonNull BarringInfo barringInfo) {
+        BarringInfo.BarringServiceInfo serviceInfo =
+                barringInfo.getBarringServiceInfo(BARRING_SERVICE_TYPE_EMERGENCY);
+        if (serviceInfo.isBarred()) {
+            invalidate(slotId, "emergency barred");
+        }
+    }
+
+    /**
+     * Dumps this instance into a readable format for dumpsys usage.
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        IndentingPrintWriter ipw = new IndentingPrintWriter(pw, "  ");
+        ipw.println("EmergencyRegResultCache:");
+        ipw.increaseIndent();
+        synchronized (mLock) {
+            ipw.println("validityMillis=" + mValidityMillis
+                    + ", hits=" + mHitCount + ", misses=" + mMissCount);
+            long now = SystemClock.elapsedRealtime();
+            for (int i = 0; i < mEntries.size(); ++i) {
+                Entry entry = mEntries.valueAt(i);
+                ipw.println("slotId=" + mEntries.keyAt(i) + ": ageMillis="
+                        + (now - entry.mElapsedMillis) + ", " + entry.mResult);
+            }
+        }
+        ipw.println("Event Log:");
+        ipw.increaseIndent();
+        mEventLog.dump(ipw);
+        ipw.decreaseIndent();
+        ipw.decreaseIndent();
+    }
+
+    private void logi(String s) {
+        Log.i(TAG, s);
+        mEventLog.log(s);
+    }
+}
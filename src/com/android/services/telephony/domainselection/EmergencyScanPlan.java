@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.EUTRAN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.NGRAN;
+import static android.telephony.CarrierConfigManager.ImsEmergency.DOMAIN_CS;
+import static android.telephony.CarrierConfigManager.ImsEmergency.DOMAIN_PS_3GPP;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_CALL_SETUP_TIMER_ON_CURRENT_NETWORK_SEC_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_CDMA_PREFERRED_NUMBERS_STRING_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_DOMAIN_PREFERENCE_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_DOMAIN_PREFERENCE_ROAMING_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_LTE_PREFERRED_AFTER_NR_FAILED_BOOL;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_NETWORK_SCAN_TYPE_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_CS_ROAMING_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_CS_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_IMS_ROAMING_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_IMS_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_REQUIRES_IMS_REGISTRATION_BOOL;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_REQUIRES_VOLTE_ENABLED_BOOL;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_SCAN_TIMER_SEC_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_VOWIFI_REQUIRES_CONDITION_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_MAXIMUM_CELLULAR_SEARCH_TIMER_SEC_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_MAXIMUM_NUMBER_OF_EMERGENCY_TRIES_OVER_VOWIFI_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_PREFER_IMS_EMERGENCY_WHEN_VOICE_CALLS_ON_CS_BOOL;
+import static android.telephony.CarrierConfigManager.ImsEmergency.SCAN_TYPE_FULL_SERVICE_FOLLOWED_BY_LIMITED_SERVICE;
+import static android.telephony.CarrierConfigManager.ImsWfc.KEY_EMERGENCY_CALL_OVER_EMERGENCY_PDN_BOOL;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.telephony.AccessNetworkConstants.RadioAccessNetworkType;
+import android.telephony.CarrierConfigManager;
+import android.telephony.DomainSelectionService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * An immutable plan of the emergency network scan preferences compiled from the carrier
+ * configuration of a subscription.
+ *
+ * The plan keeps the home and roaming variants of the RAT lists and domain preferences, so
+ * {@link EmergencyCallDomainSelector} only needs to pick one of them per the current roaming
+ * state instead of parsing the carrier configuration for every emergency call.
+ */
+public final class EmergencyScanPlan {
+    /** Indicates the domain is not included in the domain preference. */
+    static final int NOT_SUPPORTED = -1;
+
+    private final boolean mValidSubscription;
+    private final long mCompileNanos;
+
+    private final @RadioAccessNetworkType List<Integer> mImsRats;
+    private final @RadioAccessNetworkType List<Integer> mImsRoamRats;
+    private final @RadioAccessNetworkType List<Integer> mCsRats;
+    private final @RadioAccessNetworkType List<Integer> mCsRoamRats;
+    private final List<Integer> mDomainPreference;
+    private final List<Integer> mDomainPreferenceRoam;
+    private final List<String> mCdmaPreferredNumbers;
+    // The initial scan lists. null if the list depends on the dialed number.
+    private final @RadioAccessNetworkType List<Integer> mInitialPreferredNetworks;
+    private final @RadioAccessNetworkType List<Integer> mInitialPreferredNetworksRoam;
+
+    private final boolean mPreferImsWhenCallsOnCs;
+    private final int mVoWifiRequiresCondition;
+    private final int mScanTimeoutMillis;
+    private final int mMaxCellularTimeoutMillis;
+    private final int mMaxNumOfVoWifiTries;
+    private final boolean mVoWifiOverEmergencyPdn;
+    private final @CarrierConfigManager.ImsEmergency.EmergencyScanType int mPreferredScanType;
+    private final @DomainSelectionService.EmergencyScanType int mScanType;
+    private final int mCallSetupTimerOnCurrentRatMillis;
+    private final boolean mRequiresImsRegistration;
+    private final boolean mRequiresVoLteEnabled;
+    private final boolean mLtePreferredAfterNrFailure;
+
+    private EmergencyScanPlan(@NonNull PersistableBundle b, boolean validSubscription,
+            long startNanos) {
+        mValidSubscription = validSubscription;
+
+        if (validSubscription) {
+            mImsRats = toList(b.getIntArray(
+                    KEY_EMERGENCY_OVER_IMS_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY));
+            mImsRoamRats = toList(b.getIntArray(
+                    KEY_EMERGENCY_OVER_IMS_ROAMING_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY));
+        } else {
+            // Default configuration includes only EUTRAN . In case of no SIM, add NGRAN.
+            mImsRats = toList(new int[] { EUTRAN, NGRAN });
+            mImsRoamRats = mImsRats;
+        }
+        mCsRats = toList(b.getIntArray(
+                KEY_EMERGENCY_OVER_CS_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY));
+        mCsRoamRats = toList(b.getIntArray(
+                KEY_EMERGENCY_OVER_CS_ROAMING_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY));
+        mDomainPreference = toList(b.getIntArray(KEY_EMERGENCY_DOMAIN_PREFERENCE_INT_ARRAY));
+        mDomainPreferenceRoam = toList(
+                b.getIntArray(KEY_EMERGENCY_DOMAIN_PREFERENCE_ROAMING_INT_ARRAY));
+        String[] numbers = b.getStringArray(KEY_EMERGENCY_CDMA_PREFERRED_NUMBERS_STRING_ARRAY);
+        mCdmaPreferredNumbers = (numbers == null)
+                ? Collections.emptyList() : Collections.unmodifiableList(Arrays.asList(numbers));
+
+        mPreferImsWhenCallsOnCs = b.getBoolean(
+                KEY_PREFER_IMS_EMERGENCY_WHEN_VOICE_CALLS_ON_CS_BOOL);
+        mVoWifiRequiresCondition = b.getInt(KEY_EMERGENCY_VOWIFI_REQUIRES_CONDITION_INT);
+        mScanTimeoutMillis = b.getInt(KEY_EMERGENCY_SCAN_TIMER_SEC_INT) * 1000;
+        mMaxCellularTimeoutMillis = b.getInt(KEY_MAXIMUM_CELLULAR_SEARCH_TIMER_SEC_INT) * 1000;
+        mMaxNumOfVoWifiTries = b.getInt(KEY_MAXIMUM_NUMBER_OF_EMERGENCY_TRIES_OVER_VOWIFI_INT);
+        mVoWifiOverEmergencyPdn = b.getBoolean(KEY_EMERGENCY_CALL_OVER_EMERGENCY_PDN_BOOL);
+        mPreferredScanType = b.getInt(KEY_EMERGENCY_NETWORK_SCAN_TYPE_INT);
+        mCallSetupTimerOnCurrentRatMillis = b.getInt(
+                KEY_EMERGENCY_CALL_SETUP_TIMER_ON_CURRENT_NETWORK_SEC_INT) * 1000;
+        mRequiresImsRegistration = b.getBoolean(KEY_EMERGENCY_REQUIRES_IMS_REGISTRATION_BOOL);
+        mRequiresVoLteEnabled = b.getBoolean(KEY_EMERGENCY_REQUIRES_VOLTE_ENABLED_BOOL);
+        mLtePreferredAfterNrFailure = b.getBoolean(
+                KEY_EMERGENCY_LTE_PREFERRED_AFTER_NR_FAILED_BOOL);
+
+        if ((mPreferredScanType == CarrierConfigManager.ImsEmergency.SCAN_TYPE_FULL_SERVICE)
+                || (mPreferredScanType == SCAN_TYPE_FULL_SERVICE_FOLLOWED_BY_LIMITED_SERVICE)) {
+            mScanType = DomainSelectionService.SCAN_TYPE_FULL_SERVICE;
+        } else {
+            mScanType = DomainSelectionService.SCAN_TYPE_NO_PREFERENCE;
+        }
+
+        if (mCdmaPreferredNumbers.isEmpty()) {
+            mInitialPreferredNetworks = Collections.unmodifiableList(
+                    orderByDomainPreference(mDomainPreference, mImsRats, mCsRats));
+            mInitialPreferredNetworksRoam = Collections.unmodifiableList(
+                    orderByDomainPreference(mDomainPreferenceRoam, mImsRoamRats, mCsRoamRats));
+        } else {
+            mInitialPreferredNetworks = null;
+            mInitialPreferredNetworksRoam = null;
+        }
+
+        mCompileNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+    }
+
+    /**
+     * Compiles the scan plan from the given carrier configuration.
+     *
+     * @param b The carrier configuration of the subscription. If {@code null}, the default
+     *        configuration is used.
+     * @param validSubscription Indicates whether the plan is compiled for a valid subscription.
+     * @return The compiled scan plan.
+     */
+    public static @NonNull EmergencyScanPlan compile(@Nullable PersistableBundle b,
+            boolean validSubscription) {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        if (b == null) {
+            b = CarrierConfigManager.getDefaultConfig();
+        }
+        return new EmergencyScanPlan(b, validSubscription, startNanos);
+    }
+
+    /**
+     * Generates the list of preferred networks per the domain preference.
+     *
+     * @param domains The domain preference.
+     * @param imsRats The list of RATs supporting emergency calls over IMS.
+     * @param csRats The list of RATs supporting emergency calls over CS.
+     * @return The list of preferred networks.
+     */
+    static @RadioAccessNetworkType List<Integer> orderByDomainPreference(
+            @NonNull List<Integer> domains, @NonNull List<Integer> imsRats,
+            @NonNull List<Integer> csRats) {
+        int psPriority = domains.indexOf(DOMAIN_PS_3GPP);
+        int csPriority = domains.indexOf(DOMAIN_CS);
+
+        List<Integer> preferredNetworks = new ArrayList<>(imsRats.size() + csRats.size());
+        if (psPriority == NOT_SUPPORTED && csPriority == NOT_SUPPORTED) {
+            // should not reach here. However, to avoid unexpected problems.
+            preferredNetworks.addAll(csRats);
+            preferredNetworks.addAll(imsRats);
+        } else if (psPriority == NOT_SUPPORTED && csPriority > NOT_SUPPORTED) {
+            // CS networks only.
+            preferredNetworks.addAll(csRats);
+        } else if (psPriority > NOT_SUPPORTED && csPriority == NOT_SUPPORTED) {
+            // PS networks only.
+            preferredNetworks.addAll(imsRats);
+        } else if (psPriority < csPriority) {
+            // PS preferred.
+            preferredNetworks.addAll(imsRats);
+            preferredNetworks.addAll(csRats);
+        } else {
+            // CS preferred.
+            preferredNetworks.addAll(csRats);
+            preferredNetworks.addAll(imsRats);
+        }
+        return preferredNetworks;
+    }
+
+    private static @NonNull List<Integer> toList(@Nullable int[] values) {
+        if (values == null || values.length == 0) return Collections.emptyList();
+
+        List<Integer> list = new ArrayList<>(values.length);
+        for (int value : values) {
+            list.add(value);
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /** Returns whether this plan has been compiled for a valid subscription. */
+    public boolean isValidSubscription() {
+        return mValidSubscription;
+    }
+
+    /** Returns the time taken to compile this plan in nanoseconds. */
+    public long getCompileNanos() {
+        return mCompileNanos;
+    }
+
+    /** Returns the unmodifiable list of RATs supporting emergency calls over IMS. */
+    public @NonNull List<Integer> getImsRats(boolean roaming) {
+        return roaming ? mImsRoamRats : mImsRats;
+    }
+
+    /** Returns the unmodifiable list of RATs supporting emergency calls over CS. */
+    public @NonNull List<Integer> getCsRats(boolean roaming) {
+        return roaming ? mCsRoamRats : mCsRats;
+    }
+
+    /** Returns the unmodifiable domain preference. */
+    public @NonNull List<Integer> getDomainPreference(boolean roaming) {
+        return roaming ? mDomainPreferenceRoam : mDomainPreference;
+    }
+
+    /**
+     * Returns the unmodifiable list of preferred networks for the first scan request,
+     * or {@code null} if the list depends on the dialed number.
+     */
+    public @Nullable List<Integer> getInitialPreferredNetworks(boolean roaming) {
+        return roaming ? mInitialPreferredNetworksRoam : mInitialPreferredNetworks;
+    }
+
+    /** Returns the unmodifiable list of numbers that shall be dialed over CDMA. */
+    public @NonNull List<String> getCdmaPreferredNumbers() {
+        return mCdmaPreferredNumbers;
+    }
+
+    public boolean isImsPreferredWhenCallsOnCs() {
+        return mPreferImsWhenCallsOnCs;
+    }
+
+    public int getVoWifiRequiresCondition() {
+        return mVoWifiRequiresCondition;
+    }
+
+    public int getScanTimeoutMillis() {
+        return mScanTimeoutMillis;
+    }
+
+    public int getMaxCellularTimeoutMillis() {
+        return mMaxCellularTimeoutMillis;
+    }
+
+    public int getMaxNumOfVoWifiTries() {
+        return mMaxNumOfVoWifiTries;
+    }
+
+    public boolean isVoWifiOverEmergencyPdn() {
+        return mVoWifiOverEmergencyPdn;
+    }
+
+    public @CarrierConfigManager.ImsEmergency.EmergencyScanType int getPreferredScanType() {
+        return mPreferredScanType;
+    }
+
+    public @DomainSelectionService.EmergencyScanType int getScanType() {
+        return mScanType;
+    }
+
+    public int getCallSetupTimerOnCurrentRatMillis() {
+        return mCallSetupTimerOnCurrentRatMillis;
+    }
+
+    public boolean isImsRegistrationRequired() {
+        return mRequiresImsRegistration;
+    }
+
+    public boolean isVoLteEnabledRequired() {
+        return mRequiresVoLteEnabled;
+    }
+
+    public boolean isLtePreferredAfterNrFailure() {
+        return mLtePreferredAfterNrFailure;
+    }
+
+    @Override
+    public String toString() {
+        return "EmergencyScanPlan{"
+                + "validSub=" + mValidSubscription
+                + ", imsRats=" + listToString(mImsRats,
+                        EmergencyCallDomainSelector::accessNetworkTypeToString)
+                + ", csRats=" + listToString(mCsRats,
+                        EmergencyCallDomainSelector::accessNetworkTypeToString)
+                + ", imsRoamRats=" + listToString(mImsRoamRats,
+                        EmergencyCallDomainSelector::accessNetworkTypeToString)
+                + ", csRoamRats=" + listToString(mCsRoamRats,
+                        EmergencyCallDomainSelector::accessNetworkTypeToString)
+                + ", domainPref=" + listToString(mDomainPreference,
+                        EmergencyCallDomainSelector::domainPreferenceToString)
+                + ", domainPrefRoam=" + listToString(mDomainPreferenceRoam,
+                        EmergencyCallDomainSelector::domainPreferenceToString)
+                + ", preferImsOnCs=" + mPreferImsWhenCallsOnCs
+                + ", voWifiRequiresCondition=" + mVoWifiRequiresCondition
+                + ", scanTimeout=" + mScanTimeoutMillis
+                + ", maxCellularTimeout=" + mMaxCellularTimeoutMillis
+                + ", maxNumOfVoWifiTries=" + mMaxNumOfVoWifiTries
+                + ", voWifiOverEmergencyPdn=" + mVoWifiOverEmergencyPdn
+                + ", preferredScanType=" + EmergencyCallDomainSelector
+                        .carrierConfigNetworkScanTypeToString(mPreferredScanType)
+                + ", callSetupTimer=" + mCallSetupTimerOnCurrentRatMillis
+                + ", requiresImsReg=" + mRequiresImsRegistration
+                + ", requiresVoLteEnabled=" + mRequiresVoLteEnabled
+                + ", ltePreferredAfterNr=" + mLtePreferredAfterNrFailure
+                + ", cdmaPreferredNumbers=" + mCdmaPreferredNumbers
+                + ", compileNanos=" + mCompileNanos
+                + "}";
+    }
+
+    private static String listToString(List<Integer> list, IntFunction<String> func) {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < list.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(func.apply(list.get(i)));
+        }
+        sb.append("}");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import android.annotation.NonNull;
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionManager;
+import android.util.IndentingPrintWriter;
+import android.util.LocalLog;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the {@link EmergencyScanPlan} of each subscription.
+ *
+ * The plans are compiled as soon as the carrier configuration of a subscription is loaded or
+ * changed, so the emergency call domain selection only looks up the plan.
+ */
+public class EmergencyScanPlanCache {
+    private static final String TAG = "EmergencyScanPlanCache";
+    private static final int LOG_SIZE = 20;
+
+    private final LocalLog mEventLog = new LocalLog(LOG_SIZE);
+    private final Context mContext;
+    // Map of subId -> EmergencyScanPlan
+    private final Map<Integer, EmergencyScanPlan> mPlans = new ConcurrentHashMap<>();
+    // Map of slotId -> subId, used to drop the plan of the removed subscription.
+    private final SparseIntArray mSlotSubIds = new SparseIntArray(2);
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mSavedNanos = new AtomicLong();
+
+    private final CarrierConfigManager.CarrierConfigChangeListener mCarrierConfigChangeListener =
+            (slotIndex, subId, carrierId, specificCarrierId) ->
+                    onCarrierConfigChanged(slotIndex, subId);
+
+    public EmergencyScanPlanCache(@NonNull Context context, @NonNull Executor executor) {
+        mContext = context;
+
+        CarrierConfigManager configMgr = mContext.getSystemService(CarrierConfigManager.class);
+        if (configMgr != null) {
+            configMgr.registerCarrierConfigChangeListener(executor,
+                    mCarrierConfigChangeListener);
+        } else {
+            loge("Adding CarrierConfigChangeListener failed");
+        }
+    }
+
+    /**
+     * Destroys this instance.
+     */
+    public void destroy() {
+        CarrierConfigManager configMgr = mContext.getSystemService(CarrierConfigManager.class);
+        if (configMgr != null) {
+            configMgr.unregisterCarrierConfigChangeListener(mCarrierConfigChangeListener);
+        }
+        mPlans.clear();
+    }
+
+    /**
+     * Returns the scan plan of the specified subscription.
+     * If the plan has not been compiled yet, it compiles the plan and keeps it.
+     *
+     * @param subId The subscription index.
+     * @return The scan plan of the subscription.
+     */
+    public @NonNull EmergencyScanPlan getPlan(int subId) {
+        EmergencyScanPlan plan = mPlans.get(subId);
+        if (plan != null) {
+            mHitCount.incrementAndGet();
+            mSavedNanos.addAndGet(plan.getCompileNanos());
+            return plan;
+        }
+
+        mMissCount.incrementAndGet();
+        plan = compile(subId);
+        mPlans.put(subId, plan);
+        return plan;
+    }
+
+    /**
+     * Compiles the scan plan of the specified subscription from its carrier configuration.
+     *
+     * @param subId The subscription index.
+     * @return The compiled scan plan.
+     */
+    @VisibleForTesting
+    public @NonNull EmergencyScanPlan compile(int subId) {
+        PersistableBundle b = null;
+        CarrierConfigManager configMgr = mContext.getSystemService(CarrierConfigManager.class);
+        if (configMgr != null) {
+            b = configMgr.getConfigForSubId(subId);
+        }
+        return EmergencyScanPlan.compile(b, SubscriptionManager.isValidSubscriptionId(subId));
+    }
+
+    @VisibleForTesting
+    public void onCarrierConfigChanged(int slotIndex, int subId) {
+        synchronized (mSlotSubIds) {
+            int oldSubId = mSlotSubIds.get(slotIndex, SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+            if (oldSubId != subId) {
+                mPlans.remove(oldSubId);
+            }
+            mSlotSubIds.put(slotIndex, subId);
+        }
+
+        if (!SubscriptionManager.isValidSubscriptionId(subId)) {
+            // The plan for no SIM is kept under the invalid subscription index.
+            mPlans.remove(subId);
+            return;
+        }
+
+        EmergencyScanPlan plan = compile(subId);
+        mPlans.put(subId, plan);
+        logi("onCarrierConfigChanged slotIndex=" + slotIndex + ", subId=" + subId
+                + ", compileNanos=" + plan.getCompileNanos());
+    }
+
+    /**
+     * Dumps this instance into a readable format for dumpsys usage.
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        IndentingPrintWriter ipw = new IndentingPrintWriter(pw, "  ");
+        ipw.println("EmergencyScanPlanCache:");
+        ipw.increaseIndent();
+        ipw.println("hits=" + mHitCount.get() + ", misses=" + mMissCount.get()
+                + ", savedMicros=" + mSavedNanos.get() / 1000);
+        for (Map.Entry<Integer, EmergencyScanPlan> entry : mPlans.entrySet()) {
+            ipw.println("subId=" + entry.getKey() + ": " + entry.getValue());
+        }
+        ipw.println("Event Log:");
+        ipw.increaseIndent();
+        mEventLog.dump(ipw);
+        ipw.decreaseIndent();
+        ipw.decreaseIndent();
+    }
+
+    private void logi(String s) {
+        Log.i(TAG, s);
+        mEventLog.log(s);
+    }
+
+    private void loge(String s) {
+        Log.e(TAG, s);
+        mEventLog.log(s);
+    }
+}
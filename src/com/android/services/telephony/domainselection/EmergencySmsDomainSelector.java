@@ -70,11 +70,15 @@ public class EmergencySmsDomainSelector extends SmsDomainSelector implements
     @Override
     public void finishSelection() {
         super.finishSelection();
+        mEmergencySmsOverImsSupportedByConfig = null;
+        if (!mDestroyed) {
+            // The released domain selector keeps receiving the network states.
+            return;
+        }
         mServiceStateReceived = false;
         mServiceState = null;
         mBarringInfoReceived = false;
         mBarringInfo = null;
-        mEmergencySmsOverImsSupportedByConfig = null;
     }
 
     @Override
@@ -103,8 +107,8 @@ public class EmergencySmsDomainSelector extends SmsDomainSelector implements
     }
 
     @Override
-    protected boolean isSmsOverImsAvailable() {
-        if (super.isSmsOverImsAvailable()) {
+    protected boolean isSmsOverImsAvailable(@NonNull ImsStateSnapshot imsState) {
+        if (super.isSmsOverImsAvailable(imsState)) {
             /**
              * Even though IMS is successfully registered, the cellular domain should be
              * available for the emergency SMS according to the carrier's requirement
@@ -124,7 +128,7 @@ public class EmergencySmsDomainSelector extends SmsDomainSelector implements
             return true;
         }
 
-        return isImsEmergencySmsAvailable();
+        return isImsEmergencySmsAvailable(imsState);
     }
 
     @Override
@@ -141,11 +145,16 @@ public class EmergencySmsDomainSelector extends SmsDomainSelector implements
 
         logi("selectDomain: " + mImsStateTracker.imsStateToString());
 
-        if (isSmsOverImsAvailable()) {
+        final ImsStateSnapshot imsState = mImsStateTracker.getSnapshot();
+        if (selectDomainFromBatch(imsState)) {
+            return;
+        }
+
+        if (isSmsOverImsAvailable(imsState)) {
             boolean isEmergencySmsOverImsSupportedIfLteLimitedOrInService =
                     isEmergencySmsOverImsSupportedIfLteLimitedOrInService();
 
-            if (mImsStateTracker.isImsRegisteredOverWlan()) {
+            if (imsState.isImsRegisteredOverWlan()) {
                 /**
                  * When {@link CarrierConfigManager#KEY_SUPPORT_EMERGENCY_SMS_OVER_IMS_BOOL}
                  * is set to true, the emergency SMS supports on the LTE network using the
@@ -173,18 +182,18 @@ public class EmergencySmsDomainSelector extends SmsDomainSelector implements
      * Checks if the emergency SMS messages over IMS is available according to the carrier
      * configuration and the current network states.
      */
-    private boolean isImsEmergencySmsAvailable() {
+    private boolean isImsEmergencySmsAvailable(@NonNull ImsStateSnapshot imsState) {
         boolean isEmergencySmsOverImsSupportedIfLteLimitedOrInService =
                 isEmergencySmsOverImsSupportedIfLteLimitedOrInService();
         boolean networkAvailable = isNetworkAvailableForImsEmergencySms();
 
         logi("isImsEmergencySmsAvailable: "
                 + "emergencySmsOverIms=" + isEmergencySmsOverImsSupportedIfLteLimitedOrInService
-                + ", mmTelFeatureAvailable=" + mImsStateTracker.isMmTelFeatureAvailable()
+                + ", mmTelFeatureAvailable=" + imsState.isMmTelFeatureAvailable()
                 + ", networkAvailable=" + networkAvailable);
 
         return isEmergencySmsOverImsSupportedIfLteLimitedOrInService
-                && mImsStateTracker.isMmTelFeatureAvailable()
+                && imsState.isMmTelFeatureAvailable()
                 && networkAvailable;
     }
 
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.telephony.AccessNetworkConstants.AccessNetworkType;
+import android.telephony.AccessNetworkConstants.RadioAccessNetworkType;
+import android.telephony.BarringInfo;
+import android.telephony.ServiceState;
+import android.telephony.ims.feature.MmTelFeature.MmTelCapabilities;
+
+/**
+ * An immutable view of the states tracked by {@link ImsStateTracker} at a point in time.
+ *
+ * The tracker publishes a new snapshot whenever the states change, before notifying its
+ * listeners. Reading all the states from the same snapshot gives a consistent view even when
+ * the IMS registration state changes while the domain is being selected.
+ */
+public final class ImsStateSnapshot {
+    /** The snapshot before any state is received. */
+    public static final ImsStateSnapshot EMPTY = new Builder().build();
+
+    private final long mSequence;
+    private final Boolean mMmTelFeatureAvailable;
+    private final Boolean mImsRegistered;
+    private final @RadioAccessNetworkType int mImsAccessNetworkType;
+    private final Boolean mImsRegisteredOverCrossSim;
+    private final boolean mMmTelCapabilitiesReceived;
+    private final boolean mVoiceCapable;
+    private final boolean mVideoCapable;
+    private final boolean mSmsCapable;
+    private final boolean mUtCapable;
+    private final ServiceState mServiceState;
+    private final BarringInfo mBarringInfo;
+
+    private ImsStateSnapshot(Builder builder) {
+        mSequence = builder.mSequence;
+        mMmTelFeatureAvailable = builder.mMmTelFeatureAvailable;
+        mImsRegistered = builder.mImsRegistered;
+        mImsAccessNetworkType = builder.mImsAccessNetworkType;
+        mImsRegisteredOverCrossSim = builder.mImsRegisteredOverCrossSim;
+        MmTelCapabilities capabilities = builder.mMmTelCapabilities;
+        mMmTelCapabilitiesReceived = capabilities != null;
+        mVoiceCapable = capabilities != null
+                && capabilities.isCapable(MmTelCapabilities.CAPABILITY_TYPE_VOICE);
+        mVideoCapable = capabilities != null
+                && capabilities.isCapable(MmTelCapabilities.CAPABILITY_TYPE_VIDEO);
+        mSmsCapable = capabilities != null
+                && capabilities.isCapable(MmTelCapabilities.CAPABILITY_TYPE_SMS);
+        mUtCapable = capabilities != null
+                && capabilities.isCapable(MmTelCapabilities.CAPABILITY_TYPE_UT);
+        mServiceState = builder.mServiceState;
+        mBarringInfo = builder.mBarringInfo;
+    }
+
+    /**
+     * Returns the sequence number of this snapshot.
+     * It increases every time the tracker publishes a new snapshot.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Returns {@code true} if all IMS states are ready, {@code false} otherwise.
+     */
+    public boolean isImsStateReady() {
+        return mMmTelFeatureAvailable != null
+                && mImsRegistered != null
+                && mMmTelCapabilitiesReceived;
+    }
+
+    /**
+     * Returns {@code true} if MMTEL feature connection is available, {@code false} otherwise.
+     */
+    public boolean isMmTelFeatureAvailable() {
+        return mMmTelFeatureAvailable != null && mMmTelFeatureAvailable;
+    }
+
+    /**
+     * Returns {@code true} if IMS is registered, {@code false} otherwise.
+     */
+    public boolean isImsRegistered() {
+        return mImsRegistered != null && mImsRegistered;
+    }
+
+    /**
+     * Returns {@code true} if IMS is registered over Wi-Fi (IWLAN), {@code false} otherwise.
+     */
+    public boolean isImsRegisteredOverWlan() {
+        return mImsAccessNetworkType == AccessNetworkType.IWLAN;
+    }
+
+    /**
+     * Returns {@code true} if IMS is registered over the mobile data of another subscription.
+     */
+    public boolean isImsRegisteredOverCrossSim() {
+        return mImsRegisteredOverCrossSim != null && mImsRegisteredOverCrossSim;
+    }
+
+    /**
+     * Returns {@code true} if IMS voice call is capable, {@code false} otherwise.
+     */
+    public boolean isImsVoiceCapable() {
+        return mVoiceCapable;
+    }
+
+    /**
+     * Returns {@code true} if IMS video call is capable, {@code false} otherwise.
+     */
+    public boolean isImsVideoCapable() {
+        return mVideoCapable;
+    }
+
+    /**
+     * Returns {@code true} if IMS SMS is capable, {@code false} otherwise.
+     */
+    public boolean isImsSmsCapable() {
+        return mSmsCapable;
+    }
+
+    /**
+     * Returns {@code true} if IMS UT is capable, {@code false} otherwise.
+     */
+    public boolean isImsUtCapable() {
+        return mUtCapable;
+    }
+
+    /**
+     * Returns the access network type to which IMS is registered.
+     */
+    public @RadioAccessNetworkType int getImsAccessNetworkType() {
+        return mImsAccessNetworkType;
+    }
+
+    /**
+     * Returns the last {@link ServiceState}, or {@code null} if not received yet.
+     */
+    public @Nullable ServiceState getServiceState() {
+        return mServiceState;
+    }
+
+    /**
+     * Returns the last {@link BarringInfo}, or {@code null} if not received yet.
+     */
+    public @Nullable BarringInfo getBarringInfo() {
+        return mBarringInfo;
+    }
+
+    @Override
+    public String toString() {
+        return "{ seq=" + mSequence
+                + ", featureAvailable=" + mMmTelFeatureAvailable
+                + ", registered=" + mImsRegistered
+                + ", accessNetworkType=" + mImsAccessNetworkType
+                + ", crossSim=" + mImsRegisteredOverCrossSim
+                + ", voice=" + mVoiceCapable
+                + ", video=" + mVideoCapable
+                + ", sms=" + mSmsCapable
+                + ", ut=" + mUtCapable + " }";
+    }
+
+    /**
+     * Builder for {@link ImsStateSnapshot}.
+     */
+    public static final class Builder {
+        private long mSequence;
+        private Boolean mMmTelFeatureAvailable;
+        private Boolean mImsRegistered;
+        private @RadioAccessNetworkType int mImsAccessNetworkType = AccessNetworkType.UNKNOWN;
+        private Boolean mImsRegisteredOverCrossSim;
+        private MmTelCapabilities mMmTelCapabilities;
+        private ServiceState mServiceState;
+        private BarringInfo mBarringInfo;
+
+        /** Sets the sequence number. */
+        public @NonNull Builder setSequence(long sequence) {
+            mSequence = sequence;
+            return this;
+        }
+
+        /** Sets the availability of MmTelFeature, {@code null} if unknown. */
+        public @NonNull Builder setMmTelFeatureAvailable(@Nullable Boolean available) {
+            mMmTelFeatureAvailable = available;
+            return this;
+        }
+
+        /** Sets the IMS registration state, {@code null} if unknown. */
+        public @NonNull Builder setImsRegistered(@Nullable Boolean registered) {
+            mImsRegistered = registered;
+            return this;
+        }
+
+        /** Sets the access network type to which IMS is registered. */
+        public @NonNull Builder setImsAccessNetworkType(
+                @RadioAccessNetworkType int accessNetworkType) {
+            mImsAccessNetworkType = accessNetworkType;
+            return this;
+        }
+
+        /** Sets whether IMS is registered over cross SIM, {@code null} if unknown. */
+        public @NonNull Builder setImsRegisteredOverCrossSim(@Nullable Boolean crossSim) {
+            mImsRegisteredOverCrossSim = crossSim;
+            return this;
+        }
+
+        /** Sets the MMTEL capabilities, {@code null} if unknown. */
+        public @NonNull Builder setMmTelCapabilities(@Nullable MmTelCapabilities capabilities) {
+            mMmTelCapabilities = capabilities;
+            return this;
+        }
+
+        /** Sets the last {@link ServiceState}. */
+        public @NonNull Builder setServiceState(@Nullable ServiceState serviceState) {
+            mServiceState = serviceState;
+            return this;
+        }
+
+        /** Sets the last {@link BarringInfo}. */
+        public @NonNull Builder setBarringInfo(@Nullable BarringInfo barringInfo) {
+            mBarringInfo = barringInfo;
+            return this;
+        }
+
+        /** Builds the snapshot. */
+        public @NonNull ImsStateSnapshot build() {
+            return new ImsStateSnapshot(this);
+        }
+    }
+}
@@ -133,6 +133,12 @@ public class ImsStateTracker {
     private Boolean mImsRegisteredOverCrossSim;
     /** The MMTEL capabilities - Voice, Video, SMS, and Ut. */
     private MmTelCapabilities mMmTelCapabilities;
+    /**
+     * The last published states. The fields above are only updated on the handler thread,
+     * and a new snapshot is published when they are consistent with each other.
+     */
+    private volatile ImsStateSnapshot mSnapshot = ImsStateSnapshot.EMPTY;
+    private long mSnapshotSequence;
     private final Runnable mMmTelFeatureUnavailableRunnable = new Runnable() {
         @Override
         public void run() {
@@ -213,6 +219,7 @@ public class ImsStateTracker {
      */
     public void updateServiceState(ServiceState serviceState) {
         mServiceState = serviceState;
+        publishSnapshot();
 
         for (ServiceStateListener listener : mServiceStateListeners) {
             listener.onServiceStateUpdated(serviceState);
@@ -266,6 +273,7 @@ public class ImsStateTracker {
      */
     public void updateBarringInfo(BarringInfo barringInfo) {
         mBarringInfo = barringInfo;
+        publishSnapshot();
 
         for (BarringInfoListener listener : mBarringInfoListeners) {
             listener.onBarringInfoUpdated(barringInfo);
@@ -330,81 +338,101 @@ public class ImsStateTracker {
         mImsStateListeners.remove(listener);
     }
 
+    /**
+     * Returns the last published IMS states.
+     * It can be called on any thread. The caller should read all the states required to make
+     * a decision from the same snapshot to get a consistent view.
+     */
+    public @NonNull ImsStateSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
     /**
      * Returns {@code true} if all IMS states are ready, {@code false} otherwise.
      */
     @VisibleForTesting
     public boolean isImsStateReady() {
-        return mMmTelFeatureAvailable != null
-                && mImsRegistered != null
-                && mMmTelCapabilities != null;
+        return mSnapshot.isImsStateReady();
     }
 
     /**
      * Returns {@code true} if MMTEL feature connection is available, {@code false} otherwise.
      */
     public boolean isMmTelFeatureAvailable() {
-        return mMmTelFeatureAvailable != null && mMmTelFeatureAvailable;
+        return mSnapshot.isMmTelFeatureAvailable();
     }
 
     /**
      * Returns {@code true} if IMS is registered, {@code false} otherwise.
      */
     public boolean isImsRegistered() {
-        return mImsRegistered != null && mImsRegistered;
+        return mSnapshot.isImsRegistered();
     }
 
     /**
      * Returns {@code true} if IMS is registered over Wi-Fi (IWLAN), {@code false} otherwise.
      */
     public boolean isImsRegisteredOverWlan() {
-        return mImsAccessNetworkType == AccessNetworkType.IWLAN;
+        return mSnapshot.isImsRegisteredOverWlan();
     }
 
     /**
      * Returns {@code true} if IMS is registered over the mobile data of another subscription.
      */
     public boolean isImsRegisteredOverCrossSim() {
-        return mImsRegisteredOverCrossSim != null && mImsRegisteredOverCrossSim;
+        return mSnapshot.isImsRegisteredOverCrossSim();
     }
 
     /**
      * Returns {@code true} if IMS voice call is capable, {@code false} otherwise.
      */
     public boolean isImsVoiceCapable() {
-        return mMmTelCapabilities != null
-                && mMmTelCapabilities.isCapable(MmTelCapabilities.CAPABILITY_TYPE_VOICE);
+        return mSnapshot.isImsVoiceCapable();
     }
 
     /**
      * Returns {@code true} if IMS video call is capable, {@code false} otherwise.
      */
     public boolean isImsVideoCapable() {
-        return mMmTelCapabilities != null
-                && mMmTelCapabilities.isCapable(MmTelCapabilities.CAPABILITY_TYPE_VIDEO);
+        return mSnapshot.isImsVideoCapable();
     }
 
     /**
      * Returns {@code true} if IMS SMS is capable, {@code false} otherwise.
      */
     public boolean isImsSmsCapable() {
-        return mMmTelCapabilities != null
-                && mMmTelCapabilities.isCapable(MmTelCapabilities.CAPABILITY_TYPE_SMS);
+        return mSnapshot.isImsSmsCapable();
     }
 
     /**
      * Returns {@code true} if IMS UT is capable, {@code false} otherwise.
      */
     public boolean isImsUtCapable() {
-        return mMmTelCapabilities != null
-                && mMmTelCapabilities.isCapable(MmTelCapabilities.CAPABILITY_TYPE_UT);
+        return mSnapshot.isImsUtCapable();
     }
 
     /**
      * Returns the access network type to which IMS is registered.
      */
     public @RadioAccessNetworkType int getImsAccessNetworkType() {
-        return mImsAccessNetworkType;
+        return mSnapshot.getImsAccessNetworkType();
+    }
+
+    /**
+     * Publishes the current states as a new {@link ImsStateSnapshot}.
+     * This method should be run on the same thread as the Handler.
+     */
+    private void publishSnapshot() {
+        mSnapshot = new ImsStateSnapshot.Builder()
+                .setSequence(++mSnapshotSequence)
+                .setMmTelFeatureAvailable(mMmTelFeatureAvailable)
+                .setImsRegistered(mImsRegistered)
+                .setImsAccessNetworkType(mImsAccessNetworkType)
+                .setImsRegisteredOverCrossSim(mImsRegisteredOverCrossSim)
+                .setMmTelCapabilities(mMmTelCapabilities)
+                .setServiceState(mServiceState)
+                .setBarringInfo(mBarringInfo)
+                .build();
     }
 
     /**
@@ -429,6 +457,7 @@ public class ImsStateTracker {
         setImsAccessNetworkType(AccessNetworkType.UNKNOWN);
         setImsRegisteredOverCrossSim(false);
         setMmTelCapabilities(new MmTelCapabilities());
+        publishSnapshot();
     }
 
     private void setMmTelFeatureAvailable(boolean available) {
@@ -494,6 +523,7 @@ public class ImsStateTracker {
      * Notifies the application that MMTEL feature connection state is changed.
      */
     private void notifyImsMmTelFeatureAvailableChanged() {
+        publishSnapshot();
         for (ImsStateListener l : mImsStateListeners) {
             l.onImsMmTelFeatureAvailableChanged();
         }
@@ -503,6 +533,7 @@ public class ImsStateTracker {
      * Notifies the application that IMS registration state is changed.
      */
     private void notifyImsRegistrationStateChanged() {
+        publishSnapshot();
         logi("ImsState: " + imsStateToString());
         for (ImsStateListener l : mImsStateListeners) {
             l.onImsRegistrationStateChanged();
@@ -513,6 +544,7 @@ public class ImsStateTracker {
      * Notifies the application that MMTEL capabilities is changed.
      */
     private void notifyImsMmTelCapabilitiesChanged() {
+        publishSnapshot();
         logi("ImsState: " + imsStateToString());
         for (ImsStateListener l : mImsStateListeners) {
             l.onImsMmTelCapabilitiesChanged();
@@ -571,6 +603,7 @@ public class ImsStateTracker {
         } else {
             logw("onMmTelFeatureUnavailable: unexpected reason=" + reason);
         }
+        publishSnapshot();
     }
 
     /**
@@ -622,6 +655,7 @@ public class ImsStateTracker {
         ImsManager imsMngr = mContext.getSystemService(ImsManager.class);
         mMmTelManager = imsMngr.getImsMmTelManager(getSubId());
         initImsState();
+        publishSnapshot();
         registerImsStateCallback();
     }
 
@@ -850,6 +884,7 @@ public class ImsStateTracker {
         ipw.println("ServiceState: " + mServiceState);
         ipw.println("BarringInfo: " + mBarringInfo);
         ipw.println("ImsState: " + imsStateToString());
+        ipw.println("Snapshot: " + mSnapshot);
         ipw.println("Event Log:");
         ipw.increaseIndent();
         mEventLog.dump(ipw);
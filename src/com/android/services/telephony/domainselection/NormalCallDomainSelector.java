@@ -163,10 +163,10 @@ public class NormalCallDomainSelector extends DomainSelectorBase implements
         selectDomain();
     }
 
-    private void notifyPsSelected() {
+    private void notifyPsSelected(@NonNull ImsStateSnapshot imsState) {
         logd("notifyPsSelected");
         mStopDomainSelection = true;
-        if (mImsStateTracker.isImsRegisteredOverWlan()) {
+        if (imsState.isImsRegisteredOverWlan()) {
             logd("WLAN selected");
             mTransportSelectorCallback.onWlanSelected(false);
         } else {
@@ -240,10 +240,10 @@ public class NormalCallDomainSelector extends DomainSelectorBase implements
                 ? config.getBoolean(CarrierConfigManager.KEY_SUPPORT_WPS_OVER_IMS_BOOL) : false;
     }
 
-    private void handleWpsCall() {
+    private void handleWpsCall(@NonNull ImsStateSnapshot imsState) {
         if (isWpsCallSupportedByIms()) {
             logd("WPS call placed over PS");
-            notifyPsSelected();
+            notifyPsSelected(imsState);
         } else {
             if (isOutOfService()) {
                 loge("Cannot place call in current ServiceState: " + mServiceState.getState());
@@ -320,7 +320,9 @@ public class NormalCallDomainSelector extends DomainSelectorBase implements
             return;
         }
 
-        if (!mImsStateTracker.isMmTelFeatureAvailable()) {
+        // Uses the same IMS states for the whole decision even if they change meanwhile.
+        final ImsStateSnapshot imsState = mImsStateTracker.getSnapshot();
+        if (!imsState.isMmTelFeatureAvailable()) {
             logd("MmTelFeatureAvailable unavailable");
             if (isOutOfService()) {
                 loge("Cannot place call in current ServiceState: " + mServiceState.getState());
@@ -337,7 +339,7 @@ public class NormalCallDomainSelector extends DomainSelectorBase implements
         }
 
         // Check IMS registration state.
-        if (!mImsStateTracker.isImsRegistered()) {
+        if (!imsState.isImsRegistered()) {
             logd("IMS is NOT registered");
             if (isOutOfService()) {
                 loge("Cannot place call in current ServiceState: " + mServiceState.getState());
@@ -362,9 +364,9 @@ public class NormalCallDomainSelector extends DomainSelectorBase implements
         // Handle video call.
         if (mSelectionAttributes.isVideoCall()) {
             logd("It's a video call");
-            if (mImsStateTracker.isImsVideoCapable()) {
+            if (imsState.isImsVideoCapable()) {
                 logd("IMS is video capable");
-                notifyPsSelected();
+                notifyPsSelected(imsState);
             } else {
                 logd("IMS is not video capable. Ending the call");
                 notifySelectionTerminated(DisconnectCause.OUTGOING_FAILURE);
@@ -373,14 +375,14 @@ public class NormalCallDomainSelector extends DomainSelectorBase implements
         }
 
         // Handle voice call.
-        if (mImsStateTracker.isImsVoiceCapable()) {
+        if (imsState.isImsVoiceCapable()) {
             logd("IMS is voice capable");
             // TODO(b/266175810) Remove this dependency.
             if (NormalCallDomainSelectionConnection
                     .isWpsCall(mSelectionAttributes.getNumber())) {
-                handleWpsCall();
+                handleWpsCall(imsState);
             } else {
-                notifyPsSelected();
+                notifyPsSelected(imsState);
             }
         } else {
             logd("IMS is not voice capable");
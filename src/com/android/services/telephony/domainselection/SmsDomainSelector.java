@@ -20,12 +20,15 @@ import android.annotation.NonNull;
 import android.content.Context;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.telephony.DisconnectCause;
 import android.telephony.DomainSelectionService;
 import android.telephony.DomainSelectionService.SelectionAttributes;
 import android.telephony.NetworkRegistrationInfo;
 import android.telephony.TransportSelectorCallback;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 /**
  * Implements SMS domain selector for sending MO SMS.
  */
@@ -33,8 +36,38 @@ public class SmsDomainSelector extends DomainSelectorBase implements
         ImsStateTracker.ImsStateListener {
     protected static final int EVENT_SELECT_DOMAIN = 101;
 
+    /**
+     * The time the domain selected for an SMS is applied to the following SMS messages,
+     * such as the segments of a multipart SMS or a burst of SMS messages from an application,
+     * while the IMS state is not changed.
+     */
+    @VisibleForTesting
+    public static final long BATCH_WINDOW_MILLIS = 1000;
+
+    /** The domain selected for the batch of SMS messages. */
+    private static final class BatchDecision {
+        final long mImsStateSequence;
+        final long mElapsedMillis;
+        final boolean mWlan;
+        final @NetworkRegistrationInfo.Domain int mDomain;
+        final boolean mUseEmergencyPdn;
+
+        BatchDecision(long imsStateSequence, long elapsedMillis, boolean wlan,
+                @NetworkRegistrationInfo.Domain int domain, boolean useEmergencyPdn) {
+            mImsStateSequence = imsStateSequence;
+            mElapsedMillis = elapsedMillis;
+            mWlan = wlan;
+            mDomain = domain;
+            mUseEmergencyPdn = useEmergencyPdn;
+        }
+    }
+
     protected boolean mDestroyed = false;
     private boolean mDomainSelectionRequested = false;
+    private boolean mImsStateListenerAdded = false;
+    private BatchDecision mBatchDecision;
+    private long mEvaluatedImsStateSequence;
+    private int mBatchedCount;
 
     public SmsDomainSelector(Context context, int slotId, int subId, @NonNull Looper looper,
             @NonNull ImsStateTracker imsStateTracker, @NonNull DestroyListener listener) {
@@ -55,6 +88,7 @@ public class SmsDomainSelector extends DomainSelectorBase implements
         logd("destroy");
         mDestroyed = true;
         mImsStateTracker.removeImsStateListener(this);
+        mImsStateListenerAdded = false;
         super.destroy();
     }
 
@@ -86,6 +120,8 @@ public class SmsDomainSelector extends DomainSelectorBase implements
         }
 
         logi("reselectDomain");
+        // The previous domain failed, so it shall not be applied to the following messages.
+        invalidateBatchDecision();
         mSelectionAttributes = attr;
         setDomainSelectionRequested(true);
         obtainMessage(EVENT_SELECT_DOMAIN).sendToTarget();
@@ -98,7 +134,12 @@ public class SmsDomainSelector extends DomainSelectorBase implements
         mSelectionAttributes = null;
         mTransportSelectorCallback = null;
         mWwanSelectorCallback = null;
-        destroy();
+        if (isReusable() && !mDestroyed) {
+            // Keeps listening to the IMS state for the next request.
+            release();
+        } else {
+            destroy();
+        }
     }
 
     @Override
@@ -112,7 +153,10 @@ public class SmsDomainSelector extends DomainSelectorBase implements
         mSelectionAttributes = attr;
         mTransportSelectorCallback = callback;
         setDomainSelectionRequested(true);
-        mImsStateTracker.addImsStateListener(this);
+        if (!mImsStateListenerAdded) {
+            mImsStateListenerAdded = true;
+            mImsStateTracker.addImsStateListener(this);
+        }
         obtainMessage(EVENT_SELECT_DOMAIN).sendToTarget();
     }
 
@@ -132,9 +176,13 @@ public class SmsDomainSelector extends DomainSelectorBase implements
     }
 
     protected boolean isSmsOverImsAvailable() {
-        return mImsStateTracker.isImsSmsCapable()
-                && mImsStateTracker.isImsRegistered()
-                && mImsStateTracker.isMmTelFeatureAvailable();
+        return isSmsOverImsAvailable(mImsStateTracker.getSnapshot());
+    }
+
+    protected boolean isSmsOverImsAvailable(@NonNull ImsStateSnapshot imsState) {
+        return imsState.isImsSmsCapable()
+                && imsState.isImsRegistered()
+                && imsState.isMmTelFeatureAvailable();
     }
 
     protected void selectDomain() {
@@ -145,8 +193,14 @@ public class SmsDomainSelector extends DomainSelectorBase implements
 
         logi("selectDomain: " + mImsStateTracker.imsStateToString());
 
-        if (isSmsOverImsAvailable()) {
-            if (mImsStateTracker.isImsRegisteredOverWlan()) {
+        // Uses the same IMS states for the whole decision.
+        final ImsStateSnapshot imsState = mImsStateTracker.getSnapshot();
+        if (selectDomainFromBatch(imsState)) {
+            return;
+        }
+
+        if (isSmsOverImsAvailable(imsState)) {
+            if (imsState.isImsRegisteredOverWlan()) {
                 notifyWlanSelected(false);
                 return;
             }
@@ -157,6 +211,10 @@ public class SmsDomainSelector extends DomainSelectorBase implements
     }
 
     protected void sendMessageForDomainSelection() {
+        // The network state is changed, so the domain shall be selected again.
+        invalidateBatchDecision();
+        // The released domain selector keeps listening without a request in progress.
+        if (!isDomainSelectionRequested()) return;
         // If the event is already queued to this handler,
         // it will be removed first to avoid the duplicate operation.
         removeMessages(EVENT_SELECT_DOMAIN);
@@ -165,6 +223,49 @@ public class SmsDomainSelector extends DomainSelectorBase implements
         obtainMessage(EVENT_SELECT_DOMAIN).sendToTarget();
     }
 
+    /**
+     * Applies the domain selected for the previous SMS if it was selected recently
+     * with the same IMS state.
+     *
+     * @param imsState The IMS state to be used for the domain selection.
+     * @return {@code true} if the domain is selected from the batch, {@code false} if the domain
+     *         needs to be selected with the specified IMS state.
+     */
+    protected boolean selectDomainFromBatch(@NonNull ImsStateSnapshot imsState) {
+        final BatchDecision decision = mBatchDecision;
+        if (decision != null && decision.mImsStateSequence == imsState.getSequence()
+                && SystemClock.elapsedRealtime() - decision.mElapsedMillis
+                        <= BATCH_WINDOW_MILLIS) {
+            mBatchedCount++;
+            logd("selectDomainFromBatch: count=" + mBatchedCount);
+            if (decision.mWlan) {
+                notifyWlanSelected(decision.mUseEmergencyPdn);
+            } else {
+                notifyWwanSelected(decision.mDomain, decision.mUseEmergencyPdn);
+            }
+            return true;
+        }
+
+        mBatchDecision = null;
+        mEvaluatedImsStateSequence = imsState.getSequence();
+        return false;
+    }
+
+    private void keepBatchDecision(boolean wlan, @NetworkRegistrationInfo.Domain int domain,
+            boolean useEmergencyPdn) {
+        if (mBatchDecision != null) return;
+        mBatchDecision = new BatchDecision(mEvaluatedImsStateSequence,
+                SystemClock.elapsedRealtime(), wlan, domain, useEmergencyPdn);
+    }
+
+    private void invalidateBatchDecision() {
+        if (mBatchDecision != null) {
+            logd("invalidateBatchDecision: batched=" + mBatchedCount);
+            mBatchDecision = null;
+        }
+        mBatchedCount = 0;
+    }
+
     protected boolean isDomainSelectionRequested() {
         return mDomainSelectionRequested;
     }
@@ -178,12 +279,14 @@ public class SmsDomainSelector extends DomainSelectorBase implements
 
     protected void notifyWlanSelected(boolean useEmergencyPdn) {
         logi("DomainSelected: WLAN, E-PDN=" + useEmergencyPdn);
+        keepBatchDecision(true, NetworkRegistrationInfo.DOMAIN_PS, useEmergencyPdn);
         mTransportSelectorCallback.onWlanSelected(useEmergencyPdn);
         setDomainSelectionRequested(false);
     }
 
     protected void notifyWwanSelected(@NetworkRegistrationInfo.Domain int domain,
             boolean useEmergencyPdn) {
+        keepBatchDecision(false, domain, useEmergencyPdn);
         if (mWwanSelectorCallback == null) {
             mTransportSelectorCallback.onWwanSelected((callback) -> {
                 mWwanSelectorCallback = callback;
@@ -22,6 +22,8 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.DeviceConfig;
 import android.telephony.BarringInfo;
 import android.telephony.DisconnectCause;
 import android.telephony.DomainSelectionService;
@@ -71,7 +73,9 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
                 @SelectorType int selectorType, boolean isEmergency, @NonNull Looper looper,
                 @NonNull ImsStateTracker imsStateTracker,
                 @NonNull DomainSelectorBase.DestroyListener listener,
-                @NonNull CrossSimRedialingController crossSimRedialingController);
+                @NonNull CrossSimRedialingController crossSimRedialingController,
+                @NonNull EmergencyScanPlanCache scanPlanCache,
+                @NonNull EmergencyRegResultCache regResultCache);
     }
 
     private static final class DefaultDomainSelectorFactory implements DomainSelectorFactory {
@@ -80,7 +84,9 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
                 @SelectorType int selectorType, boolean isEmergency, @NonNull Looper looper,
                 @NonNull ImsStateTracker imsStateTracker,
                 @NonNull DomainSelectorBase.DestroyListener listener,
-                @NonNull CrossSimRedialingController crossSimRedialingController) {
+                @NonNull CrossSimRedialingController crossSimRedialingController,
+                @NonNull EmergencyScanPlanCache scanPlanCache,
+                @NonNull EmergencyRegResultCache regResultCache) {
             DomainSelectorBase selector = null;
 
             logi("create-DomainSelector: slotId=" + slotId + ", subId=" + subId
@@ -91,7 +97,8 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
                 case SELECTOR_TYPE_CALLING:
                     if (isEmergency) {
                         selector = new EmergencyCallDomainSelector(context, slotId, subId, looper,
-                                imsStateTracker, listener, crossSimRedialingController);
+                                imsStateTracker, listener, crossSimRedialingController,
+                                scanPlanCache, regResultCache);
                     } else {
                         selector = new NormalCallDomainSelector(context, slotId, subId, looper,
                                 imsStateTracker, listener);
@@ -162,6 +169,28 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
         }
     }
 
+    /**
+     * Keeps the latency statistics of acquiring the domain selectors for dumpsys usage.
+     */
+    private static final class AcquireStats {
+        private int mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        void add(long nanos) {
+            mCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount
+                    + ", avgMicros=" + (mCount > 0 ? mTotalNanos / mCount / 1000 : 0)
+                    + ", maxMicros=" + mMaxNanos / 1000;
+        }
+    }
+
     private final DomainSelectorBase.DestroyListener mDestroyListener =
             new DomainSelectorBase.DestroyListener() {
         @Override
@@ -171,6 +200,15 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
         }
     };
 
+    private final DomainSelectorBase.ReleaseListener mReleaseListener =
+            new DomainSelectorBase.ReleaseListener() {
+        @Override
+        public void onDomainSelectorReleased(DomainSelectorBase selector) {
+            logd("DomainSelector released: " + selector);
+            releaseDomainSelector(selector);
+        }
+    };
+
     /**
      * A class to listen for the subscription change for starting {@link ImsStateTracker}
      * to monitor the IMS states.
@@ -185,16 +223,38 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
 
     private static final String TAG = TelephonyDomainSelectionService.class.getSimpleName();
 
+    /** The device config key for the time the emergency network scan result is reused. */
+    private static final String KEY_EMERGENCY_REG_RESULT_VALIDITY_MILLIS =
+            "emergency_reg_result_validity_millis";
+    /** The device config key to reuse the SMS domain selectors between the requests. */
+    private static final String KEY_DOMAIN_SELECTOR_POOL_ENABLED =
+            "domain_selector_pool_enabled";
+    /**
+     * The device config key to redial the emergency call on the other slot immediately
+     * when only the other slot has the emergency service.
+     */
+    private static final String KEY_CROSS_SIM_IMMEDIATE_REDIAL_ENABLED =
+            "cross_sim_immediate_redial_enabled";
+
     // Persistent Logging
     private static final LocalLog sEventLog = new LocalLog(20);
     private final Context mContext;
     // Map of slotId -> ImsStateTracker
     private final SparseArray<ImsStateTracker> mImsStateTrackers = new SparseArray<>(2);
     private final List<DomainSelectorContainer> mDomainSelectorContainers = new ArrayList<>();
+    // The domain selectors released after use, at most one per slot, selector type and
+    // emergency. It's guarded by mDomainSelectorContainers.
+    private final List<DomainSelectorContainer> mPooledDomainSelectorContainers =
+            new ArrayList<>();
+    private final AcquireStats mCreateStats = new AcquireStats();
+    private final AcquireStats mReuseStats = new AcquireStats();
+    private final boolean mDomainSelectorPoolEnabled;
     private final ImsStateTrackerFactory mImsStateTrackerFactory;
     private final DomainSelectorFactory mDomainSelectorFactory;
     private Handler mServiceHandler;
     private CrossSimRedialingController mCrossSimRedialingController;
+    private EmergencyScanPlanCache mEmergencyScanPlanCache;
+    private EmergencyRegResultCache mEmergencyRegResultCache;
 
     public TelephonyDomainSelectionService(Context context) {
         this(context, ImsStateTracker::new, new DefaultDomainSelectorFactory());
@@ -211,10 +271,23 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
         // Create a worker thread for this domain selection service.
         getExecutor();
 
+        mEmergencyRegResultCache = new EmergencyRegResultCache(DeviceConfig.getLong(
+                DeviceConfig.NAMESPACE_TELEPHONY, KEY_EMERGENCY_REG_RESULT_VALIDITY_MILLIS,
+                EmergencyRegResultCache.DEFAULT_VALIDITY_MILLIS));
+        mDomainSelectorPoolEnabled = DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_TELEPHONY,
+                KEY_DOMAIN_SELECTOR_POOL_ENABLED, true);
+
+        mCrossSimRedialingController = new CrossSimRedialingController(context, getLooper());
+        mCrossSimRedialingController.setImmediateRedialEnabled(DeviceConfig.getBoolean(
+                DeviceConfig.NAMESPACE_TELEPHONY, KEY_CROSS_SIM_IMMEDIATE_REDIAL_ENABLED, false));
+
         TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
         int activeModemCount = (tm != null) ? tm.getActiveModemCount() : 1;
         for (int i = 0; i < activeModemCount; ++i) {
-            mImsStateTrackers.put(i, mImsStateTrackerFactory.create(mContext, i, getLooper()));
+            ImsStateTracker ist = mImsStateTrackerFactory.create(mContext, i, getLooper());
+            mImsStateTrackers.put(i, ist);
+            mEmergencyRegResultCache.addSlot(i, ist);
+            mCrossSimRedialingController.addSlot(i, ist);
         }
 
         SubscriptionManager sm = mContext.getSystemService(SubscriptionManager.class);
@@ -224,7 +297,8 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
             loge("Adding OnSubscriptionChangedListener failed");
         }
 
-        mCrossSimRedialingController = new CrossSimRedialingController(context, getLooper());
+        mEmergencyScanPlanCache = new EmergencyScanPlanCache(context, getExecutor());
+        EmergencyCallWarmUp.getInstance().bind(activeModemCount, this::getImsStateTracker);
 
         logi("TelephonyDomainSelectionService created");
     }
@@ -237,7 +311,9 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
 
         synchronized (mDomainSelectorContainers) {
             domainSelectorContainers = new ArrayList<>(mDomainSelectorContainers);
+            domainSelectorContainers.addAll(mPooledDomainSelectorContainers);
             mDomainSelectorContainers.clear();
+            mPooledDomainSelectorContainers.clear();
         }
 
         for (DomainSelectorContainer dsc : domainSelectorContainers) {
@@ -248,6 +324,8 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
         }
         domainSelectorContainers.clear();
 
+        EmergencyCallWarmUp.getInstance().unbind();
+
         synchronized (mImsStateTrackers) {
             for (int i = 0; i < mImsStateTrackers.size(); ++i) {
                 ImsStateTracker ist = mImsStateTrackers.get(i);
@@ -268,6 +346,16 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
             mCrossSimRedialingController = null;
         }
 
+        if (mEmergencyScanPlanCache != null) {
+            mEmergencyScanPlanCache.destroy();
+            mEmergencyScanPlanCache = null;
+        }
+
+        if (mEmergencyRegResultCache != null) {
+            mEmergencyRegResultCache.destroy();
+            mEmergencyRegResultCache = null;
+        }
+
         if (mServiceHandler != null) {
             mServiceHandler.getLooper().quit();
             mServiceHandler = null;
@@ -288,9 +376,8 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
         final int selectorType = attr.getSelectorType();
         final boolean isEmergency = attr.isEmergency();
         ImsStateTracker ist = getImsStateTracker(slotId);
-        DomainSelectorBase selector = mDomainSelectorFactory.create(mContext, slotId, subId,
-                selectorType, isEmergency, getLooper(), ist, mDestroyListener,
-                mCrossSimRedialingController);
+        DomainSelectorBase selector = acquireDomainSelector(slotId, subId, selectorType,
+                isEmergency, ist);
 
         if (selector != null) {
             // Ensures that ImsStateTracker is started before selecting the domain if not started
@@ -391,6 +478,106 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
         }
     }
 
+    /**
+     * Returns the domain selector released after the previous request if it matches with the
+     * specified arguments, otherwise creates a new domain selector.
+     */
+    private DomainSelectorBase acquireDomainSelector(int slotId, int subId,
+            @SelectorType int selectorType, boolean isEmergency, @NonNull ImsStateTracker ist) {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        DomainSelectorBase selector = null;
+        DomainSelectorBase staleSelector = null;
+
+        synchronized (mDomainSelectorContainers) {
+            for (int i = 0; i < mPooledDomainSelectorContainers.size(); ++i) {
+                DomainSelectorContainer dsc = mPooledDomainSelectorContainers.get(i);
+
+                if (dsc.getSlotId() == slotId
+                        && dsc.getSelectorType() == selectorType
+                        && dsc.isEmergency() == isEmergency) {
+                    mPooledDomainSelectorContainers.remove(i);
+                    if (dsc.getDomainSelector().getSubId() == subId) {
+                        selector = dsc.getDomainSelector();
+                    } else {
+                        staleSelector = dsc.getDomainSelector();
+                    }
+                    break;
+                }
+            }
+        }
+
+        if (staleSelector != null) {
+            logi("DomainSelector destroyed by subscription change: " + staleSelector);
+            staleSelector.destroy();
+        }
+
+        if (selector != null) {
+            synchronized (mDomainSelectorContainers) {
+                mReuseStats.add(SystemClock.elapsedRealtimeNanos() - startNanos);
+            }
+            logd("DomainSelector reused: " + selector);
+            return selector;
+        }
+
+        selector = mDomainSelectorFactory.create(mContext, slotId, subId, selectorType,
+                isEmergency, getLooper(), ist, mDestroyListener, mCrossSimRedialingController,
+                mEmergencyScanPlanCache, mEmergencyRegResultCache);
+        if (selector != null) {
+            if (mDomainSelectorPoolEnabled && selectorType == SELECTOR_TYPE_SMS) {
+                selector.setReleaseListener(mReleaseListener);
+            }
+            synchronized (mDomainSelectorContainers) {
+                mCreateStats.add(SystemClock.elapsedRealtimeNanos() - startNanos);
+            }
+        }
+        return selector;
+    }
+
+    /**
+     * Moves the released {@link DomainSelectorBase} from the list of domain selector container
+     * to the pool to be reused for the next request.
+     */
+    private void releaseDomainSelector(@NonNull DomainSelectorBase selector) {
+        DomainSelectorBase oldSelector = null;
+
+        synchronized (mDomainSelectorContainers) {
+            DomainSelectorContainer released = null;
+            for (int i = 0; i < mDomainSelectorContainers.size(); ++i) {
+                DomainSelectorContainer dsc = mDomainSelectorContainers.get(i);
+
+                if (dsc.getDomainSelector() == selector) {
+                    released = mDomainSelectorContainers.remove(i);
+                    break;
+                }
+            }
+
+            if (released == null) {
+                // The selector was already replaced by a new request.
+                oldSelector = selector;
+            } else {
+                for (int i = 0; i < mPooledDomainSelectorContainers.size(); ++i) {
+                    DomainSelectorContainer dsc = mPooledDomainSelectorContainers.get(i);
+
+                    if (dsc.getSlotId() == released.getSlotId()
+                            && dsc.getSelectorType() == released.getSelectorType()
+                            && dsc.isEmergency() == released.isEmergency()) {
+                        mPooledDomainSelectorContainers.remove(i);
+                        oldSelector = dsc.getDomainSelector();
+                        break;
+                    }
+                }
+                mPooledDomainSelectorContainers.add(released);
+                logi("DomainSelector pooled: " + released
+                        + ", count=" + mPooledDomainSelectorContainers.size());
+            }
+        }
+
+        if (oldSelector != null) {
+            oldSelector.setReleaseListener(null);
+            oldSelector.destroy();
+        }
+    }
+
     /**
      * Adds the {@link DomainSelectorBase} to the list of domain selector container.
      */
@@ -438,6 +625,13 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
                     break;
                 }
             }
+
+            for (int i = 0; i < mPooledDomainSelectorContainers.size(); ++i) {
+                if (mPooledDomainSelectorContainers.get(i).getDomainSelector() == selector) {
+                    mPooledDomainSelectorContainers.remove(i);
+                    break;
+                }
+            }
         }
     }
 
@@ -453,6 +647,14 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
             if (ist == null) {
                 ist = mImsStateTrackerFactory.create(mContext, slotId, getLooper());
                 mImsStateTrackers.put(slotId, ist);
+                EmergencyRegResultCache regResultCache = mEmergencyRegResultCache;
+                if (regResultCache != null) {
+                    regResultCache.addSlot(slotId, ist);
+                }
+                CrossSimRedialingController csrController = mCrossSimRedialingController;
+                if (csrController != null) {
+                    csrController.addSlot(slotId, ist);
+                }
             }
 
             return ist;
@@ -514,6 +716,28 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
                 }
                 ipw.decreaseIndent();
             }
+            ipw.println("DomainSelectorPool: enabled=" + mDomainSelectorPoolEnabled);
+            ipw.increaseIndent();
+            for (int i = 0; i < mPooledDomainSelectorContainers.size(); ++i) {
+                ipw.println("Pooled: " + mPooledDomainSelectorContainers.get(i));
+            }
+            ipw.println("Acquire latency (created): " + mCreateStats);
+            ipw.println("Acquire latency (reused): " + mReuseStats);
+            ipw.decreaseIndent();
+        }
+        ipw.decreaseIndent();
+        ipw.increaseIndent();
+        EmergencyScanPlanCache scanPlanCache = mEmergencyScanPlanCache;
+        if (scanPlanCache != null) {
+            scanPlanCache.dump(ipw);
+        }
+        EmergencyRegResultCache regResultCache = mEmergencyRegResultCache;
+        if (regResultCache != null) {
+            regResultCache.dump(ipw);
+        }
+        CrossSimRedialingController csrController = mCrossSimRedialingController;
+        if (csrController != null) {
+            csrController.dump(ipw);
         }
         ipw.decreaseIndent();
         ipw.increaseIndent();
@@ -18,6 +18,7 @@ package com.android.services.telephony.rcs;
 
 import android.os.Binder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.telephony.ims.DelegateMessageCallback;
 import android.telephony.ims.DelegateRegistrationState;
 import android.telephony.ims.FeatureTagState;
@@ -42,6 +43,7 @@ import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 /**
  * Wraps the SIP message path both from the IMS application to the SipDelegate and from the
@@ -70,6 +72,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
             long token = Binder.clearCallingIdentity();
             try {
                 mExecutor.execute(() -> {
+                    mIncomingFlowController.acknowledge(viaTransactionId);
                     if (mSipDelegate == null) {
                         logw("notifyMessageReceived called when SipDelegate is not associated for "
                                 + "transaction id: " + viaTransactionId);
@@ -98,6 +101,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
             long token = Binder.clearCallingIdentity();
             try {
                 mExecutor.execute(() -> {
+                    mIncomingFlowController.acknowledge(viaTransactionId);
                     if (mSipDelegate == null) {
                         logw("notifyMessageReceiveError called when SipDelegate is not associated "
                                 + "for transaction id: " + viaTransactionId);
@@ -125,27 +129,13 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
             long token = Binder.clearCallingIdentity();
             try {
                 mExecutor.execute(() -> {
-                    ValidationResult result =
-                            mSipSessionTracker.verifyOutgoingMessage(sipMessage, configVersion);
-                    result = maybeOverrideValidationForTesting(result);
-                    if (!result.isValidated) {
-                        notifyDelegateSendError("Outgoing - " + result.logReason,
-                                sipMessage, result.restrictedReason);
-                        return;
-                    }
-                    try {
-                        if (mSipDelegate == null) {
-                            logw("sendMessage called when SipDelegate is not associated."
-                                    + sipMessage);
-                            notifyDelegateSendError("No SipDelegate", sipMessage,
-                                    SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD);
-
-                            return;
-                        }
-                        mSipDelegate.sendMessage(sipMessage, configVersion);
-                    } catch (RemoteException e) {
-                        notifyDelegateSendError("RemoteException: " + e, sipMessage,
-                                SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD);
+                    boolean isAccepted = mOutgoingFlowController.offer(
+                            sipMessage.getViaBranchParameter(),
+                            () -> sendMessageInternal(sipMessage, configVersion));
+                    if (!isAccepted) {
+                        notifyDelegateSendError("Outgoing - flow control queue full",
+                                sipMessage,
+                                SipMessageFlowController.MESSAGE_FAILURE_REASON_FLOW_CONTROL);
                     }
                 });
             } finally {
@@ -183,17 +173,12 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
             long token = Binder.clearCallingIdentity();
             try {
                 mExecutor.execute(() -> {
-                    ValidationResult result = mSipSessionTracker.verifyIncomingMessage(message);
-                    if (!result.isValidated) {
-                        notifyAppReceiveError("Incoming - " + result.logReason, message,
-                                result.restrictedReason);
-                        return;
-                    }
-                    try {
-                        mAppCallback.onMessageReceived(message);
-                    } catch (RemoteException e) {
-                        notifyAppReceiveError("RemoteException: " + e, message,
-                                SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD);
+                    boolean isAccepted = mIncomingFlowController.offer(
+                            message.getViaBranchParameter(),
+                            () -> receiveMessageInternal(message));
+                    if (!isAccepted) {
+                        notifyAppReceiveError("Incoming - flow control queue full", message,
+                                SipMessageFlowController.MESSAGE_FAILURE_REASON_FLOW_CONTROL);
                     }
                 });
             } finally {
@@ -214,6 +199,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
                         logw("Unexpected state, onMessageSent called when SipDelegate is not "
                                 + "associated");
                     }
+                    mOutgoingFlowController.acknowledge(viaTransactionId);
                     try {
                         mSipSessionTracker.acknowledgePendingMessage(viaTransactionId);
                         mAppCallback.onMessageSent(viaTransactionId);
@@ -240,6 +226,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
                         logw("Unexpected state, onMessageSendFailure called when SipDelegate is not"
                                 + "associated");
                     }
+                    mOutgoingFlowController.acknowledge(viaTransactionId);
                     try {
                         mSipSessionTracker.notifyPendingMessageFailed(viaTransactionId);
                         mAppCallback.onMessageSendFailure(viaTransactionId, reason);
@@ -273,6 +260,10 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
     private final int mSubId;
     private final TransportSipMessageValidator mSipSessionTracker;
     private final LocalLog mLocalLog = new LocalLog(SipTransportController.LOG_SIZE);
+    // Outgoing messages sent to the SipDelegate that have not been acknowledged by the ImsService.
+    private final SipMessageFlowController mOutgoingFlowController;
+    // Incoming messages sent to the IMS application that have not been acknowledged by it.
+    private final SipMessageFlowController mIncomingFlowController;
 
     private ISipDelegate mSipDelegate;
 
@@ -284,6 +275,12 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         mSipSessionTracker = new TransportSipMessageValidator(subId, executor);
         mValidatorOverride = () -> RcsProvisioningMonitor.getInstance()
                 .getImsFeatureValidationOverride(mSubId);
+        SipMessageFlowController.Limits flowControlLimits =
+                SipMessageFlowController.getDeviceConfigLimits();
+        mOutgoingFlowController = createFlowController(flowControlLimits, executor,
+                SystemClock::elapsedRealtime, "Outgoing");
+        mIncomingFlowController = createFlowController(flowControlLimits, executor,
+                SystemClock::elapsedRealtime, "Incoming");
     }
 
     /**
@@ -293,12 +290,28 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
     public MessageTransportWrapper(int subId, ScheduledExecutorService executor,
             ISipDelegateMessageCallback appMessageCallback,
             TransportSipMessageValidator sipSessionTracker) {
+        this(subId, executor, appMessageCallback, sipSessionTracker,
+                SipMessageFlowController.DEFAULT_LIMITS, SystemClock::elapsedRealtime);
+    }
+
+    /**
+     * Mock out dependencies and flow control limits for unit testing.
+     */
+    @VisibleForTesting
+    public MessageTransportWrapper(int subId, ScheduledExecutorService executor,
+            ISipDelegateMessageCallback appMessageCallback,
+            TransportSipMessageValidator sipSessionTracker,
+            SipMessageFlowController.Limits flowControlLimits, LongSupplier elapsedRealtimeMs) {
         mSubId = subId;
         mAppCallback = appMessageCallback;
         mExecutor = executor;
         mSipSessionTracker = sipSessionTracker;
         // Remove links to static methods calls querying overrides for testing.
         mValidatorOverride = () -> null;
+        mOutgoingFlowController = createFlowController(flowControlLimits, executor,
+                elapsedRealtimeMs, "Outgoing");
+        mIncomingFlowController = createFlowController(flowControlLimits, executor,
+                elapsedRealtimeMs, "Incoming");
     }
 
     @Override
@@ -339,6 +352,10 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
     /** Dump state about this tracker that should be included in the dumpsys */
     public void dump(PrintWriter printWriter) {
         IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, "  ");
+        pw.println("Outgoing flow control:");
+        mOutgoingFlowController.dump(pw);
+        pw.println("Incoming flow control:");
+        mIncomingFlowController.dump(pw);
         pw.println("Most recent logs:");
         mLocalLog.dump(printWriter);
         pw.println();
@@ -424,6 +441,10 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         for (String id : openCallIds) {
             cleanupSessionInternal(id);
         }
+        // The transport is closed at this point, so the queued messages will fail validation and
+        // their senders will be notified.
+        mOutgoingFlowController.flush();
+        mIncomingFlowController.flush();
         mSipDelegate = null;
     }
 
@@ -443,6 +464,63 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         mSipSessionTracker.onSipSessionCleanup(callId);
     }
 
+    private void sendMessageInternal(SipMessage sipMessage, long configVersion) {
+        String transactionId = sipMessage.getViaBranchParameter();
+        ValidationResult result =
+                mSipSessionTracker.verifyOutgoingMessage(sipMessage, configVersion);
+        result = maybeOverrideValidationForTesting(result);
+        if (!result.isValidated) {
+            mOutgoingFlowController.cancel(transactionId);
+            notifyDelegateSendError("Outgoing - " + result.logReason,
+                    sipMessage, result.restrictedReason);
+            return;
+        }
+        try {
+            if (mSipDelegate == null) {
+                logw("sendMessage called when SipDelegate is not associated." + sipMessage);
+                mOutgoingFlowController.cancel(transactionId);
+                notifyDelegateSendError("No SipDelegate", sipMessage,
+                        SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD);
+
+                return;
+            }
+            mSipDelegate.sendMessage(sipMessage, configVersion);
+        } catch (RemoteException e) {
+            mOutgoingFlowController.cancel(transactionId);
+            notifyDelegateSendError("RemoteException: " + e, sipMessage,
+                    SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD);
+        }
+    }
+
+    private void receiveMessageInternal(SipMessage message) {
+        String transactionId = message.getViaBranchParameter();
+        ValidationResult result = mSipSessionTracker.verifyIncomingMessage(message);
+        if (!result.isValidated) {
+            mIncomingFlowController.cancel(transactionId);
+            notifyAppReceiveError("Incoming - " + result.logReason, message,
+                    result.restrictedReason);
+            return;
+        }
+        try {
+            mAppCallback.onMessageReceived(message);
+        } catch (RemoteException e) {
+            mIncomingFlowController.cancel(transactionId);
+            notifyAppReceiveError("RemoteException: " + e, message,
+                    SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD);
+        }
+    }
+
+    private SipMessageFlowController createFlowController(SipMessageFlowController.Limits limits,
+            ScheduledExecutorService executor, LongSupplier elapsedRealtimeMs, String direction) {
+        return new SipMessageFlowController(limits, executor, elapsedRealtimeMs,
+                (transactionId) -> {
+                    logw(direction + " message was not acknowledged before the timeout, id: "
+                            + transactionId);
+                    // Drop the pending dialog operation, it will never be acknowledged.
+                    mSipSessionTracker.notifyPendingMessageFailed(transactionId);
+                });
+    }
+
     private ValidationResult maybeOverrideValidationForTesting(ValidationResult result) {
         Boolean isValidatedOverride = mValidatorOverride.getValidatorOverrideState();
         if (isValidatedOverride == null) {
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import android.telephony.ims.SipMessage;
+import android.util.Pair;
+
+import com.android.internal.telephony.SipMessageParsingUtils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A view of a {@link SipMessage} that parses the start line and the header fields used by the
+ * validators and the {@link SipSessionTracker} at most once, when they are first requested.
+ * <p>
+ * One instance is created for each message going through the
+ * {@link TransportSipMessageValidator} and shared by all of the stages that inspect it. This class
+ * is not thread safe; it is only used on the executor of the message transport.
+ */
+public class ParsedSipMessage {
+    private static final int UNKNOWN = -1;
+    private static final int NO = 0;
+    private static final int YES = 1;
+    private static final byte[] EMPTY_CONTENT = new byte[0];
+
+    private final SipMessage mMessage;
+
+    private int mIsRequest = UNKNOWN;
+    private int mIsResponse = UNKNOWN;
+    private boolean mStartLineSplit;
+    private String[] mStartLineSegments;
+    private boolean mFromTagParsed;
+    private String mFromTag;
+    private boolean mToTagParsed;
+    private String mToTag;
+    private Set<String> mAcceptContactFeatureTags;
+
+    public ParsedSipMessage(SipMessage message) {
+        mMessage = Objects.requireNonNull(message);
+    }
+
+    /**
+     * @return The SIP message this view is created for.
+     */
+    public SipMessage getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * Returns a view of the same message without its content, for callers that only need the
+     * headers but keep the message around, so that a large body (for example MSRP or file
+     * transfer SDP) can be garbage collected as soon as the message has been forwarded. The start
+     * line, the header section and anything parsed so far are shared with this view.
+     *
+     * @return The view without content, or this instance if the message has no content.
+     */
+    public ParsedSipMessage withoutContent() {
+        byte[] content = mMessage.getContent();
+        if (content == null || content.length == 0) return this;
+        ParsedSipMessage m = new ParsedSipMessage(new SipMessage(mMessage.getStartLine(),
+                mMessage.getHeaderSection(), EMPTY_CONTENT));
+        m.mIsRequest = mIsRequest;
+        m.mIsResponse = mIsResponse;
+        m.mStartLineSplit = mStartLineSplit;
+        m.mStartLineSegments = mStartLineSegments;
+        m.mFromTagParsed = mFromTagParsed;
+        m.mFromTag = mFromTag;
+        m.mToTagParsed = mToTagParsed;
+        m.mToTag = mToTag;
+        m.mAcceptContactFeatureTags = mAcceptContactFeatureTags;
+        return m;
+    }
+
+    /**
+     * @return {@code true} if the start line is a SIP request line.
+     */
+    public boolean isRequest() {
+        if (mIsRequest == UNKNOWN) {
+            mIsRequest = SipMessageParsingUtils.isSipRequest(mMessage.getStartLine()) ? YES : NO;
+        }
+        return mIsRequest == YES;
+    }
+
+    /**
+     * @return {@code true} if the start line is a SIP status line.
+     */
+    public boolean isResponse() {
+        if (mIsResponse == UNKNOWN) {
+            mIsResponse = SipMessageParsingUtils.isSipResponse(mMessage.getStartLine()) ? YES : NO;
+        }
+        return mIsResponse == YES;
+    }
+
+    /**
+     * @return The segments of the start line, or {@code null} if the start line is malformed.
+     * @see SipMessageParsingUtils#splitStartLineAndVerify(String)
+     */
+    public String[] getStartLineSegments() {
+        if (!mStartLineSplit) {
+            mStartLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
+                    mMessage.getStartLine());
+            mStartLineSplit = true;
+        }
+        return mStartLineSegments;
+    }
+
+    /**
+     * @return The method of a SIP request, or {@code null} if this is not a valid SIP request.
+     */
+    public String getRequestMethod() {
+        if (!isRequest()) return null;
+        String[] segments = getStartLineSegments();
+        return segments != null ? segments[0] : null;
+    }
+
+    /**
+     * @return The status code of a SIP response, or {@code -1} if this is not a valid SIP
+     * response.
+     */
+    public int getStatusCode() {
+        if (!isResponse()) return -1;
+        String[] segments = getStartLineSegments();
+        if (segments == null) return -1;
+        try {
+            return Integer.parseInt(segments[1]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return The Call-ID header value.
+     */
+    public String getCallId() {
+        return mMessage.getCallIdParameter();
+    }
+
+    /**
+     * @return The branch parameter of the top Via header.
+     */
+    public String getViaBranch() {
+        return mMessage.getViaBranchParameter();
+    }
+
+    /**
+     * @return The tag parameter of the From header, or {@code null} if there is none.
+     */
+    public String getFromTag() {
+        if (!mFromTagParsed) {
+            mFromTag = SipMessageParsingUtils.getFromTag(mMessage.getHeaderSection());
+            mFromTagParsed = true;
+        }
+        return mFromTag;
+    }
+
+    /**
+     * @return The tag parameter of the To header, or {@code null} if there is none.
+     */
+    public String getToTag() {
+        if (!mToTagParsed) {
+            mToTag = SipMessageParsingUtils.getToTag(mMessage.getHeaderSection());
+            mToTagParsed = true;
+        }
+        return mToTag;
+    }
+
+    /**
+     * @return The feature tags contained in the Accept-Contact header.
+     */
+    public Set<String> getAcceptContactFeatureTags() {
+        if (mAcceptContactFeatureTags == null) {
+            Set<String> tags = SipMessageParsingUtils.getAcceptContactFeatureTags(
+                    mMessage.getHeaderSection());
+            mAcceptContactFeatureTags = tags != null ? tags : Collections.emptySet();
+        }
+        return mAcceptContactFeatureTags;
+    }
+
+    /**
+     * Returns the header fields with the given name. These are not cached, since each validator
+     * looks for a different header.
+     *
+     * @param stopAtFirstMatch {@code true} to return only the first matching header field.
+     * @param headerNames The names of the header fields to look for.
+     * @return The matching header fields.
+     * @see SipMessageParsingUtils#parseHeaders(String, boolean, String...)
+     */
+    public List<Pair<String, String>> getHeaders(boolean stopAtFirstMatch,
+            String... headerNames) {
+        return SipMessageParsingUtils.parseHeaders(mMessage.getHeaderSection(),
+                stopAtFirstMatch, headerNames);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        // Two views of the same message are equal, regardless of what has been parsed so far.
+        return mMessage.equals(((ParsedSipMessage) o).mMessage);
+    }
+
+    @Override
+    public int hashCode() {
+        return mMessage.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mMessage.toString();
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import android.provider.DeviceConfig;
+import android.telephony.ims.SipDelegateManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the number of SIP messages in one direction of a SipDelegate transport that have been
+ * forwarded but not acknowledged yet.
+ * <p>
+ * A message is in flight from the time it is forwarded until the receiving side acknowledges it,
+ * either successfully or with an error. Once the window of in-flight messages is full, new
+ * messages are queued and forwarded in order as acknowledgements arrive. Once the queue is also
+ * full, new messages are rejected. Messages that are never acknowledged are dropped from the
+ * window after a timeout so that a misbehaving remote can not block the transport forever.
+ * <p>
+ * The limits can be changed with the device config keys below in the telephony namespace, and
+ * apply to the transports created after the change.
+ * <p>
+ * This class is not thread safe and must only be used on the executor of the transport.
+ */
+public class SipMessageFlowController {
+
+    /**
+     * The reason returned for a message rejected because the flow control queue is full. This is
+     * the reason the framework already uses to ask the sender to retry the message later.
+     */
+    public static final int MESSAGE_FAILURE_REASON_FLOW_CONTROL =
+            SipDelegateManager.MESSAGE_FAILURE_REASON_INTERNAL_DELEGATE_STATE_TRANSITION;
+
+    /**
+     * The default maximum number of messages that can be in flight at the same time.
+     */
+    private static final int MAX_IN_FLIGHT_MESSAGES = 32;
+    /**
+     * The default maximum number of messages waiting for room in the window.
+     */
+    private static final int MAX_QUEUED_MESSAGES = 64;
+    /**
+     * The default time in milliseconds a message stays in flight without being acknowledged,
+     * which is the SIP transaction timeout (64 * T1, see RFC 3261).
+     */
+    private static final int IN_FLIGHT_TIMEOUT_MS = 64 * 500;
+
+    /** The device config key of the maximum number of messages in flight in each direction. */
+    private static final String KEY_MAX_IN_FLIGHT_MESSAGES =
+            "sip_flow_control_max_in_flight_messages";
+    /** The device config key of the maximum number of queued messages in each direction. */
+    private static final String KEY_MAX_QUEUED_MESSAGES = "sip_flow_control_max_queued_messages";
+    /** The device config key of the time in milliseconds a message stays in flight. */
+    private static final String KEY_IN_FLIGHT_TIMEOUT_MILLIS =
+            "sip_flow_control_in_flight_timeout_millis";
+
+    /**
+     * The limits used by this class, which are visible for testing.
+     */
+    @VisibleForTesting
+    public interface Limits {
+        /**
+         * @return the maximum number of messages that can be in flight at the same time.
+         */
+        int getMaxInFlightMessages();
+
+        /**
+         * @return the maximum number of messages waiting for room in the window, after which
+         * new messages are rejected.
+         */
+        int getMaxQueuedMessages();
+
+        /**
+         * @return the time in milliseconds after which a message that has not been acknowledged
+         * no longer counts against the window.
+         */
+        int getInFlightTimeoutMs();
+    }
+
+    /** The limits used if none are provided. */
+    public static final Limits DEFAULT_LIMITS = new Limits() {
+        @Override
+        public int getMaxInFlightMessages() {
+            return MAX_IN_FLIGHT_MESSAGES;
+        }
+
+        @Override
+        public int getMaxQueuedMessages() {
+            return MAX_QUEUED_MESSAGES;
+        }
+
+        @Override
+        public int getInFlightTimeoutMs() {
+            return IN_FLIGHT_TIMEOUT_MS;
+        }
+    };
+
+    /**
+     * @return The limits set in the device config, or the default limits for the keys that are
+     * not set or not valid.
+     */
+    public static Limits getDeviceConfigLimits() {
+        int maxInFlight = DeviceConfig.getInt(DeviceConfig.NAMESPACE_TELEPHONY,
+                KEY_MAX_IN_FLIGHT_MESSAGES, MAX_IN_FLIGHT_MESSAGES);
+        int maxQueued = DeviceConfig.getInt(DeviceConfig.NAMESPACE_TELEPHONY,
+                KEY_MAX_QUEUED_MESSAGES, MAX_QUEUED_MESSAGES);
+        int timeoutMs = DeviceConfig.getInt(DeviceConfig.NAMESPACE_TELEPHONY,
+                KEY_IN_FLIGHT_TIMEOUT_MILLIS, IN_FLIGHT_TIMEOUT_MS);
+        final int maxInFlightMessages = (maxInFlight > 0) ? maxInFlight : MAX_IN_FLIGHT_MESSAGES;
+        final int maxQueuedMessages = (maxQueued >= 0) ? maxQueued : MAX_QUEUED_MESSAGES;
+        final int inFlightTimeoutMs = (timeoutMs > 0) ? timeoutMs : IN_FLIGHT_TIMEOUT_MS;
+        return new Limits() {
+            @Override
+            public int getMaxInFlightMessages() {
+                return maxInFlightMessages;
+            }
+
+            @Override
+            public int getMaxQueuedMessages() {
+                return maxQueuedMessages;
+            }
+
+            @Override
+            public int getInFlightTimeoutMs() {
+                return inFlightTimeoutMs;
+            }
+        };
+    }
+
+    private static final class QueuedMessage {
+        public final String transactionId;
+        public final Runnable forwardTask;
+
+        QueuedMessage(String transactionId, Runnable forwardTask) {
+            this.transactionId = transactionId;
+            this.forwardTask = forwardTask;
+        }
+    }
+
+    private final Limits mLimits;
+    private final ScheduledExecutorService mExecutor;
+    private final LongSupplier mElapsedRealtimeMs;
+    private final Consumer<String> mExpiredConsumer;
+    // Maps the transaction ID of the in-flight messages to the time they were forwarded, oldest
+    // first.
+    private final LinkedHashMap<String, Long> mInFlight = new LinkedHashMap<>();
+    private final ArrayDeque<QueuedMessage> mQueue = new ArrayDeque<>();
+    private boolean mIsDraining;
+    // Expires the oldest in-flight message once it is due.
+    private ScheduledFuture<?> mPendingExpiry;
+
+    // Metrics reported in the dump.
+    private int mMaxInFlightDepth;
+    private int mMaxQueueDepth;
+    private long mQueuedCount;
+    private long mRejectedCount;
+    private long mExpiredCount;
+    private long mAckCount;
+    private long mTotalAckLatencyMs;
+    private long mMaxAckLatencyMs;
+
+    /**
+     * @param limits The limits of the window and the queue.
+     * @param executor The executor of the transport, used to expire the in-flight messages that
+     *         have not been acknowledged.
+     * @param elapsedRealtimeMs The clock used to measure acknowledgement latency and timeouts.
+     * @param expiredConsumer Called with the transaction ID of an in-flight message that has not
+     *         been acknowledged before the timeout, so the caller can drop any state kept for it.
+     */
+    public SipMessageFlowController(Limits limits, ScheduledExecutorService executor,
+            LongSupplier elapsedRealtimeMs, Consumer<String> expiredConsumer) {
+        mLimits = limits;
+        mExecutor = executor;
+        mElapsedRealtimeMs = elapsedRealtimeMs;
+        mExpiredConsumer = expiredConsumer;
+    }
+
+    /**
+     * Forward a message now if there is room in the window, or queue it until there is.
+     * <p>
+     * A message with the same transaction ID as a message already in flight, such as a
+     * retransmission, is forwarded immediately as it does not need another slot.
+     *
+     * @param transactionId The transaction ID of the message, which will be used to acknowledge
+     *         it.
+     * @param forwardTask Forwards the message. If forwarding fails before the message reaches the
+     *         remote, the task must call {@link #cancel(String)}.
+     * @return {@code true} if the message has been forwarded or queued, {@code false} if it has
+     * been rejected because the queue is full.
+     */
+    public boolean offer(String transactionId, Runnable forwardTask) {
+        expireInFlightMessages();
+        if (mQueue.isEmpty() && (mInFlight.containsKey(transactionId)
+                || mInFlight.size() < mLimits.getMaxInFlightMessages())) {
+            forward(transactionId, forwardTask);
+            return true;
+        }
+        if (mQueue.size() >= mLimits.getMaxQueuedMessages()) {
+            mRejectedCount++;
+            return false;
+        }
+        mQueue.addLast(new QueuedMessage(transactionId, forwardTask));
+        mQueuedCount++;
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+        return true;
+    }
+
+    /**
+     * The remote has acknowledged the message, either successfully or with an error. This frees
+     * its slot for the next queued message.
+     * @param transactionId The transaction ID of the message.
+     */
+    public void acknowledge(String transactionId) {
+        Long forwardedTimeMs = mInFlight.remove(transactionId);
+        if (forwardedTimeMs == null) return;
+        long latencyMs = mElapsedRealtimeMs.getAsLong() - forwardedTimeMs;
+        mAckCount++;
+        mTotalAckLatencyMs += latencyMs;
+        mMaxAckLatencyMs = Math.max(mMaxAckLatencyMs, latencyMs);
+        drainQueue();
+    }
+
+    /**
+     * The message could not be forwarded, so no acknowledgement will be received for it.
+     * @param transactionId The transaction ID of the message.
+     */
+    public void cancel(String transactionId) {
+        if (mInFlight.remove(transactionId) == null) return;
+        drainQueue();
+    }
+
+    /**
+     * Forward all of the queued messages regardless of the window and stop tracking the
+     * in-flight messages. Used when the transport is closing, so that the queued messages are
+     * completed by the normal forwarding path.
+     */
+    public void flush() {
+        if (mPendingExpiry != null) {
+            mPendingExpiry.cancel(false);
+            mPendingExpiry = null;
+        }
+        mInFlight.clear();
+        while (!mQueue.isEmpty()) {
+            mQueue.pollFirst().forwardTask.run();
+        }
+    }
+
+    /**
+     * @return The number of messages in flight.
+     */
+    public int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    /**
+     * @return The number of messages waiting for room in the window.
+     */
+    public int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    /** Dump the state and metrics of this controller. */
+    public void dump(IndentingPrintWriter pw) {
+        pw.increaseIndent();
+        pw.println("limits: inFlight=" + mLimits.getMaxInFlightMessages() + ", queued="
+                + mLimits.getMaxQueuedMessages() + ", timeoutMs="
+                + mLimits.getInFlightTimeoutMs());
+        pw.println("in flight: " + mInFlight.size() + " (max " + mMaxInFlightDepth + ")");
+        pw.println("queued: " + mQueue.size() + " (max " + mMaxQueueDepth + ", total "
+                + mQueuedCount + ")");
+        pw.println("rejected: " + mRejectedCount + ", expired: " + mExpiredCount);
+        pw.println("ack latency ms: avg=" + (mAckCount == 0 ? 0 : mTotalAckLatencyMs / mAckCount)
+                + ", max=" + mMaxAckLatencyMs + ", count=" + mAckCount);
+        pw.decreaseIndent();
+    }
+
+    private void forward(String transactionId, Runnable forwardTask) {
+        if (!mInFlight.containsKey(transactionId)) {
+            mInFlight.put(transactionId, mElapsedRealtimeMs.getAsLong());
+            mMaxInFlightDepth = Math.max(mMaxInFlightDepth, mInFlight.size());
+            scheduleExpiry();
+        }
+        forwardTask.run();
+    }
+
+    /**
+     * Schedule the expiry of the oldest in-flight message, unless one is already pending.
+     */
+    private void scheduleExpiry() {
+        if (mInFlight.isEmpty()) return;
+        if (mPendingExpiry != null && !mPendingExpiry.isDone()) return;
+        long deadlineMs = mInFlight.values().iterator().next() + mLimits.getInFlightTimeoutMs();
+        long delayMs = Math.max(0, deadlineMs - mElapsedRealtimeMs.getAsLong());
+        mPendingExpiry = mExecutor.schedule(() -> onExpiryDue(deadlineMs), delayMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void onExpiryDue(long deadlineMs) {
+        mPendingExpiry = null;
+        expireInFlightMessages();
+        if (mInFlight.isEmpty()) return;
+        // Only move on to a later deadline, the oldest message may have been acknowledged and
+        // replaced by a newer one in the meantime. This also stops an executor that runs the
+        // task right away from scheduling the same deadline again.
+        long nextDeadlineMs =
+                mInFlight.values().iterator().next() + mLimits.getInFlightTimeoutMs();
+        if (nextDeadlineMs > deadlineMs) scheduleExpiry();
+    }
+
+    private void drainQueue() {
+        // Forwarding a queued message may fail and cancel it, which would drain the queue again
+        // from inside this loop.
+        if (mIsDraining) return;
+        mIsDraining = true;
+        try {
+            while (!mQueue.isEmpty()
+                    && mInFlight.size() < mLimits.getMaxInFlightMessages()) {
+                QueuedMessage m = mQueue.pollFirst();
+                forward(m.transactionId, m.forwardTask);
+            }
+        } finally {
+            mIsDraining = false;
+        }
+    }
+
+    private void expireInFlightMessages() {
+        long expiredBeforeMs = mElapsedRealtimeMs.getAsLong() - mLimits.getInFlightTimeoutMs();
+        List<String> expired = null;
+        Iterator<Map.Entry<String, Long>> it = mInFlight.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            // Oldest first, so stop at the first message that has not expired.
+            if (e.getValue() > expiredBeforeMs) break;
+            it.remove();
+            if (expired == null) expired = new ArrayList<>();
+            expired.add(e.getKey());
+        }
+        if (expired == null) return;
+        mExpiredCount += expired.size();
+        for (String transactionId : expired) {
+            mExpiredConsumer.accept(transactionId);
+        }
+        drainQueue();
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.services.telephony.rcs;
 
+import android.os.SystemClock;
 import android.telephony.ims.SipDialogState;
 import android.telephony.ims.SipMessage;
 import android.util.ArrayMap;
@@ -24,17 +25,21 @@ import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.telephony.SipMessageParsingUtils;
 import com.android.internal.telephony.metrics.RcsStats;
 import com.android.internal.util.IndentingPrintWriter;
 
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 
 /**
@@ -62,21 +67,108 @@ public class SipSessionTracker {
      */
     private static final String SIP_CLOSE_DIALOG_REQUEST_METHOD = "bye";
 
+    /**
+     * The maximum number of closed dialogs that are kept until the remote application calls
+     * {@link #cleanupSession(String)}. The oldest closed dialog is evicted once this is exceeded.
+     */
+    @VisibleForTesting
+    public static final int MAX_CLOSED_DIALOGS = 100;
+
+    /**
+     * The time in milliseconds a closed dialog is kept if {@link #cleanupSession(String)} is not
+     * called for it.
+     */
+    @VisibleForTesting
+    public static final long CLOSED_DIALOG_TTL_MS = 5 * 60 * 1000;
+
+    /**
+     * Messages waiting to be acknowledged are only kept with their content if it is at most this
+     * many bytes. Tracking dialogs only requires the headers, so larger bodies are dropped to
+     * avoid keeping them in memory while the message is in flight.
+     */
+    @VisibleForTesting
+    public static final int MAX_RETAINED_CONTENT_BYTES = 1024;
+
+    /**
+     * Identifies a dialog by its Call-ID and the From and To tags of the response that created
+     * it. Forks of the same INVITE share the Call-ID and From tag, but have different To tags.
+     */
+    private static final class DialogKey {
+        private final String mCallId;
+        private final String mFromTag;
+        private final String mToTag;
+
+        DialogKey(String callId, String fromTag, String toTag) {
+            mCallId = callId;
+            mFromTag = fromTag;
+            mToTag = toTag;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            DialogKey k = (DialogKey) o;
+            return Objects.equals(mCallId, k.mCallId) && Objects.equals(mFromTag, k.mFromTag)
+                    && Objects.equals(mToTag, k.mToTag);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mCallId, mFromTag, mToTag);
+        }
+    }
+
+    /** A closed dialog and the time it was closed, in the order dialogs were closed. */
+    private static final class ClosedDialog {
+        public final SipDialog dialog;
+        public final long closedTimeMs;
+
+        ClosedDialog(SipDialog dialog, long closedTimeMs) {
+            this.dialog = dialog;
+            this.closedTimeMs = closedTimeMs;
+        }
+    }
+
     private final LocalLog mLocalLog = new LocalLog(SipTransportController.LOG_SIZE);
-    private final ArrayList<SipDialog> mTrackedDialogs = new ArrayList<>();
+    // All tracked dialogs, grouped by Call-ID. A Call-ID has more than one dialog only when the
+    // INVITE has been forked.
+    private final ArrayMap<String, List<SipDialog>> mDialogsByCallId = new ArrayMap<>();
+    // Dialogs that have received a To tag, used to match in-dialog requests.
+    private final ArrayMap<DialogKey, SipDialog> mDialogsByKey = new ArrayMap<>();
+    // SipDialog#equals depends on the To tag, which may change while the dialog is early, so the
+    // state sets use identity.
+    private final Set<SipDialog> mEarlyDialogs =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<SipDialog> mConfirmedDialogs =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<SipDialog> mClosedDialogs =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    // The closed dialogs, oldest first, used to evict them.
+    private final ArrayDeque<ClosedDialog> mClosedDialogOrder = new ArrayDeque<>();
+    // Maps the lower case feature tags in the Accept-Contact header of the dialogs to Call-IDs.
+    private final ArrayMap<String, Set<String>> mCallIdsByFeatureTag = new ArrayMap<>();
     // Operations that are pending an ack from the remote application processing the message before
     // they can be applied here. Maps the via header branch parameter of the message to the
     // associated pending operation.
     private final ArrayMap<String, Runnable> mPendingAck = new ArrayMap<>();
 
     private final RcsStats mRcsStats;
+    private final LongSupplier mElapsedRealtimeMs;
     int mSubId;
     private SipDialogsStateListener mSipDialogsListener;
     private String mDelegateKey;
+    private int mEvictedDialogCount;
 
     public SipSessionTracker(int subId, RcsStats rcsStats) {
+        this(subId, rcsStats, SystemClock::elapsedRealtime);
+    }
+
+    @VisibleForTesting
+    public SipSessionTracker(int subId, RcsStats rcsStats, LongSupplier elapsedRealtimeMs) {
         mSubId = subId;
         mRcsStats = rcsStats;
+        mElapsedRealtimeMs = elapsedRealtimeMs;
         mDelegateKey = String.valueOf(UUID.randomUUID());
     }
 
@@ -88,30 +180,39 @@ public class SipSessionTracker {
      * @param message The Incoming SIP message.
      */
     public void filterSipMessage(int direction, SipMessage message) {
+        filterSipMessage(direction, new ParsedSipMessage(message));
+    }
+
+    /**
+     * Filter a SIP message using the parsed view already populated by the validators.
+     * @see #filterSipMessage(int, SipMessage)
+     */
+    public void filterSipMessage(int direction, ParsedSipMessage message) {
         final Runnable r;
         if (startsEarlyDialog(message)) {
-            r = getCreateDialogRunnable(direction, message);
+            r = getCreateDialogRunnable(direction, getMessageToRetain(message));
         } else if (closesDialog(message)) {
-            r = getCloseDialogRunnable(message);
-        } else if (SipMessageParsingUtils.isSipResponse(message.getStartLine())) {
-            r = getDialogStateChangeRunnable(message);
+            r = getCloseDialogRunnable(getMessageToRetain(message));
+        } else if (message.isResponse()) {
+            r = getDialogStateChangeRunnable(getMessageToRetain(message));
         } else {
             r = null;
         }
 
         if (r != null) {
-            if (mPendingAck.containsKey(message.getViaBranchParameter())) {
-                Runnable lastEvent = mPendingAck.get(message.getViaBranchParameter());
+            String viaBranch = message.getViaBranch();
+            if (mPendingAck.containsKey(viaBranch)) {
+                Runnable lastEvent = mPendingAck.get(viaBranch);
                 logw("Adding new message when there was already a pending event for branch: "
-                        + message.getViaBranchParameter());
+                        + viaBranch);
                 Runnable concatRunnable = () -> {
                     // No choice but to concatenate the Runnables together.
                     if (lastEvent != null) lastEvent.run();
                     r.run();
                 };
-                mPendingAck.put(message.getViaBranchParameter(), concatRunnable);
+                mPendingAck.put(viaBranch, concatRunnable);
             } else {
-                mPendingAck.put(message.getViaBranchParameter(), r);
+                mPendingAck.put(viaBranch, r);
             }
         }
     }
@@ -124,6 +225,7 @@ public class SipSessionTracker {
      *                    unique token.
      */
     public void acknowledgePendingMessage(String viaBranchId) {
+        evictClosedDialogs();
         Runnable r = mPendingAck.get(viaBranchId);
         if (r != null) {
             mPendingAck.remove(viaBranchId);
@@ -145,18 +247,16 @@ public class SipSessionTracker {
      * @param callId The callId of the SIP session that has been closed.
      */
     public void cleanupSession(String callId) {
-        List<SipDialog> dialogsToCleanup = mTrackedDialogs.stream()
-                .filter(d -> d.getCallId().equals(callId))
-                .collect(Collectors.toList());
-        if (dialogsToCleanup.isEmpty()) return;
+        List<SipDialog> dialogsToCleanup = mDialogsByCallId.get(callId);
+        if (dialogsToCleanup == null) return;
         logi("Cleanup dialogs associated with call id: " + callId);
-        for (SipDialog d : dialogsToCleanup) {
+        for (SipDialog d : new ArrayList<>(dialogsToCleanup)) {
             mRcsStats.onSipTransportSessionClosed(mSubId, callId, 0,
                     d.getState() == d.STATE_CLOSED);
             d.close();
             logi("Dialog closed: " + d);
+            removeDialog(d);
         }
-        mTrackedDialogs.removeAll(dialogsToCleanup);
         notifySipDialogState();
     }
 
@@ -167,11 +267,8 @@ public class SipSessionTracker {
         if (featureTags.isEmpty()) return Collections.emptySet();
         Set<String> associatedIds = new ArraySet<>();
         for (String featureTag : featureTags) {
-            for (SipDialog dialog : mTrackedDialogs) {
-                boolean isAssociated = dialog.getAcceptContactFeatureTags().stream().anyMatch(
-                        d -> d.equalsIgnoreCase(featureTag));
-                if (isAssociated) associatedIds.add(dialog.getCallId());
-            }
+            Set<String> callIds = mCallIdsByFeatureTag.get(toIndexKey(featureTag));
+            if (callIds != null) associatedIds.addAll(callIds);
         }
         return associatedIds;
     }
@@ -180,26 +277,25 @@ public class SipSessionTracker {
      * @return All dialogs that have not received a final response yet 2XX or 3XX+.
      */
     public Set<SipDialog> getEarlyDialogs() {
-        return mTrackedDialogs.stream().filter(d -> d.getState() == SipDialog.STATE_EARLY)
-                .collect(Collectors.toSet());
+        return new ArraySet<>(mEarlyDialogs);
     }
 
     /**
      * @return All confirmed dialogs that have received a 2XX response and are active.
      */
     public Set<SipDialog> getConfirmedDialogs() {
-        return mTrackedDialogs.stream().filter(d -> d.getState() == SipDialog.STATE_CONFIRMED)
-                .collect(Collectors.toSet());
+        return new ArraySet<>(mConfirmedDialogs);
     }
 
     /**
      * @return Dialogs that have been closed via a BYE or 3XX+ response and
-     * {@link #cleanupSession(String)} has not been called yet.
+     * {@link #cleanupSession(String)} has not been called yet. Closed dialogs are evicted once
+     * there are more than {@link #MAX_CLOSED_DIALOGS} of them or after
+     * {@link #CLOSED_DIALOG_TTL_MS}.
      */
     @VisibleForTesting
     public Set<SipDialog> getClosedDialogs() {
-        return mTrackedDialogs.stream().filter(d -> d.getState() == SipDialog.STATE_CLOSED)
-                .collect(Collectors.toSet());
+        return new ArraySet<>(mClosedDialogs);
     }
 
     /**
@@ -207,17 +303,29 @@ public class SipSessionTracker {
      * {@link #cleanupSession(String)} has not been called.
      */
     public Set<SipDialog> getTrackedDialogs() {
-        return new ArraySet<>(mTrackedDialogs);
+        ArraySet<SipDialog> dialogs = new ArraySet<>();
+        for (int i = 0; i < mDialogsByCallId.size(); i++) {
+            dialogs.addAll(mDialogsByCallId.valueAt(i));
+        }
+        return dialogs;
     }
 
     /**
      * Clears all tracked sessions.
      */
     public void clearAllSessions() {
-        for (SipDialog d : mTrackedDialogs) {
-            mRcsStats.onSipTransportSessionClosed(mSubId, d.getCallId(), 0, false);
+        for (int i = 0; i < mDialogsByCallId.size(); i++) {
+            for (SipDialog d : mDialogsByCallId.valueAt(i)) {
+                mRcsStats.onSipTransportSessionClosed(mSubId, d.getCallId(), 0, false);
+            }
         }
-        mTrackedDialogs.clear();
+        mDialogsByCallId.clear();
+        mDialogsByKey.clear();
+        mEarlyDialogs.clear();
+        mConfirmedDialogs.clear();
+        mClosedDialogs.clear();
+        mClosedDialogOrder.clear();
+        mCallIdsByFeatureTag.clear();
         mPendingAck.clear();
         notifySipDialogState();
     }
@@ -238,10 +346,14 @@ public class SipSessionTracker {
         pw.print("Closed Call IDs: ");
         pw.println(getClosedDialogs().stream().map(SipDialog::getCallId)
                 .collect(Collectors.toSet()));
+        pw.print("Evicted closed dialogs: ");
+        pw.println(mEvictedDialogCount);
         pw.println("Tracked Dialogs:");
         pw.increaseIndent();
-        for (SipDialog d : mTrackedDialogs) {
-            pw.println(d);
+        for (int i = 0; i < mDialogsByCallId.size(); i++) {
+            for (SipDialog d : mDialogsByCallId.valueAt(i)) {
+                pw.println(d);
+            }
         }
         pw.decreaseIndent();
         pw.println();
@@ -250,83 +362,78 @@ public class SipSessionTracker {
         pw.decreaseIndent();
     }
 
+    /**
+     * @return The message to keep in a pending operation until it is acknowledged.
+     */
+    private ParsedSipMessage getMessageToRetain(ParsedSipMessage m) {
+        byte[] content = m.getMessage().getContent();
+        if (content == null || content.length <= MAX_RETAINED_CONTENT_BYTES) return m;
+        return m.withoutContent();
+    }
+
     /**
      * @return {@code true}, if the SipMessage passed in should start a new SIP dialog,
      * {@code false} if it should not.
      */
-    private boolean startsEarlyDialog(SipMessage m) {
-        if (!SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
-            return false;
-        }
-        String[] startLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                m.getStartLine());
-        if (startLineSegments == null) {
+    private boolean startsEarlyDialog(ParsedSipMessage m) {
+        String method = m.getRequestMethod();
+        if (method == null) {
             return false;
         }
         return Arrays.stream(SIP_REQUEST_DIALOG_START_METHODS)
-                .anyMatch(r -> r.equalsIgnoreCase(startLineSegments[0]));
+                .anyMatch(r -> r.equalsIgnoreCase(method));
     }
 
     /**
      * @return {@code true}, if the SipMessage passed in should close a confirmed dialog,
      * {@code false} if it should not.
      */
-    private boolean closesDialog(SipMessage m) {
-        if (!SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
-            return false;
-        }
-        String[] startLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                m.getStartLine());
-        if (startLineSegments == null) {
-            return false;
-        }
-        return SIP_CLOSE_DIALOG_REQUEST_METHOD.equalsIgnoreCase(startLineSegments[0]);
+    private boolean closesDialog(ParsedSipMessage m) {
+        return SIP_CLOSE_DIALOG_REQUEST_METHOD.equalsIgnoreCase(m.getRequestMethod());
     }
 
-    private Runnable getCreateDialogRunnable(int direction, SipMessage m) {
+    private Runnable getCreateDialogRunnable(int direction, ParsedSipMessage m) {
         return () -> {
-            List<SipDialog> duplicateDialogs = mTrackedDialogs.stream()
-                    .filter(d -> d.getCallId().equals(m.getCallIdParameter()))
-                    .collect(Collectors.toList());
-            if (duplicateDialogs.size() > 0) {
+            List<SipDialog> duplicateDialogs = mDialogsByCallId.get(m.getCallId());
+            if (duplicateDialogs != null) {
                 logi("trying to create a dialog for a call ID that already exists, skip: "
                         + duplicateDialogs);
                 return;
             }
             SipDialog dialog = SipDialog.fromSipMessage(m);
-            String[] startLineSegments =
-                    SipMessageParsingUtils.splitStartLineAndVerify(m.getStartLine());
-            mRcsStats.earlySipTransportSession(startLineSegments[0], dialog.getCallId(),
+            mRcsStats.earlySipTransportSession(m.getRequestMethod(), dialog.getCallId(),
                     direction);
             logi("Starting new SipDialog: " + dialog);
-            mTrackedDialogs.add(dialog);
+            addDialog(dialog);
         };
     }
 
-    private Runnable getCloseDialogRunnable(SipMessage m) {
+    private Runnable getCloseDialogRunnable(ParsedSipMessage m) {
         return () -> {
-            List<SipDialog> dialogsToClose = mTrackedDialogs.stream()
-                    .filter(d -> d.isRequestAssociatedWithDialog(m))
-                    .collect(Collectors.toList());
+            List<SipDialog> dialogsToClose = getDialogsAssociatedWithRequest(m);
             if (dialogsToClose.isEmpty()) return;
             logi("Closing dialogs associated with: " + m);
-            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallIdParameter(), 0, true);
+            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallId(), 0, true);
             for (SipDialog d : dialogsToClose) {
                 d.close();
+                updateIndexes(d);
                 logi("Dialog closed: " + d);
             }
+            evictClosedDialogs();
             notifySipDialogState();
         };
     }
 
-    private Runnable getDialogStateChangeRunnable(SipMessage m) {
+    private Runnable getDialogStateChangeRunnable(ParsedSipMessage m) {
         return () -> {
             // This will return a dialog and all of its potential forks
-            List<SipDialog> associatedDialogs = mTrackedDialogs.stream()
+            List<SipDialog> callIdDialogs = mDialogsByCallId.get(m.getCallId());
+            if (callIdDialogs == null) return;
+            List<SipDialog> associatedDialogs = callIdDialogs.stream()
                     .filter(d -> d.isResponseAssociatedWithDialog(m))
                     .collect(Collectors.toList());
             if (associatedDialogs.isEmpty()) return;
-            String messageToTag = SipMessageParsingUtils.getToTag(m.getHeaderSection());
+            String messageToTag = m.getToTag();
             // If the to tag matches (or message to tag doesn't exist in dialog yet because this is
             // the first response), then we are done.
             SipDialog match = associatedDialogs.stream()
@@ -338,7 +445,7 @@ public class SipSessionTracker {
                 // so simply use the first one in the returned list.
                 logi("Dialog forked");
                 match = associatedDialogs.get(0).forkDialog();
-                mTrackedDialogs.add(match);
+                addDialog(match);
             }
             if (match != null) {
                 logi("Dialog: " + match + " is associated with: " + m);
@@ -350,44 +457,163 @@ public class SipSessionTracker {
         };
     }
 
-    private void updateSipDialogState(SipDialog d, SipMessage m) {
-        String[] startLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                m.getStartLine());
-        if (startLineSegments == null) {
-            logw("Could not parse start line for SIP message: " + m.getStartLine());
+    private void updateSipDialogState(SipDialog d, ParsedSipMessage m) {
+        if (m.getStartLineSegments() == null) {
+            logw("Could not parse start line for SIP message: " + m.getMessage().getStartLine());
             return;
         }
-        int statusCode = 0;
-        try {
-            statusCode = Integer.parseInt(startLineSegments[1]);
-        } catch (NumberFormatException e) {
-            logw("Could not parse status code for SIP message: " + m.getStartLine());
+        int statusCode = m.getStatusCode();
+        if (statusCode < 0) {
+            logw("Could not parse status code for SIP message: " + m.getMessage().getStartLine());
             return;
         }
-        String toTag = SipMessageParsingUtils.getToTag(m.getHeaderSection());
+        String toTag = m.getToTag();
         logi("updateSipDialogState: message has statusCode: " + statusCode + ", and to tag: "
                 + toTag);
         // If specifically 100 Trying, then do not do anything.
         if (statusCode <= 100) return;
         // If 300+, then this dialog has received an error response and should move to closed state.
         if (statusCode >= 300) {
-            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallIdParameter(), statusCode, true);
+            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallId(), statusCode, true);
             d.close();
+            updateIndexes(d);
+            evictClosedDialogs();
             notifySipDialogState();
             return;
         }
         if (toTag == null) logw("updateSipDialogState: No to tag for message: " + m);
         if (statusCode >= 200) {
-            mRcsStats.confirmedSipTransportSession(m.getCallIdParameter(), statusCode);
+            mRcsStats.confirmedSipTransportSession(m.getCallId(), statusCode);
             d.confirm(toTag);
+            updateIndexes(d);
             notifySipDialogState();
             return;
         }
         // 1XX responses still require updates to dialogs.
         d.earlyResponse(toTag);
+        updateIndexes(d);
         notifySipDialogState();
     }
 
+    /**
+     * @return The dialogs matching the Call-ID and the From and To tags of an in-dialog request,
+     * which may have been sent by either side of the dialog.
+     */
+    private List<SipDialog> getDialogsAssociatedWithRequest(ParsedSipMessage m) {
+        String callId = m.getCallId();
+        String fromTag = m.getFromTag();
+        String toTag = m.getToTag();
+        if (fromTag == null || toTag == null) return Collections.emptyList();
+        List<SipDialog> dialogs = new ArrayList<>(1);
+        // Sent by the side that started the dialog.
+        SipDialog d = mDialogsByKey.get(new DialogKey(callId, fromTag, toTag));
+        if (d != null) dialogs.add(d);
+        // Sent by the other side.
+        d = mDialogsByKey.get(new DialogKey(callId, toTag, fromTag));
+        if (d != null && (dialogs.isEmpty() || dialogs.get(0) != d)) dialogs.add(d);
+        return dialogs;
+    }
+
+    private void addDialog(SipDialog d) {
+        List<SipDialog> dialogs = mDialogsByCallId.get(d.getCallId());
+        if (dialogs == null) {
+            dialogs = new ArrayList<>(1);
+            mDialogsByCallId.put(d.getCallId(), dialogs);
+            for (String featureTag : d.getAcceptContactFeatureTags()) {
+                String key = toIndexKey(featureTag);
+                Set<String> callIds = mCallIdsByFeatureTag.get(key);
+                if (callIds == null) {
+                    callIds = new ArraySet<>();
+                    mCallIdsByFeatureTag.put(key, callIds);
+                }
+                callIds.add(d.getCallId());
+            }
+        }
+        dialogs.add(d);
+        updateIndexes(d);
+    }
+
+    /**
+     * Update the To tag and state indexes after the dialog has been created or changed.
+     */
+    private void updateIndexes(SipDialog d) {
+        if (d.getToTag() != null) {
+            mDialogsByKey.put(new DialogKey(d.getCallId(), d.getFromTag(), d.getToTag()), d);
+        }
+        switch (d.getState()) {
+            case SipDialog.STATE_EARLY:
+                mEarlyDialogs.add(d);
+                break;
+            case SipDialog.STATE_CONFIRMED:
+                mEarlyDialogs.remove(d);
+                mConfirmedDialogs.add(d);
+                break;
+            case SipDialog.STATE_CLOSED:
+                mEarlyDialogs.remove(d);
+                mConfirmedDialogs.remove(d);
+                if (mClosedDialogs.add(d)) {
+                    mClosedDialogOrder.addLast(
+                            new ClosedDialog(d, mElapsedRealtimeMs.getAsLong()));
+                }
+                break;
+        }
+    }
+
+    private void removeDialog(SipDialog d) {
+        String callId = d.getCallId();
+        List<SipDialog> dialogs = mDialogsByCallId.get(callId);
+        if (dialogs != null) {
+            dialogs.removeIf(dialog -> dialog == d);
+            if (dialogs.isEmpty()) {
+                mDialogsByCallId.remove(callId);
+                // All dialogs of a Call-ID have the feature tags of the INVITE that started it.
+                for (String featureTag : d.getAcceptContactFeatureTags()) {
+                    String key = toIndexKey(featureTag);
+                    Set<String> callIds = mCallIdsByFeatureTag.get(key);
+                    if (callIds == null) continue;
+                    callIds.remove(callId);
+                    if (callIds.isEmpty()) mCallIdsByFeatureTag.remove(key);
+                }
+            }
+        }
+        if (d.getToTag() != null) {
+            DialogKey key = new DialogKey(callId, d.getFromTag(), d.getToTag());
+            if (mDialogsByKey.get(key) == d) mDialogsByKey.remove(key);
+        }
+        mEarlyDialogs.remove(d);
+        mConfirmedDialogs.remove(d);
+        if (mClosedDialogs.remove(d)) {
+            mClosedDialogOrder.removeIf(c -> c.dialog == d);
+        }
+    }
+
+    /**
+     * Evict the oldest closed dialogs if there are more than {@link #MAX_CLOSED_DIALOGS} of them
+     * and the closed dialogs that have been kept for longer than {@link #CLOSED_DIALOG_TTL_MS},
+     * in case the remote application never calls {@link #cleanupSession(String)} for them.
+     * The session closure has already been reported to metrics when the dialog was closed.
+     */
+    private void evictClosedDialogs() {
+        long now = mElapsedRealtimeMs.getAsLong();
+        boolean evicted = false;
+        while (!mClosedDialogOrder.isEmpty()) {
+            ClosedDialog oldest = mClosedDialogOrder.peekFirst();
+            if (mClosedDialogOrder.size() <= MAX_CLOSED_DIALOGS
+                    && now - oldest.closedTimeMs < CLOSED_DIALOG_TTL_MS) {
+                break;
+            }
+            logi("Evicting closed dialog: " + oldest.dialog);
+            removeDialog(oldest.dialog);
+            mEvictedDialogCount++;
+            evicted = true;
+        }
+        if (evicted) notifySipDialogState();
+    }
+
+    private static String toIndexKey(String featureTag) {
+        return featureTag.toLowerCase(Locale.ROOT);
+    }
+
     /**
      * This is a listener to handle SipDialog state of delegate
      * @param listener {@link SipDialogsStateListener}
@@ -409,9 +635,11 @@ public class SipSessionTracker {
             return;
         }
         List<SipDialogState> dialogStates = new ArrayList<>();
-        for (SipDialog d : mTrackedDialogs) {
-            SipDialogState dialog = new SipDialogState.Builder(d.getState()).build();
-            dialogStates.add(dialog);
+        for (int i = 0; i < mDialogsByCallId.size(); i++) {
+            for (SipDialog d : mDialogsByCallId.valueAt(i)) {
+                SipDialogState dialog = new SipDialogState.Builder(d.getState()).build();
+                dialogStates.add(dialog);
+            }
         }
         mSipDialogsListener.reMappingSipDelegateState(mDelegateKey, dialogStates);
     }
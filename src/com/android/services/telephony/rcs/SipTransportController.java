@@ -22,6 +22,7 @@ import android.content.Context;
 import android.os.PersistableBundle;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.telephony.CarrierConfigManager;
 import android.telephony.ims.DelegateRequest;
@@ -39,6 +40,7 @@ import android.telephony.ims.stub.DelegateConnectionMessageCallback;
 import android.telephony.ims.stub.DelegateConnectionStateCallback;
 import android.telephony.ims.stub.SipDelegate;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.LocalLog;
 import android.util.Log;
@@ -73,6 +75,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 
 /**
@@ -84,6 +87,19 @@ import java.util.stream.Collectors;
  * instead of requiring that the IMS application manage its own IMS registration over-the-top. This
  * is required for some cellular carriers, which mandate that all IMS SIP traffic must be sent
  * through a single IMS registration managed by the system IMS service.
+ * <p>
+ * Create and destroy requests, role changes and carrier config changes do not change the feature
+ * tags granted to each SipDelegate right away. Instead, they schedule a single evaluation pass,
+ * which is postponed as long as new events keep arriving (up to a maximum delay), so that a burst
+ * of events, such as several IMS applications starting at boot, results in one pass and one IMS
+ * registration update. If a pass does not change the feature tags granted to any SipDelegate
+ * since the last registration update, no new update is sent.
+ * <p>
+ * When multiple SipDelegates request the same feature tag, the SipDelegate that was created first
+ * keeps the tag until it is destroyed, at which point the tag moves to the next oldest
+ * SipDelegate that requested it. SipDelegates created in the same evaluation pass are ordered by
+ * the time the create request was received. Moving a tag that is in use to a newer SipDelegate
+ * would interrupt the SIP sessions of the incumbent and require a new IMS registration.
  *
  * //TODO: Support other roles besides SMS
  * //TODO: Bring in carrier provisioning to influence features that can be created.
@@ -98,6 +114,8 @@ public class SipTransportController implements RcsFeatureController.Feature,
     private static final int REEVALUATE_THROTTLE_DEFAULT_MS = 1000;
     /**See {@link TimerAdapter#getUpdateRegistrationDelayMilliseconds()}.*/
     private static final int TRIGGER_UPDATE_REGISTRATION_DELAY_DEFAULT_MS = 1000;
+    /**See {@link TimerAdapter#getReevaluateMaxDelayMilliseconds()}.*/
+    private static final int REEVALUATE_MAX_DELAY_MULTIPLIER = 3;
 
     /**
      * {@link RoleManager} is final so we have to wrap the implementation for testing.
@@ -137,6 +155,14 @@ public class SipTransportController implements RcsFeatureController.Feature,
          * a registration update.
          */
         int getUpdateRegistrationDelayMilliseconds();
+
+        /**
+         * The maximum time we will postpone re-evaluation after the first event that requested it,
+         * so that a steady stream of create/destroy requests can not postpone it forever.
+         */
+        default int getReevaluateMaxDelayMilliseconds() {
+            return REEVALUATE_MAX_DELAY_MULTIPLIER * getReevaluateThrottleTimerMilliseconds();
+        }
     }
 
     private static class TimerAdapterImpl implements TimerAdapter {
@@ -320,6 +346,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
     private final ScheduledExecutorService mExecutorService;
     private final RoleManagerAdapter mRoleManagerAdapter;
     private final TimerAdapter mTimerAdapter;
+    private final LongSupplier mElapsedRealtimeMs;
     private final LocalLog mLocalLog = new LocalLog(LOG_SIZE);
 
     // A priority queue of active SipDelegateControllers, where the oldest SipDelegate gets
@@ -343,6 +370,8 @@ public class SipTransportController implements RcsFeatureController.Feature,
     // be evaluated. When the timer expires and triggers the reevaluate method, this controller
     // will iterate through mDelegatePriorityQueue and assign Feature Tags based on role+priority.
     private ScheduledFuture<?> mScheduledEvaluateFuture;
+    // The time, in elapsed realtime, after which a pending re-evaluate can no longer be postponed.
+    private long mScheduledEvaluateDeadlineMs;
     // mPendingEvaluateFTFuture creates this CompletableFuture, exposed in order to stop other
     // evaluates from occurring while another is waiting for a result on other threads.
     private CompletableFuture<Void> mEvaluateCompleteFuture;
@@ -350,6 +379,14 @@ public class SipTransportController implements RcsFeatureController.Feature,
     // SipDelegate configuration. Will be scheduled TRIGGER_UPDATE_REGISTRATION_DELAY_MS
     // milliseconds after a pending evaluate completes.
     private ScheduledFuture<?> mPendingUpdateRegistrationFuture;
+    // The feature tags granted to each SipDelegateController when the last IMS registration update
+    // was sent, or null if unknown. SipDelegateControllers with no granted tags are not included.
+    private Map<SipDelegateController, Set<String>> mLastRegistrationAllocation;
+    // Metrics reported in the dump.
+    private int mEvaluateCount;
+    private int mCoalescedEvaluateCount;
+    private int mRegistrationUpdateCount;
+    private int mAvoidedRegistrationUpdateCount;
     // Subscription id will change as new subscriptions are loaded on the slot.
     private int mSubId;
     // Will go up/down as the ImsService associated with this slotId goes up/down.
@@ -373,6 +410,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
 
         mRoleManagerAdapter = new RoleManagerAdapterImpl(context);
         mTimerAdapter = new TimerAdapterImpl();
+        mElapsedRealtimeMs = SystemClock::elapsedRealtime;
         mExecutorService = Executors.newSingleThreadScheduledExecutor();
         mCarrierConfigManager = context.getSystemService(CarrierConfigManager.class);
     }
@@ -384,11 +422,25 @@ public class SipTransportController implements RcsFeatureController.Feature,
     public SipTransportController(Context context, int slotId, int subId,
             SipDelegateControllerFactory delegateFactory, RoleManagerAdapter roleManagerAdapter,
             TimerAdapter timerAdapter, ScheduledExecutorService executor) {
+        this(context, slotId, subId, delegateFactory, roleManagerAdapter, timerAdapter, executor,
+                SystemClock::elapsedRealtime);
+    }
+
+    /**
+     * Constructor to inject dependencies and the clock used to throttle re-evaluations for
+     * testing.
+     */
+    @VisibleForTesting
+    public SipTransportController(Context context, int slotId, int subId,
+            SipDelegateControllerFactory delegateFactory, RoleManagerAdapter roleManagerAdapter,
+            TimerAdapter timerAdapter, ScheduledExecutorService executor,
+            LongSupplier elapsedRealtimeMs) {
         mSlotId = slotId;
         mSubId = subId;
 
         mRoleManagerAdapter = roleManagerAdapter;
         mTimerAdapter = timerAdapter;
+        mElapsedRealtimeMs = elapsedRealtimeMs;
         mDelegateControllerFactory = delegateFactory;
         mExecutorService = executor;
         mCarrierConfigManager = context.getSystemService(CarrierConfigManager.class);
@@ -597,6 +649,8 @@ public class SipTransportController implements RcsFeatureController.Feature,
     private void triggerDeregistrationEvent() {
         logi("triggerDeregistrationEvent: Sending deregister event to ImsService");
         cancelPendingUpdateRegistration();
+        // The next registration update must be sent regardless of the feature tags granted.
+        mLastRegistrationAllocation = null;
 
         IImsRegistration registrationImpl = mRcsManager.getImsRegistration();
         if (registrationImpl != null) {
@@ -615,11 +669,23 @@ public class SipTransportController implements RcsFeatureController.Feature,
      * We want to wait because this can directly result in changes to the IMS registration on the
      * network, so we need to wait for a steady state where all changes have been made before
      * triggering an update to the network registration.
+     * <p>
+     * If the feature tags granted to each SipDelegate are the same as when the last update was
+     * sent, the IMS registration is already up to date and no update is scheduled.
+     * @param allocation The feature tags granted to each SipDelegateController by the last
+     *         re-evaluate or null if the re-evaluate did not complete successfully.
      */
-    private void scheduleUpdateRegistration() {
+    private void scheduleUpdateRegistration(Map<SipDelegateController, Set<String>> allocation) {
         cancelPendingUpdateRegistration();
+        if (allocation != null && allocation.equals(mLastRegistrationAllocation)) {
+            mAvoidedRegistrationUpdateCount++;
+            logi("scheduleUpdateRegistration: skipping, granted feature tags did not change since"
+                    + " last update: " + allocation);
+            return;
+        }
 
-        ScheduledFuture<?> f = mExecutorService.schedule(this::triggerUpdateRegistrationEvent,
+        ScheduledFuture<?> f = mExecutorService.schedule(
+                () -> triggerUpdateRegistrationEvent(allocation),
                 mTimerAdapter.getUpdateRegistrationDelayMilliseconds(), TimeUnit.MILLISECONDS);
         logi("scheduleUpdateRegistration: scheduling new event: " + f);
         mPendingUpdateRegistrationFuture = f;
@@ -635,20 +701,25 @@ public class SipTransportController implements RcsFeatureController.Feature,
         }
         // Cancel the old pending operation and reschedule again.
         mPendingUpdateRegistrationFuture.cancel(false);
+        mAvoidedRegistrationUpdateCount++;
         logi("scheduleUpdateRegistration: cancelling existing reg update event: "
                 + mPendingUpdateRegistrationFuture);
     }
 
     /**
      * Triggers an event to update the IMS registration of the ImsService. Should only be called
-     * from {@link #scheduleUpdateRegistration()}.
+     * from {@link #scheduleUpdateRegistration(Map)}.
      */
-    private void triggerUpdateRegistrationEvent() {
+    private void triggerUpdateRegistrationEvent(
+            Map<SipDelegateController, Set<String>> allocation) {
         logi("triggerUpdateRegistrationEvent: Sending update registration event to ImsService");
+        mLastRegistrationAllocation = null;
         IImsRegistration registrationImpl = mRcsManager.getImsRegistration();
         if (registrationImpl != null) {
             try {
                 registrationImpl.triggerUpdateSipDelegateRegistration();
+                mRegistrationUpdateCount++;
+                mLastRegistrationAllocation = allocation;
             } catch (RemoteException e) {
                 logi("triggerUpdateRegistrationEvent: received RemoteException: " + e);
             }
@@ -699,17 +770,33 @@ public class SipTransportController implements RcsFeatureController.Feature,
      * The priority queue has changed, which will cause a re-evaluation of the feature tags granted
      * to each SipDelegate.
      * <p>
-     * Note: re-evaluations are throttled to happen at a minimum to occur every
-     * REEVALUATE_THROTTLE_MS seconds. We also do not reevaluate while another reevaluate operation
-     * is in progress, so in this case, defer schedule itself.
+     * Note: re-evaluations happen REEVALUATE_THROTTLE_MS after the last event that requested one,
+     * so a burst of events is coalesced into a single re-evaluation. A pending re-evaluate is never
+     * postponed past the max delay after the first event. We also do not reevaluate while another
+     * reevaluate operation is in progress, so in this case, defer schedule itself.
      */
     private void scheduleThrottledReevaluate() {
+        int throttleMs = mTimerAdapter.getReevaluateThrottleTimerMilliseconds();
+        long nowMs = mElapsedRealtimeMs.getAsLong();
         if (isEvaluatePendingAndNotInProgress()) {
-            logi("scheduleThrottledReevaluate: throttling reevaluate, eval already pending: "
-                    + mScheduledEvaluateFuture);
+            mCoalescedEvaluateCount++;
+            long delayMs = Math.min(throttleMs, mScheduledEvaluateDeadlineMs - nowMs);
+            if (delayMs <= 0
+                    || delayMs <= mScheduledEvaluateFuture.getDelay(TimeUnit.MILLISECONDS)) {
+                logi("scheduleThrottledReevaluate: throttling reevaluate, eval already pending: "
+                        + mScheduledEvaluateFuture);
+                return;
+            }
+            mScheduledEvaluateFuture.cancel(false /*interrupt*/);
+            mScheduledEvaluateFuture = mExecutorService.schedule(this::reevaluateDelegates,
+                    delayMs, TimeUnit.MILLISECONDS);
+            logi("scheduleThrottledReevaluate: postponing pending reevaluate by " + delayMs
+                    + "ms: " + mScheduledEvaluateFuture);
         } else {
+            mScheduledEvaluateDeadlineMs = nowMs
+                    + mTimerAdapter.getReevaluateMaxDelayMilliseconds();
             mScheduledEvaluateFuture = mExecutorService.schedule(this::reevaluateDelegates,
-                    mTimerAdapter.getReevaluateThrottleTimerMilliseconds(), TimeUnit.MILLISECONDS);
+                    throttleMs, TimeUnit.MILLISECONDS);
             logi("scheduleThrottledReevaluate: new reevaluate scheduled: "
                     + mScheduledEvaluateFuture);
         }
@@ -770,6 +857,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
                     mExecutorService);
             return;
         }
+        mEvaluateCount++;
 
         // Remove tracking for all SipDelegates being destroyed first
         for (DestroyRequest d : mDelegatePendingDestroy) {
@@ -806,6 +894,9 @@ public class SipTransportController implements RcsFeatureController.Feature,
             return CompletableFuture.completedFuture(new ArraySet<>());
         });
         final String cachedSmsRolePackage = mCachedSmsRolePackageName;
+        // The feature tags granted to each SipDelegateController in this pass, used to skip the
+        // IMS registration update if nothing changed.
+        final Map<SipDelegateController, Set<String>> allocation = new ArrayMap<>();
         for (SipDelegateController c : mDelegatePriorityQueue) {
             logi("reevaluateDelegates: pending reeval: " + c);
             pendingChange = pendingChange.thenComposeAsync((takenTags) -> {
@@ -815,7 +906,8 @@ public class SipTransportController implements RcsFeatureController.Feature,
                     // destroyed.
                     return CompletableFuture.completedFuture(null /*failed*/);
                 }
-                return changeSupportedFeatureTags(c, cachedSmsRolePackage, takenTags);
+                return changeSupportedFeatureTags(c, cachedSmsRolePackage, takenTags,
+                        allocation);
             }, mExecutorService);
         }
 
@@ -828,7 +920,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
                 }).thenAccept((associatedFeatures) -> {
                     logi("reevaluateDelegates: reevaluate complete, feature tags associated: "
                             + associatedFeatures);
-                    scheduleUpdateRegistration();
+                    scheduleUpdateRegistration(associatedFeatures != null ? allocation : null);
                 });
         logi("reevaluateDelegates: future created.");
     }
@@ -919,6 +1011,8 @@ public class SipTransportController implements RcsFeatureController.Feature,
      * applied to that SipDelegateController.
      * @param controller Controller to attribute feature tags to.
      * @param alreadyRequestedTags The feature tags that were already granted to other SipDelegates.
+     * @param allocation The feature tags granted to each SipDelegateController in this pass, which
+     *         will be updated with the tags granted to this controller if any.
      * @return Once complete, contains the set of feature tags that the SipDelegate now has
      * associated with it along with the feature tags that previous SipDelegates had.
      *
@@ -926,7 +1020,8 @@ public class SipTransportController implements RcsFeatureController.Feature,
      */
     private CompletableFuture<Set<String>> changeSupportedFeatureTags(
             SipDelegateController controller, String smsRolePackageName,
-            Set<String> alreadyRequestedTags) {
+            Set<String> alreadyRequestedTags,
+            Map<SipDelegateController, Set<String>> allocation) {
         Set<String> requestedFeatureTags = controller.getInitialRequest().getFeatureTags();
         String packageName = controller.getPackageName();
         if (!smsRolePackageName.equals(packageName)) {
@@ -962,6 +1057,9 @@ public class SipTransportController implements RcsFeatureController.Feature,
         return pendingChange.thenApply((completedSuccessfully) ->  {
             logi("changeSupportedFeatureTags: change completed: " + completedSuccessfully);
             if (!completedSuccessfully) return null;
+            if (!candidateFeatureTags.isEmpty()) {
+                allocation.put(controller, candidateFeatureTags);
+            }
             return previouslyGrantedTags;
         });
     }
@@ -1056,6 +1154,8 @@ public class SipTransportController implements RcsFeatureController.Feature,
         logi("manager changed, " + mRcsManager + "->" + m);
         if (mRcsManager == m) return;
         mRcsManager = m;
+        // A new ImsService connection does not know about the last registration update.
+        mLastRegistrationAllocation = null;
         if (mRcsManager == null) {
             logi("onRcsManagerChanged: lost connection to ImsService, tearing down...");
             unregisterListeners();
@@ -1089,6 +1189,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
         if (mSubId != newSubId) {
             // Swap subId, any pending create/destroy on old subId will be denied.
             mSubId = newSubId;
+            mLastRegistrationAllocation = null;
             scheduleDestroyDelegates(
                     SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_SUBSCRIPTION_TORN_DOWN);
         }
@@ -1101,15 +1202,22 @@ public class SipTransportController implements RcsFeatureController.Feature,
      */
     private void onCarrierConfigChangedInternal() {
         logi("Carrier Config changed for subId: " + mSubId);
-        mFeatureTagsAllowed.clear();
+        ArraySet<String> featureTagsAllowed = new ArraySet<>();
         PersistableBundle carrierConfig = mCarrierConfigManager.getConfigForSubId(mSubId);
         String[] tagConfigs = carrierConfig.getStringArray(
                 CarrierConfigManager.Ims.KEY_RCS_FEATURE_TAG_ALLOWED_STRING_ARRAY);
         if (tagConfigs != null && tagConfigs.length > 0) {
             for (String tag : tagConfigs) {
-                mFeatureTagsAllowed.add(tag.trim().toLowerCase(Locale.ROOT));
+                featureTagsAllowed.add(tag.trim().toLowerCase(Locale.ROOT));
             }
         }
+        if (featureTagsAllowed.equals(mFeatureTagsAllowed)) return;
+        mFeatureTagsAllowed = featureTagsAllowed;
+        // SipDelegates pending create will pick up the new config when they are evaluated.
+        if (!mDelegatePriorityQueue.isEmpty()) {
+            logi("onCarrierConfigChangedInternal: allowed feature tags changed, reevaluating");
+            scheduleThrottledReevaluate();
+        }
     }
 
     /**
@@ -1200,6 +1308,13 @@ public class SipTransportController implements RcsFeatureController.Feature,
             }
         }
         pw.decreaseIndent();
+        pw.println("Reevaluate:");
+        pw.increaseIndent();
+        pw.println("evaluations: " + mEvaluateCount + ", coalesced requests: "
+                + mCoalescedEvaluateCount);
+        pw.println("registration updates: " + mRegistrationUpdateCount + ", avoided: "
+                + mAvoidedRegistrationUpdateCount);
+        pw.decreaseIndent();
         pw.decreaseIndent();
     }
 
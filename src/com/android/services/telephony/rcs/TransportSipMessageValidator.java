@@ -29,7 +29,6 @@ import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.telephony.SipMessageParsingUtils;
 import com.android.internal.telephony.metrics.RcsStats;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.services.telephony.rcs.validator.IncomingTransportStateValidator;
@@ -371,13 +370,16 @@ public class TransportSipMessageValidator {
                     "stale IMS configuration: "  + configVersion + ", expected: "
                             + mConfigVersion);
         }
-        ValidationResult result = mOutgoingMessageValidator.validate(message);
+        // The start line and headers are parsed once and shared by all of the stages below.
+        ParsedSipMessage parsedMessage = new ParsedSipMessage(message);
+        ValidationResult result = mOutgoingMessageValidator.validate(parsedMessage);
         logi("verifyOutgoingMessage: " + result + ", message=" + message);
         if (result.isValidated) {
             mSipSessionTracker.filterSipMessage(
-                    SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, message);
+                    SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, parsedMessage);
         }
-        updateForMetrics(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, message, result);
+        updateForMetrics(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING,
+                parsedMessage, result);
         return result;
     }
 
@@ -388,13 +390,15 @@ public class TransportSipMessageValidator {
      * @return The result of verifying the incoming message.
      */
     public ValidationResult verifyIncomingMessage(SipMessage message) {
-        ValidationResult result = mIncomingMessageValidator.validate(message);
+        ParsedSipMessage parsedMessage = new ParsedSipMessage(message);
+        ValidationResult result = mIncomingMessageValidator.validate(parsedMessage);
         logi("verifyIncomingMessage: " + result + ", message=" + message);
         if (result.isValidated) {
             mSipSessionTracker.filterSipMessage(
-                    SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, message);
+                    SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, parsedMessage);
         }
-        updateForMetrics(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, message, result);
+        updateForMetrics(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING,
+                parsedMessage, result);
         return result;
     }
 
@@ -555,22 +559,21 @@ public class TransportSipMessageValidator {
                 .collect(Collectors.toSet());
     }
 
-    private void updateForMetrics(int direction, SipMessage m, ValidationResult result) {
-        String[] startLineSegments = SipMessageParsingUtils
-                .splitStartLineAndVerify(m.getStartLine());
-        if (SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
+    private void updateForMetrics(int direction, ParsedSipMessage m, ValidationResult result) {
+        String[] startLineSegments = m.getStartLineSegments();
+        if (m.isRequest()) {
             if (result.isValidated) {
                 // SipMessage add to list for Metrics stats
-                mRcsStats.onSipMessageRequest(m.getCallIdParameter(), startLineSegments[0],
+                mRcsStats.onSipMessageRequest(m.getCallId(), startLineSegments[0],
                         direction);
             } else {
                 //Message sending fail and there is no response.
                 mRcsStats.invalidatedMessageResult(mSubId, startLineSegments[0], direction,
                         result.restrictedReason);
             }
-        } else if (SipMessageParsingUtils.isSipResponse(m.getStartLine())) {
+        } else if (m.isResponse()) {
             int statusCode = Integer.parseInt(startLineSegments[1]);
-            mRcsStats.onSipMessageResponse(mSubId, m.getCallIdParameter(), statusCode,
+            mRcsStats.onSipMessageResponse(mSubId, m.getCallId(), statusCode,
                     result.restrictedReason);
         } else {
             logw("Message is Restricted");
@@ -17,9 +17,8 @@
 package com.android.services.telephony.rcs.validator;
 
 import android.telephony.ims.SipDelegateManager;
-import android.telephony.ims.SipMessage;
 
-import com.android.internal.telephony.SipMessageParsingUtils;
+import com.android.services.telephony.rcs.ParsedSipMessage;
 
 import java.util.Arrays;
 import java.util.Locale;
@@ -38,14 +37,13 @@ public class RestrictedOutgoingSipRequestValidator implements SipMessageValidato
             "register", "options", "publish"};
 
     @Override
-    public ValidationResult validate(SipMessage message) {
-        String startLine = message.getStartLine();
-        if (SipMessageParsingUtils.isSipRequest(startLine)) {
-            String[] segments = SipMessageParsingUtils.splitStartLineAndVerify(startLine);
+    public ValidationResult validate(ParsedSipMessage message) {
+        if (message.isRequest()) {
+            String[] segments = message.getStartLineSegments();
             if (segments == null) {
                 return new ValidationResult(
                         SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
-                        "malformed start line: " + message.getStartLine());
+                        "malformed start line: " + message.getMessage().getStartLine());
             }
             if (Arrays.stream(IMS_SERVICE_HANDLED_REQUEST_METHODS).anyMatch(
                     s -> segments[0].toLowerCase(Locale.ROOT).contains(s))) {
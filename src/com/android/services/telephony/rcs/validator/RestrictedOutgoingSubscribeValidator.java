@@ -17,10 +17,9 @@
 package com.android.services.telephony.rcs.validator;
 
 import android.telephony.ims.SipDelegateManager;
-import android.telephony.ims.SipMessage;
 import android.util.Pair;
 
-import com.android.internal.telephony.SipMessageParsingUtils;
+import com.android.services.telephony.rcs.ParsedSipMessage;
 
 import java.util.Arrays;
 import java.util.List;
@@ -39,24 +38,23 @@ public class RestrictedOutgoingSubscribeValidator implements SipMessageValidator
 
 
     @Override
-    public ValidationResult validate(SipMessage message) {
-        if (!SipMessageParsingUtils.isSipRequest(message.getStartLine())) {
+    public ValidationResult validate(ParsedSipMessage message) {
+        if (!message.isRequest()) {
             return ValidationResult.SUCCESS;
         }
-        String[] requestSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                message.getStartLine());
+        String[] requestSegments = message.getStartLineSegments();
         if (requestSegments == null) {
             return new ValidationResult(
                     SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
-                    "malformed start line: " + message.getStartLine());
+                    "malformed start line: " + message.getMessage().getStartLine());
         }
         // Request-Line  =  Method SP Request-URI SP SIP-Version CRLF, verify Method
         if (!requestSegments[0].equalsIgnoreCase(SUBSCRIBE_REQUEST)) {
             return ValidationResult.SUCCESS;
         }
 
-        List<Pair<String, String>> eventHeaders = SipMessageParsingUtils.parseHeaders(
-                message.getHeaderSection(), true /*stopAtFirstMatch*/, SUBSCRIBE_EVENT_HEADER);
+        List<Pair<String, String>> eventHeaders = message.getHeaders(
+                true /*stopAtFirstMatch*/, SUBSCRIBE_EVENT_HEADER);
         if (eventHeaders.size() == 0) {
             return ValidationResult.SUCCESS;
         }
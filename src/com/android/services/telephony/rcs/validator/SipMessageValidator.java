@@ -18,17 +18,30 @@ package com.android.services.telephony.rcs.validator;
 
 import android.telephony.ims.SipMessage;
 
+import com.android.services.telephony.rcs.ParsedSipMessage;
+
 /**
  * Validates a SipMessage and returns the result via an instance of {@link ValidationResult}.
  */
 public interface SipMessageValidator {
+    /**
+     * Validate that the SipMessage is allowed to be sent to the remote.
+     * @param message The parsed view of the SipMessage being validated, which is shared with the
+     *                other validators in the chain.
+     * @return A {@link ValidationResult} that represents whether or not the message was validated.
+     * If not validated, it also returns a reason why the SIP message was not validated.
+     */
+    ValidationResult validate(ParsedSipMessage message);
+
     /**
      * Validate that the SipMessage is allowed to be sent to the remote.
      * @param message The SipMessage being validated.
      * @return A {@link ValidationResult} that represents whether or not the message was validated.
      * If not validated, it also returns a reason why the SIP message was not validated.
      */
-    ValidationResult validate(SipMessage message);
+    default ValidationResult validate(SipMessage message) {
+        return validate(new ParsedSipMessage(message));
+    }
 
     /**
      * Compose a SipMessageValidator out of two validators, this validator running before the next
@@ -38,7 +51,7 @@ public interface SipMessageValidator {
      * @return A new SipMessageValidator composed of this validator and the next one.
      */
     default SipMessageValidator andThen(SipMessageValidator next) {
-        return (SipMessage m) -> {
+        return (ParsedSipMessage m) -> {
             ValidationResult result = validate(m);
             if (!result.isValidated) return result;
             return next.validate(m);
@@ -25,8 +25,10 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -61,6 +63,7 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
@@ -302,6 +305,192 @@ public class CarrierConfigLoaderTest extends TelephonyTestBase {
                 any(PersistableBundle.class), any(Runnable.class));
     }
 
+    /**
+     * Verifies that an override invalidates the cached merged config and bumps its version, and
+     * that callers can't modify the cached config through the returned bundle.
+     */
+    @Test
+    public void testOverrideConfig_invalidatesMergedConfig() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+
+        long version = mCarrierConfigLoader.getConfigVersion(DEFAULT_PHONE_ID);
+        PersistableBundle before = mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE);
+        before.putInt(CARRIER_CONFIG_EXAMPLE_KEY, CARRIER_CONFIG_EXAMPLE_VALUE + 1);
+        assertThat(mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE).getInt(CARRIER_CONFIG_EXAMPLE_KEY))
+                .isNotEqualTo(CARRIER_CONFIG_EXAMPLE_VALUE + 1);
+
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, getTestConfig() /*overrides*/,
+                false/*persistent*/);
+        mTestableLooper.processAllMessages();
+
+        assertThat(mCarrierConfigLoader.getConfigVersion(DEFAULT_PHONE_ID))
+                .isGreaterThan(version);
+        assertThat(mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE).getInt(CARRIER_CONFIG_EXAMPLE_KEY))
+                .isEqualTo(CARRIER_CONFIG_EXAMPLE_VALUE);
+    }
+
+    /**
+     * Verifies that #getConfigSubsetForSubIdWithFeature() resolves the requested keys with the
+     * same precedence as the full config and always includes the metadata keys.
+     */
+    @Test
+    public void testGetConfigSubset_resolvesLayers() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, getTestConfig() /*overrides*/,
+                false/*persistent*/);
+        mTestableLooper.processAllMessages();
+
+        String defaultKey = CarrierConfigManager.KEY_CARRIER_VOLTE_AVAILABLE_BOOL;
+        PersistableBundle subset = mCarrierConfigLoader.getConfigSubsetForSubIdWithFeature(
+                DEFAULT_SUB_ID, PLATFORM_CARRIER_CONFIG_PACKAGE, null /*callingFeatureId*/,
+                new String[] {CARRIER_CONFIG_EXAMPLE_KEY, defaultKey});
+        PersistableBundle all = mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE);
+
+        assertThat(subset.getInt(CARRIER_CONFIG_EXAMPLE_KEY))
+                .isEqualTo(CARRIER_CONFIG_EXAMPLE_VALUE);
+        assertThat(subset.getBoolean(defaultKey)).isEqualTo(all.getBoolean(defaultKey));
+        assertThat(subset.containsKey(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL))
+                .isTrue();
+        assertThat(subset.getBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL))
+                .isEqualTo(all.getBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL));
+    }
+
+    /**
+     * Verifies that config changes within the debounce window after a broadcast are coalesced
+     * into one broadcast at the end of the window, which lists the keys changed by all of them.
+     */
+    @Test
+    public void testConfigChangedBroadcast_coalescedWithinDebounceWindow() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        final int debounceMillis = 10000;
+        doReturn(debounceMillis).when(mResources).getInteger(
+                eq(R.integer.config_carrier_config_changed_debounce_millis));
+        mCarrierConfigLoader = new CarrierConfigLoader(mContext, mTestableLooper.getLooper());
+        mCarrierConfigLoader.clearConfigForPhone(DEFAULT_PHONE_ID, false);
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+        doNothing().when(mContext).sendBroadcastAsUser(any(Intent.class), any(UserHandle.class));
+        // Complete the subscription update right away, which triggers the broadcast.
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(3)).run();
+            return null;
+        }).when(mSubscriptionManagerService).updateSubscriptionByCarrierConfig(anyInt(),
+                anyString(), any(PersistableBundle.class), any(Runnable.class));
+
+        // The first change is broadcast right away and starts the window.
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, getTestConfig() /*overrides*/,
+                false/*persistent*/);
+        mTestableLooper.processAllMessages();
+        verify(mContext).sendBroadcastAsUser(any(Intent.class), any(UserHandle.class));
+
+        PersistableBundle defaults = CarrierConfigManager.getDefaultConfig();
+        String firstKey = CarrierConfigManager.KEY_CARRIER_VOLTE_AVAILABLE_BOOL;
+        String secondKey = CarrierConfigManager.KEY_CARRIER_VT_AVAILABLE_BOOL;
+        PersistableBundle firstChange = new PersistableBundle();
+        firstChange.putBoolean(firstKey, !defaults.getBoolean(firstKey));
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, firstChange, false/*persistent*/);
+        mTestableLooper.processAllMessages();
+        PersistableBundle secondChange = new PersistableBundle();
+        secondChange.putBoolean(secondKey, !defaults.getBoolean(secondKey));
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, secondChange, false/*persistent*/);
+        mTestableLooper.processAllMessages();
+        // Both changes are held back until the end of the window.
+        verify(mContext).sendBroadcastAsUser(any(Intent.class), any(UserHandle.class));
+
+        mTestableLooper.moveTimeForward(debounceMillis);
+        mTestableLooper.processAllMessages();
+
+        ArgumentCaptor<Intent> captor = ArgumentCaptor.forClass(Intent.class);
+        verify(mContext, times(2)).sendBroadcastAsUser(captor.capture(), any(UserHandle.class));
+        Intent coalesced = captor.getValue();
+        assertThat(coalesced.getAction())
+                .isEqualTo(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        assertThat(coalesced.getStringArrayExtra(CarrierConfigLoader.EXTRA_CHANGED_CONFIG_KEYS))
+                .asList().containsExactly(firstKey, secondKey);
+    }
+
+    /**
+     * Verifies that #getChangedKeys() reports added, removed and modified keys, compares arrays
+     * and nested bundles by content, and gives up when too many keys changed.
+     */
+    @Test
+    public void testGetChangedKeys() {
+        PersistableBundle nested = new PersistableBundle();
+        nested.putString("nested", "value");
+        PersistableBundle oldConfig = new PersistableBundle();
+        oldConfig.putInt("int", 1);
+        oldConfig.putIntArray("array", new int[] {1, 2});
+        oldConfig.putPersistableBundle("bundle", nested);
+        oldConfig.putString("removed", "value");
+        PersistableBundle newConfig = new PersistableBundle();
+        newConfig.putInt("int", 2);
+        newConfig.putIntArray("array", new int[] {1, 2});
+        newConfig.putPersistableBundle("bundle", new PersistableBundle(nested));
+        newConfig.putString("added", null);
+
+        assertThat(CarrierConfigLoader.getChangedKeys(null, newConfig,
+                CarrierConfigLoader.MAX_CHANGED_CONFIG_KEYS)).isNull();
+        assertThat(CarrierConfigLoader.getChangedKeys(oldConfig, newConfig,
+                CarrierConfigLoader.MAX_CHANGED_CONFIG_KEYS))
+                .asList().containsExactly("int", "removed", "added");
+        assertThat(CarrierConfigLoader.getChangedKeys(oldConfig, oldConfig,
+                CarrierConfigLoader.MAX_CHANGED_CONFIG_KEYS)).isEmpty();
+        assertThat(CarrierConfigLoader.getChangedKeys(oldConfig, newConfig, 2)).isNull();
+    }
+
+    /**
+     * Verifies that the changed keys are omitted from the rebroadcast after the user unlock, even
+     * if the config did not change, and are reported again for the next broadcast.
+     */
+    @Test
+    public void testUpdateLastBroadcastConfig_unlockRebroadcast() {
+        PersistableBundle config = getTestConfig();
+
+        assertThat(mCarrierConfigLoader.updateLastBroadcastConfig(DEFAULT_PHONE_ID,
+                DEFAULT_SUB_ID, false /*fromSystemUnlocked*/, config)).isNull();
+        assertThat(mCarrierConfigLoader.updateLastBroadcastConfig(DEFAULT_PHONE_ID,
+                DEFAULT_SUB_ID, false /*fromSystemUnlocked*/, config)).isEmpty();
+        assertThat(mCarrierConfigLoader.updateLastBroadcastConfig(DEFAULT_PHONE_ID,
+                DEFAULT_SUB_ID, true /*fromSystemUnlocked*/, config)).isNull();
+        assertThat(mCarrierConfigLoader.updateLastBroadcastConfig(DEFAULT_PHONE_ID,
+                DEFAULT_SUB_ID, false /*fromSystemUnlocked*/, config)).isEmpty();
+    }
+
+    /**
+     * Verifies that the changed keys are omitted when the subId differs from the previous
+     * broadcast, e.g. after a SIM swap to a carrier with the same config.
+     */
+    @Test
+    public void testUpdateLastBroadcastConfig_subIdChanged() {
+        PersistableBundle config = getTestConfig();
+        int otherSubId = DEFAULT_SUB_ID + 1;
+
+        assertThat(mCarrierConfigLoader.updateLastBroadcastConfig(DEFAULT_PHONE_ID,
+                DEFAULT_SUB_ID, false /*fromSystemUnlocked*/, config)).isNull();
+        assertThat(mCarrierConfigLoader.updateLastBroadcastConfig(DEFAULT_PHONE_ID,
+                otherSubId, false /*fromSystemUnlocked*/, config)).isNull();
+        assertThat(mCarrierConfigLoader.updateLastBroadcastConfig(DEFAULT_PHONE_ID,
+                otherSubId, false /*fromSystemUnlocked*/, config)).isEmpty();
+        assertThat(mCarrierConfigLoader.updateLastBroadcastConfig(DEFAULT_PHONE_ID,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID, false /*fromSystemUnlocked*/,
+                config)).isNull();
+    }
+
     /**
      * Verifies that IllegalArgumentException should throw when calling
      * #notifyConfigChangedForSubId() with invalid subId.
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.telephony.CarrierConfigManager;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+/**
+ * Benchmark of {@link CarrierConfigSnapshot} against the XML cache. It is kept out of the
+ * {@link CarrierConfigSnapshotTest} small tests because it only logs timings.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class CarrierConfigSnapshotBenchmarkTest {
+    private static final String LOG_TAG = "CarrierConfigSnapshotBenchmarkTest";
+    private static final String PACKAGE_VERSION = "34";
+    private static final int CARRIER_ID = 1839;
+    private static final String ICCID = "8901260962341297651";
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    private File mSnapshotFile;
+    private File mXmlFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mSnapshotFile = File.createTempFile("carrierconfig-benchmark",
+                CarrierConfigSnapshot.FILE_EXTENSION);
+        mXmlFile = File.createTempFile("carrierconfig-benchmark", ".xml");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSnapshotFile.delete();
+        mXmlFile.delete();
+    }
+
+    /**
+     * Compares the time to restore the full default config from a snapshot and from XML, the way
+     * CarrierConfigLoader does on boot. Results are logged rather than asserted since they depend
+     * on the device.
+     */
+    @Test
+    public void benchmarkRestore_snapshotVsXml() throws Exception {
+        PersistableBundle config = CarrierConfigManager.getDefaultConfig();
+        CarrierConfigSnapshot.write(mSnapshotFile, config, PACKAGE_VERSION, CARRIER_ID, ICCID);
+        try (FileOutputStream out = new FileOutputStream(mXmlFile)) {
+            config.writeToStream(out);
+        }
+
+        long snapshotNanos = 0;
+        long xmlNanos = 0;
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            PersistableBundle fromSnapshot = CarrierConfigSnapshot.read(mSnapshotFile,
+                    PACKAGE_VERSION, CARRIER_ID, ICCID);
+            snapshotNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            PersistableBundle fromXml;
+            try (FileInputStream in = new FileInputStream(mXmlFile)) {
+                fromXml = PersistableBundle.readFromStream(in);
+            }
+            xmlNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+            assertThat(fromSnapshot.size()).isEqualTo(fromXml.size());
+        }
+
+        Log.i(LOG_TAG, "Restore " + config.size() + " keys: snapshot="
+                + snapshotNanos / BENCHMARK_ITERATIONS / 1000 + "us xml="
+                + xmlNanos / BENCHMARK_ITERATIONS / 1000 + "us, snapshot size="
+                + mSnapshotFile.length() + " xml size=" + mXmlFile.length());
+    }
+}
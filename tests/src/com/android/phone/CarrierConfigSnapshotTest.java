@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Objects;
+
+/**
+ * Unit tests for {@link CarrierConfigSnapshot}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class CarrierConfigSnapshotTest {
+    private static final String PACKAGE_VERSION = "34";
+    private static final int CARRIER_ID = 1839;
+    private static final String ICCID = "8901260962341297651";
+
+    private File mSnapshotFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mSnapshotFile = File.createTempFile("carrierconfig-test",
+                CarrierConfigSnapshot.FILE_EXTENSION);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSnapshotFile.delete();
+    }
+
+    @Test
+    public void testRoundTrip_allTypes() throws Exception {
+        PersistableBundle nested = new PersistableBundle();
+        nested.putString("nested_string", "value");
+        PersistableBundle config = new PersistableBundle();
+        config.putBoolean("boolean", true);
+        config.putInt("int", -7);
+        config.putLong("long", Long.MAX_VALUE);
+        config.putDouble("double", 1.5);
+        config.putString("string", "été");
+        config.putString("null_string", null);
+        config.putBooleanArray("boolean_array", new boolean[] {true, false});
+        config.putIntArray("int_array", new int[] {1, 2, 3});
+        config.putLongArray("long_array", new long[] {4L, 5L});
+        config.putDoubleArray("double_array", new double[] {0.25});
+        config.putStringArray("string_array", new String[] {"a", null, ""});
+        config.putPersistableBundle("bundle", nested);
+
+        CarrierConfigSnapshot.write(mSnapshotFile, config, PACKAGE_VERSION, CARRIER_ID, ICCID);
+        PersistableBundle restored = CarrierConfigSnapshot.read(mSnapshotFile, PACKAGE_VERSION,
+                CARRIER_ID, ICCID);
+
+        assertThat(restored).isNotNull();
+        assertThat(restored.keySet()).isEqualTo(config.keySet());
+        assertThat(restored.getBoolean("boolean")).isTrue();
+        assertThat(restored.getInt("int")).isEqualTo(-7);
+        assertThat(restored.getLong("long")).isEqualTo(Long.MAX_VALUE);
+        assertThat(restored.getDouble("double")).isEqualTo(1.5);
+        assertThat(restored.getString("string")).isEqualTo("été");
+        assertThat(restored.getString("null_string")).isNull();
+        assertThat(restored.getBooleanArray("boolean_array"))
+                .isEqualTo(new boolean[] {true, false});
+        assertThat(restored.getIntArray("int_array")).isEqualTo(new int[] {1, 2, 3});
+        assertThat(restored.getLongArray("long_array")).isEqualTo(new long[] {4L, 5L});
+        assertThat(restored.getDoubleArray("double_array")).isEqualTo(new double[] {0.25});
+        assertThat(restored.getStringArray("string_array"))
+                .isEqualTo(new String[] {"a", null, ""});
+        assertThat(restored.getPersistableBundle("bundle").getString("nested_string"))
+                .isEqualTo("value");
+    }
+
+    @Test
+    public void testRoundTrip_defaultConfig() throws Exception {
+        PersistableBundle config = CarrierConfigManager.getDefaultConfig();
+
+        CarrierConfigSnapshot.write(mSnapshotFile, config, PACKAGE_VERSION, CARRIER_ID, ICCID);
+        PersistableBundle restored = CarrierConfigSnapshot.read(mSnapshotFile, PACKAGE_VERSION,
+                CARRIER_ID, ICCID);
+
+        assertBundleEquals(config, restored);
+    }
+
+    private static void assertBundleEquals(PersistableBundle expected, PersistableBundle actual) {
+        assertThat(actual.keySet()).isEqualTo(expected.keySet());
+        for (String key : expected.keySet()) {
+            Object value = expected.get(key);
+            if (value instanceof PersistableBundle) {
+                assertBundleEquals((PersistableBundle) value, actual.getPersistableBundle(key));
+            } else {
+                assertThat(Objects.deepEquals(value, actual.get(key))).isTrue();
+            }
+        }
+    }
+
+    @Test
+    public void testRead_headerMismatch() throws Exception {
+        PersistableBundle config = new PersistableBundle();
+        config.putInt("int", 1);
+        CarrierConfigSnapshot.write(mSnapshotFile, config, PACKAGE_VERSION, CARRIER_ID, ICCID);
+
+        assertThat(CarrierConfigSnapshot.read(mSnapshotFile, "35", CARRIER_ID, ICCID)).isNull();
+        assertThat(CarrierConfigSnapshot.read(mSnapshotFile, PACKAGE_VERSION, CARRIER_ID + 1,
+                ICCID)).isNull();
+        assertThat(CarrierConfigSnapshot.read(mSnapshotFile, PACKAGE_VERSION, CARRIER_ID,
+                "8901260962341297652")).isNull();
+        assertThat(CarrierConfigSnapshot.read(mSnapshotFile, PACKAGE_VERSION, CARRIER_ID, null))
+                .isNull();
+    }
+
+    @Test
+    public void testRead_corruptedPayload() throws Exception {
+        PersistableBundle config = new PersistableBundle();
+        config.putString("string", "value");
+        CarrierConfigSnapshot.write(mSnapshotFile, config, PACKAGE_VERSION, CARRIER_ID, ICCID);
+        try (RandomAccessFile file = new RandomAccessFile(mSnapshotFile, "rw")) {
+            file.seek(file.length() - 1);
+            file.write('X');
+        }
+
+        assertThrows(IOException.class, () -> CarrierConfigSnapshot.read(mSnapshotFile,
+                PACKAGE_VERSION, CARRIER_ID, ICCID));
+    }
+
+    @Test
+    public void testRead_truncated() throws Exception {
+        PersistableBundle config = new PersistableBundle();
+        config.putString("string", "value");
+        CarrierConfigSnapshot.write(mSnapshotFile, config, PACKAGE_VERSION, CARRIER_ID, ICCID);
+        try (RandomAccessFile file = new RandomAccessFile(mSnapshotFile, "rw")) {
+            file.setLength(file.length() - 2);
+        }
+
+        assertThrows(IOException.class, () -> CarrierConfigSnapshot.read(mSnapshotFile,
+                PACKAGE_VERSION, CARRIER_ID, ICCID));
+    }
+
+    @Test
+    public void testGetFilename() {
+        assertThat(CarrierConfigSnapshot.getFilename("carrierconfig-pkg-123-1.xml"))
+                .isEqualTo("carrierconfig-pkg-123-1.ccs");
+    }
+}
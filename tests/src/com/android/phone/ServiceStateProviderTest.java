@@ -80,6 +80,10 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 /**
  * Tests for simple queries of ServiceStateProvider.
  *
@@ -123,6 +127,11 @@ public class ServiceStateProviderTest {
             public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
                 throw new TestNotifierException();
             }
+
+            @Override
+            public void notifyChange(Collection<Uri> uris, ContentObserver observer, int flags) {
+                throw new TestNotifierException();
+            }
         };
         doReturn(mContentResolver).when(mContext).getContentResolver();
 
@@ -416,6 +425,34 @@ public class ServiceStateProviderTest {
         verify(mAppOpsManager, never()).noteOpNoThrow(any(), anyInt(), any(), any(), any());
     }
 
+    /**
+     * Verify that the cursor only holds the projected columns in the projected order, and that
+     * the rows cached for one subId are not returned for another.
+     */
+    @Test
+    @CoreCompatChangeRule.EnableCompatChanges({ENFORCE_LOCATION_PERMISSION_CHECK})
+    public void testQuery_projectionSubset_rowsCachedPerSubId() {
+        setTargetSdkVersion(Build.VERSION_CODES.S);
+        setCanReadPrivilegedPhoneState(false);
+        String[] projection = new String[]{DUPLEX_MODE, VOICE_REG_STATE};
+
+        for (int i = 0; i < 2; i++) {
+            try (Cursor cursor = mContentResolver.query(getUriForSubscriptionId(0), projection,
+                    null, null)) {
+                assertEquals(2, cursor.getColumnCount());
+                cursor.moveToFirst();
+                assertEquals(mTestServiceState.getDuplexMode(), cursor.getInt(0));
+                assertEquals(mTestServiceState.getVoiceRegState(), cursor.getInt(1));
+            }
+        }
+        try (Cursor cursor = mContentResolver.query(getUriForSubscriptionId(1), projection,
+                null, null)) {
+            cursor.moveToFirst();
+            assertEquals(mTestServiceStateForSubId1.getDuplexMode(), cursor.getInt(0));
+            assertEquals(mTestServiceStateForSubId1.getVoiceRegState(), cursor.getInt(1));
+        }
+    }
+
     private void verifyServiceStateWithLocationColumns(ServiceState ss) {
         // NETWORK_ID is a location-sensitive column
         try (Cursor cursor = mContentResolver.query(ServiceStateTable.CONTENT_URI,
@@ -618,6 +655,29 @@ public class ServiceStateProviderTest {
         assertTrue(notifyChangeCalledForSubIdAndField(oldSS, newSS, subId));
     }
 
+    /**
+     * Test that all the fields changed by one transition are notified in a single call.
+     */
+    @Test
+    @SmallTest
+    public void testNotifyChanged_batchesAllChangedFields() {
+        List<Collection<Uri>> notified = new ArrayList<>();
+        MockContentResolver recordingResolver = new MockContentResolver() {
+            @Override
+            public void notifyChange(Collection<Uri> uris, ContentObserver observer, int flags) {
+                notified.add(new ArrayList<>(uris));
+            }
+        };
+        doReturn(recordingResolver).when(mContext).getContentResolver();
+
+        ServiceState newSS = new ServiceState();
+        newSS.setStateOutOfService();
+        ServiceStateProvider.notifyChangeForSubIdAndField(mContext, null /*oldSS*/, newSS, 0);
+
+        assertEquals(1, notified.size());
+        assertEquals(5, notified.get(0).size());
+    }
+
     // Check if notifyChange was called by notifyChangeForSubId
     private boolean notifyChangeCalledForSubId(ServiceState oldSS,
             ServiceState newSS, int subId) {
@@ -35,6 +35,7 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -1310,6 +1311,113 @@ public final class SimPhonebookProviderTest {
         verify(mockNotifier).notifyChange(eq(SimPhonebookContract.AUTHORITY_URI));
     }
 
+    @Test
+    public void bulkInsert_adnRecords_fillsEmptyRecordsAndNotifiesOnce() {
+        // Clear invocations that happened in setUp
+        Mockito.reset(mMockSubscriptionManager);
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        mIccPhoneBook.addRecord(1, new AdnRecord(IccConstants.EF_ADN, 2, "Existing", "8005550101"));
+        SimPhonebookProvider.ContentNotifier mockNotifier = mock(
+                SimPhonebookProvider.ContentNotifier.class);
+
+        TestableSimPhonebookProvider.setup(
+                mResolver, mMockSubscriptionManager, mIccPhoneBook, mockNotifier);
+
+        ContentValues[] values = new ContentValues[3];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(SimRecords.NAME, "New" + (i + 1));
+            values[i].put(SimRecords.PHONE_NUMBER, "800555010" + (i + 2));
+        }
+        int inserted = mResolver.bulkInsert(SimRecords.getContentUri(1, EF_ADN), values);
+
+        assertThat(inserted).isEqualTo(3);
+        assertThat(
+                mIccPhoneBook.getAdnRecordsInEfForSubscriber(1, IccConstants.EF_ADN).subList(0, 4))
+                .comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(
+                        new AdnRecord(IccConstants.EF_ADN, 1, "New1", "8005550102"),
+                        new AdnRecord(IccConstants.EF_ADN, 2, "Existing", "8005550101"),
+                        new AdnRecord(IccConstants.EF_ADN, 3, "New2", "8005550103"),
+                        new AdnRecord(IccConstants.EF_ADN, 4, "New3", "8005550104"));
+        verify(mockNotifier).notifyChange(eq(SimPhonebookContract.AUTHORITY_URI));
+    }
+
+    @Test
+    public void bulkInsert_invalidRecord_writesNothing() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+
+        ContentValues valid = new ContentValues();
+        valid.put(SimRecords.NAME, "Valid");
+        valid.put(SimRecords.PHONE_NUMBER, "8005550101");
+        ContentValues invalid = new ContentValues();
+        invalid.put(SimRecords.NAME, "Invalid");
+
+        assertThrows(IllegalArgumentException.class, () -> mResolver.bulkInsert(
+                SimRecords.getContentUri(1, EF_ADN), new ContentValues[] {valid, invalid}));
+        assertThat(mIccPhoneBook.getAdnRecordsInEfForSubscriber(1, IccConstants.EF_ADN).stream()
+                .allMatch(AdnRecord::isEmpty)).isTrue();
+    }
+
+    @Test
+    public void bulkInsert_moreRecordsThanFree_writesNothing() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.setupEfWithSizes(1, IccConstants.EF_ADN, 3, 30);
+        mIccPhoneBook.addRecord(1, new AdnRecord(IccConstants.EF_ADN, 2, "Existing", "8005550101"));
+
+        ContentValues[] values = new ContentValues[3];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(SimRecords.NAME, "New" + (i + 1));
+            values[i].put(SimRecords.PHONE_NUMBER, "800555010" + (i + 2));
+        }
+
+        assertThrows(IllegalStateException.class, () -> mResolver.bulkInsert(
+                SimRecords.getContentUri(1, EF_ADN), values));
+        assertThat(mIccPhoneBook.getAdnRecordsInEfForSubscriber(1, IccConstants.EF_ADN))
+                .comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(
+                        new AdnRecord(IccConstants.EF_ADN, 1, "", ""),
+                        new AdnRecord(IccConstants.EF_ADN, 2, "Existing", "8005550101"),
+                        new AdnRecord(IccConstants.EF_ADN, 3, "", ""));
+    }
+
+    @Test
+    public void applyBatch_multipleOperations_notifiesOnce() throws Exception {
+        // Clear invocations that happened in setUp
+        Mockito.reset(mMockSubscriptionManager);
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        mIccPhoneBook.addRecord(1, new AdnRecord(IccConstants.EF_ADN, 1, "Initial", "8005550101"));
+        SimPhonebookProvider.ContentNotifier mockNotifier = mock(
+                SimPhonebookProvider.ContentNotifier.class);
+
+        TestableSimPhonebookProvider.setup(
+                mResolver, mMockSubscriptionManager, mIccPhoneBook, mockNotifier);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newUpdate(
+                        SimRecords.getItemUri(1, ElementaryFiles.EF_ADN, 1))
+                .withValue(SimRecords.NAME, "Updated")
+                .withValue(SimRecords.PHONE_NUMBER, "8005550102")
+                .build());
+        operations.add(ContentProviderOperation.newInsert(SimRecords.getContentUri(1, EF_ADN))
+                .withValue(SimRecords.NAME, "New")
+                .withValue(SimRecords.PHONE_NUMBER, "8005550103")
+                .build());
+        mResolver.applyBatch(SimPhonebookContract.AUTHORITY, operations);
+
+        assertThat(
+                mIccPhoneBook.getAdnRecordsInEfForSubscriber(1, IccConstants.EF_ADN).subList(0, 2))
+                .comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(
+                        new AdnRecord(IccConstants.EF_ADN, 1, "Updated", "8005550102"),
+                        new AdnRecord(IccConstants.EF_ADN, 2, "New", "8005550103"));
+        verify(mockNotifier).notifyChange(eq(SimPhonebookContract.AUTHORITY_URI));
+    }
+
     @Test
     public void getEncodedNameLength_returnsValueIsCorrect() {
         String name = "";
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import static com.android.services.telephony.EmergencyCallTracer.MAX_PHASES_PER_TRACE;
+import static com.android.services.telephony.EmergencyCallTracer.MAX_TRACES;
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_ALERTING;
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_CREATE_OUTGOING_CONNECTION;
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_DIAL;
+import static com.android.services.telephony.EmergencyCallTracer.PHASE_NETWORK_SCAN_RESULT;
+import static com.android.services.telephony.EmergencyCallTracer.REASON_RADIO_OFF;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Unit tests for {@link EmergencyCallTracer}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class EmergencyCallTracerTest {
+    private static final String CALL_ID = "TC@1";
+
+    private EmergencyCallTracer mTracer;
+
+    @Before
+    public void setUp() throws Exception {
+        mTracer = new EmergencyCallTracer();
+    }
+
+    @Test
+    public void testRecord_timeline() {
+        mTracer.startTrace(CALL_ID);
+        mTracer.record(CALL_ID, PHASE_CREATE_OUTGOING_CONNECTION, REASON_RADIO_OFF);
+        mTracer.record(CALL_ID, PHASE_NETWORK_SCAN_RESULT, 3);
+        mTracer.record(CALL_ID, PHASE_DIAL);
+
+        List<String> timeline = mTracer.getTimeline();
+
+        assertThat(timeline).hasSize(4);
+        assertThat(timeline.get(1)).startsWith("1,TC@1,CREATE_OUTGOING_CONNECTION,3,");
+        assertThat(timeline.get(2)).startsWith("1,TC@1,NETWORK_SCAN_RESULT,3,");
+        assertThat(timeline.get(3)).startsWith("1,TC@1,DIAL,0,");
+        long first = Long.parseLong(timeline.get(1).split(",")[4]);
+        long last = Long.parseLong(timeline.get(3).split(",")[4]);
+        assertThat(last).isAtLeast(first);
+        assertThat(timeline.get(1)).endsWith(",0");
+    }
+
+    @Test
+    public void testRecord_withoutTraceIgnored() {
+        mTracer.record(CALL_ID, PHASE_DIAL);
+        mTracer.record(null, PHASE_DIAL);
+
+        assertThat(mTracer.getTimeline()).hasSize(1);
+    }
+
+    @Test
+    public void testRecord_onlyFirstAlerting() {
+        mTracer.startTrace(CALL_ID);
+        mTracer.record(CALL_ID, PHASE_ALERTING);
+        mTracer.record(CALL_ID, PHASE_ALERTING);
+
+        assertThat(mTracer.getTimeline()).hasSize(2);
+    }
+
+    @Test
+    public void testRecord_boundedPhases() {
+        mTracer.startTrace(CALL_ID);
+        for (int i = 0; i < MAX_PHASES_PER_TRACE + 10; i++) {
+            mTracer.record(CALL_ID, PHASE_NETWORK_SCAN_RESULT, i);
+        }
+
+        assertThat(mTracer.getTimeline()).hasSize(MAX_PHASES_PER_TRACE + 1);
+    }
+
+    @Test
+    public void testStartTrace_evictsOldest() {
+        for (int i = 0; i <= MAX_TRACES; i++) {
+            mTracer.startTrace("TC@" + i);
+            mTracer.record("TC@" + i, PHASE_DIAL);
+        }
+
+        List<String> timeline = mTracer.getTimeline();
+        assertThat(timeline).hasSize(MAX_TRACES + 1);
+        // The trace of the first call has been evicted.
+        assertThat(timeline.get(1)).startsWith("2,TC@1,");
+
+        // Recording to the evicted call is ignored.
+        mTracer.record("TC@0", PHASE_ALERTING);
+        assertThat(mTracer.getTimeline()).hasSize(MAX_TRACES + 1);
+    }
+}
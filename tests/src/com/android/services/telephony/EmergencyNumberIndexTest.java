@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+
+import android.telephony.emergency.EmergencyNumber;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.emergency.EmergencyNumberTracker;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link EmergencyNumberIndex}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class EmergencyNumberIndexTest {
+    private static final String NUMBER_911 = "911";
+    private static final String NUMBER_112 = "112";
+
+    @Mock private Phone mPhone0;
+    @Mock private Phone mPhone1;
+    @Mock private EmergencyNumberTracker mTracker0;
+    @Mock private EmergencyNumberTracker mTracker1;
+
+    private Phone[] mPhones;
+    private EmergencyNumberIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        doReturn(0).when(mPhone0).getPhoneId();
+        doReturn(1).when(mPhone1).getPhoneId();
+        doReturn(mTracker0).when(mPhone0).getEmergencyNumberTracker();
+        doReturn(mTracker1).when(mPhone1).getEmergencyNumberTracker();
+        mPhones = new Phone[] { mPhone0, mPhone1 };
+        mIndex = new EmergencyNumberIndex(() -> mPhones);
+    }
+
+    @Test
+    public void testLookup_listedNumber() {
+        setEmergencyNumbers(mTracker0, List.of(createNumber(NUMBER_911,
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_POLICE,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_EMERGENCY)));
+        setEmergencyNumbers(mTracker1, List.of(createNumber(NUMBER_911,
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_AMBULANCE,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_NORMAL)));
+
+        EmergencyNumberIndex.Entry entry = mIndex.lookup(NUMBER_911);
+
+        assertNotNull(entry);
+        assertTrue(entry.isEmergencyNumber(0));
+        assertTrue(entry.isEmergencyNumber(1));
+        assertFalse(entry.isEmergencyNumber(2));
+        assertEquals(EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_POLICE
+                | EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_AMBULANCE,
+                entry.getEmergencyServiceCategoryBitmask());
+        assertEquals(EmergencyNumber.EMERGENCY_CALL_ROUTING_EMERGENCY,
+                entry.getEmergencyCallRouting(0));
+        assertEquals(EmergencyNumber.EMERGENCY_CALL_ROUTING_NORMAL,
+                entry.getEmergencyCallRouting(1));
+    }
+
+    @Test
+    public void testLookup_numberListedInOtherPhoneOnly() {
+        setEmergencyNumbers(mTracker0, List.of(createNumber(NUMBER_112,
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN)));
+        setEmergencyNumbers(mTracker1, Collections.emptyList());
+
+        EmergencyNumberIndex.Entry entry = mIndex.lookup(NUMBER_112);
+
+        assertNotNull(entry);
+        assertTrue(entry.isEmergencyNumber(0));
+        assertFalse(entry.isEmergencyNumber(1));
+        assertFalse(entry.isEmpty());
+    }
+
+    @Test
+    public void testLookup_unlistedNumberFallsBack() {
+        setEmergencyNumbers(mTracker0, List.of(createNumber(NUMBER_911,
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN)));
+
+        assertNull(mIndex.lookup(NUMBER_112));
+        assertNull(mIndex.lookup(null));
+    }
+
+    @Test
+    public void testLookup_builtOnceUntilInvalidated() {
+        setEmergencyNumbers(mTracker0, List.of(createNumber(NUMBER_911,
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN)));
+
+        mIndex.lookup(NUMBER_911);
+        mIndex.lookup(NUMBER_911);
+        mIndex.lookup(NUMBER_112);
+        assertEquals(1, mIndex.getRebuildCount());
+
+        // The emergency number list of the other phone has been updated.
+        setEmergencyNumbers(mTracker1, List.of(createNumber(NUMBER_911,
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN)));
+        assertFalse(mIndex.lookup(NUMBER_911).isEmergencyNumber(1));
+
+        mIndex.invalidate();
+        assertTrue(mIndex.lookup(NUMBER_911).isEmergencyNumber(1));
+        assertEquals(2, mIndex.getRebuildCount());
+    }
+
+    @Test
+    public void testLookup_notRebuiltAfterDispose() {
+        setEmergencyNumbers(mTracker0, List.of(createNumber(NUMBER_911,
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN)));
+        mIndex.lookup(NUMBER_911);
+
+        mIndex.dispose();
+
+        // The index would no longer be invalidated, so the trackers are asked directly.
+        assertNull(mIndex.lookup(NUMBER_911));
+        assertEquals(1, mIndex.getRebuildCount());
+    }
+
+    @Test
+    public void testLookup_rebuiltWhenPhonesChange() {
+        setEmergencyNumbers(mTracker0, List.of(createNumber(NUMBER_911,
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN)));
+        mIndex.lookup(NUMBER_911);
+
+        mPhones = new Phone[] { mPhone0 };
+        EmergencyNumberIndex.Entry entry = mIndex.lookup(NUMBER_911);
+
+        assertEquals(2, mIndex.getRebuildCount());
+        assertTrue(entry.isEmergencyNumber(0));
+        assertFalse(entry.isEmergencyNumber(1));
+    }
+
+    private static void setEmergencyNumbers(EmergencyNumberTracker tracker,
+            List<EmergencyNumber> numbers) {
+        doReturn(numbers).when(tracker).getEmergencyNumberList();
+        doReturn(false).when(tracker).isEmergencyNumber(anyString());
+        for (EmergencyNumber number : numbers) {
+            doReturn(true).when(tracker).isEmergencyNumber(eq(number.getNumber()));
+        }
+    }
+
+    private static EmergencyNumber createNumber(String number, int categories, int routing) {
+        return new EmergencyNumber(number, "us", "", categories, Collections.emptyList(),
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE,
+                routing);
+    }
+}
@@ -26,12 +26,15 @@ import static android.telephony.PreciseDisconnectCause.EMERGENCY_TEMP_FAILURE;
 import static com.android.services.telephony.domainselection.CrossSimRedialingController.MSG_CROSS_STACK_TIMEOUT;
 import static com.android.services.telephony.domainselection.CrossSimRedialingController.MSG_QUICK_CROSS_STACK_TIMEOUT;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -40,8 +43,13 @@ import android.content.Context;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.PersistableBundle;
+import android.telephony.AccessNetworkConstants.AccessNetworkType;
 import android.telephony.CarrierConfigManager;
+import android.telephony.EmergencyRegResult;
+import android.telephony.NetworkRegistrationInfo;
+import android.telephony.ServiceState;
 import android.telephony.TelephonyManager;
+import android.telephony.ims.feature.MmTelFeature.MmTelCapabilities;
 import android.testing.TestableLooper;
 import android.util.Log;
 
@@ -62,6 +70,7 @@ public class CrossSimRedialingControllerTest {
 
     private static final int SLOT_0 = 0;
     private static final int SLOT_1 = 1;
+    private static final int SLOT_2 = 2;
 
     private static final String TELECOM_CALL_ID1 = "TC1";
     private static final String TEST_EMERGENCY_NUMBER = "911";
@@ -462,6 +471,192 @@ public class CrossSimRedialingControllerTest {
         verify(mEcds, times(0)).notifyCrossStackTimerExpired();
     }
 
+    @Test
+    public void testReadinessScore() throws Exception {
+        createController();
+        mCsrController.addSlot(SLOT_0, createImsStateTracker(false, ServiceState.STATE_POWER_OFF));
+        mCsrController.addSlot(SLOT_1, createImsStateTracker(true, ServiceState.STATE_IN_SERVICE));
+
+        assertEquals(CrossSimRedialingController.SCORE_NONE,
+                mCsrController.getReadinessScore(SLOT_0));
+        assertEquals(CrossSimRedialingController.SCORE_IMS + CrossSimRedialingController.SCORE_CS,
+                mCsrController.getReadinessScore(SLOT_1));
+
+        mCsrController.notifyScanResult(SLOT_0, new EmergencyRegResult(AccessNetworkType.UTRAN,
+                NetworkRegistrationInfo.REGISTRATION_STATE_UNKNOWN,
+                NetworkRegistrationInfo.DOMAIN_CS, false, false, 0, 0, "", "", ""));
+
+        assertEquals(CrossSimRedialingController.SCORE_SCAN_RESULT,
+                mCsrController.getReadinessScore(SLOT_0));
+
+        mCsrController.startTimer(mContext, mEcds, TELECOM_CALL_ID1,
+                TEST_EMERGENCY_NUMBER, false, false, 2);
+        mCsrController.notifyCallFailure(EMERGENCY_PERM_FAILURE);
+
+        assertEquals(CrossSimRedialingController.SCORE_REJECTED,
+                mCsrController.getReadinessScore(SLOT_0));
+    }
+
+    @Test
+    public void testReadinessScoreEmergencyOnly() throws Exception {
+        createController();
+        ServiceState serviceState = new ServiceState();
+        serviceState.setState(ServiceState.STATE_OUT_OF_SERVICE);
+        serviceState.setEmergencyOnly(true);
+        mCsrController.addSlot(SLOT_1, createImsStateTracker(false, serviceState));
+
+        assertEquals(CrossSimRedialingController.SCORE_CS,
+                mCsrController.getReadinessScore(SLOT_1));
+    }
+
+    @Test
+    public void testOtherSlotInSlotOrder() throws Exception {
+        createController();
+        mCsrController.addSlot(SLOT_0, createImsStateTracker(false, ServiceState.STATE_POWER_OFF));
+        mCsrController.addSlot(SLOT_1,
+                createImsStateTracker(false, ServiceState.STATE_OUT_OF_SERVICE));
+        mCsrController.addSlot(SLOT_2, createImsStateTracker(true, ServiceState.STATE_IN_SERVICE));
+
+        mCsrController.startTimer(mContext, mEcds, TELECOM_CALL_ID1,
+                TEST_EMERGENCY_NUMBER, false, false, 3);
+
+        assertTrue(mCsrController.isThereOtherSlot());
+
+        doReturn(TelephonyManager.SIM_STATE_PIN_REQUIRED)
+                .when(mTelephonyManager).getSimState(anyInt());
+
+        assertFalse(mCsrController.isThereOtherSlot());
+    }
+
+    @Test
+    public void testImmediateRedialShortensRedialGap() throws Exception {
+        createController();
+        mCsrController.setImmediateRedialEnabled(false);
+
+        // The slot 0 has no emergency service, but the slot 1 is ready for IMS emergency call.
+        long gapMillis = measureRedialGapMillis();
+        assertEquals(120000L, gapMillis);
+
+        mCsrController.destroy();
+        createController();
+        mCsrController.setImmediateRedialEnabled(true);
+
+        long immediateGapMillis = measureRedialGapMillis();
+        assertEquals(0L, immediateGapMillis);
+        assertTrue(immediateGapMillis < gapMillis);
+    }
+
+    @Test
+    public void testNoImmediateRedialWhenDisabledByDefault() throws Exception {
+        createController();
+
+        long gapMillis = measureRedialGapMillis();
+        assertEquals(120000L, gapMillis);
+    }
+
+    @Test
+    public void testNoImmediateRedialWhenTimersDisabled() throws Exception {
+        doReturn(getPersistableBundle(0, 0, false)).when(mCarrierConfigManager)
+                .getConfigForSubId(anyInt(), ArgumentMatchers.<String>any());
+        createController();
+        mCsrController.setImmediateRedialEnabled(true);
+
+        assertEquals(-1L, measureRedialGapMillis());
+    }
+
+    @Test
+    public void testNoImmediateRedialWhenRoaming() throws Exception {
+        createController();
+        mCsrController.setImmediateRedialEnabled(true);
+        mCsrController.addSlot(SLOT_0, createImsStateTracker(false, ServiceState.STATE_POWER_OFF));
+        mCsrController.addSlot(SLOT_1, createImsStateTracker(true, ServiceState.STATE_IN_SERVICE));
+
+        mCsrController.startTimer(mContext, mEcds, TELECOM_CALL_ID1,
+                TEST_EMERGENCY_NUMBER, false, true, 2);
+        processAllMessages();
+
+        assertTrue(mCsrController.hasMessages(MSG_CROSS_STACK_TIMEOUT));
+        verify(mEcds, times(0)).notifyCrossStackTimerExpired();
+    }
+
+    @Test
+    public void testNoImmediateRedialWhenQuickTimerRequiresInService() throws Exception {
+        doReturn(getPersistableBundle(3, 120, true)).when(mCarrierConfigManager)
+                .getConfigForSubId(anyInt(), ArgumentMatchers.<String>any());
+        createController();
+        mCsrController.setImmediateRedialEnabled(true);
+        mCsrController.addSlot(SLOT_0, createImsStateTracker(false, ServiceState.STATE_POWER_OFF));
+        mCsrController.addSlot(SLOT_1, createImsStateTracker(true, ServiceState.STATE_IN_SERVICE));
+
+        mCsrController.startTimer(mContext, mEcds, TELECOM_CALL_ID1,
+                TEST_EMERGENCY_NUMBER, false, false, 2);
+        processAllMessages();
+
+        assertTrue(mCsrController.hasMessages(MSG_CROSS_STACK_TIMEOUT));
+        verify(mEcds, times(0)).notifyCrossStackTimerExpired();
+    }
+
+    @Test
+    public void testNoImmediateRedialWhenCurrentSlotReady() throws Exception {
+        createController();
+        mCsrController.setImmediateRedialEnabled(true);
+        mCsrController.addSlot(SLOT_0, createImsStateTracker(false, ServiceState.STATE_IN_SERVICE));
+        mCsrController.addSlot(SLOT_1, createImsStateTracker(true, ServiceState.STATE_IN_SERVICE));
+
+        mCsrController.startTimer(mContext, mEcds, TELECOM_CALL_ID1,
+                TEST_EMERGENCY_NUMBER, true, false, 2);
+        processAllMessages();
+
+        assertTrue(mCsrController.hasMessages(MSG_CROSS_STACK_TIMEOUT));
+        verify(mEcds, times(0)).notifyCrossStackTimerExpired();
+    }
+
+    /**
+     * Simulates an emergency call on the slot 0 without emergency service while the slot 1
+     * is ready, and returns the virtual time until the cross SIM redial is triggered.
+     */
+    private long measureRedialGapMillis() {
+        mCsrController.addSlot(SLOT_0, createImsStateTracker(false, ServiceState.STATE_POWER_OFF));
+        mCsrController.addSlot(SLOT_1, createImsStateTracker(true, ServiceState.STATE_IN_SERVICE));
+
+        final long[] expiredAt = new long[] { -1 };
+        final long[] now = new long[] { 0 };
+        doAnswer(invocation -> {
+            expiredAt[0] = now[0];
+            return null;
+        }).when(mEcds).notifyCrossStackTimerExpired();
+
+        mCsrController.startTimer(mContext, mEcds, TELECOM_CALL_ID1,
+                TEST_EMERGENCY_NUMBER, false, false, 2);
+        processAllMessages();
+
+        while (expiredAt[0] < 0 && now[0] < 200000) {
+            mLooper.moveTimeForward(1000);
+            now[0] += 1000;
+            processAllMessages();
+        }
+        return expiredAt[0];
+    }
+
+    private static ImsStateTracker createImsStateTracker(boolean imsRegistered, int state) {
+        ServiceState serviceState = new ServiceState();
+        serviceState.setState(state);
+        return createImsStateTracker(imsRegistered, serviceState);
+    }
+
+    private static ImsStateTracker createImsStateTracker(boolean imsRegistered,
+            ServiceState serviceState) {
+        ImsStateTracker imsStateTracker = mock(ImsStateTracker.class);
+        doReturn(new ImsStateSnapshot.Builder()
+                .setMmTelFeatureAvailable(true)
+                .setImsRegistered(imsRegistered)
+                .setMmTelCapabilities(new MmTelCapabilities(
+                        imsRegistered ? MmTelCapabilities.CAPABILITY_TYPE_VOICE : 0))
+                .setServiceState(serviceState)
+                .build()).when(imsStateTracker).getSnapshot();
+        return imsStateTracker;
+    }
+
     private void createController() throws Exception {
         mCsrController = new CrossSimRedialingController(mContext,
                 mHandlerThread.getLooper(), mEmergencyNumberHelper);
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.EUTRAN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.GERAN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.UNKNOWN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.UTRAN;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_DOMAIN_PREFERENCE_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_DOMAIN_PREFERENCE_ROAMING_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_CS_ROAMING_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_CS_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_IMS_ROAMING_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_IMS_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_SCAN_TIMER_SEC_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_VOWIFI_REQUIRES_CONDITION_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_MAXIMUM_NUMBER_OF_EMERGENCY_TRIES_OVER_VOWIFI_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.VOWIFI_REQUIRES_NONE;
+import static android.telephony.DomainSelectionService.SELECTOR_TYPE_CALLING;
+import static android.telephony.NetworkRegistrationInfo.DOMAIN_CS;
+import static android.telephony.NetworkRegistrationInfo.DOMAIN_PS;
+import static android.telephony.NetworkRegistrationInfo.REGISTRATION_STATE_HOME;
+import static android.telephony.NetworkRegistrationInfo.REGISTRATION_STATE_UNKNOWN;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IPowerManager;
+import android.os.IThermalService;
+import android.os.Looper;
+import android.os.PersistableBundle;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.telephony.BarringInfo;
+import android.telephony.CarrierConfigManager;
+import android.telephony.CellIdentityLte;
+import android.telephony.DomainSelectionService.SelectionAttributes;
+import android.telephony.EmergencyRegResult;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyManager;
+import android.telephony.ims.ImsManager;
+import android.telephony.ims.ProvisioningManager;
+import android.telephony.ims.feature.MmTelFeature.MmTelCapabilities;
+import android.telephony.ims.stub.ImsRegistrationImplBase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.TestContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Regression tests replaying recorded event sequences into the call domain selectors.
+ *
+ * <p>Each test compares the decisions and their virtual-time latencies with the golden
+ * expectation recorded for the scenario. A change of a domain selector which alters
+ * a decision or delays it should update the golden expectation deliberately.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DomainSelectionReplayTest {
+    private static final String TAG = "DomainSelectionReplayTest";
+
+    private static final int SLOT_0 = 0;
+    private static final int SUB_1 = 1;
+    private static final long END_MILLIS = 5000;
+    private static final int BENCHMARK_WARM_UP_ITERATIONS = 5;
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    @Mock private DomainSelectorBase.DestroyListener mDestroyListener;
+    @Mock private CrossSimRedialingController mCsrdCtrl;
+    @Mock private ConnectivityManager mConnectivityManager;
+    @Mock private ProvisioningManager mProvisioningManager;
+
+    private TestContext mContext;
+    private HandlerThread mHandlerThread;
+    private PowerManager mPowerManager;
+    private DomainSelectionReplayer mReplayer;
+
+    private final DomainSelectionReplayer.SelectorFactory mNormalCallFactory =
+            (context, slotId, subId, looper, imsStateTracker) -> new NormalCallDomainSelector(
+                    context, slotId, subId, looper, imsStateTracker, mDestroyListener);
+
+    private final DomainSelectionReplayer.SelectorFactory mEmergencyCallFactory =
+            (context, slotId, subId, looper, imsStateTracker) -> new EmergencyCallDomainSelector(
+                    context, slotId, subId, looper, imsStateTracker, mDestroyListener,
+                    mCsrdCtrl);
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mContext = new TestContext() {
+            @Override
+            public String getSystemServiceName(Class<?> serviceClass) {
+                if (serviceClass == ImsManager.class) {
+                    return Context.TELEPHONY_IMS_SERVICE;
+                } else if (serviceClass == TelephonyManager.class) {
+                    return Context.TELEPHONY_SERVICE;
+                } else if (serviceClass == CarrierConfigManager.class) {
+                    return Context.CARRIER_CONFIG_SERVICE;
+                } else if (serviceClass == PowerManager.class) {
+                    return Context.POWER_SERVICE;
+                } else if (serviceClass == ConnectivityManager.class) {
+                    return Context.CONNECTIVITY_SERVICE;
+                }
+                return super.getSystemServiceName(serviceClass);
+            }
+
+            @Override
+            public Object getSystemService(String name) {
+                switch (name) {
+                    case (Context.POWER_SERVICE) : {
+                        return mPowerManager;
+                    }
+                    case (Context.CONNECTIVITY_SERVICE) : {
+                        return mConnectivityManager;
+                    }
+                }
+                return super.getSystemService(name);
+            }
+
+            @Override
+            public String getOpPackageName() {
+                return "";
+            }
+        };
+
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mPowerManager = new PowerManager(mContext, mock(IPowerManager.class),
+                mock(IThermalService.class), new Handler(mHandlerThread.getLooper()));
+
+        TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
+        when(tm.createForSubscriptionId(anyInt())).thenReturn(tm);
+        when(tm.getNetworkCountryIso()).thenReturn("");
+
+        ImsManager imsManager = mContext.getSystemService(ImsManager.class);
+        doReturn(mProvisioningManager).when(imsManager).getProvisioningManager(anyInt());
+        doReturn(null).when(mProvisioningManager).getProvisioningStringValue(anyInt());
+
+        putEmergencyCarrierConfig(mContext.getCarrierConfig(SUB_1));
+
+        mReplayer = new DomainSelectionReplayer(mContext);
+        when(mReplayer.getMmTelManager().isAdvancedCallingSettingEnabled()).thenReturn(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mReplayer != null) {
+            mReplayer.destroy();
+            mReplayer = null;
+        }
+        if (mHandlerThread != null) {
+            mHandlerThread.quit();
+            mHandlerThread = null;
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testNormalCallImsRegisteredOverLte() {
+        assertReplay("PS@0ms", mNormalCallFactory, getNormalCallImsRegisteredOverLte());
+    }
+
+    @Test
+    @SmallTest
+    public void testNormalCallImsRegisteredOverWlan() {
+        assertReplay("WLAN@0ms", mNormalCallFactory, getNormalCallImsRegisteredOverWlan());
+    }
+
+    @Test
+    @SmallTest
+    public void testNormalCallImsNotRegistered() {
+        assertReplay("CS@0ms", mNormalCallFactory, getNormalCallImsNotRegistered());
+    }
+
+    @Test
+    @SmallTest
+    public void testNormalCallImsRegisteredAfterDial() {
+        assertReplay("PS@300ms", mNormalCallFactory, getNormalCallImsRegisteredAfterDial());
+    }
+
+    @Test
+    @SmallTest
+    public void testNormalCallOutOfServiceImsNotRegistered() {
+        assertReplay("TERMINATED(OUT_OF_SERVICE)@0ms", mNormalCallFactory,
+                getNormalCallOutOfServiceImsNotRegistered());
+    }
+
+    @Test
+    @SmallTest
+    public void testEmergencyCallImsRegisteredOverLte() {
+        assertReplay("PS(emergency_pdn)@0ms", mEmergencyCallFactory,
+                getEmergencyCallImsRegisteredOverLte());
+    }
+
+    @Test
+    @SmallTest
+    public void testEmergencyCallImsStateReceivedAfterDial() {
+        assertReplay("PS(emergency_pdn)@200ms", mEmergencyCallFactory,
+                getEmergencyCallImsStateReceivedAfterDial());
+    }
+
+    @Test
+    @SmallTest
+    public void testEmergencyCallOutOfServiceScanPs() {
+        assertReplay("SCAN@0ms, PS(emergency_pdn)@500ms", mEmergencyCallFactory,
+                getEmergencyCallOutOfServiceScanPs());
+    }
+
+    /**
+     * Replays every scenario repeatedly and reports the wall-clock cost of a replay.
+     * The decisions shall be identical in every iteration.
+     */
+    @Test
+    @LargeTest
+    public void testReplayBenchmark() {
+        benchmark("NCDS LTE", "PS@0ms", mNormalCallFactory,
+                getNormalCallImsRegisteredOverLte());
+        benchmark("NCDS late registration", "PS@300ms", mNormalCallFactory,
+                getNormalCallImsRegisteredAfterDial());
+        benchmark("ECDS LTE", "PS(emergency_pdn)@0ms", mEmergencyCallFactory,
+                getEmergencyCallImsRegisteredOverLte());
+    }
+
+    private void assertReplay(String expected, DomainSelectionReplayer.SelectorFactory factory,
+            List<DomainSelectionReplayer.Event> events) {
+        List<DomainSelectionReplayer.Decision> decisions =
+                mReplayer.replay(factory, SLOT_0, SUB_1, events, END_MILLIS);
+        assertEquals(expected, DomainSelectionReplayer.format(decisions));
+    }
+
+    private void benchmark(String name, String expected,
+            DomainSelectionReplayer.SelectorFactory factory,
+            List<DomainSelectionReplayer.Event> events) {
+        for (int i = 0; i < BENCHMARK_WARM_UP_ITERATIONS; i++) {
+            assertReplay(expected, factory, events);
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            assertReplay(expected, factory, events);
+        }
+        long avgMicros = (SystemClock.elapsedRealtimeNanos() - start)
+                / BENCHMARK_ITERATIONS / 1000;
+        Log.i(TAG, name + ": " + expected + ", avg=" + avgMicros + "us/replay");
+    }
+
+    private static List<DomainSelectionReplayer.Event> getNormalCallImsRegisteredOverLte() {
+        return Arrays.asList(
+                DomainSelectionReplayer.Event.serviceState(0, getInServiceState()),
+                DomainSelectionReplayer.Event.imsAvailable(0),
+                DomainSelectionReplayer.Event.imsRegistered(0,
+                        ImsRegistrationImplBase.REGISTRATION_TECH_LTE),
+                DomainSelectionReplayer.Event.mmTelCapabilities(0,
+                        MmTelCapabilities.CAPABILITY_TYPE_VOICE),
+                DomainSelectionReplayer.Event.dial(100, getNormalCallAttributes()));
+    }
+
+    private static List<DomainSelectionReplayer.Event> getNormalCallImsRegisteredOverWlan() {
+        return Arrays.asList(
+                DomainSelectionReplayer.Event.serviceState(0, getInServiceState()),
+                DomainSelectionReplayer.Event.imsAvailable(0),
+                DomainSelectionReplayer.Event.imsRegistered(0,
+                        ImsRegistrationImplBase.REGISTRATION_TECH_IWLAN),
+                DomainSelectionReplayer.Event.mmTelCapabilities(0,
+                        MmTelCapabilities.CAPABILITY_TYPE_VOICE),
+                DomainSelectionReplayer.Event.dial(100, getNormalCallAttributes()));
+    }
+
+    private static List<DomainSelectionReplayer.Event> getNormalCallImsNotRegistered() {
+        return Arrays.asList(
+                DomainSelectionReplayer.Event.serviceState(0, getInServiceState()),
+                DomainSelectionReplayer.Event.imsAvailable(0),
+                DomainSelectionReplayer.Event.imsUnregistered(0),
+                DomainSelectionReplayer.Event.mmTelCapabilities(0, 0),
+                DomainSelectionReplayer.Event.dial(100, getNormalCallAttributes()));
+    }
+
+    private static List<DomainSelectionReplayer.Event> getNormalCallImsRegisteredAfterDial() {
+        return Arrays.asList(
+                DomainSelectionReplayer.Event.serviceState(0, getInServiceState()),
+                DomainSelectionReplayer.Event.imsAvailable(0),
+                DomainSelectionReplayer.Event.dial(100, getNormalCallAttributes()),
+                DomainSelectionReplayer.Event.imsRegistered(350,
+                        ImsRegistrationImplBase.REGISTRATION_TECH_LTE),
+                DomainSelectionReplayer.Event.mmTelCapabilities(400,
+                        MmTelCapabilities.CAPABILITY_TYPE_VOICE));
+    }
+
+    private static List<DomainSelectionReplayer.Event>
+            getNormalCallOutOfServiceImsNotRegistered() {
+        ServiceState serviceState = new ServiceState();
+        serviceState.setStateOutOfService();
+        return Arrays.asList(
+                DomainSelectionReplayer.Event.serviceState(0, serviceState),
+                DomainSelectionReplayer.Event.imsAvailable(0),
+                DomainSelectionReplayer.Event.imsUnregistered(0),
+                DomainSelectionReplayer.Event.mmTelCapabilities(0, 0),
+                DomainSelectionReplayer.Event.dial(100, getNormalCallAttributes()));
+    }
+
+    private static List<DomainSelectionReplayer.Event> getEmergencyCallImsRegisteredOverLte() {
+        return Arrays.asList(
+                DomainSelectionReplayer.Event.barringInfo(0, getNotBarredInfo()),
+                DomainSelectionReplayer.Event.imsAvailable(0),
+                DomainSelectionReplayer.Event.imsRegistered(0,
+                        ImsRegistrationImplBase.REGISTRATION_TECH_LTE),
+                DomainSelectionReplayer.Event.mmTelCapabilities(0,
+                        MmTelCapabilities.CAPABILITY_TYPE_VOICE),
+                DomainSelectionReplayer.Event.dial(100, getEmergencyCallAttributes()));
+    }
+
+    private static List<DomainSelectionReplayer.Event>
+            getEmergencyCallImsStateReceivedAfterDial() {
+        return Arrays.asList(
+                DomainSelectionReplayer.Event.barringInfo(0, getNotBarredInfo()),
+                DomainSelectionReplayer.Event.imsAvailable(0),
+                DomainSelectionReplayer.Event.dial(100, getEmergencyCallAttributes()),
+                DomainSelectionReplayer.Event.imsRegistered(300,
+                        ImsRegistrationImplBase.REGISTRATION_TECH_LTE),
+                DomainSelectionReplayer.Event.mmTelCapabilities(300,
+                        MmTelCapabilities.CAPABILITY_TYPE_VOICE));
+    }
+
+    private static List<DomainSelectionReplayer.Event> getEmergencyCallOutOfServiceScanPs() {
+        EmergencyRegResult outOfService = new EmergencyRegResult(UNKNOWN,
+                REGISTRATION_STATE_UNKNOWN, 0, false, false, 0, 0, "", "", "");
+        EmergencyRegResult scanResult = new EmergencyRegResult(EUTRAN, REGISTRATION_STATE_HOME,
+                DOMAIN_PS, true, true, 0, 0, "", "", "");
+        return Arrays.asList(
+                DomainSelectionReplayer.Event.barringInfo(0, getNotBarredInfo()),
+                DomainSelectionReplayer.Event.imsAvailable(0),
+                DomainSelectionReplayer.Event.imsUnregistered(0),
+                DomainSelectionReplayer.Event.mmTelCapabilities(0, 0),
+                DomainSelectionReplayer.Event.dial(100, getEmergencyCallAttributes(outOfService)),
+                DomainSelectionReplayer.Event.scanResult(600, scanResult));
+    }
+
+    private static ServiceState getInServiceState() {
+        ServiceState serviceState = new ServiceState();
+        serviceState.setState(ServiceState.STATE_IN_SERVICE);
+        return serviceState;
+    }
+
+    private static BarringInfo getNotBarredInfo() {
+        return new BarringInfo(new CellIdentityLte(), new SparseArray<>());
+    }
+
+    private static SelectionAttributes getNormalCallAttributes() {
+        return new SelectionAttributes.Builder(SLOT_0, SUB_1, SELECTOR_TYPE_CALLING)
+                .setCallId("01234")
+                .setEmergency(false)
+                .build();
+    }
+
+    private static SelectionAttributes getEmergencyCallAttributes() {
+        return getEmergencyCallAttributes(new EmergencyRegResult(EUTRAN, REGISTRATION_STATE_HOME,
+                DOMAIN_CS | DOMAIN_PS, true, true, 0, 0, "", "", ""));
+    }
+
+    private static SelectionAttributes getEmergencyCallAttributes(EmergencyRegResult regResult) {
+        return new SelectionAttributes.Builder(SLOT_0, SUB_1, SELECTOR_TYPE_CALLING)
+                .setEmergency(true)
+                .setEmergencyRegResult(regResult)
+                .build();
+    }
+
+    private static void putEmergencyCarrierConfig(PersistableBundle bundle) {
+        int[] domainPreference = new int[] {
+                CarrierConfigManager.ImsEmergency.DOMAIN_PS_3GPP,
+                CarrierConfigManager.ImsEmergency.DOMAIN_CS,
+                CarrierConfigManager.ImsEmergency.DOMAIN_PS_NON_3GPP
+                };
+        bundle.putIntArray(KEY_EMERGENCY_OVER_IMS_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY,
+                new int[] { EUTRAN });
+        bundle.putIntArray(KEY_EMERGENCY_OVER_IMS_ROAMING_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY,
+                new int[] { EUTRAN });
+        bundle.putIntArray(KEY_EMERGENCY_OVER_CS_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY,
+                new int[] { UTRAN, GERAN });
+        bundle.putIntArray(KEY_EMERGENCY_OVER_CS_ROAMING_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY,
+                new int[] { UTRAN, GERAN });
+        bundle.putIntArray(KEY_EMERGENCY_DOMAIN_PREFERENCE_INT_ARRAY, domainPreference);
+        bundle.putIntArray(KEY_EMERGENCY_DOMAIN_PREFERENCE_ROAMING_INT_ARRAY, domainPreference);
+        bundle.putInt(KEY_EMERGENCY_VOWIFI_REQUIRES_CONDITION_INT, VOWIFI_REQUIRES_NONE);
+        bundle.putInt(KEY_MAXIMUM_NUMBER_OF_EMERGENCY_TRIES_OVER_VOWIFI_INT, 1);
+        bundle.putInt(KEY_EMERGENCY_SCAN_TIMER_SEC_INT, 10);
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.annotation.NonNull;
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.telephony.BarringInfo;
+import android.telephony.DisconnectCause;
+import android.telephony.DomainSelectionService.SelectionAttributes;
+import android.telephony.DomainSelector;
+import android.telephony.EmergencyRegResult;
+import android.telephony.NetworkRegistrationInfo;
+import android.telephony.ServiceState;
+import android.telephony.TransportSelectorCallback;
+import android.telephony.WwanSelectorCallback;
+import android.telephony.ims.ImsException;
+import android.telephony.ims.ImsManager;
+import android.telephony.ims.ImsMmTelManager;
+import android.telephony.ims.ImsReasonInfo;
+import android.telephony.ims.ImsRegistrationAttributes;
+import android.telephony.ims.ImsStateCallback;
+import android.telephony.ims.RegistrationManager;
+import android.telephony.ims.feature.MmTelFeature.MmTelCapabilities;
+import android.testing.TestableLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Replays a recorded sequence of network and IMS events into an {@link ImsStateTracker} and
+ * a domain selector on a {@link TestableLooper}, and records each decision of the domain
+ * selector together with the virtual time elapsed since the dial.
+ *
+ * <p>The events are applied in virtual time, so the same recording always produces the same
+ * decisions and latencies regardless of the speed of the device running the test.
+ */
+public class DomainSelectionReplayer {
+    /** The granularity of the virtual clock used to fire the delayed messages. */
+    public static final long TICK_MILLIS = 10;
+
+    /**
+     * Creates the domain selector under test.
+     */
+    public interface SelectorFactory {
+        /**
+         * Creates the domain selector bound to the given {@link ImsStateTracker}.
+         */
+        DomainSelectorBase create(Context context, int slotId, int subId, Looper looper,
+                ImsStateTracker imsStateTracker);
+    }
+
+    /**
+     * An event recorded at the given offset from the start of the replay.
+     */
+    public static final class Event {
+        private static final int TYPE_SERVICE_STATE = 1;
+        private static final int TYPE_BARRING_INFO = 2;
+        private static final int TYPE_IMS_AVAILABLE = 3;
+        private static final int TYPE_IMS_UNAVAILABLE = 4;
+        private static final int TYPE_IMS_REGISTERED = 5;
+        private static final int TYPE_IMS_UNREGISTERED = 6;
+        private static final int TYPE_MMTEL_CAPABILITIES = 7;
+        private static final int TYPE_SCAN_RESULT = 8;
+        private static final int TYPE_DIAL = 9;
+
+        private final long mAtMillis;
+        private final int mType;
+        private final Object mValue;
+
+        private Event(long atMillis, int type, Object value) {
+            mAtMillis = atMillis;
+            mType = type;
+            mValue = value;
+        }
+
+        /** The {@link ServiceState} is updated. */
+        public static Event serviceState(long atMillis, @NonNull ServiceState serviceState) {
+            return new Event(atMillis, TYPE_SERVICE_STATE, serviceState);
+        }
+
+        /** The {@link BarringInfo} is updated. */
+        public static Event barringInfo(long atMillis, @NonNull BarringInfo barringInfo) {
+            return new Event(atMillis, TYPE_BARRING_INFO, barringInfo);
+        }
+
+        /** The MMTEL feature is connected. */
+        public static Event imsAvailable(long atMillis) {
+            return new Event(atMillis, TYPE_IMS_AVAILABLE, null);
+        }
+
+        /** The MMTEL feature is disconnected for the given {@link ImsStateCallback} reason. */
+        public static Event imsUnavailable(long atMillis, int reason) {
+            return new Event(atMillis, TYPE_IMS_UNAVAILABLE, reason);
+        }
+
+        /** IMS is registered over the given {@code ImsRegistrationImplBase} technology. */
+        public static Event imsRegistered(long atMillis, int imsRadioTech) {
+            return new Event(atMillis, TYPE_IMS_REGISTERED, imsRadioTech);
+        }
+
+        /** IMS is unregistered. */
+        public static Event imsUnregistered(long atMillis) {
+            return new Event(atMillis, TYPE_IMS_UNREGISTERED, null);
+        }
+
+        /** The MMTEL capabilities are changed to the given {@link MmTelCapabilities} bits. */
+        public static Event mmTelCapabilities(long atMillis, int capabilities) {
+            return new Event(atMillis, TYPE_MMTEL_CAPABILITIES, capabilities);
+        }
+
+        /** The pending emergency network scan is completed with the given result. */
+        public static Event scanResult(long atMillis, @NonNull EmergencyRegResult result) {
+            return new Event(atMillis, TYPE_SCAN_RESULT, result);
+        }
+
+        /** The domain selection is requested with the given attributes. */
+        public static Event dial(long atMillis, @NonNull SelectionAttributes attr) {
+            return new Event(atMillis, TYPE_DIAL, attr);
+        }
+    }
+
+    /**
+     * A decision made by the domain selector.
+     */
+    public static final class Decision {
+        private final String mResult;
+        private final long mLatencyMillis;
+
+        private Decision(String result, long latencyMillis) {
+            mResult = result;
+            mLatencyMillis = latencyMillis;
+        }
+
+        /** Returns the chosen transport, domain or termination cause. */
+        public String getResult() {
+            return mResult;
+        }
+
+        /** Returns the virtual time elapsed from the latest dial to this decision. */
+        public long getLatencyMillis() {
+            return mLatencyMillis;
+        }
+
+        @Override
+        public String toString() {
+            return mResult + "@" + mLatencyMillis + "ms";
+        }
+    }
+
+    private final Context mContext;
+    private final HandlerThread mHandlerThread;
+    private final TestableLooper mLooper;
+    private final Handler mHandler;
+    private final ImsMmTelManager mMmTelManager;
+    private final ReplayCallback mCallback = new ReplayCallback();
+    private final List<Decision> mDecisions = new ArrayList<>();
+
+    private ImsStateTracker mImsStateTracker;
+    private Executor mImsStateExecutor;
+    private ImsStateCallback mImsStateCallback;
+    private Executor mRegistrationExecutor;
+    private RegistrationManager.RegistrationCallback mRegistrationCallback;
+    private Executor mCapabilityExecutor;
+    private ImsMmTelManager.CapabilityCallback mCapabilityCallback;
+    private Consumer<EmergencyRegResult> mScanResultConsumer;
+    private long mNowMillis;
+    private long mDialMillis;
+
+    /**
+     * Creates a replayer. The {@link ImsManager} of the given context should be a mock.
+     */
+    public DomainSelectionReplayer(@NonNull Context context) throws Exception {
+        mContext = context;
+        mHandlerThread = new HandlerThread(DomainSelectionReplayer.class.getSimpleName());
+        mHandlerThread.start();
+        mLooper = new TestableLooper(mHandlerThread.getLooper());
+        mHandler = new Handler(mHandlerThread.getLooper());
+
+        mMmTelManager = mock(ImsMmTelManager.class);
+        ImsManager imsManager = context.getSystemService(ImsManager.class);
+        when(imsManager.getImsMmTelManager(anyInt())).thenReturn(mMmTelManager);
+        captureImsCallbacks();
+    }
+
+    /**
+     * Returns the mocked {@link ImsMmTelManager} to stub the IMS settings of the recording.
+     */
+    public ImsMmTelManager getMmTelManager() {
+        return mMmTelManager;
+    }
+
+    /**
+     * Replays the events, which should be sorted by time, and returns the decisions made.
+     *
+     * @param factory The factory to create the domain selector under test.
+     * @param slotId The slot index of the domain selector.
+     * @param subId The subscription index of the domain selector.
+     * @param events The recorded events.
+     * @param endMillis The virtual time when the replay ends to fire the pending timers.
+     */
+    public List<Decision> replay(@NonNull SelectorFactory factory, int slotId, int subId,
+            @NonNull List<Event> events, long endMillis) {
+        reset();
+        mImsStateTracker = new ImsStateTracker(mContext, slotId, mHandlerThread.getLooper());
+        mImsStateTracker.start(subId);
+        DomainSelectorBase selector = factory.create(mContext, slotId, subId,
+                mHandlerThread.getLooper(), mImsStateTracker);
+        processAllMessages();
+
+        try {
+            for (Event event : events) {
+                if (event.mAtMillis < mNowMillis) {
+                    throw new IllegalArgumentException("Events are not sorted at "
+                            + event.mAtMillis + "ms");
+                }
+                advanceTo(event.mAtMillis);
+                apply(event, selector);
+                processAllMessages();
+            }
+            advanceTo(endMillis);
+        } finally {
+            selector.destroy();
+            mImsStateTracker.destroy();
+            processAllMessages();
+        }
+        return new ArrayList<>(mDecisions);
+    }
+
+    /**
+     * Releases the resources of this replayer.
+     */
+    public void destroy() {
+        mLooper.destroy();
+        mHandlerThread.quit();
+    }
+
+    /**
+     * Returns the decisions in the format used by the golden expectations.
+     */
+    public static String format(@NonNull List<Decision> decisions) {
+        StringBuilder sb = new StringBuilder();
+        for (Decision decision : decisions) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(decision);
+        }
+        return sb.toString();
+    }
+
+    private void reset() {
+        mDecisions.clear();
+        mImsStateCallback = null;
+        mRegistrationCallback = null;
+        mCapabilityCallback = null;
+        mScanResultConsumer = null;
+        mNowMillis = 0;
+        mDialMillis = 0;
+    }
+
+    private void captureImsCallbacks() throws ImsException {
+        doAnswer(invocation -> {
+            mImsStateExecutor = (Executor) invocation.getArguments()[0];
+            mImsStateCallback = (ImsStateCallback) invocation.getArguments()[1];
+            return null;
+        }).when(mMmTelManager).registerImsStateCallback(
+                any(Executor.class), any(ImsStateCallback.class));
+        doAnswer(invocation -> {
+            mRegistrationExecutor = (Executor) invocation.getArguments()[0];
+            mRegistrationCallback =
+                    (RegistrationManager.RegistrationCallback) invocation.getArguments()[1];
+            return null;
+        }).when(mMmTelManager).registerImsRegistrationCallback(
+                any(Executor.class), any(RegistrationManager.RegistrationCallback.class));
+        doAnswer(invocation -> {
+            mCapabilityExecutor = (Executor) invocation.getArguments()[0];
+            mCapabilityCallback =
+                    (ImsMmTelManager.CapabilityCallback) invocation.getArguments()[1];
+            return null;
+        }).when(mMmTelManager).registerMmTelCapabilityCallback(
+                any(Executor.class), any(ImsMmTelManager.CapabilityCallback.class));
+    }
+
+    private void apply(Event event, DomainSelectorBase selector) {
+        switch (event.mType) {
+            case Event.TYPE_SERVICE_STATE:
+                mHandler.post(() -> mImsStateTracker.updateServiceState(
+                        (ServiceState) event.mValue));
+                break;
+            case Event.TYPE_BARRING_INFO:
+                mHandler.post(() -> mImsStateTracker.updateBarringInfo(
+                        (BarringInfo) event.mValue));
+                break;
+            case Event.TYPE_IMS_AVAILABLE:
+                checkRegistered(mImsStateCallback, event);
+                mImsStateExecutor.execute(() -> mImsStateCallback.onAvailable());
+                break;
+            case Event.TYPE_IMS_UNAVAILABLE:
+                checkRegistered(mImsStateCallback, event);
+                mImsStateExecutor.execute(
+                        () -> mImsStateCallback.onUnavailable((int) event.mValue));
+                break;
+            case Event.TYPE_IMS_REGISTERED:
+                checkRegistered(mRegistrationCallback, event);
+                mRegistrationExecutor.execute(() -> mRegistrationCallback.onRegistered(
+                        new ImsRegistrationAttributes.Builder((int) event.mValue).build()));
+                break;
+            case Event.TYPE_IMS_UNREGISTERED:
+                checkRegistered(mRegistrationCallback, event);
+                mRegistrationExecutor.execute(
+                        () -> mRegistrationCallback.onUnregistered(new ImsReasonInfo()));
+                break;
+            case Event.TYPE_MMTEL_CAPABILITIES:
+                checkRegistered(mCapabilityCallback, event);
+                mCapabilityExecutor.execute(() -> mCapabilityCallback.onCapabilitiesStatusChanged(
+                        new MmTelCapabilities((int) event.mValue)));
+                break;
+            case Event.TYPE_SCAN_RESULT:
+                checkRegistered(mScanResultConsumer, event);
+                Consumer<EmergencyRegResult> consumer = mScanResultConsumer;
+                mScanResultConsumer = null;
+                consumer.accept((EmergencyRegResult) event.mValue);
+                break;
+            case Event.TYPE_DIAL:
+                mDialMillis = mNowMillis;
+                selector.selectDomain((SelectionAttributes) event.mValue, mCallback);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown event type " + event.mType);
+        }
+    }
+
+    private static void checkRegistered(Object callback, Event event) {
+        if (callback == null) {
+            throw new IllegalStateException("No callback to deliver the event of type "
+                    + event.mType + " at " + event.mAtMillis + "ms");
+        }
+    }
+
+    private void advanceTo(long targetMillis) {
+        while (mNowMillis < targetMillis) {
+            long step = Math.min(TICK_MILLIS, targetMillis - mNowMillis);
+            mLooper.moveTimeForward(step);
+            mNowMillis += step;
+            processAllMessages();
+        }
+    }
+
+    private void processAllMessages() {
+        mLooper.processAllMessages();
+        while (!mLooper.getLooper().getQueue().isIdle()) {
+            mLooper.processAllMessages();
+        }
+    }
+
+    private void record(String result) {
+        mDecisions.add(new Decision(result, mNowMillis - mDialMillis));
+    }
+
+    private class ReplayCallback implements TransportSelectorCallback, WwanSelectorCallback {
+        @Override
+        public void onCreated(DomainSelector selector) {
+        }
+
+        @Override
+        public void onWlanSelected(boolean useEmergencyPdn) {
+            record(useEmergencyPdn ? "WLAN(emergency_pdn)" : "WLAN");
+        }
+
+        @Override
+        public WwanSelectorCallback onWwanSelected() {
+            return this;
+        }
+
+        @Override
+        public void onWwanSelected(final Consumer<WwanSelectorCallback> consumer) {
+            mHandler.post(() -> consumer.accept(this));
+        }
+
+        @Override
+        public void onSelectionTerminated(int cause) {
+            record("TERMINATED(" + DisconnectCause.toString(cause) + ")");
+        }
+
+        @Override
+        public void onRequestEmergencyNetworkScan(@NonNull List<Integer> preferredNetworks,
+                int scanType, @NonNull CancellationSignal signal,
+                @NonNull Consumer<EmergencyRegResult> consumer) {
+            mScanResultConsumer = consumer;
+            record("SCAN");
+        }
+
+        @Override
+        public void onDomainSelected(@NetworkRegistrationInfo.Domain int domain,
+                boolean useEmergencyPdn) {
+            String result = (domain == NetworkRegistrationInfo.DOMAIN_PS) ? "PS" : "CS";
+            record(useEmergencyPdn ? result + "(emergency_pdn)" : result);
+        }
+    }
+}
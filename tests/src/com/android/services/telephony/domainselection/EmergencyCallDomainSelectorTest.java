@@ -68,6 +68,7 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -154,6 +155,7 @@ public class EmergencyCallDomainSelectorTest {
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
+        ImsStateTestUtils.stubSnapshot(mImsStateTracker);
         mContext = new TestContext() {
             @Override
             public String getSystemServiceName(Class<?> serviceClass) {
@@ -899,6 +901,28 @@ public class EmergencyCallDomainSelectorTest {
         verifyScanPsPreferred();
     }
 
+    @Test
+    public void testDefaultOutOfServiceCachedRegResultSelectPs() throws Exception {
+        EmergencyRegResultCache regResultCache = new EmergencyRegResultCache(
+                EmergencyRegResultCache.DEFAULT_VALIDITY_MILLIS);
+        regResultCache.put(SLOT_0, getEmergencyRegResult(EUTRAN, REGISTRATION_STATE_HOME,
+                DOMAIN_PS, true, true, 0, 0, "", ""));
+        createSelector(SLOT_0_SUB_ID, regResultCache);
+        unsolBarringInfoChanged(false);
+
+        EmergencyRegResult regResult = getEmergencyRegResult(
+                UNKNOWN, REGISTRATION_STATE_UNKNOWN, 0, false, false, 0, 0, "", "");
+        SelectionAttributes attr = getSelectionAttributes(SLOT_0, SLOT_0_SUB_ID, regResult);
+        mDomainSelector.selectDomain(attr, mTransportSelectorCallback);
+        processAllMessages();
+
+        bindImsServiceUnregistered();
+
+        verifyPsDialed();
+        verify(mWwanSelectorCallback, never()).onRequestEmergencyNetworkScan(
+                any(), anyInt(), any(), any());
+    }
+
     @Test
     public void testVoLteOnEpsImsNotRegisteredSelectPs() throws Exception {
         PersistableBundle bundle = getDefaultPersistableBundle();
@@ -1918,9 +1942,14 @@ public class EmergencyCallDomainSelectorTest {
     }
 
     private void createSelector(int subId) throws Exception {
+        createSelector(subId, null);
+    }
+
+    private void createSelector(int subId, EmergencyRegResultCache regResultCache)
+            throws Exception {
         mDomainSelector = new EmergencyCallDomainSelector(
                 mContext, SLOT_0, subId, mHandlerThread.getLooper(),
-                mImsStateTracker, mDestroyListener, mCsrdCtrl);
+                mImsStateTracker, mDestroyListener, mCsrdCtrl, null, regResultCache);
 
         replaceInstance(DomainSelectorBase.class,
                 "mWwanSelectorCallback", mDomainSelector, mWwanSelectorCallback);
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.EUTRAN;
+import static android.telephony.NetworkRegistrationInfo.DOMAIN_PS;
+import static android.telephony.NetworkRegistrationInfo.REGISTRATION_STATE_HOME;
+
+import static com.android.services.telephony.domainselection.EmergencyCallWarmUp.REG_RESULT_VALIDITY_MILLIS;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.telephony.AccessNetworkConstants;
+import android.telephony.DataSpecificRegistrationInfo;
+import android.telephony.EmergencyRegResult;
+import android.telephony.NetworkRegistrationInfo;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyManager;
+import android.telephony.VopsSupportInfo;
+import android.testing.TestableLooper;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Unit tests for EmergencyCallWarmUp.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class EmergencyCallWarmUpTest {
+    private static final int SLOT_0 = 0;
+
+    @Mock private ImsStateTracker mImsStateTracker;
+    @Mock private ServiceState mServiceState;
+    @Mock private VopsSupportInfo mVopsSupportInfo;
+
+    private Looper mLooper;
+    private TestableLooper mTestableLooper;
+    private long mNowMillis = 1000;
+    private EmergencyCallWarmUp mWarmUp;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        HandlerThread handlerThread = new HandlerThread(
+                EmergencyCallWarmUpTest.class.getSimpleName());
+        handlerThread.start();
+        mLooper = handlerThread.getLooper();
+        mTestableLooper = new TestableLooper(mLooper);
+        when(mImsStateTracker.getHandler()).thenReturn(new Handler(mLooper));
+
+        mWarmUp = new EmergencyCallWarmUp(() -> mNowMillis);
+        mWarmUp.bind(1, slotId -> mImsStateTracker);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mTestableLooper != null) {
+            mTestableLooper.destroy();
+            mTestableLooper = null;
+        }
+
+        if (mLooper != null) {
+            mLooper.quit();
+            mLooper = null;
+        }
+
+        mWarmUp = null;
+    }
+
+    @Test
+    public void testToEmergencyRegResult_radioOff() {
+        setUpLteInService();
+        when(mServiceState.getState()).thenReturn(ServiceState.STATE_POWER_OFF);
+
+        assertNull(EmergencyCallWarmUp.toEmergencyRegResult(mServiceState));
+    }
+
+    @Test
+    public void testToEmergencyRegResult_noService() {
+        NetworkRegistrationInfo regInfo = new NetworkRegistrationInfo.Builder()
+                .setAccessNetworkTechnology(TelephonyManager.NETWORK_TYPE_LTE)
+                .setRegistrationState(
+                        NetworkRegistrationInfo.REGISTRATION_STATE_NOT_REGISTERED_SEARCHING)
+                .build();
+        when(mServiceState.getState()).thenReturn(ServiceState.STATE_OUT_OF_SERVICE);
+        when(mServiceState.getNetworkRegistrationInfo(
+                anyInt(), eq(AccessNetworkConstants.TRANSPORT_TYPE_WWAN)))
+                .thenReturn(regInfo);
+
+        assertNull(EmergencyCallWarmUp.toEmergencyRegResult(mServiceState));
+    }
+
+    @Test
+    public void testToEmergencyRegResult_inService() {
+        setUpLteInService();
+
+        EmergencyRegResult regResult = EmergencyCallWarmUp.toEmergencyRegResult(mServiceState);
+
+        assertNotNull(regResult);
+        assertEquals(EUTRAN, regResult.getAccessNetwork());
+        assertEquals(REGISTRATION_STATE_HOME, regResult.getRegState());
+        assertTrue((regResult.getDomain() & DOMAIN_PS) > 0);
+        assertTrue(regResult.isVopsSupported());
+        assertTrue(regResult.isEmcBearerSupported());
+    }
+
+    @Test
+    public void testToEmergencyRegResult_limitedService() {
+        DataSpecificRegistrationInfo dsri = new DataSpecificRegistrationInfo(
+                8, false, false, false, mVopsSupportInfo);
+        NetworkRegistrationInfo regInfo = new NetworkRegistrationInfo.Builder()
+                .setAccessNetworkTechnology(TelephonyManager.NETWORK_TYPE_LTE)
+                .setEmergencyOnly(true)
+                .setDataSpecificInfo(dsri)
+                .build();
+        when(mServiceState.getState()).thenReturn(ServiceState.STATE_OUT_OF_SERVICE);
+        when(mServiceState.getNetworkRegistrationInfo(
+                anyInt(), eq(AccessNetworkConstants.TRANSPORT_TYPE_WWAN)))
+                .thenReturn(regInfo);
+        when(mVopsSupportInfo.isEmergencyServiceSupported()).thenReturn(true);
+
+        EmergencyRegResult regResult = EmergencyCallWarmUp.toEmergencyRegResult(mServiceState);
+
+        assertNotNull(regResult);
+        assertEquals(EUTRAN, regResult.getAccessNetwork());
+        assertEquals(0, regResult.getDomain());
+        assertTrue(regResult.isEmcBearerSupported());
+    }
+
+    @Test
+    public void testNotBound() {
+        EmergencyCallWarmUp warmUp = new EmergencyCallWarmUp(() -> mNowMillis);
+
+        warmUp.start();
+        processAllMessages();
+
+        verify(mImsStateTracker, never()).addServiceStateListener(any());
+        assertNull(warmUp.takeRegResult(SLOT_0));
+    }
+
+    @Test
+    public void testHandOver() {
+        ImsStateTracker.ServiceStateListener listener = startWarmUp();
+        setUpLteInService();
+        listener.onServiceStateUpdated(mServiceState);
+
+        mWarmUp.handOver();
+        processAllMessages();
+
+        verify(mImsStateTracker).removeServiceStateListener(eq(listener));
+
+        EmergencyRegResult regResult = mWarmUp.takeRegResult(SLOT_0);
+
+        assertNotNull(regResult);
+        assertEquals(EUTRAN, regResult.getAccessNetwork());
+        // Only the emergency call dialed next uses the result.
+        assertNull(mWarmUp.takeRegResult(SLOT_0));
+    }
+
+    @Test
+    public void testHandOver_expired() {
+        ImsStateTracker.ServiceStateListener listener = startWarmUp();
+        setUpLteInService();
+        listener.onServiceStateUpdated(mServiceState);
+
+        mWarmUp.handOver();
+        mNowMillis += REG_RESULT_VALIDITY_MILLIS + 1;
+
+        assertNull(mWarmUp.takeRegResult(SLOT_0));
+    }
+
+    @Test
+    public void testCancel() {
+        ImsStateTracker.ServiceStateListener listener = startWarmUp();
+        setUpLteInService();
+        listener.onServiceStateUpdated(mServiceState);
+
+        mWarmUp.cancel();
+        processAllMessages();
+
+        verify(mImsStateTracker).removeServiceStateListener(eq(listener));
+        assertNull(mWarmUp.takeRegResult(SLOT_0));
+
+        // Updates after cancel are ignored.
+        listener.onServiceStateUpdated(mServiceState);
+
+        assertNull(mWarmUp.takeRegResult(SLOT_0));
+    }
+
+    @Test
+    public void testRadioPoweredOff() {
+        ImsStateTracker.ServiceStateListener listener = startWarmUp();
+        setUpLteInService();
+        listener.onServiceStateUpdated(mServiceState);
+
+        when(mServiceState.getState()).thenReturn(ServiceState.STATE_POWER_OFF);
+        listener.onServiceStateUpdated(mServiceState);
+        mWarmUp.handOver();
+
+        assertNull(mWarmUp.takeRegResult(SLOT_0));
+    }
+
+    @Test
+    public void testUnbind() {
+        ImsStateTracker.ServiceStateListener listener = startWarmUp();
+        setUpLteInService();
+        listener.onServiceStateUpdated(mServiceState);
+
+        mWarmUp.unbind();
+        processAllMessages();
+
+        verify(mImsStateTracker).removeServiceStateListener(eq(listener));
+        assertNull(mWarmUp.takeRegResult(SLOT_0));
+
+        // The warm-up does nothing until it is bound again.
+        mWarmUp.start();
+        processAllMessages();
+
+        verify(mImsStateTracker, times(1)).addServiceStateListener(any());
+    }
+
+    private ImsStateTracker.ServiceStateListener startWarmUp() {
+        mWarmUp.start();
+        processAllMessages();
+
+        ArgumentCaptor<ImsStateTracker.ServiceStateListener> listenerCaptor =
+                ArgumentCaptor.forClass(ImsStateTracker.ServiceStateListener.class);
+        verify(mImsStateTracker).addServiceStateListener(listenerCaptor.capture());
+        return listenerCaptor.getValue();
+    }
+
+    private void setUpLteInService() {
+        DataSpecificRegistrationInfo dsri = new DataSpecificRegistrationInfo(
+                8, false, false, false, mVopsSupportInfo);
+        NetworkRegistrationInfo regInfo = new NetworkRegistrationInfo.Builder()
+                .setAccessNetworkTechnology(TelephonyManager.NETWORK_TYPE_LTE)
+                .setRegistrationState(REGISTRATION_STATE_HOME)
+                .setDataSpecificInfo(dsri)
+                .build();
+        when(mServiceState.getState()).thenReturn(ServiceState.STATE_IN_SERVICE);
+        when(mServiceState.getNetworkRegistrationInfo(
+                anyInt(), eq(AccessNetworkConstants.TRANSPORT_TYPE_WWAN)))
+                .thenReturn(regInfo);
+        when(mVopsSupportInfo.isVopsSupported()).thenReturn(true);
+        when(mVopsSupportInfo.isEmergencyServiceSupported()).thenReturn(true);
+    }
+
+    private void processAllMessages() {
+        while (!mTestableLooper.getLooper().getQueue().isIdle()) {
+            mTestableLooper.processAllMessages();
+        }
+    }
+}
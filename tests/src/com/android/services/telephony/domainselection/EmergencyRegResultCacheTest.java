@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.EUTRAN;
+import static android.telephony.BarringInfo.BARRING_SERVICE_TYPE_EMERGENCY;
+import static android.telephony.BarringInfo.BarringServiceInfo.BARRING_TYPE_UNCONDITIONAL;
+import static android.telephony.NetworkRegistrationInfo.DOMAIN_PS;
+import static android.telephony.NetworkRegistrationInfo.REGISTRATION_STATE_HOME;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
+
+import android.telephony.BarringInfo;
+import android.telephony.CellIdentityLte;
+import android.telephony.EmergencyRegResult;
+import android.telephony.ServiceState;
+import android.util.SparseArray;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Unit tests for EmergencyRegResultCache.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class EmergencyRegResultCacheTest {
+    private static final int SLOT_0 = 0;
+    private static final int SLOT_1 = 1;
+
+    @Mock private ImsStateTracker mImsStateTracker;
+
+    private EmergencyRegResultCache mCache;
+    private EmergencyRegResult mRegResult;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mCache = new EmergencyRegResultCache(EmergencyRegResultCache.DEFAULT_VALIDITY_MILLIS);
+        mRegResult = new EmergencyRegResult(EUTRAN, REGISTRATION_STATE_HOME, DOMAIN_PS,
+                true, true, 0, 0, "001", "01", "us");
+    }
+
+    @Test
+    public void testAddSlot_registersListeners() {
+        mCache.addSlot(SLOT_0, mImsStateTracker);
+
+        verify(mImsStateTracker).addServiceStateListener(any());
+        verify(mImsStateTracker).addBarringInfoListener(any());
+
+        mCache.destroy();
+
+        verify(mImsStateTracker).removeServiceStateListener(any());
+        verify(mImsStateTracker).removeBarringInfoListener(any());
+    }
+
+    @Test
+    public void testPutAndGet_perSlot() {
+        mCache.put(SLOT_0, mRegResult);
+
+        assertEquals(mRegResult, mCache.get(SLOT_0));
+        assertEquals(mRegResult, mCache.get(SLOT_0));
+        assertNull(mCache.get(SLOT_1));
+    }
+
+    @Test
+    public void testGet_expired() throws Exception {
+        mCache = new EmergencyRegResultCache(0);
+        mCache.put(SLOT_0, mRegResult);
+        Thread.sleep(5);
+
+        assertNull(mCache.get(SLOT_0));
+    }
+
+    @Test
+    public void testServiceStateChanged_sameOperatorKeepsResult() {
+        mCache.put(SLOT_0, mRegResult);
+
+        mCache.onServiceStateChanged(SLOT_0, getServiceState(ServiceState.STATE_IN_SERVICE,
+                "00101"));
+
+        assertEquals(mRegResult, mCache.get(SLOT_0));
+    }
+
+    @Test
+    public void testServiceStateChanged_operatorChanged() {
+        mCache.put(SLOT_0, mRegResult);
+
+        mCache.onServiceStateChanged(SLOT_0, getServiceState(ServiceState.STATE_IN_SERVICE,
+                "00102"));
+
+        assertNull(mCache.get(SLOT_0));
+    }
+
+    @Test
+    public void testServiceStateChanged_radioOff() {
+        mCache.put(SLOT_0, mRegResult);
+
+        mCache.onServiceStateChanged(SLOT_0, getServiceState(ServiceState.STATE_POWER_OFF, ""));
+
+        assertNull(mCache.get(SLOT_0));
+    }
+
+    @Test
+    public void testBarringInfoChanged_emergencyBarred() {
+        mCache.put(SLOT_0, mRegResult);
+        mCache.put(SLOT_1, mRegResult);
+
+        mCache.onBarringInfoChanged(SLOT_0, getBarringInfo(false));
+        assertEquals(mRegResult, mCache.get(SLOT_0));
+
+        mCache.onBarringInfoChanged(SLOT_0, getBarringInfo(true));
+        assertNull(mCache.get(SLOT_0));
+        assertEquals(mRegResult, mCache.get(SLOT_1));
+    }
+
+    private static ServiceState getServiceState(int state, String operatorNumeric) {
+        ServiceState ss = new ServiceState();
+        ss.setState(state);
+        ss.setOperatorName("", "", operatorNumeric);
+        return ss;
+    }
+
+    private static BarringInfo getBarringInfo(boolean barred) {
+        SparseArray<BarringInfo.BarringServiceInfo> serviceInfos = new SparseArray<>();
+        if (barred) {
+            serviceInfos.put(BARRING_SERVICE_TYPE_EMERGENCY,
+                    new BarringInfo.BarringServiceInfo(BARRING_TYPE_UNCONDITIONAL, false, 0, 0));
+        }
+        return new BarringInfo(new CellIdentityLte(), serviceInfos);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.CDMA2000;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.EUTRAN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.GERAN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.NGRAN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.UTRAN;
+import static android.telephony.CarrierConfigManager.ImsEmergency.DOMAIN_CS;
+import static android.telephony.CarrierConfigManager.ImsEmergency.DOMAIN_PS_3GPP;
+import static android.telephony.CarrierConfigManager.ImsEmergency.DOMAIN_PS_NON_3GPP;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_CDMA_PREFERRED_NUMBERS_STRING_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_DOMAIN_PREFERENCE_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_DOMAIN_PREFERENCE_ROAMING_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_CS_ROAMING_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_CS_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_IMS_ROAMING_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_IMS_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_SCAN_TIMER_SEC_INT;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
+
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionManager;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.android.TestContext;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Unit tests for EmergencyScanPlan and EmergencyScanPlanCache.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class EmergencyScanPlanCacheTest {
+    private static final int SLOT_0 = 0;
+    private static final int SUB_1 = 1;
+    private static final int SUB_2 = 2;
+
+    private TestContext mContext;
+    private CarrierConfigManager mCarrierConfigManager;
+    private EmergencyScanPlanCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = new TestContext();
+        mCarrierConfigManager = mContext.getSystemService(CarrierConfigManager.class);
+        mCache = new EmergencyScanPlanCache(mContext, Runnable::run);
+    }
+
+    @Test
+    public void testRegisterCarrierConfigChangeListener() {
+        verify(mCarrierConfigManager).registerCarrierConfigChangeListener(any(Executor.class),
+                any(CarrierConfigManager.CarrierConfigChangeListener.class));
+    }
+
+    @Test
+    public void testCompile_homeAndRoaming() {
+        PersistableBundle b = new PersistableBundle();
+        b.putIntArray(KEY_EMERGENCY_OVER_IMS_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY,
+                new int[] { NGRAN, EUTRAN });
+        b.putIntArray(KEY_EMERGENCY_OVER_IMS_ROAMING_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY,
+                new int[] { EUTRAN });
+        b.putIntArray(KEY_EMERGENCY_OVER_CS_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY,
+                new int[] { UTRAN, GERAN });
+        b.putIntArray(KEY_EMERGENCY_OVER_CS_ROAMING_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY,
+                new int[] { GERAN });
+        b.putIntArray(KEY_EMERGENCY_DOMAIN_PREFERENCE_INT_ARRAY,
+                new int[] { DOMAIN_PS_3GPP, DOMAIN_CS, DOMAIN_PS_NON_3GPP });
+        b.putIntArray(KEY_EMERGENCY_DOMAIN_PREFERENCE_ROAMING_INT_ARRAY,
+                new int[] { DOMAIN_CS, DOMAIN_PS_3GPP });
+        b.putInt(KEY_EMERGENCY_SCAN_TIMER_SEC_INT, 10);
+
+        EmergencyScanPlan plan = EmergencyScanPlan.compile(b, true);
+
+        assertThat(plan.isValidSubscription()).isTrue();
+        assertThat(plan.getImsRats(false)).containsExactly(NGRAN, EUTRAN).inOrder();
+        assertThat(plan.getImsRats(true)).containsExactly(EUTRAN);
+        assertThat(plan.getCsRats(false)).containsExactly(UTRAN, GERAN).inOrder();
+        assertThat(plan.getCsRats(true)).containsExactly(GERAN);
+        assertThat(plan.getInitialPreferredNetworks(false))
+                .containsExactly(NGRAN, EUTRAN, UTRAN, GERAN).inOrder();
+        assertThat(plan.getInitialPreferredNetworks(true))
+                .containsExactly(GERAN, EUTRAN).inOrder();
+        assertThat(plan.getScanTimeoutMillis()).isEqualTo(10000);
+        assertThat(plan.getCompileNanos()).isAtLeast(0L);
+    }
+
+    @Test
+    public void testCompile_invalidSubscription() {
+        PersistableBundle b = new PersistableBundle();
+        b.putIntArray(KEY_EMERGENCY_OVER_IMS_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY,
+                new int[] { EUTRAN });
+
+        EmergencyScanPlan plan = EmergencyScanPlan.compile(b, false);
+
+        assertThat(plan.isValidSubscription()).isFalse();
+        assertThat(plan.getImsRats(false)).containsExactly(EUTRAN, NGRAN).inOrder();
+        assertThat(plan.getImsRats(true)).containsExactly(EUTRAN, NGRAN).inOrder();
+        assertThat(plan.getCsRats(false)).isEmpty();
+    }
+
+    @Test
+    public void testCompile_cdmaPreferredNumbers() {
+        PersistableBundle b = new PersistableBundle();
+        b.putIntArray(KEY_EMERGENCY_OVER_CS_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY,
+                new int[] { UTRAN, CDMA2000 });
+        b.putStringArray(KEY_EMERGENCY_CDMA_PREFERRED_NUMBERS_STRING_ARRAY,
+                new String[] { "110" });
+
+        EmergencyScanPlan plan = EmergencyScanPlan.compile(b, true);
+
+        // The list depends on the dialed number.
+        assertThat(plan.getInitialPreferredNetworks(false)).isNull();
+        assertThat(plan.getCdmaPreferredNumbers()).containsExactly("110");
+    }
+
+    @Test
+    public void testGetPlan_compiledOnceAndReused() {
+        mContext.getCarrierConfig(SUB_1).putInt(KEY_EMERGENCY_SCAN_TIMER_SEC_INT, 5);
+
+        EmergencyScanPlan plan = mCache.getPlan(SUB_1);
+
+        assertThat(plan.getScanTimeoutMillis()).isEqualTo(5000);
+        assertSame(plan, mCache.getPlan(SUB_1));
+    }
+
+    @Test
+    public void testOnCarrierConfigChanged_recompilesPlan() {
+        EmergencyScanPlan plan = mCache.getPlan(SUB_1);
+
+        mContext.getCarrierConfig(SUB_1).putInt(KEY_EMERGENCY_SCAN_TIMER_SEC_INT, 7);
+        mCache.onCarrierConfigChanged(SLOT_0, SUB_1);
+
+        EmergencyScanPlan newPlan = mCache.getPlan(SUB_1);
+        assertNotSame(plan, newPlan);
+        assertThat(newPlan.getScanTimeoutMillis()).isEqualTo(7000);
+    }
+
+    @Test
+    public void testOnCarrierConfigChanged_subscriptionChanged() {
+        mCache.onCarrierConfigChanged(SLOT_0, SUB_1);
+        EmergencyScanPlan plan = mCache.getPlan(SUB_1);
+
+        mCache.onCarrierConfigChanged(SLOT_0, SUB_2);
+        mCache.onCarrierConfigChanged(SLOT_0, SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+
+        // The plan of the removed subscription is dropped.
+        assertNotSame(plan, mCache.getPlan(SUB_1));
+        assertThat(mCache.getPlan(SubscriptionManager.INVALID_SUBSCRIPTION_ID)
+                .isValidSubscription()).isFalse();
+    }
+}
@@ -96,6 +96,7 @@ public class EmergencySmsDomainSelectorTest {
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
+        ImsStateTestUtils.stubSnapshot(mImsStateTracker);
         mContext = new TestContext() {
             @Override
             public Object getSystemService(String name) {
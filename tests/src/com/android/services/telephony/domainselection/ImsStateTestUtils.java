@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import static org.mockito.Mockito.doAnswer;
+
+import android.telephony.AccessNetworkConstants.AccessNetworkType;
+import android.telephony.ims.feature.MmTelFeature.MmTelCapabilities;
+
+/**
+ * Helpers for the tests using a mocked {@link ImsStateTracker}.
+ */
+public final class ImsStateTestUtils {
+    private ImsStateTestUtils() {}
+
+    /**
+     * Makes {@link ImsStateTracker#getSnapshot()} of the mocked tracker return the states
+     * stubbed for its getters at the time the snapshot is taken.
+     */
+    public static void stubSnapshot(ImsStateTracker mockTracker) {
+        doAnswer(invocation -> toSnapshot(mockTracker)).when(mockTracker).getSnapshot();
+    }
+
+    private static ImsStateSnapshot toSnapshot(ImsStateTracker tracker) {
+        MmTelCapabilities capabilities = new MmTelCapabilities();
+        if (tracker.isImsVoiceCapable()) {
+            capabilities.addCapabilities(MmTelCapabilities.CAPABILITY_TYPE_VOICE);
+        }
+        if (tracker.isImsVideoCapable()) {
+            capabilities.addCapabilities(MmTelCapabilities.CAPABILITY_TYPE_VIDEO);
+        }
+        if (tracker.isImsSmsCapable()) {
+            capabilities.addCapabilities(MmTelCapabilities.CAPABILITY_TYPE_SMS);
+        }
+        if (tracker.isImsUtCapable()) {
+            capabilities.addCapabilities(MmTelCapabilities.CAPABILITY_TYPE_UT);
+        }
+        int accessNetworkType = tracker.isImsRegisteredOverWlan()
+                ? AccessNetworkType.IWLAN : tracker.getImsAccessNetworkType();
+        return new ImsStateSnapshot.Builder()
+                .setMmTelFeatureAvailable(tracker.isMmTelFeatureAvailable())
+                .setImsRegistered(tracker.isImsRegistered())
+                .setImsAccessNetworkType(accessNetworkType)
+                .setImsRegisteredOverCrossSim(tracker.isImsRegisteredOverCrossSim())
+                .setMmTelCapabilities(capabilities)
+                .build();
+    }
+}
@@ -628,6 +628,46 @@ public class ImsStateTrackerTest {
         verify(mImsStateListener, times(2)).onImsMmTelCapabilitiesChanged();
     }
 
+    @Test
+    @SmallTest
+    public void testSnapshotIsNotAffectedByLaterChanges() throws ImsException {
+        ImsMmTelManager.CapabilityCallback callback = setUpMmTelCapabilityCallback();
+        callback.onCapabilitiesStatusChanged(new MmTelCapabilities(
+                MmTelCapabilities.CAPABILITY_TYPE_VOICE | MmTelCapabilities.CAPABILITY_TYPE_SMS));
+
+        ImsStateSnapshot snapshot = mImsStateTracker.getSnapshot();
+
+        assertTrue(snapshot.isImsStateReady());
+        assertTrue(snapshot.isMmTelFeatureAvailable());
+        assertTrue(snapshot.isImsRegistered());
+        assertTrue(snapshot.isImsVoiceCapable());
+        assertFalse(snapshot.isImsVideoCapable());
+        assertTrue(snapshot.isImsSmsCapable());
+        assertEquals(AccessNetworkType.EUTRAN, snapshot.getImsAccessNetworkType());
+
+        ArgumentCaptor<RegistrationManager.RegistrationCallback> callbackCaptor =
+                ArgumentCaptor.forClass(RegistrationManager.RegistrationCallback.class);
+        verify(mMmTelManager).registerImsRegistrationCallback(
+                any(Executor.class), callbackCaptor.capture());
+        callbackCaptor.getValue().onUnregistered(
+                new ImsReasonInfo(ImsReasonInfo.CODE_REGISTRATION_ERROR, 0, null));
+        mImsStateTracker.updateServiceState(mServiceState);
+
+        // The snapshot taken before keeps the states consistent with each other.
+        assertTrue(snapshot.isImsRegistered());
+        assertTrue(snapshot.isImsVoiceCapable());
+        assertEquals(AccessNetworkType.EUTRAN, snapshot.getImsAccessNetworkType());
+
+        ImsStateSnapshot newSnapshot = mImsStateTracker.getSnapshot();
+
+        assertTrue(newSnapshot.getSequence() > snapshot.getSequence());
+        assertFalse(newSnapshot.isImsRegistered());
+        assertFalse(newSnapshot.isImsVoiceCapable());
+        assertFalse(newSnapshot.isImsSmsCapable());
+        assertEquals(AccessNetworkType.UNKNOWN, newSnapshot.getImsAccessNetworkType());
+        assertEquals(mServiceState, newSnapshot.getServiceState());
+    }
+
     @Test
     @SmallTest
     public void testAddImsStateListenerWhenImsStateReady() throws ImsException {
@@ -88,6 +88,7 @@ public class NormalCallDomainSelectorTest {
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
+        ImsStateTestUtils.stubSnapshot(mMockImsStateTracker);
 
         doReturn(Context.TELEPHONY_IMS_SERVICE).when(mMockContext)
                 .getSystemServiceName(ImsManager.class);
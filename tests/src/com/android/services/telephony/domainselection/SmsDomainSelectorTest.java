@@ -21,10 +21,13 @@ import static android.telephony.DomainSelectionService.SELECTOR_TYPE_SMS;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -76,6 +79,7 @@ public class SmsDomainSelectorTest {
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
+        ImsStateTestUtils.stubSnapshot(mImsStateTracker);
         mContext = new TestContext();
         HandlerThread handlerThread = new HandlerThread(
                 SmsDomainSelectorTest.class.getSimpleName());
@@ -218,6 +222,61 @@ public class SmsDomainSelectorTest {
         verify(mDomainSelectorDestroyListener).onDomainSelectorDestroyed(eq(mDomainSelector));
     }
 
+    @Test
+    @SmallTest
+    public void testFinishSelectionWhenReusable() {
+        setUpImsStateTracker(AccessNetworkType.EUTRAN);
+        DomainSelectorBase.ReleaseListener releaseListener =
+                mock(DomainSelectorBase.ReleaseListener.class);
+        mDomainSelector.setReleaseListener(releaseListener);
+
+        mDomainSelector.selectDomain(mSelectionAttributes, mTransportSelectorCallback);
+        mDomainSelector.finishSelection();
+
+        assertFalse(mDomainSelector.isDomainSelectionRequested());
+        verify(releaseListener).onDomainSelectorReleased(eq(mDomainSelector));
+        verify(mDomainSelectorDestroyListener, never()).onDomainSelectorDestroyed(any());
+        verify(mImsStateTracker, never()).removeImsStateListener(any());
+
+        // The IMS state listener is registered only once for the reused domain selector.
+        mDomainSelector.selectDomain(mSelectionAttributes, mTransportSelectorCallback);
+
+        assertTrue(mDomainSelector.isDomainSelectionRequested());
+        verify(mImsStateTracker).addImsStateListener(eq(mDomainSelector));
+    }
+
+    @Test
+    @SmallTest
+    public void testSelectDomainFromBatch() {
+        setUpImsStateTracker(AccessNetworkType.EUTRAN);
+        setUpWwanSelectorCallback();
+        mDomainSelector.setReleaseListener(mock(DomainSelectorBase.ReleaseListener.class));
+
+        mDomainSelector.selectDomain(mSelectionAttributes, mTransportSelectorCallback);
+        processAllMessages();
+        mDomainSelector.finishSelection();
+
+        // The IMS state is not reported as changed, so the next SMS uses the same domain.
+        setUpImsStateTracker(AccessNetworkType.UNKNOWN);
+        mDomainSelector.selectDomain(mSelectionAttributes, mTransportSelectorCallback);
+        processAllMessages();
+        mDomainSelector.finishSelection();
+
+        verify(mWwanSelectorCallback, times(2)).onDomainSelected(
+                eq(NetworkRegistrationInfo.DOMAIN_PS), eq(false));
+        verify(mWwanSelectorCallback, never()).onDomainSelected(
+                eq(NetworkRegistrationInfo.DOMAIN_CS), anyBoolean());
+
+        // The IMS state change invalidates the batch.
+        mDomainSelector.onImsRegistrationStateChanged();
+        mDomainSelector.selectDomain(mSelectionAttributes, mTransportSelectorCallback);
+        processAllMessages();
+
+        verify(mWwanSelectorCallback).onDomainSelected(
+                eq(NetworkRegistrationInfo.DOMAIN_CS), eq(false));
+        assertFalse(mDomainSelector.isDomainSelectionRequested());
+    }
+
     @Test
     @SmallTest
     public void testReselectDomain() {
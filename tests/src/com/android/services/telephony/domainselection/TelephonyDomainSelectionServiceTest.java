@@ -20,7 +20,9 @@ import static org.junit.Assert.assertNotNull;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -78,7 +80,9 @@ public class TelephonyDomainSelectionServiceTest {
                         @SelectorType int selectorType, boolean isEmergency,
                         @NonNull Looper looper, @NonNull ImsStateTracker imsStateTracker,
                         @NonNull DomainSelectorBase.DestroyListener listener,
-                        @NonNull CrossSimRedialingController crossSimRedialingController) {
+                        @NonNull CrossSimRedialingController crossSimRedialingController,
+                        @NonNull EmergencyScanPlanCache scanPlanCache,
+                        @NonNull EmergencyRegResultCache regResultCache) {
                     switch (selectorType) {
                         case DomainSelectionService.SELECTOR_TYPE_CALLING: // fallthrough
                         case DomainSelectionService.SELECTOR_TYPE_SMS: // fallthrough
@@ -121,6 +125,7 @@ public class TelephonyDomainSelectionServiceTest {
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
+        ImsStateTestUtils.stubSnapshot(mImsStateTracker);
 
         if (Looper.myLooper() == null) {
             Looper.prepare();
@@ -278,6 +283,67 @@ public class TelephonyDomainSelectionServiceTest {
         verify(mDomainSelectorBase2).selectDomain(eq(attr2), eq(mSelectorCallback2));
     }
 
+    @Test
+    @SmallTest
+    public void testOnDomainSelectionReusesReleasedSmsDomainSelector() {
+        doReturn(SUB_1).when(mDomainSelectorBase1).getSubId();
+        SelectionAttributes attr1 = new SelectionAttributes.Builder(
+                SLOT_0, SUB_1, DomainSelectionService.SELECTOR_TYPE_SMS).build();
+        mServiceHandler.post(() -> {
+            mDomainSelectionService.onDomainSelection(attr1, mSelectorCallback1);
+        });
+        processAllMessages();
+
+        ArgumentCaptor<DomainSelectorBase.ReleaseListener> listenerCaptor =
+                ArgumentCaptor.forClass(DomainSelectorBase.ReleaseListener.class);
+        verify(mDomainSelectorBase1).setReleaseListener(listenerCaptor.capture());
+        verify(mDomainSelectorBase1).selectDomain(eq(attr1), eq(mSelectorCallback1));
+
+        // Notify the domain selection service that this domain selector is released.
+        listenerCaptor.getValue().onDomainSelectorReleased(mDomainSelectorBase1);
+
+        SelectionAttributes attr2 = new SelectionAttributes.Builder(
+                SLOT_0, SUB_1, DomainSelectionService.SELECTOR_TYPE_SMS).build();
+        mServiceHandler.post(() -> {
+            mDomainSelectionService.onDomainSelection(attr2, mSelectorCallback2);
+        });
+        processAllMessages();
+
+        // The released domain selector is reused without creating a new one.
+        verify(mDomainSelectorBase1, times(1)).setReleaseListener(any());
+        verify(mDomainSelectorBase1, never()).destroy();
+        verify(mSelectorCallback2).onCreated(eq(mDomainSelectorBase1));
+        verify(mDomainSelectorBase1).selectDomain(eq(attr2), eq(mSelectorCallback2));
+    }
+
+    @Test
+    @SmallTest
+    public void testOnDomainSelectionDestroysReleasedDomainSelectorOfOtherSubscription() {
+        doReturn(SUB_1).when(mDomainSelectorBase1).getSubId();
+        SelectionAttributes attr1 = new SelectionAttributes.Builder(
+                SLOT_0, SUB_1, DomainSelectionService.SELECTOR_TYPE_SMS).build();
+        mServiceHandler.post(() -> {
+            mDomainSelectionService.onDomainSelection(attr1, mSelectorCallback1);
+        });
+        processAllMessages();
+
+        ArgumentCaptor<DomainSelectorBase.ReleaseListener> listenerCaptor =
+                ArgumentCaptor.forClass(DomainSelectorBase.ReleaseListener.class);
+        verify(mDomainSelectorBase1).setReleaseListener(listenerCaptor.capture());
+        listenerCaptor.getValue().onDomainSelectorReleased(mDomainSelectorBase1);
+
+        SelectionAttributes attr2 = new SelectionAttributes.Builder(
+                SLOT_0, SUB_2, DomainSelectionService.SELECTOR_TYPE_SMS).build();
+        mServiceHandler.post(() -> {
+            mDomainSelectionService.onDomainSelection(attr2, mSelectorCallback2);
+        });
+        processAllMessages();
+
+        verify(mDomainSelectorBase1).destroy();
+        verify(mSelectorCallback2).onCreated(eq(mDomainSelectorBase2));
+        verify(mDomainSelectorBase2).selectDomain(eq(attr2), eq(mSelectorCallback2));
+    }
+
     @Test
     @SmallTest
     public void testOnServiceStateUpdated() {
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.net.InetAddresses;
+import android.os.SystemClock;
+import android.telephony.ims.DelegateRegistrationState;
+import android.telephony.ims.SipDelegateConfiguration;
+import android.telephony.ims.SipMessage;
+import android.telephony.ims.aidl.ISipDelegate;
+import android.telephony.ims.aidl.ISipDelegateMessageCallback;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.TelephonyTestBase;
+import com.android.TestExecutorService;
+import com.android.internal.telephony.metrics.RcsStats;
+import com.android.services.telephony.rcs.validator.IncomingTransportStateValidator;
+import com.android.services.telephony.rcs.validator.OutgoingTransportStateValidator;
+import com.android.services.telephony.rcs.validator.ValidationResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+/**
+ * Measures the number of SIP messages per second going through
+ * {@link MessageTransportWrapper} with the real validators and {@link SipSessionTracker}, with and
+ * without sharing one {@link ParsedSipMessage} between the stages.
+ * <p>
+ * The path without sharing is reproduced here by stages which parse the message again on their
+ * own, as they did before {@link ParsedSipMessage} was introduced.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageTransportWrapperBenchmarkTest extends TelephonyTestBase {
+    private static final String TAG = "MTWBenchmarkTest";
+    private static final int TEST_SUB_ID = 1;
+    private static final int TEST_CONFIG_VERSION = 1;
+    private static final String TEST_FEATURE_TAG = "+tag";
+    // INVITE, 200 OK, BYE, 200 OK
+    private static final int MESSAGES_PER_DIALOG = 4;
+    private static final int WARM_UP_DIALOGS = 200;
+    private static final int MEASURED_DIALOGS = 2000;
+
+    @Mock private ISipDelegateMessageCallback mAppCallback;
+    @Mock private ISipDelegate mISipDelegate;
+    @Mock private RcsStats mRcsStats;
+
+    private SipSessionTracker mSessionTracker;
+    private MessageTransportWrapper mWrapper;
+    private int mNextDialog;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @LargeTest
+    @Test
+    public void testMessagesPerSecond() throws Exception {
+        createWrapper(new PerStageParseSessionTracker());
+        double perStageParse = measureMessagesPerSecond();
+        assertEquals(0, mSessionTracker.getTrackedDialogs().size());
+
+        createWrapper(new SipSessionTracker(TEST_SUB_ID, mRcsStats));
+        double sharedParse = measureMessagesPerSecond();
+        assertEquals(0, mSessionTracker.getTrackedDialogs().size());
+        Log.i(TAG, "messages per second: per stage parse=" + perStageParse
+                + ", shared parse=" + sharedParse);
+
+        // Every dialog has been validated, tracked and cleaned up in both runs.
+        int dialogs = 2 * (WARM_UP_DIALOGS + MEASURED_DIALOGS);
+        verify(mISipDelegate, times(2 * dialogs)).sendMessage(any(), anyLong());
+        verify(mAppCallback, times(2 * dialogs)).onMessageReceived(any());
+        verify(mAppCallback, never()).onMessageSendFailure(anyString(), anyInt());
+        verify(mISipDelegate, never()).notifyMessageReceiveError(anyString(), anyInt());
+        verify(mRcsStats, times(dialogs)).confirmedSipTransportSession(anyString(), anyInt());
+        assertTrue(sharedParse > 0 && perStageParse > 0);
+    }
+
+    /** A {@link SipSessionTracker} which parses the message again on its own. */
+    private class PerStageParseSessionTracker extends SipSessionTracker {
+        PerStageParseSessionTracker() {
+            super(TEST_SUB_ID, mRcsStats);
+        }
+
+        @Override
+        public void filterSipMessage(int direction, ParsedSipMessage message) {
+            super.filterSipMessage(direction, new ParsedSipMessage(message.getMessage()));
+        }
+    }
+
+    /**
+     * Creates a new transport around the given tracker. If the tracker parses the message on its
+     * own, the validators do the same.
+     */
+    private void createWrapper(SipSessionTracker sessionTracker) throws Exception {
+        TestExecutorService executor = new TestExecutorService();
+        mSessionTracker = sessionTracker;
+        OutgoingTransportStateValidator outgoingValidator;
+        IncomingTransportStateValidator incomingValidator;
+        if (sessionTracker instanceof PerStageParseSessionTracker) {
+            outgoingValidator = new OutgoingTransportStateValidator(sessionTracker) {
+                @Override
+                public ValidationResult validate(ParsedSipMessage message) {
+                    return super.validate(new ParsedSipMessage(message.getMessage()));
+                }
+            };
+            incomingValidator = new IncomingTransportStateValidator() {
+                @Override
+                public ValidationResult validate(ParsedSipMessage message) {
+                    return super.validate(new ParsedSipMessage(message.getMessage()));
+                }
+            };
+        } else {
+            outgoingValidator = new OutgoingTransportStateValidator(sessionTracker);
+            incomingValidator = new IncomingTransportStateValidator();
+        }
+        TransportSipMessageValidator validator = new TransportSipMessageValidator(TEST_SUB_ID,
+                executor, sessionTracker, outgoingValidator, incomingValidator, mRcsStats);
+        mWrapper = new MessageTransportWrapper(TEST_SUB_ID, executor, mAppCallback, validator);
+        mWrapper.openTransport(mISipDelegate, Collections.singleton(TEST_FEATURE_TAG),
+                Collections.emptySet());
+        InetSocketAddress localAddr = new InetSocketAddress(
+                InetAddresses.parseNumericAddress("1.1.1.1"), 80);
+        InetSocketAddress serverAddr = new InetSocketAddress(
+                InetAddresses.parseNumericAddress("2.2.2.2"), 81);
+        mWrapper.onConfigurationChanged(new SipDelegateConfiguration.Builder(TEST_CONFIG_VERSION,
+                SipDelegateConfiguration.SIP_TRANSPORT_TCP, localAddr, serverAddr).build());
+        mWrapper.onRegistrationStateChanged(new DelegateRegistrationState.Builder().build());
+        runDialogs(WARM_UP_DIALOGS);
+    }
+
+    private double measureMessagesPerSecond() throws Exception {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        runDialogs(MEASURED_DIALOGS);
+        long elapsedNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        return MEASURED_DIALOGS * MESSAGES_PER_DIALOG * 1e9 / Math.max(elapsedNanos, 1);
+    }
+
+    private void runDialogs(int count) throws Exception {
+        ISipDelegate connection = mWrapper.getDelegateConnection();
+        ISipDelegateMessageCallback callback = mWrapper.getMessageCallback();
+        for (int i = 0; i < count; i++) {
+            int dialog = mNextDialog++;
+            String callId = "callId" + dialog;
+            String inviteBranch = "z9hG4bKinvite" + dialog;
+            String byeBranch = "z9hG4bKbye" + dialog;
+
+            connection.sendMessage(generateRequest("INVITE", inviteBranch, callId, null),
+                    TEST_CONFIG_VERSION);
+            callback.onMessageSent(inviteBranch);
+            callback.onMessageReceived(generateResponse(inviteBranch, callId));
+            connection.notifyMessageReceived(inviteBranch);
+            connection.sendMessage(generateRequest("BYE", byeBranch, callId, "totag"),
+                    TEST_CONFIG_VERSION);
+            callback.onMessageSent(byeBranch);
+            callback.onMessageReceived(generateResponse(byeBranch, callId));
+            connection.notifyMessageReceived(byeBranch);
+            connection.cleanupSession(callId);
+        }
+    }
+
+    private static SipMessage generateRequest(String method, String branch, String callId,
+            String toTag) {
+        return new SipMessage(method + " sip:b@client.example.com SIP/2.0",
+                "Via: SIP/2.0/TCP client.example.com:5060;branch=" + branch + "\n"
+                        + "Max-Forwards: 70\n"
+                        + "To: B <sip:b@example.com>" + (toTag != null ? ";tag=" + toTag : "")
+                        + "\n"
+                        + "From: A <sip:a@example.com>;tag=fromtag\n"
+                        + "Call-ID: " + callId + "\n"
+                        + "CSeq: 1 " + method + "\n"
+                        + "Contact: <sip:a@client.example.com>\n"
+                        + "Accept-Contact: *;" + TEST_FEATURE_TAG + "\n"
+                        + "Content-Length: 0",
+                new byte[0]);
+    }
+
+    private static SipMessage generateResponse(String branch, String callId) {
+        return new SipMessage("SIP/2.0 200 OK",
+                "Via: SIP/2.0/TCP client.example.com:5060;branch=" + branch + "\n"
+                        + "To: B <sip:b@example.com>;tag=totag\n"
+                        + "From: A <sip:a@example.com>;tag=fromtag\n"
+                        + "Call-ID: " + callId + "\n"
+                        + "CSeq: 1 INVITE\n"
+                        + "Content-Length: 0",
+                new byte[0]);
+    }
+}
@@ -74,6 +74,33 @@ public class MessageTransportWrapperTest extends TelephonyTestBase {
     // Derived from TEST_MESSAGE above.
     private static final String TEST_TRANSACTION_ID = "z9hG4bK776asdhds";
 
+    private static final SipMessage TEST_MESSAGE_2 = new SipMessage(
+            "INVITE sip:callee@ex.domain.com SIP/2.0",
+            "Via: SIP/2.0/UDP ex.place.com;branch=z9hG4bK776asdhdt",
+            new byte[0]);
+
+    // Derived from TEST_MESSAGE_2 above.
+    private static final String TEST_TRANSACTION_ID_2 = "z9hG4bK776asdhdt";
+
+    // Allows one message in flight in each direction and does not queue.
+    private static final SipMessageFlowController.Limits TEST_FLOW_CONTROL_LIMITS =
+            new SipMessageFlowController.Limits() {
+                @Override
+                public int getMaxInFlightMessages() {
+                    return 1;
+                }
+
+                @Override
+                public int getMaxQueuedMessages() {
+                    return 0;
+                }
+
+                @Override
+                public int getInFlightTimeoutMs() {
+                    return 1000;
+                }
+            };
+
     @Mock private ISipDelegateMessageCallback mDelegateMessageCallback;
     @Mock private TransportSipMessageValidator mTransportSipSessionValidator;
     @Mock private ISipDelegate mISipDelegate;
@@ -306,6 +333,52 @@ public class MessageTransportWrapperTest extends TelephonyTestBase {
                 SipDelegateManager.MESSAGE_FAILURE_REASON_NETWORK_NOT_AVAILABLE);
     }
 
+    @SmallTest
+    @Test
+    public void testOutgoingFlowControl() throws Exception {
+        MessageTransportWrapper tracker = new MessageTransportWrapper(TEST_SUB_ID, mExecutor,
+                mDelegateMessageCallback, mTransportSipSessionValidator,
+                TEST_FLOW_CONTROL_LIMITS, () -> 0L);
+        tracker.openTransport(mISipDelegate, Collections.emptySet(), Collections.emptySet());
+        doReturn(ValidationResult.SUCCESS)
+                .when(mTransportSipSessionValidator).verifyOutgoingMessage(any(), anyLong());
+
+        tracker.getDelegateConnection().sendMessage(TEST_MESSAGE, 1 /*version*/);
+        verify(mISipDelegate).sendMessage(TEST_MESSAGE, 1 /*version*/);
+        // The window is full until TEST_MESSAGE is acknowledged.
+        tracker.getDelegateConnection().sendMessage(TEST_MESSAGE_2, 1 /*version*/);
+        verify(mISipDelegate, never()).sendMessage(TEST_MESSAGE_2, 1 /*version*/);
+        verify(mDelegateMessageCallback).onMessageSendFailure(TEST_TRANSACTION_ID_2,
+                SipMessageFlowController.MESSAGE_FAILURE_REASON_FLOW_CONTROL);
+
+        tracker.getMessageCallback().onMessageSent(TEST_TRANSACTION_ID);
+        tracker.getDelegateConnection().sendMessage(TEST_MESSAGE_2, 1 /*version*/);
+        verify(mISipDelegate).sendMessage(TEST_MESSAGE_2, 1 /*version*/);
+    }
+
+    @SmallTest
+    @Test
+    public void testIncomingFlowControl() throws Exception {
+        MessageTransportWrapper tracker = new MessageTransportWrapper(TEST_SUB_ID, mExecutor,
+                mDelegateMessageCallback, mTransportSipSessionValidator,
+                TEST_FLOW_CONTROL_LIMITS, () -> 0L);
+        tracker.openTransport(mISipDelegate, Collections.emptySet(), Collections.emptySet());
+        doReturn(ValidationResult.SUCCESS)
+                .when(mTransportSipSessionValidator).verifyIncomingMessage(any());
+
+        tracker.getMessageCallback().onMessageReceived(TEST_MESSAGE);
+        verify(mDelegateMessageCallback).onMessageReceived(TEST_MESSAGE);
+        // The window is full until the app acknowledges TEST_MESSAGE.
+        tracker.getMessageCallback().onMessageReceived(TEST_MESSAGE_2);
+        verify(mDelegateMessageCallback, never()).onMessageReceived(TEST_MESSAGE_2);
+        verify(mISipDelegate).notifyMessageReceiveError(TEST_TRANSACTION_ID_2,
+                SipMessageFlowController.MESSAGE_FAILURE_REASON_FLOW_CONTROL);
+
+        tracker.getDelegateConnection().notifyMessageReceived(TEST_TRANSACTION_ID);
+        tracker.getMessageCallback().onMessageReceived(TEST_MESSAGE_2);
+        verify(mDelegateMessageCallback).onMessageReceived(TEST_MESSAGE_2);
+    }
+
     private MessageTransportWrapper createTestMessageTransportWrapper() {
         return new MessageTransportWrapper(TEST_SUB_ID,
                 mExecutor, mDelegateMessageCallback, mTransportSipSessionValidator);
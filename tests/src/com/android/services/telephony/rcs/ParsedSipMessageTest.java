@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import android.telephony.ims.SipMessage;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class ParsedSipMessageTest {
+
+    @SmallTest
+    @Test
+    public void testParseRequest() {
+        SipMessage m = SipMessageUtils.generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD,
+                "caller@example.com", "callee@example.com", "sip:callee@example.com",
+                "testBranch", "testCallId", "fromTag", null);
+        ParsedSipMessage parsed = new ParsedSipMessage(m);
+
+        assertTrue(parsed.isRequest());
+        assertFalse(parsed.isResponse());
+        assertEquals(SipMessageUtils.INVITE_SIP_METHOD, parsed.getRequestMethod());
+        assertEquals(-1, parsed.getStatusCode());
+        assertEquals("testBranch", parsed.getViaBranch());
+        assertEquals("testCallId", parsed.getCallId());
+        assertEquals("fromTag", parsed.getFromTag());
+        assertNull(parsed.getToTag());
+        assertTrue(parsed.getAcceptContactFeatureTags().isEmpty());
+        // Parsed once and then cached.
+        assertSame(parsed.getStartLineSegments(), parsed.getStartLineSegments());
+    }
+
+    @SmallTest
+    @Test
+    public void testParseResponse() {
+        SipMessage m = SipMessageUtils.generateSipResponse("180", "Ringing",
+                "caller@example.com", "callee@example.com", "testBranch", "testCallId",
+                "fromTag", "toTag");
+        ParsedSipMessage parsed = new ParsedSipMessage(m);
+
+        assertFalse(parsed.isRequest());
+        assertTrue(parsed.isResponse());
+        assertNull(parsed.getRequestMethod());
+        assertEquals(180, parsed.getStatusCode());
+        assertEquals("fromTag", parsed.getFromTag());
+        assertEquals("toTag", parsed.getToTag());
+    }
+
+    @SmallTest
+    @Test
+    public void testMalformedStartLine() {
+        ParsedSipMessage parsed = new ParsedSipMessage(new SipMessage("INVITE",
+                "Via: SIP/2.0/UDP ex.place.com;branch=z9hG4bK776asdhds", new byte[0]));
+
+        assertFalse(parsed.isRequest());
+        assertFalse(parsed.isResponse());
+        assertNull(parsed.getRequestMethod());
+        assertEquals(-1, parsed.getStatusCode());
+    }
+
+    @SmallTest
+    @Test
+    public void testWithoutContent() {
+        SipMessage m = SipMessageUtils.generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD,
+                "caller@example.com", "callee@example.com", "sip:callee@example.com",
+                "testBranch", "testCallId", "fromTag", null);
+        ParsedSipMessage parsed = new ParsedSipMessage(m);
+        // No content, nothing to drop.
+        assertSame(parsed, parsed.withoutContent());
+
+        parsed = new ParsedSipMessage(new SipMessage(m.getStartLine(), m.getHeaderSection(),
+                new byte[4096]));
+        String[] segments = parsed.getStartLineSegments();
+        ParsedSipMessage headersOnly = parsed.withoutContent();
+
+        assertEquals(0, headersOnly.getMessage().getContent().length);
+        assertEquals(m.getHeaderSection(), headersOnly.getMessage().getHeaderSection());
+        assertSame(segments, headersOnly.getStartLineSegments());
+        assertEquals(SipMessageUtils.INVITE_SIP_METHOD, headersOnly.getRequestMethod());
+        assertEquals("testBranch", headersOnly.getViaBranch());
+        assertEquals("testCallId", headersOnly.getCallId());
+        assertEquals("fromTag", headersOnly.getFromTag());
+    }
+
+    @SmallTest
+    @Test
+    public void testEqualsWrappedMessage() {
+        SipMessage m = SipMessageUtils.generateSipRequest(SipMessageUtils.BYE_SIP_METHOD,
+                "caller@example.com", "callee@example.com", "sip:callee@example.com",
+                "testBranch", "testCallId", "fromTag", "toTag");
+        ParsedSipMessage parsed = new ParsedSipMessage(m);
+        parsed.getToTag();
+
+        assertEquals(new ParsedSipMessage(m), parsed);
+        assertEquals(new ParsedSipMessage(m).hashCode(), parsed.hashCode());
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class SipMessageFlowControllerTest {
+    private static final int MAX_IN_FLIGHT = 2;
+    private static final int MAX_QUEUED = 1;
+    private static final int TIMEOUT_MS = 1000;
+
+    private final List<String> mForwarded = new ArrayList<>();
+    private final List<String> mExpired = new ArrayList<>();
+    // The expiry tasks scheduled on the executor and their delays, in order.
+    private final List<Runnable> mScheduledExpiries = new ArrayList<>();
+    private final List<Long> mScheduledDelaysMs = new ArrayList<>();
+    private long mElapsedRealtimeMs = 0;
+    private SipMessageFlowController mFlowControllerUT;
+
+    @Mock private ScheduledExecutorService mExecutor;
+    @Mock private ScheduledFuture<?> mScheduledFuture;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        doAnswer(invocation -> {
+            mScheduledExpiries.add(invocation.getArgument(0));
+            mScheduledDelaysMs.add(invocation.getArgument(1));
+            return mScheduledFuture;
+        }).when(mExecutor).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+        SipMessageFlowController.Limits limits = new SipMessageFlowController.Limits() {
+            @Override
+            public int getMaxInFlightMessages() {
+                return MAX_IN_FLIGHT;
+            }
+
+            @Override
+            public int getMaxQueuedMessages() {
+                return MAX_QUEUED;
+            }
+
+            @Override
+            public int getInFlightTimeoutMs() {
+                return TIMEOUT_MS;
+            }
+        };
+        mFlowControllerUT = new SipMessageFlowController(limits, mExecutor,
+                () -> mElapsedRealtimeMs, mExpired::add);
+    }
+
+    @SmallTest
+    @Test
+    public void testQueueWhenWindowFull() {
+        assertTrue(offer("1"));
+        assertTrue(offer("2"));
+        // The window is full, so this is queued.
+        assertTrue(offer("3"));
+        assertEquals(List.of("1", "2"), mForwarded);
+        assertEquals(2, mFlowControllerUT.getInFlightCount());
+        assertEquals(1, mFlowControllerUT.getQueuedCount());
+
+        // The queued message is forwarded once a slot is free.
+        mFlowControllerUT.acknowledge("1");
+        assertEquals(List.of("1", "2", "3"), mForwarded);
+        assertEquals(2, mFlowControllerUT.getInFlightCount());
+        assertEquals(0, mFlowControllerUT.getQueuedCount());
+    }
+
+    @SmallTest
+    @Test
+    public void testRejectWhenQueueFull() {
+        assertTrue(offer("1"));
+        assertTrue(offer("2"));
+        assertTrue(offer("3"));
+        assertFalse(offer("4"));
+        assertEquals(List.of("1", "2"), mForwarded);
+
+        // Acknowledging an unknown or already acknowledged message has no effect.
+        mFlowControllerUT.acknowledge("4");
+        mFlowControllerUT.acknowledge("2");
+        mFlowControllerUT.acknowledge("2");
+        assertEquals(List.of("1", "2", "3"), mForwarded);
+        assertEquals(2, mFlowControllerUT.getInFlightCount());
+    }
+
+    @SmallTest
+    @Test
+    public void testRetransmissionDoesNotTakeSlot() {
+        assertTrue(offer("1"));
+        assertTrue(offer("2"));
+        // Same transaction as a message already in flight.
+        assertTrue(offer("2"));
+        assertEquals(List.of("1", "2", "2"), mForwarded);
+        assertEquals(2, mFlowControllerUT.getInFlightCount());
+        assertEquals(0, mFlowControllerUT.getQueuedCount());
+    }
+
+    @SmallTest
+    @Test
+    public void testCancelledForwardFreesSlot() {
+        assertTrue(offer("1"));
+        // Forwarding fails, so no acknowledgement will be received for this message.
+        assertTrue(mFlowControllerUT.offer("2", () -> mFlowControllerUT.cancel("2")));
+        assertEquals(1, mFlowControllerUT.getInFlightCount());
+        assertTrue(offer("3"));
+        assertEquals(List.of("1", "3"), mForwarded);
+    }
+
+    @SmallTest
+    @Test
+    public void testExpireUnacknowledgedMessages() {
+        assertTrue(offer("1"));
+        mElapsedRealtimeMs += TIMEOUT_MS / 2;
+        assertTrue(offer("2"));
+        assertTrue(offer("3"));
+        // Only the expiry of the oldest message is scheduled.
+        assertEquals(List.of((long) TIMEOUT_MS), mScheduledDelaysMs);
+
+        // Only the oldest message has expired, which frees its slot for the queued message.
+        mElapsedRealtimeMs += TIMEOUT_MS / 2;
+        runScheduledExpiry();
+        assertEquals(List.of("1"), mExpired);
+        assertEquals(List.of("1", "2", "3"), mForwarded);
+        assertEquals(0, mFlowControllerUT.getQueuedCount());
+        assertEquals(List.of((long) TIMEOUT_MS, (long) TIMEOUT_MS / 2), mScheduledDelaysMs);
+
+        mElapsedRealtimeMs += TIMEOUT_MS / 2;
+        runScheduledExpiry();
+        assertEquals(List.of("1", "2"), mExpired);
+        assertEquals(1, mFlowControllerUT.getInFlightCount());
+        assertEquals(List.of((long) TIMEOUT_MS, (long) TIMEOUT_MS / 2, (long) TIMEOUT_MS / 2),
+                mScheduledDelaysMs);
+    }
+
+    @SmallTest
+    @Test
+    public void testExpiryRescheduledAfterOldestAcknowledged() {
+        assertTrue(offer("1"));
+        mElapsedRealtimeMs += TIMEOUT_MS / 2;
+        assertTrue(offer("2"));
+        mFlowControllerUT.acknowledge("1");
+
+        // The expiry scheduled for the acknowledged message finds nothing due and moves on to the
+        // next message.
+        mElapsedRealtimeMs += TIMEOUT_MS / 2;
+        runScheduledExpiry();
+        assertTrue(mExpired.isEmpty());
+        assertEquals(List.of((long) TIMEOUT_MS, (long) TIMEOUT_MS / 2), mScheduledDelaysMs);
+
+        mElapsedRealtimeMs += TIMEOUT_MS / 2;
+        runScheduledExpiry();
+        assertEquals(List.of("2"), mExpired);
+        assertEquals(0, mFlowControllerUT.getInFlightCount());
+        // Nothing is in flight, so no further expiry is scheduled.
+        assertEquals(2, mScheduledDelaysMs.size());
+    }
+
+    @SmallTest
+    @Test
+    public void testFlush() {
+        assertTrue(offer("1"));
+        assertTrue(offer("2"));
+        assertTrue(offer("3"));
+
+        mFlowControllerUT.flush();
+        verify(mScheduledFuture).cancel(false);
+        assertEquals(List.of("1", "2", "3"), mForwarded);
+        assertEquals(0, mFlowControllerUT.getInFlightCount());
+        assertEquals(0, mFlowControllerUT.getQueuedCount());
+    }
+
+    private void runScheduledExpiry() {
+        mScheduledExpiries.get(mScheduledExpiries.size() - 1).run();
+    }
+
+    private boolean offer(String transactionId) {
+        return mFlowControllerUT.offer(transactionId, () -> mForwarded.add(transactionId));
+    }
+}
@@ -19,6 +19,7 @@ package com.android.services.telephony.rcs;
 import static com.android.internal.telephony.TelephonyStatsLog.SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 
@@ -123,6 +124,7 @@ public class SipSessionTrackerTest {
     private static final int TEST_SIP_CLOSE_RESPONSE_CODE = 0;
 
     @Mock private RcsStats mRcsStats;
+    private long mElapsedRealtimeMs = 0;
     private boolean mUpdatedState = false;
     private SipDialogStateCallback mCallback;
     private SipDelegateManager mSipManager;
@@ -135,7 +137,7 @@ public class SipSessionTrackerTest {
     public void setUp() throws Exception {
         mStringEntryCounter = 0;
         MockitoAnnotations.initMocks(this);
-        mTrackerUT = new SipSessionTracker(TEST_SUB_ID, mRcsStats);
+        mTrackerUT = new SipSessionTracker(TEST_SUB_ID, mRcsStats, () -> mElapsedRealtimeMs);
         mMockImsRcsInterface = mock(IImsRcsController.class);
         mBinderCache = mock(BinderCacheManager.class);
         mRcsBinderCache = mock(BinderCacheManager.class);
@@ -356,6 +358,61 @@ public class SipSessionTrackerTest {
                 .contains(attr.callId));
     }
 
+    @Test
+    public void testAcceptContactFtsRemovedOnCleanup() {
+        DialogAttributes attr = new DialogAttributes();
+        SipMessage inviteRequest = generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD, attr);
+        inviteRequest = new SipMessage(inviteRequest.getStartLine(),
+                inviteRequest.getHeaderSection() + "\nAccept-Contact:*;+Test",
+                new byte[0]);
+        filterMessage(inviteRequest, attr);
+        assertTrue(mTrackerUT.getCallIdsAssociatedWithFeatureTag(Collections.singleton("+test"))
+                .contains(attr.callId));
+
+        mTrackerUT.cleanupSession(attr.callId);
+        assertTrue(mTrackerUT.getCallIdsAssociatedWithFeatureTag(Collections.singleton("+test"))
+                .isEmpty());
+    }
+
+    @Test
+    public void testClosedDialogsEvictedOverMax() {
+        DialogAttributes[] attrs = new DialogAttributes[SipSessionTracker.MAX_CLOSED_DIALOGS + 1];
+        for (int i = 0; i < attrs.length; i++) {
+            attrs[i] = new DialogAttributes();
+            createConfirmedDialog(attrs[i]);
+            filterMessage(generateSipRequest(SipMessageUtils.BYE_SIP_METHOD, attrs[i]), attrs[i]);
+        }
+        // The oldest closed dialog has been evicted.
+        Set<String> closedCallIds = mTrackerUT.getClosedDialogs().stream()
+                .map(SipDialog::getCallId).collect(Collectors.toSet());
+        assertEquals(SipSessionTracker.MAX_CLOSED_DIALOGS, closedCallIds.size());
+        assertFalse(closedCallIds.contains(attrs[0].callId));
+        assertTrue(closedCallIds.contains(attrs[attrs.length - 1].callId));
+        assertEquals(SipSessionTracker.MAX_CLOSED_DIALOGS, mTrackerUT.getTrackedDialogs().size());
+    }
+
+    @Test
+    public void testClosedDialogsEvictedAfterTtl() {
+        DialogAttributes closedAttr = new DialogAttributes();
+        createConfirmedDialog(closedAttr);
+        filterMessage(generateSipRequest(SipMessageUtils.BYE_SIP_METHOD, closedAttr),
+                closedAttr);
+        verifyContainsCallIds(mTrackerUT.getClosedDialogs(), closedAttr);
+
+        // Not evicted before the TTL expires.
+        mElapsedRealtimeMs += SipSessionTracker.CLOSED_DIALOG_TTL_MS - 1;
+        DialogAttributes attr = new DialogAttributes();
+        createConfirmedDialog(attr);
+        verifyContainsCallIds(mTrackerUT.getClosedDialogs(), closedAttr);
+
+        // The next message acknowledged after the TTL evicts the closed dialog only.
+        mElapsedRealtimeMs += 1;
+        mTrackerUT.acknowledgePendingMessage(attr.branchId);
+        assertTrue(mTrackerUT.getClosedDialogs().isEmpty());
+        verifyContainsCallIds(mTrackerUT.getConfirmedDialogs(), attr);
+        assertEquals(1, mTrackerUT.getTrackedDialogs().size());
+    }
+
     @Test
     public void testCloseRemoteDialog() {
         DialogAttributes remoteAttr = new DialogAttributes();
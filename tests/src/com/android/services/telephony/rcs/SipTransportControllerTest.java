@@ -36,6 +36,7 @@ import static org.mockito.Mockito.verify;
 import android.app.role.RoleManager;
 import android.os.IBinder;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.telephony.CarrierConfigManager;
 import android.telephony.ims.DelegateRequest;
@@ -67,12 +68,17 @@ import org.mockito.Mock;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 
 @RunWith(AndroidJUnit4.class)
@@ -122,6 +128,7 @@ public class SipTransportControllerTest extends TelephonyTestBase {
     @Mock private SipTransportController.RoleManagerAdapter mMockRoleManager;
 
     private ScheduledExecutorService mExecutorService = null;
+    private long mElapsedRealtimeMs = 0;
     private final ArrayList<SipDelegateControllerContainer> mMockControllers = new ArrayList<>();
     private final ArrayList<String> mSmsPackageName = new ArrayList<>(1);
 
@@ -370,6 +377,56 @@ public class SipTransportControllerTest extends TelephonyTestBase {
         createDelegateAndVerify(controller, c, Collections.emptySet(), getDeniedTags);
     }
 
+    @SmallTest
+    @Test
+    public void testRegistrationUpdateSkippedIfGrantedTagsUnchanged() throws Exception {
+        SipTransportController controller = setupLiveTransportController();
+
+        DelegateRequest r = getBaseDelegateRequest();
+        SipDelegateControllerContainer c1 = injectMockDelegateController(TEST_PACKAGE_NAME, r);
+        createDelegateAndVerify(controller, c1, r.getFeatureTags(), Collections.emptySet());
+        verifyDelegateRegistrationChangedEvent(1 /*times*/, 0 /*waitMs*/);
+
+        // The new delegate is not in the SMS role, so no feature tags move and the IMS
+        // registration does not need to be updated.
+        SipDelegateControllerContainer c2 = injectMockDelegateController(TEST_PACKAGE_NAME_2, r);
+        createDelegateAndVerify(controller, c2, Collections.emptySet(),
+                getDeniedTagsForReason(r.getFeatureTags(),
+                        SipDelegateManager.DENIED_REASON_NOT_ALLOWED), 1);
+        verifyDelegateRegistrationChangedEvent(1 /*times*/, 0 /*waitMs*/);
+    }
+
+    @SmallTest
+    @Test
+    public void testCarrierConfigChangeTriggersReevaluate() throws Exception {
+        SipTransportController controller = setupLiveTransportController();
+
+        DelegateRequest r = getBaseDelegateRequest();
+        SipDelegateControllerContainer c = injectMockDelegateController(TEST_PACKAGE_NAME, r);
+        createDelegateAndVerify(controller, c, r.getFeatureTags(), Collections.emptySet());
+        verifyDelegateRegistrationChangedEvent(1 /*times*/, 0 /*waitMs*/);
+
+        ArraySet<String> allowedTags = new ArraySet<>(r.getFeatureTags());
+        allowedTags.remove(ImsSignallingUtils.ONE_TO_ONE_CHAT_TAG);
+        Set<FeatureTagState> deniedTags = getDeniedTagsForReason(
+                Collections.singleton(ImsSignallingUtils.ONE_TO_ONE_CHAT_TAG),
+                SipDelegateManager.DENIED_REASON_NOT_ALLOWED);
+        CompletableFuture<Boolean> pendingChange = setChangeSupportedFeatureTagsFuture(
+                c.delegateController, allowedTags, deniedTags);
+        setFeatureAllowedConfig(TEST_SUB_ID, new String[]{ImsSignallingUtils.MMTEL_TAG,
+                ImsSignallingUtils.GROUP_CHAT_TAG, ImsSignallingUtils.FILE_TRANSFER_HTTP_TAG});
+        controller.onCarrierConfigChanged();
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        verifyDelegateChanged(c.delegateController, pendingChange, allowedTags, deniedTags, 1);
+        verifyDelegateRegistrationChangedEvent(2 /*times*/, 0 /*waitMs*/);
+
+        // The same config again does not change anything.
+        controller.onCarrierConfigChanged();
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        verify(c.delegateController).changeSupportedFeatureTags(allowedTags, deniedTags);
+        verifyDelegateRegistrationChangedEvent(2 /*times*/, 0 /*waitMs*/);
+    }
+
     @SmallTest
     @Test
     public void createTwoAndDenyOverlappingTags() throws Exception {
@@ -576,6 +633,39 @@ public class SipTransportControllerTest extends TelephonyTestBase {
         verifyDelegateRegistrationChangedEvent(2 /*times*/, 2 * THROTTLE_MS);
     }
 
+    @SmallTest
+    @Test
+    public void testThrottlingBurstLongerThanMaxDelay() throws Exception {
+        FakeClockExecutorService executor = new FakeClockExecutorService();
+        // Keep the registration update out of the way of the re-evaluations.
+        SipTransportController controller = createControllerAndThrottle(executor, THROTTLE_MS,
+                10 * THROTTLE_MS, () -> mElapsedRealtimeMs);
+        doReturn(mSipTransport).when(mRcsManager).getSipTransport();
+        controller.onAssociatedSubscriptionUpdated(TEST_SUB_ID);
+        controller.onRcsConnected(mRcsManager);
+        long startMs = 100 * THROTTLE_MS;
+        executor.advanceTo(startMs);
+        executor.runTimesMs.clear();
+
+        // Change the SMS role every half throttle period for longer than the max delay, which is
+        // 3 * THROTTLE_MS by default.
+        long maxDelayMs = 3 * THROTTLE_MS;
+        boolean useSecondPackage = true;
+        for (long t = startMs; t <= startMs + maxDelayMs + THROTTLE_MS; t += THROTTLE_MS / 2) {
+            executor.advanceTo(t);
+            mSmsPackageName.clear();
+            mSmsPackageName.add(useSecondPackage ? TEST_PACKAGE_NAME_2 : TEST_PACKAGE_NAME);
+            useSecondPackage = !useSecondPackage;
+            controller.onRoleHoldersChanged(RoleManager.ROLE_SMS, UserHandle.SYSTEM);
+        }
+        executor.advanceTo(startMs + maxDelayMs + 2 * THROTTLE_MS);
+
+        // The first re-evaluate is not postponed past the max delay, and the changes after it are
+        // coalesced into a second one.
+        assertEquals(List.of(startMs + maxDelayMs, startMs + maxDelayMs + 2 * THROTTLE_MS),
+                executor.runTimesMs);
+    }
+
     @SmallTest
     @Test
     public void testSubIdChangeDestroyTriggered() throws Exception {
@@ -978,6 +1068,12 @@ public class SipTransportControllerTest extends TelephonyTestBase {
 
     private SipTransportController createControllerAndThrottle(ScheduledExecutorService e,
             int throttleMs, int regDelayMs) {
+        return createControllerAndThrottle(e, throttleMs, regDelayMs,
+                SystemClock::elapsedRealtime);
+    }
+
+    private SipTransportController createControllerAndThrottle(ScheduledExecutorService e,
+            int throttleMs, int regDelayMs, LongSupplier elapsedRealtimeMs) {
         return new SipTransportController(mContext, 0 /*slotId*/, TEST_SUB_ID,
                 mMockDelegateControllerFactory, mMockRoleManager,
                 // Remove delays for testing.
@@ -991,7 +1087,93 @@ public class SipTransportControllerTest extends TelephonyTestBase {
                     public int getUpdateRegistrationDelayMilliseconds() {
                         return regDelayMs;
                     }
-                }, e);
+                }, e, elapsedRealtimeMs);
+    }
+
+    /**
+     * Runs submitted tasks right away like {@link TestExecutorService}, but only runs a scheduled
+     * task once {@link #advanceTo(long)} moves the fake clock past its time.
+     */
+    private class FakeClockExecutorService extends TestExecutorService {
+        // The fake clock times at which the scheduled tasks ran, in order.
+        public final List<Long> runTimesMs = new ArrayList<>();
+        private final List<FakeScheduledFuture> mScheduled = new ArrayList<>();
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            FakeScheduledFuture f = new FakeScheduledFuture(command,
+                    mElapsedRealtimeMs + unit.toMillis(delay));
+            mScheduled.add(f);
+            return f;
+        }
+
+        public void advanceTo(long timeMs) {
+            while (true) {
+                FakeScheduledFuture next = mScheduled.stream().filter(f -> !f.isDone())
+                        .min(Comparator.comparingLong(f -> f.mRunAtMs)).orElse(null);
+                if (next == null || next.mRunAtMs > timeMs) break;
+                mElapsedRealtimeMs = next.mRunAtMs;
+                runTimesMs.add(next.mRunAtMs);
+                next.run();
+            }
+            mElapsedRealtimeMs = timeMs;
+        }
+    }
+
+    private class FakeScheduledFuture implements ScheduledFuture<Void> {
+        private final Runnable mTask;
+        private final long mRunAtMs;
+        private boolean mIsCancelled;
+        private boolean mIsDone;
+
+        FakeScheduledFuture(Runnable task, long runAtMs) {
+            mTask = task;
+            mRunAtMs = runAtMs;
+        }
+
+        void run() {
+            mIsDone = true;
+            mTask.run();
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mRunAtMs - mElapsedRealtimeMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS),
+                    o.getDelay(TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (mIsDone) return false;
+            mIsCancelled = true;
+            mIsDone = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mIsDone;
+        }
+
+        @Override
+        public Void get() {
+            return null;
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) {
+            return null;
+        }
     }
 
     private boolean scheduleDelayedWait(long timeMs) {
@@ -135,9 +135,11 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         // Since the incoming/outgoing messages were verified, there should have been two calls
         // to filter the message.
         verify(mSipSessionTracker).filterSipMessage(
-                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, TEST_MESSAGE);
+                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING,
+                new ParsedSipMessage(TEST_MESSAGE));
         verify(mSipSessionTracker).filterSipMessage(
-                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, TEST_MESSAGE);
+                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING,
+                new ParsedSipMessage(TEST_MESSAGE));
 
         assertTrue(tracker.verifyOutgoingMessage(generateSipRequest("INVITE",
                 "testId1"), TEST_CONFIG_VERSION).isValidated);
@@ -165,9 +167,11 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         // Since the incoming/outgoing messages were verified, there should have been two calls
         // to filter the message.
         verify(mSipSessionTracker).filterSipMessage(
-                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, TEST_MESSAGE);
+                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING,
+                new ParsedSipMessage(TEST_MESSAGE));
         verify(mSipSessionTracker).filterSipMessage(
-                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, TEST_MESSAGE);
+                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING,
+                new ParsedSipMessage(TEST_MESSAGE));
         // ensure pass through methods are working
         tracker.acknowledgePendingMessage("abc");
         verify(mSipSessionTracker).acknowledgePendingMessage("abc");
@@ -178,17 +182,19 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         // Now have validators return a non-successful result for validation and the tracker should
         // not get the indication to filter the message.
         doReturn(new ValidationResult(SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED,
-                "")).when(mOutgoingStateValidator).validate(any());
+                "")).when(mOutgoingStateValidator).validate(any(ParsedSipMessage.class));
         doReturn(new ValidationResult(SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED,
-                "")).when(mIncomingStateValidator).validate(any());
+                "")).when(mIncomingStateValidator).validate(any(ParsedSipMessage.class));
         assertFalse(tracker.verifyIncomingMessage(TEST_MESSAGE).isValidated);
         assertFalse(tracker.verifyOutgoingMessage(TEST_MESSAGE, TEST_CONFIG_VERSION).isValidated);
         // The number of times the filter method was called should still only be two after these
         // messages were not validated.
         verify(mSipSessionTracker).filterSipMessage(
-                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, TEST_MESSAGE);
+                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING,
+                new ParsedSipMessage(TEST_MESSAGE));
         verify(mSipSessionTracker).filterSipMessage(
-                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, TEST_MESSAGE);
+                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING,
+                new ParsedSipMessage(TEST_MESSAGE));
     }
 
 
@@ -526,8 +532,10 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
     }
 
     private TransportSipMessageValidator getTestTracker(ScheduledExecutorService executor) {
-        doReturn(ValidationResult.SUCCESS).when(mOutgoingStateValidator).validate(any());
-        doReturn(ValidationResult.SUCCESS).when(mIncomingStateValidator).validate(any());
+        doReturn(ValidationResult.SUCCESS).when(mOutgoingStateValidator)
+                .validate(any(ParsedSipMessage.class));
+        doReturn(ValidationResult.SUCCESS).when(mIncomingStateValidator)
+                .validate(any(ParsedSipMessage.class));
         doReturn(mIncomingStateValidator).when(mIncomingStateValidator).andThen(any());
         return new TransportSipMessageValidator(TEST_SUB_ID, executor, mSipSessionTracker,
                 mOutgoingStateValidator, mIncomingStateValidator, mRcsStats);